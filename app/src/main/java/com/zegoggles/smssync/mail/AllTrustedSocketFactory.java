@@ -21,14 +21,14 @@ import java.security.cert.X509Certificate;
 class AllTrustedSocketFactory implements TrustedSocketFactory {
     public static TrustedSocketFactory INSTANCE = new AllTrustedSocketFactory();
 
+    // shared, so that its session cache allows TLS session resumption on reconnects
+    private SSLContext sslContext;
+
     private AllTrustedSocketFactory() {}
 
     @Override
     public Socket createSocket(Socket socket, String host, int port, String clientCertificateAlias) throws NoSuchAlgorithmException, KeyManagementException, MessagingException, IOException {
-        TrustManager[] trustManagers = new TrustManager[] { new InsecureX509TrustManager() };
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(null, trustManagers, null);
-        SSLSocketFactory socketFactory = sslContext.getSocketFactory();
+        SSLSocketFactory socketFactory = getSSLContext().getSocketFactory();
         Socket trustedSocket;
         if (socket == null) {
             trustedSocket = socketFactory.createSocket();
@@ -39,6 +39,16 @@ class AllTrustedSocketFactory implements TrustedSocketFactory {
         return trustedSocket;
     }
 
+    private synchronized SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException {
+        if (sslContext == null) {
+            TrustManager[] trustManagers = new TrustManager[] { new InsecureX509TrustManager() };
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers, null);
+            sslContext = context;
+        }
+        return sslContext;
+    }
+
     private static class InsecureX509TrustManager implements X509TrustManager
     {
         public void checkClientTrusted(X509Certificate[] chain, String authType)
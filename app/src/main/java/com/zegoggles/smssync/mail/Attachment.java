@@ -3,6 +3,7 @@ package com.zegoggles.smssync.mail;
 import android.content.ContentResolver;
 import android.net.Uri;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 import com.fsck.k9.mail.Body;
@@ -10,14 +11,17 @@ import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.filter.Base64OutputStream;
 import com.fsck.k9.mail.internet.MimeBodyPart;
 import com.fsck.k9.mail.internet.MimeHeader;
-import org.apache.commons.io.IOUtils;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.zegoggles.smssync.App.TAG;
 
@@ -27,12 +31,43 @@ class Attachment {
     private static final String RFC2231_SPECIALS = "*'%" + MIME_SPECIALS;
     private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
+    /** encoded attachment data kept in memory while replaying, larger attachments are spilled to disk */
+    static final int SPOOL_MEMORY_LIMIT = 4 * BufferPool.BUFFER_SIZE;
+
+    private static final ThreadLocal<List<Base64Body>> REPLAY = new ThreadLocal<List<Base64Body>>();
+    private static final AtomicLong bytesRead = new AtomicLong();
+    private static volatile @Nullable File spillDirectory;
+
     private Attachment() {}
 
+    /**
+     * @return the number of attachment bytes read for encoding
+     */
+    static long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @param directory where large encoded attachments are kept while replaying
+     */
+    static void setSpillDirectory(@Nullable File directory) {
+        spillDirectory = directory;
+    }
+
+    private static File getSpillDirectory() {
+        final File directory = spillDirectory;
+        // only unset if no store has been created
+        return directory != null ? directory : new File(System.getProperty("java.io.tmpdir"));
+    }
+
     static MimeBodyPart createPartFromUri(@NonNull ContentResolver resolver, @NonNull Uri uri, String filename, String contentType) throws MessagingException {
         return createPart(new ResolverBody(resolver, uri), filename, contentType);
     }
 
+    static MimeBodyPart createPartFromBytes(@NonNull byte[] data, String filename, String contentType) throws MessagingException {
+        return createPart(new ByteArrayBody(data), filename, contentType);
+    }
+
     private static MimeBodyPart createPart(Body body, final String filename, final String contentType) throws MessagingException {
         MimeBodyPart part = new MimeBodyPart(body, contentType);
 
@@ -50,18 +85,81 @@ class Attachment {
         return part;
     }
 
+    /**
+     * Starts keeping the encoded attachments written by this thread, so that writing a message
+     * more than once, e.g. to calculate its size, only reads and encodes its attachments once.
+     */
+    static void startReplay() {
+        REPLAY.set(new ArrayList<Base64Body>());
+    }
+
+    /**
+     * Discards the encoded attachments kept since {@link #startReplay()}.
+     */
+    static void endReplay() {
+        final List<Base64Body> bodies = REPLAY.get();
+        REPLAY.remove();
+        if (bodies != null) {
+            for (Base64Body body : bodies) {
+                body.releaseSpool();
+            }
+        }
+    }
+
     private static abstract class Base64Body implements Body {
+        private @Nullable MessageSpool spool;
+
         @Override
         public void writeTo(OutputStream outputStream) throws IOException, MessagingException {
+            if (spool != null) {
+                spool.writeTo(outputStream);
+                return;
+            }
+            final List<Base64Body> replay = REPLAY.get();
+            if (replay != null) {
+                final MessageSpool encoded = new MessageSpool(BufferPool.getInstance(), SPOOL_MEMORY_LIMIT, getSpillDirectory());
+                try {
+                    encode(encoded);
+                } catch (IOException e) {
+                    encoded.close();
+                    throw e;
+                }
+                spool = encoded;
+                replay.add(this);
+                spool.writeTo(outputStream);
+            } else {
+                encode(outputStream);
+            }
+        }
+
+        private void encode(OutputStream outputStream) throws IOException {
             InputStream in = getInputStream();
             if (in != null)  {
-                Base64OutputStream base64Out = new Base64OutputStream(outputStream);
-                IOUtils.copy(in, base64Out);
-                base64Out.close();
+                final BufferPool pool = BufferPool.getInstance();
+                final byte[] buffer = pool.acquire();
+                try {
+                    Base64OutputStream base64Out = new Base64OutputStream(outputStream);
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        base64Out.write(buffer, 0, n);
+                        bytesRead.addAndGet(n);
+                    }
+                    base64Out.close();
+                } finally {
+                    pool.release(buffer);
+                    in.close();
+                }
             } else {
                 Log.w(TAG, "input stream is null");
             }
         }
+
+        private void releaseSpool() {
+            if (spool != null) {
+                spool.close();
+                spool = null;
+            }
+        }
     }
 
     private static class ResolverBody extends Base64Body {
@@ -90,6 +188,22 @@ class Attachment {
         }
     }
 
+    private static class ByteArrayBody extends Base64Body {
+        private final byte[] data;
+
+        ByteArrayBody(@NonNull byte[] data) {
+            this.data = data;
+        }
+
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public void setEncoding(String s) {
+        }
+    }
+
     static String encodeRFC2231(String key, String value) {
         StringBuilder buf = new StringBuilder();
         boolean encoded = encodeRFC2231value(value, buf);
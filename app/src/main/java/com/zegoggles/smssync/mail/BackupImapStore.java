@@ -18,52 +18,122 @@ package com.zegoggles.smssync.mail;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 import com.fsck.k9.mail.FetchProfile;
+import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Folder;
 import com.fsck.k9.mail.Folder.FolderType;
+import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.filter.EOLConvertingOutputStream;
+import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.ssl.DefaultTrustedSocketFactory;
 import com.fsck.k9.mail.ssl.TrustedSocketFactory;
 import com.fsck.k9.mail.store.imap.ImapFolder;
+import com.fsck.k9.mail.store.imap.ImapList;
 import com.fsck.k9.mail.store.imap.ImapMessage;
 import com.fsck.k9.mail.store.imap.ImapResponse;
 import com.fsck.k9.mail.store.imap.ImapSearcher;
 import com.fsck.k9.mail.store.imap.ImapStore;
 import com.zegoggles.smssync.preferences.DataTypePreferences;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.mail.Headers.DATATYPE;
+import static com.zegoggles.smssync.mail.PhaseTimings.Phase.APPEND;
+import static com.zegoggles.smssync.mail.PhaseTimings.Phase.CAPABILITY;
+import static com.zegoggles.smssync.mail.PhaseTimings.Phase.CREATE;
+import static com.zegoggles.smssync.mail.PhaseTimings.Phase.FETCH;
+import static com.zegoggles.smssync.mail.PhaseTimings.Phase.LOGIN;
+import static com.zegoggles.smssync.mail.PhaseTimings.Phase.NAMESPACE;
+import static com.zegoggles.smssync.mail.PhaseTimings.Phase.SEARCH;
+import static com.zegoggles.smssync.mail.PhaseTimings.Phase.SELECT;
 import static java.util.Collections.sort;
 import static java.util.Locale.ENGLISH;
 
 public class BackupImapStore extends ImapStore {
+    static final String CAPABILITY_MULTIAPPEND = "MULTIAPPEND";
+    static final String CAPABILITY_LITERAL_PLUS = "LITERAL+";
+    static final String CAPABILITY_LITERAL_MINUS = "LITERAL-";
+    static final String CAPABILITY_NAMESPACE = "NAMESPACE";
+    static final String CAPABILITY_COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
+    static final String CAPABILITY_SORT = "SORT";
+    /** RFC 7888: with LITERAL- only literals up to this size may be non-synchronizing */
+    static final int LITERAL_MINUS_MAX_SIZE = 4096;
+    /** number of messages fetched per command when scanning a folder */
+    static final int SCAN_CHUNK_SIZE = 1000;
+    /** number of Message-IDs looked up per search, each one adds a nested OR */
+    static final int SEARCH_CHUNK_SIZE = 25;
+    /** larger messages are not sent as part of a batch, but streamed on their own */
+    static final long MAX_INLINE_SIZE = 1024 * 1024;
+
     private final Map<DataType, BackupFolder> openFolders = new HashMap<DataType, BackupFolder>();
+    /** read and reset by the folders of parallel uploads */
+    private volatile @Nullable Set<String> serverCapabilities;
+    private volatile @Nullable String serverPrefix;
+    private final CountingSocketFactory socketFactory;
+    private final ServerInfoCache serverInfo;
+    private final PhaseTimings timings = new PhaseTimings();
+    private volatile @Nullable ImapStorePool pool;
 
     public BackupImapStore(final Context context, final String uri,
                            boolean trustAllCertificates) throws MessagingException {
+        this(context, uri, trustAllCertificates, new AtomicInteger());
+    }
+
+    BackupImapStore(final Context context, final String uri,
+                    boolean trustAllCertificates, AtomicInteger connects) throws MessagingException {
+        this(context, uri, new CountingSocketFactory(
+            trustAllCertificates ? AllTrustedSocketFactory.INSTANCE :
+                new SessionCachingSocketFactory(new DefaultTrustedSocketFactory(context)),
+            connects));
+    }
+
+    /* package, for testing */ BackupImapStore(final Context context, final String uri,
+                            CountingSocketFactory socketFactory) throws MessagingException {
         super(new BackupStoreConfig(uri),
-            trustAllCertificates ? AllTrustedSocketFactory.INSTANCE : new DefaultTrustedSocketFactory(context),
+            socketFactory,
             (ConnectivityManager) context.getSystemService(CONNECTIVITY_SERVICE));
+        this.socketFactory = socketFactory;
+        this.serverInfo = new ServerInfoCache(context, uri);
+        // asked again once the login needs to be checked, i.e. once a day
+        this.serverCapabilities = serverInfo.isFresh(System.currentTimeMillis()) ? serverInfo.getCapabilities() : null;
+        this.serverPrefix = serverInfo.getPrefix();
+
+        final File spillDirectory = MessageSpool.getSpillDirectory(context);
+        MessageSpool.deleteStaleFiles(spillDirectory, System.currentTimeMillis());
+        Attachment.setSpillDirectory(spillDirectory);
     }
 
-    public BackupFolder getFolder(DataType type, DataTypePreferences preferences) throws MessagingException {
+    public synchronized BackupFolder getFolder(DataType type, DataTypePreferences preferences) throws MessagingException {
         BackupFolder folder = openFolders.get(type);
+        if (folder != null && !folder.getName().equals(preferences.getFolder(type))) {
+            // kept open from an earlier run, but the label has been changed since
+            closeQuietly(folder);
+            openFolders.remove(type);
+            folder = null;
+        }
         if (folder == null) {
             String label = preferences.getFolder(type);
             if (label == null) throw new IllegalStateException("label is null");
@@ -74,18 +144,119 @@ public class BackupImapStore extends ImapStore {
         return folder;
     }
 
+    /**
+     * Closes the folders opened by a backup or restore. If the store is pooled, the folders are
+     * kept open instead, so the next run can reuse their connections.
+     */
     public void closeFolders() {
-        Collection<BackupFolder> folders = openFolders.values();
-        for (BackupFolder folder : folders) {
+        final ImapStorePool pool = this.pool;
+        if (pool != null) {
+            pool.release(this);
+        } else {
+            closeOpenFolders();
+        }
+    }
+
+    /**
+     * Skips the login check if a connection kept open from a previous run is still alive, or if
+     * the login has been checked recently. In the latter case a login failure shows up when the
+     * first folder gets opened.
+     */
+    @Override
+    public void checkSettings() throws MessagingException {
+        timings.reset();
+        final ImapStorePool pool = this.pool;
+        if (pool != null && pingFolders()) {
+            pool.countWarmStart();
+            return;
+        }
+        if (pool != null) pool.countColdStart();
+        if (serverInfo.isFresh(System.currentTimeMillis())) {
+            if (LOCAL_LOGV) Log.v(TAG, "login checked recently, skipping check");
+        } else {
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                super.checkSettings();
+            } catch (AuthenticationFailedException e) {
+                serverInfo.clear();
+                throw e;
+            }
+            serverCapabilities = null;
+            timings.record(LOGIN, start);
+            serverInfo.markChecked(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return the bytes sent and received, on the wire and uncompressed, for the debug log
+     */
+    public String getCompressionStats() {
+        return socketFactory.getCompressionStats().toString();
+    }
+
+    /**
+     * @return the time spent in the phases of the current session, for the debug log
+     */
+    public String getPhaseTimings() {
+        return timings.toString();
+    }
+
+    void setPool(@Nullable ImapStorePool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Checks the connections of all open folders with a NOOP, and closes the dead ones.
+     * @return if any folder is still open
+     */
+    synchronized boolean pingFolders() {
+        final Iterator<BackupFolder> folders = openFolders.values().iterator();
+        while (folders.hasNext()) {
+            final BackupFolder folder = folders.next();
             try {
-                folder.close();
-            } catch (Exception e) {
-                Log.w(TAG, e);
+                if (!folder.isOpen()) {
+                    throw new MessagingException("folder closed");
+                }
+                folder.noop();
+            } catch (MessagingException e) {
+                if (LOCAL_LOGV) Log.v(TAG, "connection of " + folder.getName() + " is gone", e);
+                closeQuietly(folder);
+                folders.remove();
             }
         }
+        return !openFolders.isEmpty();
+    }
+
+    /**
+     * Logs out and closes all open folders.
+     */
+    synchronized void disconnect() {
+        for (BackupFolder folder : openFolders.values()) {
+            try {
+                folder.logout();
+            } catch (MessagingException e) {
+                if (LOCAL_LOGV) Log.v(TAG, "error logging out", e);
+            }
+        }
+        closeOpenFolders();
+    }
+
+    private synchronized void closeOpenFolders() {
+        Collection<BackupFolder> folders = openFolders.values();
+        for (BackupFolder folder : folders) {
+            closeQuietly(folder);
+        }
         openFolders.clear();
     }
 
+    private static void closeQuietly(BackupFolder folder) {
+        try {
+            folder.close();
+        } catch (Exception e) {
+            Log.w(TAG, e);
+        }
+    }
+
     @Override public String toString() {
         return "BackupImapStore{" +
                 "uri=" + getStoreUriForLogging() +
@@ -114,17 +285,33 @@ public class BackupImapStore extends ImapStore {
     }
 
     /* package, for testing */ TrustedSocketFactory getTrustedSocketFactory() {
-        return mTrustedSocketFactory;
+        return socketFactory.getDelegate();
     }
 
+    /**
+     * Selects the folder straight away, the folder only gets created if that fails.
+     */
     private @NonNull BackupFolder createAndOpenFolder(DataType type, @NonNull String label) throws MessagingException {
         try {
             BackupFolder folder = new BackupFolder(this, label, type);
-            if (!folder.exists()) {
+            try {
+                openFolder(folder);
+            } catch (AuthenticationFailedException e) {
+                serverInfo.clear();
+                throw e;
+            } catch (MessagingException e) {
+                // not a NO response, or the folder does exist and cannot be selected
+                if (e.getCause() instanceof IOException || folder.exists()) throw e;
+
                 Log.i(TAG, "Label '" + label + "' does not exist yet. Creating.");
+                final long start = SystemClock.elapsedRealtime();
                 folder.create(FolderType.HOLDS_MESSAGES);
+                timings.record(CREATE, start);
+                openFolder(folder);
+            }
+            if (isSecure() && DeflateSocket.isSupported()) {
+                folder.startCompression();
             }
-            folder.open(Folder.OPEN_MODE_RW);
             return folder;
         } catch (IllegalArgumentException e) {
             // thrown inside K9
@@ -133,12 +320,223 @@ public class BackupImapStore extends ImapStore {
         }
     }
 
+    private void openFolder(BackupFolder folder) throws MessagingException {
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            folder.open(Folder.OPEN_MODE_RW);
+            timings.record(SELECT, start);
+        } catch (MessagingException e) {
+            // release the connection, so that the next attempt selects again
+            folder.close();
+            throw e;
+        }
+    }
+
     public String getStoreUri() {
         return mStoreConfig.getStoreUri();
     }
 
+    /**
+     * @return if all open connections of this store are compressed already, which includes the
+     * one a folder just got from the pool. A new connection is not compressed yet.
+     */
+    private boolean isEveryConnectionCompressed() {
+        final List<DeflateSocket> sockets = socketFactory.getOpenSockets();
+        for (DeflateSocket socket : sockets) {
+            if (!socket.isCompressed()) return false;
+        }
+        return !sockets.isEmpty();
+    }
+
+    /**
+     * @return if connections go through the socket factory, and can therefore be compressed
+     */
+    private boolean isSecure() {
+        final String scheme = Uri.parse(getStoreUri()).getScheme();
+        return "imap+ssl+".equalsIgnoreCase(scheme) || "imap+tls+".equalsIgnoreCase(scheme);
+    }
+
+    /**
+     * Quotes a mailbox name for use in an IMAP command.
+     * @return the quoted name or null if the name cannot be sent as a quoted string
+     */
+    static @Nullable String quoteMailboxName(String name) {
+        // anything outside of printable ASCII would need modified UTF-7 encoding
+        return quote(name);
+    }
+
+    /**
+     * Quotes a string for use as an argument of a SEARCH key.
+     * @return the quoted string or null if the string can only be sent as a literal
+     */
+    static @Nullable String quoteSearchString(String value) {
+        // CR, LF and 8-bit characters are not allowed in quoted strings (RFC 3501)
+        return quote(value);
+    }
+
+    private static @Nullable String quote(String value) {
+        final StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c > 0x7e || c < 0x20) {
+                return null;
+            } else if (c == '"' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Parses a UID set as used in APPENDUID responses, e.g. <code>4:6,9</code>.
+     * @return the UIDs in order, or null if the set is invalid
+     */
+    static @Nullable long[] parseUidSet(String set) {
+        final List<Long> uids = new ArrayList<Long>();
+        try {
+            for (String range : set.split(",")) {
+                final int colon = range.indexOf(':');
+                if (colon < 0) {
+                    uids.add(Long.parseLong(range.trim()));
+                } else {
+                    final long from = Long.parseLong(range.substring(0, colon).trim());
+                    final long to = Long.parseLong(range.substring(colon + 1).trim());
+                    final long step = from <= to ? 1 : -1;
+                    for (long uid = from; ; uid += step) {
+                        uids.add(uid);
+                        if (uid == to) break;
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        final long[] result = new long[uids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = uids.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Parses a block of header fields, joining folded lines.
+     * @return the header values, keyed by lower case name. For repeated fields the first one wins.
+     */
+    static Map<String, String> parseHeaderFields(String block) {
+        final Map<String, String> fields = new HashMap<String, String>();
+        String name = null;
+        StringBuilder value = null;
+        for (String line : block.split("\\r?\\n")) {
+            if (line.length() > 0 && (line.charAt(0) == ' ' || line.charAt(0) == '\t') && value != null) {
+                value.append(' ').append(line.trim());
+                continue;
+            }
+            if (name != null && !fields.containsKey(name)) {
+                fields.put(name, value.toString());
+            }
+            name = null;
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                name = line.substring(0, colon).trim().toLowerCase(ENGLISH);
+                value = new StringBuilder(line.substring(colon + 1).trim());
+            }
+        }
+        if (name != null && !fields.containsKey(name)) {
+            fields.put(name, value.toString());
+        }
+        return fields;
+    }
+
+    /**
+     * Parses the data items of a FETCH response sent for {@link BackupFolder#fetchForRestore(List)}.
+     * The header fields and the text are put back together and parsed as one message.
+     *
+     * @param fetched the parsed message gets added here, keyed by UID
+     * @return the number of message bytes in the response
+     */
+    static long parseRestoreFetch(ImapList fetch, Map<String, Message> fetched) throws MessagingException {
+        String uid = null;
+        String whole = null, header = null, text = null;
+        for (int i = 0; i < fetch.size() - 1; i++) {
+            final Object item = fetch.get(i);
+            final Object value = fetch.get(i + 1);
+            if ("UID".equalsIgnoreCase(String.valueOf(item))) {
+                uid = String.valueOf(value);
+            } else if (value instanceof String && isBodySection(fetch, i)) {
+                // the section, e.g. [TEXT] or [HEADER.FIELDS (...)], followed by its literal
+                final String section = String.valueOf(item).toUpperCase(ENGLISH);
+                if (section.contains("HEADER")) {
+                    header = (String) value;
+                } else if (section.contains("TEXT")) {
+                    text = (String) value;
+                } else {
+                    whole = (String) value;
+                }
+            }
+        }
+        if (uid == null || (whole == null && header == null)) return 0;
+
+        final String content = whole != null ? whole : text == null ? header : header + text;
+        try {
+            fetched.put(uid, MimeMessage.parseMimeMessage(new ByteArrayInputStream(content.getBytes("ISO-8859-1")), false));
+        } catch (IOException e) {
+            throw new MessagingException("error parsing message " + uid, e);
+        }
+        return content.length();
+    }
+
+    /**
+     * @return if the item at <code>index</code> is the section of a <code>BODY[...]</code> data item,
+     * which is either parsed as a list following <code>BODY</code> or kept as part of the atom
+     */
+    private static boolean isBodySection(ImapList fetch, int index) {
+        final Object item = fetch.get(index);
+        if (item instanceof ImapList) {
+            return index > 0 && "BODY".equalsIgnoreCase(String.valueOf(fetch.get(index - 1)));
+        } else {
+            return item instanceof String && ((String) item).toUpperCase(ENGLISH).startsWith("BODY[");
+        }
+    }
+
+    /**
+     * Mirrors K9's prefix handling, see <code>ImapStore#getCombinedPrefix</code>.
+     */
+    static String combinePrefix(@Nullable String pathPrefix, @Nullable String pathDelimiter) {
+        if (pathPrefix == null) {
+            return "";
+        }
+        String prefix = pathPrefix.trim();
+        final String delimiter = pathDelimiter == null ? "" : pathDelimiter.trim();
+        if (prefix.endsWith(delimiter)) {
+            prefix = prefix.substring(0, prefix.length() - delimiter.length());
+        }
+        return prefix.length() > 0 ? prefix + delimiter : "";
+    }
+
+    /**
+     * @return search criteria matching any of the given Message-IDs, which must all be quotable
+     * with {@link #quoteSearchString(String)}
+     */
+    static String buildMessageIdCriteria(List<String> messageIds) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < messageIds.size(); i++) {
+            if (i < messageIds.size() - 1) {
+                sb.append("OR ");
+            }
+            sb.append("HEADER MESSAGE-ID ").append(quoteSearchString(messageIds.get(i)));
+            if (i < messageIds.size() - 1) {
+                sb.append(' ');
+            }
+        }
+        return sb.toString();
+    }
+
     public class BackupFolder extends ImapFolder {
         private final DataType type;
+        private long fetchedBytes;
+        /** set once the server refused a batched APPEND, later messages get appended one by one */
+        private boolean batchRefused;
 
         BackupFolder(ImapStore store, String name, DataType type) {
             super(store, name);
@@ -150,11 +548,67 @@ public class BackupImapStore extends ImapStore {
             if (LOCAL_LOGV)
                 Log.v(TAG, String.format(ENGLISH, "getMessages(%d, %b, %s)", max, flagged, since));
 
-            final List<ImapMessage> messages;
+            final long start = SystemClock.elapsedRealtime();
+            List<ImapMessage> messages = null;
+            if (max > 0 && getCapabilities().contains(CAPABILITY_SORT)) {
+                messages = sortNewest(max, flagged, since);
+            }
+            if (messages == null) {
+                messages = searchNewest(max, flagged, since);
+            }
+            timings.record(SEARCH, start);
+
+            Collections.reverse(messages);
+
+            return messages;
+        }
+
+        /**
+         * Lets the server order the messages by date (RFC 5256), so that only the UIDs of the
+         * newest messages are used, without fetching any envelopes.
+         *
+         * @return the newest messages, newest first, or null if the server refused to sort
+         */
+        private @Nullable List<ImapMessage> sortNewest(final int max, final boolean flagged, final Date since)
+                throws MessagingException {
+            final List<ImapResponse> responses;
+            try {
+                responses = executeCommand("UID SORT (REVERSE DATE) UTF-8 " + buildSearchCriteria(type, since, flagged));
+            } catch (MessagingException e) {
+                if (e.getCause() instanceof IOException) throw e;
+                // a NO or BAD response
+                Log.w(TAG, "server did not sort, searching instead: " + e.getMessage());
+                return null;
+            }
+            final List<String> uids = new ArrayList<String>(max);
+            int found = 0;
+            for (ImapResponse response : responses) {
+                if (isUntagged(response, "SORT")) {
+                    found += response.size() - 1;
+                    addSortedUids(response, uids, max);
+                }
+            }
+            Log.i(TAG, "Found " + found + " msgs" + (since == null ? "" : " (since " + since + ")") + ", sorted by server");
+
+            final List<ImapMessage> messages = new ArrayList<ImapMessage>(uids.size());
+            for (String uid : uids) {
+                messages.add(getMessage(uid));
+            }
+            return messages;
+        }
+
+        /**
+         * Searches the messages, fetching the envelopes of all of them if more than <code>max</code>
+         * are found.
+         *
+         * @return the newest messages, newest first, or all messages in search order
+         */
+        private List<ImapMessage> searchNewest(final int max, final boolean flagged, final Date since)
+                throws MessagingException {
             final ImapSearcher searcher = new ImapSearcher() {
                 @Override
                 public List<ImapResponse> search() throws IOException, MessagingException {
-                    return executeSimpleCommand(buildSearchQuery(type, since, flagged));
+                    return executeSimpleCommand("UID SEARCH " + buildSearchCriteria(type, since, flagged));
                 }
             };
 
@@ -169,24 +623,483 @@ public class BackupImapStore extends ImapStore {
                 fetch(msgs, fp, null);
 
                 if (LOCAL_LOGV) Log.v(TAG, "Sorting");
-                //Debug.startMethodTracing("sorting");
-                sort(msgs, MessageComparator.INSTANCE);
-                //Debug.stopMethodTracing();
+                sortNewestFirst(msgs);
                 if (LOCAL_LOGV) Log.v(TAG, "Sorting done");
 
-                messages = new ArrayList<ImapMessage>(max);
+                final List<ImapMessage> messages = new ArrayList<ImapMessage>(max);
                 messages.addAll(msgs.subList(0, max));
+                return messages;
             } else {
-                messages = msgs;
+                return msgs;
+            }
+        }
+
+        /**
+         * Appends messages to this folder, using as few round trips as the server allows.
+         * <p>
+         * If the server advertises MULTIAPPEND (RFC 3502) several messages get sent in one command,
+         * with LITERAL+ / LITERAL- (RFC 7888) the message literals are sent without waiting
+         * for continuation requests. Servers without either extension get one APPEND per message.
+         *
+         * @param messages the messages to append, in order
+         * @param maxBytes the maximum number of message bytes to send in one command
+         * @return the UIDs the server assigned (UIDPLUS, RFC 4315), in message order, 0 where unknown
+         * @throws MessagingException if any of the messages could not be appended
+         */
+        public long[] appendBatch(List<Message> messages, long maxBytes) throws MessagingException {
+            final long[] uids = new long[messages.size()];
+            if (messages.isEmpty()) return uids;
+
+            final Set<String> capabilities = getCapabilities();
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                appendBatch(messages, maxBytes, capabilities, uids);
+            } catch (MessagingException e) {
+                if (!(e.getCause() instanceof IOException)) {
+                    // the server might have changed, ask again next time
+                    serverInfo.clear();
+                    serverCapabilities = null;
+                    serverPrefix = null;
+                }
+                throw e;
             }
+            timings.record(APPEND, start);
+            return uids;
+        }
 
-            Collections.reverse(messages);
+        private void appendBatch(List<Message> messages, long maxBytes, Set<String> capabilities, long[] uids) throws MessagingException {
+            final boolean literalPlus = capabilities.contains(CAPABILITY_LITERAL_PLUS);
+            final boolean literalMinus = capabilities.contains(CAPABILITY_LITERAL_MINUS);
+            final String mailbox = !batchRefused && (literalPlus || literalMinus) ? getQuotedMailboxName() : null;
+            if (mailbox == null) {
+                appendStreamed(messages, uids, 0);
+                return;
+            }
+            final boolean multiAppend = capabilities.contains(CAPABILITY_MULTIAPPEND);
+            final long inlineLimit = Math.min(maxBytes, MAX_INLINE_SIZE);
 
-            return messages;
+            StringBuilder command = null;
+            final List<Message> pending = new ArrayList<Message>();
+            for (int position = 0; position < messages.size(); position++) {
+                final Message message = messages.get(position);
+                if (batchRefused) {
+                    uids[position] = appendStreamed(message);
+                    continue;
+                }
+                final MessageSpool spool = new MessageSpool(BufferPool.getInstance(), inlineLimit, null);
+                Attachment.startReplay();
+                try {
+                    spool(message, spool);
+                    final boolean inline = spool.isComplete() && !spool.isEightBit() &&
+                        (literalPlus || spool.size() <= LITERAL_MINUS_MAX_SIZE);
+
+                    if (command != null && (!inline || !multiAppend || command.length() + spool.size() > maxBytes)) {
+                        final boolean appended = executeAppend(command.toString(), pending.size(), uids, position - pending.size());
+                        if (!appended) {
+                            // the attachments of the pending messages have been released already,
+                            // every message gets streamed with a replay of its own, this one too
+                            Attachment.endReplay();
+                            appendStreamed(pending, uids, position - pending.size());
+                            uids[position] = appendStreamed(message);
+                        }
+                        command = null;
+                        pending.clear();
+                        if (!appended) continue;
+                    }
+                    if (!inline) {
+                        // streamed by the connection, the attachments are replayed from the spool
+                        uids[position] = getAppendedUid(appendMessages(Collections.singletonList(message)));
+                        continue;
+                    }
+                    if (command == null) {
+                        command = new StringBuilder("APPEND ").append(mailbox);
+                    }
+                    command.append(message.isSet(Flag.SEEN) ? " (\\Seen)" : " ()")
+                           .append(" {").append(spool.size()).append("+}\r\n");
+                    spool.appendTo(command);
+                    pending.add(message);
+                } catch (IOException e) {
+                    throw new MessagingException("error writing message", e);
+                } finally {
+                    spool.close();
+                    Attachment.endReplay();
+                }
+            }
+            final int first = messages.size() - pending.size();
+            if (command != null && !executeAppend(command.toString(), pending.size(), uids, first)) {
+                appendStreamed(pending, uids, first);
+            }
+        }
+
+        /**
+         * Appends messages one by one, see {@link #appendStreamed(Message)}.
+         * @param uids receives the UIDs of the appended messages, starting at <code>first</code>
+         */
+        private void appendStreamed(List<Message> messages, long[] uids, int first) throws MessagingException {
+            for (int i = 0; i < messages.size(); i++) {
+                uids[first + i] = appendStreamed(messages.get(i));
+            }
+        }
+
+        /**
+         * Appends a single message with a synchronizing literal, writing it straight to the
+         * connection. Attachments are only read once, although the message is written twice.
+         *
+         * @return the UID the server assigned, 0 if unknown
+         */
+        private long appendStreamed(Message message) throws MessagingException {
+            Attachment.startReplay();
+            try {
+                return getAppendedUid(appendMessages(Collections.singletonList(message)));
+            } finally {
+                Attachment.endReplay();
+            }
+        }
+
+        /**
+         * @param uidMap the UIDs k9 reports for a single appended message, can be null
+         * @return the UID assigned to the message, 0 if unknown
+         */
+        private long getAppendedUid(@Nullable Map<String, String> uidMap) {
+            if (uidMap == null || uidMap.size() != 1) return 0;
+            try {
+                return Long.parseLong(uidMap.values().iterator().next());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * @param uids receives the UIDs of the appended messages, starting at <code>first</code>
+         * @return false if the server refused the command, none of the messages have been appended then
+         */
+        private boolean executeAppend(String command, int count, long[] uids, int first) throws MessagingException {
+            if (LOCAL_LOGV) Log.v(TAG, String.format(ENGLISH, "APPEND %d message(s), %d bytes", count, command.length()));
+            final List<ImapResponse> responses;
+            try {
+                responses = executeSimpleCommand(command);
+            } catch (IOException e) {
+                throw new MessagingException("error appending messages", e);
+            } catch (MessagingException e) {
+                if (e.getCause() instanceof IOException) throw e;
+                // a NO or BAD response, MULTIAPPEND is atomic (RFC 3502)
+                Log.w(TAG, "server refused batched APPEND, appending one by one: " + e.getMessage());
+                batchRefused = true;
+                return false;
+            }
+            for (ImapResponse response : responses) {
+                if (response.getTag() == null) continue;
+                for (int i = 0; i < response.size(); i++) {
+                    if (!(response.get(i) instanceof ImapList)) continue;
+                    final ImapList code = (ImapList) response.get(i);
+                    if (code.size() > 2 && "APPENDUID".equalsIgnoreCase(String.valueOf(code.get(0)))) {
+                        final long[] appended = parseUidSet(String.valueOf(code.get(2)));
+                        if (appended != null && appended.length == count) {
+                            System.arraycopy(appended, 0, uids, first, count);
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads the identifying headers of all messages in this folder into the index, fetching
+         * them in chunks to bound the memory used for the responses.
+         *
+         * @return the number of backed up messages found
+         */
+        public int scanMessageIndex(MessageIndex index) throws MessagingException {
+            final int messageCount = getMessageCount();
+            final String fields = TextUtils.join(" ", new String[]{ Headers.MESSAGE_ID, Headers.ID, Headers.DATE, DATATYPE });
+            int found = 0;
+            for (int start = 1; start <= messageCount; start += SCAN_CHUNK_SIZE) {
+                final int end = Math.min(messageCount, start + SCAN_CHUNK_SIZE - 1);
+                final List<MessageIndex.Entry> entries = new ArrayList<MessageIndex.Entry>();
+                for (ImapResponse response : executeCommand(String.format(ENGLISH,
+                        "FETCH %d:%d (UID BODY.PEEK[HEADER.FIELDS (%s)])", start, end, fields.toUpperCase(ENGLISH)))) {
+
+                    final MessageIndex.Entry entry = parseIndexEntry(response);
+                    if (entry != null) {
+                        entries.add(entry);
+                    }
+                }
+                index.addScanned(entries);
+                found += entries.size();
+            }
+            return found;
+        }
+
+        /**
+         * Looks up messages by Message-ID, e.g. to find out which messages of an interrupted
+         * upload have reached the server.
+         *
+         * @return the Message-IDs which are present in this folder
+         */
+        public Set<String> findMessageIds(Collection<String> messageIds) throws MessagingException {
+            final Set<String> found = new HashSet<String>();
+            final List<String> chunk = new ArrayList<String>(SEARCH_CHUNK_SIZE);
+            for (String messageId : messageIds) {
+                // cannot be looked up without a literal, treated as missing
+                if (quoteSearchString(messageId) == null) continue;
+
+                chunk.add(messageId);
+                if (chunk.size() == SEARCH_CHUNK_SIZE) {
+                    findMessageIds(chunk, found);
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                findMessageIds(chunk, found);
+            }
+            if (LOCAL_LOGV) Log.v(TAG, String.format(ENGLISH, "found %d of %d message(s)", found.size(), messageIds.size()));
+            return found;
+        }
+
+        /**
+         * Searches for all Message-IDs of the chunk at once. The search only returns UIDs, so
+         * unless there was just one Message-ID the headers of the matches are fetched to tell
+         * which ones are present.
+         */
+        private void findMessageIds(List<String> messageIds, Set<String> found) throws MessagingException {
+            final List<String> uids = new ArrayList<String>();
+            for (ImapResponse response : executeCommand("UID SEARCH " + buildMessageIdCriteria(messageIds))) {
+                if (isUntagged(response, "SEARCH")) {
+                    for (int i = 1; i < response.size(); i++) {
+                        uids.add(String.valueOf(response.get(i)));
+                    }
+                }
+            }
+            if (uids.isEmpty()) {
+                return;
+            } else if (messageIds.size() == 1) {
+                found.add(messageIds.get(0));
+                return;
+            }
+            final String messageIdHeader = Headers.MESSAGE_ID.toLowerCase(ENGLISH);
+            for (ImapResponse response : executeCommand(String.format(ENGLISH,
+                    "UID FETCH %s (UID BODY.PEEK[HEADER.FIELDS (%s)])",
+                    TextUtils.join(",", uids), Headers.MESSAGE_ID.toUpperCase(ENGLISH)))) {
+
+                final String headers = parseFetchedHeaders(response);
+                if (headers == null) continue;
+
+                final String messageId = parseHeaderFields(headers).get(messageIdHeader);
+                if (messageId != null && messageIds.contains(messageId.trim())) {
+                    found.add(messageId.trim());
+                }
+            }
         }
 
-        private String buildSearchQuery(DataType dataType, Date since, boolean flagged) {
-            final StringBuilder sb = new StringBuilder("UID SEARCH 1:*")
+        /**
+         * Fetches the parts of the messages needed to restore them: the header fields read by
+         * {@link MessageConverter#messageToContentValues(Message)}, and the text only if the data
+         * type of this folder needs it.
+         *
+         * @return the fetched messages keyed by UID, messages not returned by the server are missing
+         */
+        public Map<String, Message> fetchForRestore(List<? extends Message> messages) throws MessagingException {
+            final Map<String, Message> fetched = new HashMap<String, Message>();
+            if (messages.isEmpty()) return fetched;
+
+            final StringBuilder uids = new StringBuilder();
+            for (Message message : messages) {
+                if (uids.length() > 0) uids.append(',');
+                uids.append(message.getUid());
+            }
+            final long start = SystemClock.elapsedRealtime();
+            for (ImapResponse response : executeCommand(String.format(ENGLISH,
+                    "UID FETCH %s (UID %s)", uids, getRestoreFetchItems()))) {
+
+                if (response.getTag() == null &&
+                    response.size() > 2 &&
+                    "FETCH".equalsIgnoreCase(String.valueOf(response.get(1))) &&
+                    response.get(2) instanceof ImapList) {
+
+                    fetchedBytes += parseRestoreFetch((ImapList) response.get(2), fetched);
+                }
+            }
+            timings.record(FETCH, start);
+            if (LOCAL_LOGV) Log.v(TAG, String.format(ENGLISH, "fetched %d of %d message(s)", fetched.size(), messages.size()));
+            return fetched;
+        }
+
+        /**
+         * @return the number of message bytes received by {@link #fetchForRestore(List)}
+         */
+        public long getFetchedBytes() {
+            return fetchedBytes;
+        }
+
+        private String getRestoreFetchItems() {
+            final String[] headers = MessageConverter.getRestoredHeaders(type);
+            if (headers == null) {
+                return "BODY.PEEK[]";
+            }
+            final String fields = String.format(ENGLISH, "BODY.PEEK[HEADER.FIELDS (%s)]",
+                TextUtils.join(" ", headers).toUpperCase(ENGLISH));
+            return MessageConverter.isBodyRestored(type) ? fields + " BODY.PEEK[TEXT]" : fields;
+        }
+
+        private @Nullable MessageIndex.Entry parseIndexEntry(ImapResponse response) {
+            final ImapList fetch = getFetchList(response);
+            if (fetch == null) {
+                return null;
+            }
+            long uid = 0;
+            String headers = null;
+            for (int i = 0; i < fetch.size(); i++) {
+                final Object item = fetch.get(i);
+                if ("UID".equalsIgnoreCase(String.valueOf(item)) && i + 1 < fetch.size()) {
+                    try {
+                        uid = Long.parseLong(String.valueOf(fetch.get(i + 1)));
+                    } catch (NumberFormatException ignored) {
+                    }
+                } else if (item instanceof String && ((String) item).indexOf(':') > 0) {
+                    // the header literal
+                    headers = (String) item;
+                }
+            }
+            return headers == null ? null : MessageIndex.Entry.fromHeaders(parseHeaderFields(headers), uid);
+        }
+
+        /**
+         * @return the header fields literal of an untagged FETCH response, or null
+         */
+        private @Nullable String parseFetchedHeaders(ImapResponse response) {
+            final ImapList fetch = getFetchList(response);
+            if (fetch != null) {
+                for (int i = 0; i < fetch.size(); i++) {
+                    final Object item = fetch.get(i);
+                    if (item instanceof String && ((String) item).indexOf(':') > 0) {
+                        return (String) item;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private @Nullable ImapList getFetchList(ImapResponse response) {
+            if (response.getTag() != null ||
+                response.size() < 3 ||
+                !"FETCH".equalsIgnoreCase(String.valueOf(response.get(1))) ||
+                !(response.get(2) instanceof ImapList)) {
+                return null;
+            }
+            return (ImapList) response.get(2);
+        }
+
+        /**
+         * Writes the message in wire format.
+         */
+        private void spool(Message message, MessageSpool spool) throws IOException, MessagingException {
+            final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(spool);
+            message.writeTo(eolOut);
+            eolOut.flush();
+        }
+
+        private @Nullable String getQuotedMailboxName() throws MessagingException {
+            final String name = getName();
+            if ("INBOX".equalsIgnoreCase(name)) {
+                return quoteMailboxName(name);
+            } else {
+                return quoteMailboxName(getMailboxPrefix() + name);
+            }
+        }
+
+        /**
+         * @return the capabilities of the server, cached with the login check, only asks the
+         * server if they are not known or out of date
+         */
+        private Set<String> getCapabilities() throws MessagingException {
+            // read once, another upload might reset it in between
+            Set<String> capabilities = serverCapabilities;
+            if (capabilities == null) {
+                final long start = SystemClock.elapsedRealtime();
+                final Set<String> result = new HashSet<String>();
+                for (ImapResponse response : executeCommand("CAPABILITY")) {
+                    if (isUntagged(response, "CAPABILITY")) {
+                        for (int i = 1; i < response.size(); i++) {
+                            result.add(String.valueOf(response.get(i)).toUpperCase(ENGLISH));
+                        }
+                    }
+                }
+                if (LOCAL_LOGV) Log.v(TAG, "server capabilities: " + result);
+                capabilities = result;
+                serverCapabilities = result;
+                serverInfo.putCapabilities(result);
+                timings.record(CAPABILITY, start);
+            }
+            return capabilities;
+        }
+
+        private String getMailboxPrefix() throws MessagingException {
+            String prefix = serverPrefix;
+            if (prefix == null) {
+                prefix = "";
+                if (getCapabilities().contains(CAPABILITY_NAMESPACE)) {
+                    final long start = SystemClock.elapsedRealtime();
+                    for (ImapResponse response : executeCommand("NAMESPACE")) {
+                        if (isUntagged(response, "NAMESPACE") &&
+                            response.size() > 1 &&
+                            response.get(1) instanceof ImapList) {
+
+                            final ImapList personal = (ImapList) response.get(1);
+                            if (!personal.isEmpty() && personal.get(0) instanceof ImapList) {
+                                final ImapList namespace = (ImapList) personal.get(0);
+                                prefix = combinePrefix(namespace.getString(0), namespace.getString(1));
+                            }
+                        }
+                    }
+                    timings.record(NAMESPACE, start);
+                }
+                serverPrefix = prefix;
+                serverInfo.putPrefix(prefix);
+            }
+            return prefix;
+        }
+
+        /**
+         * Enables RFC 4978 compression on the connection of this folder, if the server supports it.
+         * Connections reused from the pool are left alone if every connection is compressed.
+         */
+        void startCompression() throws MessagingException {
+            if (isEveryConnectionCompressed()) return;
+            if (!getCapabilities().contains(CAPABILITY_COMPRESS_DEFLATE)) return;
+            try {
+                // the socket of the connection switches itself once the server accepted
+                executeCommand("COMPRESS DEFLATE");
+            } catch (MessagingException e) {
+                if (e.getCause() instanceof IOException) throw e;
+                // a NO or BAD response, e.g. COMPRESSIONACTIVE for a pooled connection
+                if (LOCAL_LOGV) Log.v(TAG, "compression not started: " + e.getMessage());
+            }
+        }
+
+        void noop() throws MessagingException {
+            executeCommand("NOOP");
+        }
+
+        void logout() throws MessagingException {
+            executeCommand("LOGOUT");
+        }
+
+        private List<ImapResponse> executeCommand(String command) throws MessagingException {
+            try {
+                return executeSimpleCommand(command);
+            } catch (IOException e) {
+                throw new MessagingException("error executing " + command, e);
+            }
+        }
+
+        private boolean isUntagged(ImapResponse response, String name) {
+            return response.getTag() == null &&
+                   !response.isEmpty() &&
+                   name.equalsIgnoreCase(String.valueOf(response.get(0)));
+        }
+
+        private String buildSearchCriteria(DataType dataType, Date since, boolean flagged) {
+            final StringBuilder sb = new StringBuilder("1:*")
                     .append(' ')
                     .append(String.format(ENGLISH, "(HEADER %s \"%s\")", DATATYPE.toUpperCase(ENGLISH), dataType))
                     .append(" UNDELETED");
@@ -196,14 +1109,42 @@ public class BackupImapStore extends ImapStore {
         }
     }
 
-    static class MessageComparator implements Comparator<Message> {
-        static final MessageComparator INSTANCE = new MessageComparator();
-        static final Date EARLY = new Date(0);
+    /**
+     * Adds the UIDs of an untagged SORT response (RFC 5256), up to <code>max</code> of them.
+     */
+    static void addSortedUids(ImapList response, List<String> uids, int max) {
+        for (int i = 1; i < response.size() && uids.size() < max; i++) {
+            uids.add(String.valueOf(response.get(i)));
+        }
+    }
+
+    /**
+     * Sorts messages by date, newest first, messages without a date last. The date of each
+     * message is read once, not on every comparison. Messages with the same date keep their order.
+     */
+    static <T extends Message> void sortNewestFirst(List<T> messages) {
+        final List<DatedMessage<T>> dated = new ArrayList<DatedMessage<T>>(messages.size());
+        for (T message : messages) {
+            dated.add(new DatedMessage<T>(message));
+        }
+        sort(dated);
+        for (int i = 0; i < dated.size(); i++) {
+            messages.set(i, dated.get(i).message);
+        }
+    }
+
+    private static class DatedMessage<T extends Message> implements Comparable<DatedMessage<T>> {
+        final T message;
+        final long date;
+
+        DatedMessage(T message) {
+            final Date sentDate = message == null ? null : message.getSentDate();
+            this.message = message;
+            this.date = sentDate == null ? 0 : sentDate.getTime();
+        }
 
-        public int compare(final Message m1, final Message m2) {
-            final Date d1 = m1 == null ? EARLY : m1.getSentDate() != null ? m1.getSentDate() : EARLY;
-            final Date d2 = m2 == null ? EARLY : m2.getSentDate() != null ? m2.getSentDate() : EARLY;
-            return d2.compareTo(d1);
+        @Override public int compareTo(@NonNull DatedMessage<T> other) {
+            return date > other.date ? -1 : date == other.date ? 0 : 1;
         }
     }
 
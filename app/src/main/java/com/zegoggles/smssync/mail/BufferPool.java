@@ -0,0 +1,65 @@
+package com.zegoggles.smssync.mail;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Reusable byte buffers of a fixed size, used to encode and spool messages without
+ * allocating new buffers for every message or attachment.
+ */
+public class BufferPool {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RETAINED = 16;
+    private static final BufferPool INSTANCE = new BufferPool(BUFFER_SIZE, MAX_RETAINED);
+
+    private final int bufferSize;
+    private final int maxRetained;
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<byte[]>();
+    private int allocated, reused, inUse, maxInUse;
+
+    BufferPool(int bufferSize, int maxRetained) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+    }
+
+    public static BufferPool getInstance() {
+        return INSTANCE;
+    }
+
+    synchronized byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = new byte[bufferSize];
+            allocated++;
+        } else {
+            reused++;
+        }
+        inUse++;
+        maxInUse = Math.max(maxInUse, inUse);
+        return buffer;
+    }
+
+    synchronized void release(byte[] buffer) {
+        inUse--;
+        if (buffer.length == bufferSize && buffers.size() < maxRetained) {
+            buffers.push(buffer);
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return the highest number of bytes held by callers at the same time
+     */
+    synchronized long getPeakBytes() {
+        return (long) maxInUse * bufferSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "BufferPool{allocated=%d, reused=%d, peak=%dKB}",
+                allocated, reused, getPeakBytes() / 1024);
+    }
+}
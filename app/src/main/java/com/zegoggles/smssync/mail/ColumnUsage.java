@@ -0,0 +1,118 @@
+package com.zegoggles.smssync.mail;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Records which provider columns are read during conversion, to check that the backup
+ * projections contain everything needed and nothing more. Only used in debug mode.
+ */
+public class ColumnUsage {
+    private final Map<DataType, Set<String>> used = new EnumMap<DataType, Set<String>>(DataType.class);
+    private final Map<DataType, Stats> stats = new EnumMap<DataType, Stats>(DataType.class);
+
+    private static class Stats {
+        int rows;
+        long chars;
+        int columns;
+    }
+
+    /**
+     * Records the size of a row copied from the provider.
+     */
+    public synchronized void recordRow(DataType dataType, MessageRow row) {
+        Stats s = stats.get(dataType);
+        if (s == null) {
+            s = new Stats();
+            stats.put(dataType, s);
+        }
+        final RowSchema schema = row.getSchema();
+        s.rows++;
+        s.columns = Math.max(s.columns, schema.size());
+        for (int i = 0; i < schema.size(); i++) {
+            final String value = row.getString(schema.getColumn(i));
+            if (value != null) {
+                s.chars += value.length();
+            }
+        }
+    }
+
+    /**
+     * @return a view of the row which records every column looked up
+     */
+    public @NonNull MessageRow track(final DataType dataType, final MessageRow row) {
+        return new MessageRow() {
+            @Override public @NonNull RowSchema getSchema() {
+                return row.getSchema();
+            }
+
+            @Override public @Nullable String getString(String column) {
+                record(dataType, column);
+                return row.getString(column);
+            }
+
+            @Override public long getLong(String column, long defaultValue) {
+                record(dataType, column);
+                return row.getLong(column, defaultValue);
+            }
+
+            @Override public int getInt(String column, int defaultValue) {
+                record(dataType, column);
+                return row.getInt(column, defaultValue);
+            }
+
+            @Override public @NonNull MessageRow detach() {
+                return row.detach();
+            }
+
+            @Override public String toString() {
+                return row.toString();
+            }
+        };
+    }
+
+    public synchronized Set<String> getUsedColumns(DataType dataType) {
+        final Set<String> columns = used.get(dataType);
+        return columns == null ? new TreeSet<String>() : new TreeSet<String>(columns);
+    }
+
+    /**
+     * @param projection the projection used to query the provider, null for all columns
+     * @return a summary of row sizes, and of columns read but not projected or projected but never read
+     */
+    public synchronized String report(DataType dataType, @Nullable String[] projection) {
+        final Stats s = stats.get(dataType);
+        final StringBuilder sb = new StringBuilder(dataType.toString()).append(": ");
+        if (s == null || s.rows == 0) {
+            return sb.append("no rows").toString();
+        }
+        sb.append(s.rows).append(" rows, ")
+          .append(s.columns).append(" columns, ")
+          .append(s.chars / s.rows).append(" chars/row, used=")
+          .append(getUsedColumns(dataType));
+
+        if (projection != null) {
+            final Set<String> missing = getUsedColumns(dataType);
+            missing.removeAll(Arrays.asList(projection));
+            final Set<String> unused = new TreeSet<String>(Arrays.asList(projection));
+            unused.removeAll(getUsedColumns(dataType));
+            sb.append(", missing=").append(missing).append(", unused=").append(unused);
+        }
+        return sb.toString();
+    }
+
+    private synchronized void record(DataType dataType, String column) {
+        Set<String> columns = used.get(dataType);
+        if (columns == null) {
+            columns = new TreeSet<String>();
+            used.put(dataType, columns);
+        }
+        columns.add(column);
+    }
+}
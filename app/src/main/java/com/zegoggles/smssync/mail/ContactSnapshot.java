@@ -0,0 +1,198 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * An in-memory index of all phone numbers and emails of the contacts, built by streaming the
+ * phone and email data tables once.
+ * <p>
+ * Numbers are indexed by their last {@link #MATCH_DIGITS} digits (like the provider's
+ * <code>PHONE_NUMBERS_EQUAL</code>), candidates are then confirmed with
+ * {@link PhoneNumberUtils#compare(String, String)}.
+ */
+class ContactSnapshot {
+    static final int MATCH_DIGITS = 7;
+
+    private static final String[] PHONE_PROJECTION = {
+        Phone.CONTACT_ID,
+        Phone.DISPLAY_NAME,
+        Phone.NUMBER
+    };
+    private static final String[] EMAIL_PROJECTION = {
+        Email.CONTACT_ID,
+        Email.DATA
+    };
+
+    // one entry per contact, sorted by id
+    private final long[] contactIds;
+    private final String[] names;
+    private final String[] emails;
+
+    // (key << 32 | phone index), sorted
+    private final long[] numberIndex;
+    private final String[] numbers;
+    private final int[] numberContacts;
+
+    private ContactSnapshot(long[] contactIds, String[] names, String[] numbers, int[] numberContacts) {
+        this.contactIds = contactIds;
+        this.names = names;
+        this.emails = new String[contactIds.length];
+        this.numbers = numbers;
+        this.numberContacts = numberContacts;
+        this.numberIndex = new long[numbers.length];
+
+        for (int i = 0; i < numbers.length; i++) {
+            numberIndex[i] = (key(numbers[i]) << 32) | i;
+        }
+        Arrays.sort(numberIndex);
+    }
+
+    /**
+     * @return the snapshot, or null if the contacts could not be read
+     * @throws SecurityException if the caller does not hold READ_CONTACTS
+     */
+    static @Nullable ContactSnapshot load(@NonNull ContentResolver resolver) {
+        final Cursor phones = resolver.query(Phone.CONTENT_URI, PHONE_PROJECTION, null, null, Phone.CONTACT_ID);
+        if (phones == null) {
+            return null;
+        }
+        final ContactSnapshot snapshot;
+        try {
+            final int count = phones.getCount();
+            final long[] contactIds = new long[count];
+            final String[] names = new String[count];
+            final String[] numbers = new String[count];
+            final int[] numberContacts = new int[count];
+
+            int contacts = 0, phoneCount = 0;
+            while (phones.moveToNext()) {
+                final long contactId = phones.getLong(0);
+                final String number = phones.getString(2);
+                if (contactId <= 0 || TextUtils.isEmpty(number)) {
+                    continue;
+                }
+                if (contacts == 0 || contactIds[contacts - 1] != contactId) {
+                    contactIds[contacts] = contactId;
+                    names[contacts] = phones.getString(1);
+                    contacts++;
+                }
+                numbers[phoneCount] = number;
+                numberContacts[phoneCount] = contacts - 1;
+                phoneCount++;
+            }
+            snapshot = new ContactSnapshot(
+                Arrays.copyOf(contactIds, contacts),
+                Arrays.copyOf(names, contacts),
+                Arrays.copyOf(numbers, phoneCount),
+                Arrays.copyOf(numberContacts, phoneCount));
+        } finally {
+            phones.close();
+        }
+        snapshot.loadEmails(resolver);
+        if (LOCAL_LOGV) Log.v(TAG, "loaded " + snapshot);
+        return snapshot;
+    }
+
+    /**
+     * @param address the phone number
+     * @return the matching contact, or null if the number is not known
+     */
+    @Nullable PersonRecord lookup(String address) {
+        final long key = key(address);
+        int i = firstIndexOf(key);
+        for (; i < numberIndex.length && (numberIndex[i] >>> 32) == key; i++) {
+            final int phone = (int) numberIndex[i];
+            if (PhoneNumberUtils.compare(address, numbers[phone])) {
+                final int contact = numberContacts[phone];
+                return new PersonRecord(contactIds[contact], names[contact], emails[contact], address);
+            }
+        }
+        return null;
+    }
+
+    int getContactCount() {
+        return contactIds.length;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "ContactSnapshot{contacts=%d, numbers=%d}",
+                contactIds.length, numbers.length);
+    }
+
+    private void loadEmails(ContentResolver resolver) {
+        if (contactIds.length == 0) {
+            return;
+        }
+        final Cursor cursor = resolver.query(Email.CONTENT_URI, EMAIL_PROJECTION, null, null,
+                Email.CONTACT_ID + ", " + Email.IS_PRIMARY + " DESC");
+        if (cursor == null) {
+            return;
+        }
+        try {
+            // same rules as PersonLookup: first Gmail address, otherwise the first address
+            final boolean[] isGmail = new boolean[contactIds.length];
+            while (cursor.moveToNext()) {
+                final int contact = Arrays.binarySearch(contactIds, cursor.getLong(0));
+                if (contact < 0 || isGmail[contact]) {
+                    continue;
+                }
+                final String email = cursor.getString(1);
+                if (PersonLookup.isGmailAddress(email)) {
+                    emails[contact] = email;
+                    isGmail[contact] = true;
+                } else if (emails[contact] == null) {
+                    emails[contact] = email;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int firstIndexOf(long key) {
+        int low = 0, high = numberIndex.length;
+        final long value = key << 32;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (numberIndex[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the last {@link #MATCH_DIGITS} digits of the number, prefixed with 1
+     */
+    static long key(String number) {
+        long key = 0, multiplier = 1;
+        int digits = 0;
+        for (int i = number.length() - 1; i >= 0 && digits < MATCH_DIGITS; i--) {
+            final char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                key += (c - '0') * multiplier;
+                multiplier *= 10;
+                digits++;
+            }
+        }
+        // keep numbers with leading zeros apart ("012" vs "12")
+        return key + multiplier;
+    }
+}
@@ -1,37 +1,57 @@
 package com.zegoggles.smssync.mail;
 
+import android.provider.BaseColumns;
 import com.fsck.k9.mail.Message;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class ConversionResult {
     public final DataType type;
     private final List<Message> messages = new ArrayList<Message>();
-    private final List<Map<String, String>> mapList = new ArrayList<Map<String, String>>();
+    private final List<MessageRow> rows = new ArrayList<MessageRow>();
     private long maxDate = DataType.Defaults.MAX_SYNCED_DATE;
+    private long maxId = DataType.Defaults.MAX_SYNCED_ID;
+    private int skipped;
 
     public ConversionResult(DataType type) {
         this.type = type;
     }
 
-    public void add(Message message, Map<String, String> map) {
+    public void add(Message message, MessageRow row) {
         messages.add(message);
-        mapList.add(map);
+        if (type == DataType.CALLLOG) {
+            // call log rows are needed after conversion for the calendar sync
+            rows.add(row.detach());
+        }
 
         String dateHeader = Headers.get(message, Headers.DATE);
         if (dateHeader != null) {
             try {
-                final long date = Long.parseLong(dateHeader);
-                if (date > maxDate) {
-                    maxDate = date;
-                }
+                updateMax(Long.parseLong(dateHeader), parseId(Headers.get(message, Headers.ID)));
             } catch (NumberFormatException ignored) {
             }
         }
     }
 
+    /**
+     * Records a row which has been backed up before and is not converted again. It still counts
+     * towards {@link #getMaxDate()}.
+     */
+    public void skip(MessageRow row) {
+        skipped++;
+        updateMax(row.getLong(MessageIndex.DATE_COLUMN, DataType.Defaults.MAX_SYNCED_DATE),
+                  row.getLong(BaseColumns._ID, DataType.Defaults.MAX_SYNCED_ID));
+    }
+
+    public void addAll(ConversionResult other) {
+        if (other.type != type) throw new IllegalArgumentException("cannot mix " + type + " and " + other.type);
+        messages.addAll(other.messages);
+        rows.addAll(other.rows);
+        skipped += other.skipped;
+        updateMax(other.maxDate, other.maxId);
+    }
+
     public boolean isEmpty() {
         return messages.isEmpty();
     }
@@ -44,11 +64,47 @@ public class ConversionResult {
         return maxDate;
     }
 
-    public List<Map<String, String>> getMapList() {
-        return mapList;
+    /**
+     * @return the provider id of the most recent message, or -1 if unknown. Together with
+     * {@link #getMaxDate()} this identifies the last message in (date, _id) order.
+     */
+    public long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * @return the provider rows the messages were converted from, only retained for {@link DataType#CALLLOG}
+     */
+    public List<MessageRow> getRows() {
+        return rows;
     }
 
     public int size() {
         return messages.size();
     }
+
+    /**
+     * @return the number of rows which have been skipped because they were backed up before
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    private void updateMax(long date, long id) {
+        if (date > maxDate) {
+            maxDate = date;
+            maxId = id;
+        } else if (date == maxDate && id > maxId) {
+            maxId = id;
+        }
+    }
+
+    private static long parseId(String id) {
+        if (id == null) return DataType.Defaults.MAX_SYNCED_ID;
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return DataType.Defaults.MAX_SYNCED_ID;
+        }
+    }
 }
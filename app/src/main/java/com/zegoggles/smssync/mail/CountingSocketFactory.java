@@ -0,0 +1,61 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the secure connections set up by a store. The sockets are wrapped, so that they can
+ * be switched to compression later on, see {@link DeflateSocket}, and kept for the store to
+ * check their state.
+ */
+class CountingSocketFactory implements TrustedSocketFactory {
+    private final TrustedSocketFactory delegate;
+    private final AtomicInteger connects;
+    private final DeflateSocket.Stats compressionStats = new DeflateSocket.Stats();
+    private final List<DeflateSocket> sockets = new ArrayList<DeflateSocket>();
+
+    CountingSocketFactory(TrustedSocketFactory delegate, AtomicInteger connects) {
+        this.delegate = delegate;
+        this.connects = connects;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, String clientCertificateAlias) throws NoSuchAlgorithmException, KeyManagementException, MessagingException, IOException {
+        connects.incrementAndGet();
+        final DeflateSocket created = new DeflateSocket(delegate.createSocket(socket, host, port, clientCertificateAlias), compressionStats);
+        synchronized (sockets) {
+            sockets.add(created);
+        }
+        return created;
+    }
+
+    /**
+     * @return the sockets created which have not been closed yet
+     */
+    List<DeflateSocket> getOpenSockets() {
+        synchronized (sockets) {
+            final Iterator<DeflateSocket> iterator = sockets.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isClosed()) iterator.remove();
+            }
+            return new ArrayList<DeflateSocket>(sockets);
+        }
+    }
+
+    DeflateSocket.Stats getCompressionStats() {
+        return compressionStats;
+    }
+
+    TrustedSocketFactory getDelegate() {
+        return delegate;
+    }
+}
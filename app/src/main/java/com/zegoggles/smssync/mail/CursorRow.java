@@ -0,0 +1,84 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A reusable view of the current row of a cursor. Values are read on demand and nothing is
+ * copied, so the view is only valid until the cursor moves; use {@link #detach()} to keep a row.
+ */
+public class CursorRow implements MessageRow {
+    static final String BLOB = "[BLOB]";
+
+    private final Cursor cursor;
+    private final RowSchema schema;
+
+    public CursorRow(@NonNull Cursor cursor) {
+        this.cursor = cursor;
+        this.schema = RowSchema.of(cursor);
+    }
+
+    public boolean isFor(Cursor cursor) {
+        return this.cursor == cursor;
+    }
+
+    @Override
+    public @NonNull RowSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public @Nullable String getString(String column) {
+        return getString(schema.indexOf(column));
+    }
+
+    @Override
+    public long getLong(String column, long defaultValue) {
+        final int index = schema.indexOf(column);
+        if (index == -1 || cursor.isNull(index)) {
+            return defaultValue;
+        }
+        try {
+            return cursor.getLong(index);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        } catch (SQLiteException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public int getInt(String column, int defaultValue) {
+        final long value = getLong(column, defaultValue);
+        return value > Integer.MAX_VALUE || value < Integer.MIN_VALUE ? defaultValue : (int) value;
+    }
+
+    @Override
+    public @NonNull MessageRow detach() {
+        final String[] values = new String[schema.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getString(i);
+        }
+        return new RowValues(schema, values);
+    }
+
+    @Override
+    public String toString() {
+        return detach().toString();
+    }
+
+    private @Nullable String getString(int index) {
+        if (index == -1) {
+            return null;
+        }
+        try {
+            return cursor.getString(index);
+        } catch (SQLiteException ignored) {
+            // this can happen in case of BLOBS in the DB
+            // column type checking is API level >= 11
+            return BLOB;
+        }
+    }
+}
@@ -87,6 +87,7 @@ public enum DataType {
      */
     public static class Defaults {
         public static final long   MAX_SYNCED_DATE = -1;
+        public static final long   MAX_SYNCED_ID = -1;
         static final String SMS_FOLDER     = "SMS";
         static final String CALLLOG_FOLDER = "Call log";
 
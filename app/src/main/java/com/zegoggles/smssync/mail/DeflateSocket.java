@@ -0,0 +1,380 @@
+package com.zegoggles.smssync.mail;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A socket which switches its streams to RFC 4978 compression (COMPRESS=DEFLATE) once the
+ * server has accepted the COMPRESS command.
+ * <p>
+ * The IMAP connection keeps using the streams it got before, they compress and decompress on the
+ * fly after {@link #startCompression()}. The socket follows the negotiation on its own streams:
+ * it notes the tag of a <code>COMPRESS DEFLATE</code> command written to it, and switches right
+ * after the tagged OK for that command has been read. The IMAP library does not expose its
+ * connections, this way the socket switched is always the one the command went to.
+ */
+class DeflateSocket extends Socket {
+    private static final int BUFFER_SIZE = 8192;
+    private static final String COMPRESS_COMMAND = " COMPRESS DEFLATE\r\n";
+    /** a tag and the command, longer writes are not checked */
+    private static final int MAX_COMMAND_LENGTH = 64;
+
+    private final Socket delegate;
+    private final Stats stats;
+    private @Nullable SwitchingInputStream in;
+    private @Nullable SwitchingOutputStream out;
+    private @Nullable Inflater inflater;
+    private @Nullable Deflater deflater;
+    /** the tag of the COMPRESS command waiting for its response, or null */
+    private volatile @Nullable String compressTag;
+
+    DeflateSocket(Socket delegate, Stats stats) {
+        this.delegate = delegate;
+        this.stats = stats;
+    }
+
+    /**
+     * @return if streams can be compressed on this device, sync flushing needs API level 19
+     */
+    static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * Compresses everything written and decompresses everything read from now on.
+     * Called once the server confirmed the COMPRESS command, before the next command is sent.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized void startCompression() throws IOException {
+        if (isCompressed()) return;
+        inflater = new Inflater(true);
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        getInputStream();
+        getOutputStream();
+        in.current = new InflaterInputStream(in.raw, inflater, BUFFER_SIZE);
+        out.current = new DeflaterOutputStream(out.raw, deflater, BUFFER_SIZE, true);
+        stats.addCompressedConnection();
+    }
+
+    synchronized boolean isCompressed() {
+        return deflater != null;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if (in == null) {
+            in = new SwitchingInputStream(delegate.getInputStream());
+        }
+        return in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (out == null) {
+            out = new SwitchingOutputStream(delegate.getOutputStream());
+        }
+        return out;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            delegate.close();
+        } finally {
+            if (inflater != null) inflater.end();
+            if (deflater != null) deflater.end();
+        }
+    }
+
+    @Override public void connect(SocketAddress endpoint) throws IOException {
+        delegate.connect(endpoint);
+    }
+
+    @Override public void connect(SocketAddress endpoint, int timeout) throws IOException {
+        delegate.connect(endpoint, timeout);
+    }
+
+    @Override public void bind(SocketAddress bindpoint) throws IOException {
+        delegate.bind(bindpoint);
+    }
+
+    @Override public InetAddress getInetAddress() {
+        return delegate.getInetAddress();
+    }
+
+    @Override public InetAddress getLocalAddress() {
+        return delegate.getLocalAddress();
+    }
+
+    @Override public int getPort() {
+        return delegate.getPort();
+    }
+
+    @Override public int getLocalPort() {
+        return delegate.getLocalPort();
+    }
+
+    @Override public SocketAddress getRemoteSocketAddress() {
+        return delegate.getRemoteSocketAddress();
+    }
+
+    @Override public SocketAddress getLocalSocketAddress() {
+        return delegate.getLocalSocketAddress();
+    }
+
+    @Override public void setTcpNoDelay(boolean on) throws SocketException {
+        delegate.setTcpNoDelay(on);
+    }
+
+    @Override public boolean getTcpNoDelay() throws SocketException {
+        return delegate.getTcpNoDelay();
+    }
+
+    @Override public void setSoTimeout(int timeout) throws SocketException {
+        delegate.setSoTimeout(timeout);
+    }
+
+    @Override public int getSoTimeout() throws SocketException {
+        return delegate.getSoTimeout();
+    }
+
+    @Override public void setKeepAlive(boolean on) throws SocketException {
+        delegate.setKeepAlive(on);
+    }
+
+    @Override public boolean getKeepAlive() throws SocketException {
+        return delegate.getKeepAlive();
+    }
+
+    @Override public void setSoLinger(boolean on, int linger) throws SocketException {
+        delegate.setSoLinger(on, linger);
+    }
+
+    @Override public int getSoLinger() throws SocketException {
+        return delegate.getSoLinger();
+    }
+
+    @Override public void setReceiveBufferSize(int size) throws SocketException {
+        delegate.setReceiveBufferSize(size);
+    }
+
+    @Override public void setSendBufferSize(int size) throws SocketException {
+        delegate.setSendBufferSize(size);
+    }
+
+    @Override public void shutdownInput() throws IOException {
+        delegate.shutdownInput();
+    }
+
+    @Override public void shutdownOutput() throws IOException {
+        delegate.shutdownOutput();
+    }
+
+    @Override public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    @Override public boolean isBound() {
+        return delegate.isBound();
+    }
+
+    @Override public boolean isClosed() {
+        return delegate.isClosed();
+    }
+
+    @Override public boolean isInputShutdown() {
+        return delegate.isInputShutdown();
+    }
+
+    @Override public boolean isOutputShutdown() {
+        return delegate.isOutputShutdown();
+    }
+
+    @Override public String toString() {
+        return "DeflateSocket{" + delegate + ", compressed=" + isCompressed() + '}';
+    }
+
+    private final class SwitchingInputStream extends InputStream {
+        final InputStream raw;
+        InputStream current;
+
+        SwitchingInputStream(final InputStream socketIn) {
+            raw = new InputStream() {
+                @Override public int read() throws IOException {
+                    final int b = socketIn.read();
+                    if (b != -1) stats.addWireIn(1);
+                    return b;
+                }
+
+                @Override public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                    final int n = socketIn.read(b, off, len);
+                    if (n > 0) stats.addWireIn(n);
+                    return n;
+                }
+
+                @Override public int available() throws IOException {
+                    return socketIn.available();
+                }
+            };
+            current = raw;
+        }
+
+        /** the response line read so far, while waiting for the response to COMPRESS */
+        private final StringBuilder line = new StringBuilder();
+
+        @Override public int read() throws IOException {
+            if (compressTag != null) {
+                return readNegotiating();
+            }
+            final int b = current.read();
+            if (b != -1) stats.addDataIn(1);
+            return b;
+        }
+
+        @Override public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (compressTag != null) {
+                // byte by byte up to the end of a line, the server compresses after its OK
+                int n = 0;
+                while (n < len) {
+                    final int c = readNegotiating();
+                    if (c == -1) return n == 0 ? -1 : n;
+                    b[off + n++] = (byte) c;
+                    if (c == '\n') break;
+                }
+                return n;
+            }
+            final int n = current.read(b, off, len);
+            if (n > 0) stats.addDataIn(n);
+            return n;
+        }
+
+        private int readNegotiating() throws IOException {
+            final int b = current.read();
+            if (b == -1) return b;
+            stats.addDataIn(1);
+            if (b == '\n') {
+                onResponseLine(line.toString().trim());
+                line.setLength(0);
+            } else if (line.length() < MAX_COMMAND_LENGTH) {
+                line.append((char) b);
+            }
+            return b;
+        }
+
+        private void onResponseLine(String response) throws IOException {
+            final String tag = compressTag;
+            if (tag == null || !response.startsWith(tag + " ")) return;
+
+            compressTag = null;
+            if (response.regionMatches(true, tag.length() + 1, "OK", 0, 2) && isSupported()) {
+                startCompression();
+            }
+        }
+
+        @Override public int available() throws IOException {
+            return current == raw ? raw.available() : 0;
+        }
+
+        @Override public void close() throws IOException {
+            current.close();
+        }
+    }
+
+    private final class SwitchingOutputStream extends OutputStream {
+        final OutputStream raw;
+        OutputStream current;
+
+        SwitchingOutputStream(final OutputStream socketOut) {
+            raw = new OutputStream() {
+                @Override public void write(int b) throws IOException {
+                    socketOut.write(b);
+                    stats.addWireOut(1);
+                }
+
+                @Override public void write(@NonNull byte[] b, int off, int len) throws IOException {
+                    socketOut.write(b, off, len);
+                    stats.addWireOut(len);
+                }
+
+                @Override public void flush() throws IOException {
+                    socketOut.flush();
+                }
+            };
+            current = raw;
+        }
+
+        @Override public void write(int b) throws IOException {
+            current.write(b);
+            stats.addDataOut(1);
+        }
+
+        @Override public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len <= MAX_COMMAND_LENGTH && !isCompressed()) {
+                noteCompressCommand(new String(b, off, len, "US-ASCII"));
+            }
+            current.write(b, off, len);
+            stats.addDataOut(len);
+        }
+
+        @Override public void flush() throws IOException {
+            // a sync flush while compressing, so the server gets the complete command
+            current.flush();
+        }
+
+        @Override public void close() throws IOException {
+            current.close();
+        }
+
+        /**
+         * The IMAP connection writes each command line in one go, <code>tag COMPRESS DEFLATE</code>.
+         */
+        private void noteCompressCommand(String written) {
+            final int space = written.indexOf(' ');
+            if (space > 0 && written.endsWith(COMPRESS_COMMAND) &&
+                space + COMPRESS_COMMAND.length() == written.length()) {
+                compressTag = written.substring(0, space);
+            }
+        }
+    }
+
+    /**
+     * Bytes on the wire and before compression, for all sockets of a store.
+     */
+    static class Stats {
+        private long wireIn, wireOut, dataIn, dataOut;
+        private int compressedConnections;
+
+        synchronized void addCompressedConnection() { compressedConnections++; }
+        synchronized void addWireIn(long n) { wireIn += n; }
+        synchronized void addWireOut(long n) { wireOut += n; }
+        synchronized void addDataIn(long n) { dataIn += n; }
+        synchronized void addDataOut(long n) { dataOut += n; }
+
+        synchronized long getWireIn() { return wireIn; }
+        synchronized long getWireOut() { return wireOut; }
+        synchronized long getDataIn() { return dataIn; }
+        synchronized long getDataOut() { return dataOut; }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ENGLISH,
+                "Compression{connections=%d, in=%d/%d, out=%d/%d}",
+                compressedConnections, wireIn, dataIn, wireOut, dataOut);
+        }
+    }
+}
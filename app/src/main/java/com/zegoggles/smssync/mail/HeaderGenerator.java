@@ -8,12 +8,12 @@ import androidx.annotation.NonNull;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 
+import java.nio.charset.Charset;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Locale;
-import java.util.Map;
 import java.util.TimeZone;
 
 import static com.zegoggles.smssync.App.TAG;
@@ -23,77 +23,98 @@ import static com.zegoggles.smssync.utils.Sanitizer.sanitize;
  * Generates headers for SMS, MMS, Call logs
  */
 class HeaderGenerator {
-    private static final String REFERENCE_UID_TEMPLATE = "<%s.%s@sms-backup-plus.local>";
-    private static final String MSG_ID_TEMPLATE        = "<%s@sms-backup-plus.local>";
-    private static final String UTF_8 = "UTF-8";
+    private static final String REFERENCE_SUFFIX = "@sms-backup-plus.local>";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
 
-    private final String reference;
+    private final String referencePrefix;
     private final String version;
 
     HeaderGenerator(String reference, int versionCode) {
         this.version = String.valueOf(versionCode);
-        this.reference = reference;
+        this.referencePrefix = "<" + reference + ".";
     }
 
     public void setHeaders(final Message message,
-                           final Map<String, String> msgMap,
+                           final MessageRow row,
                            final DataType dataType,
                            final String address,
                            final String referenceId,
                            final Date sentDate,
                            final int status) throws MessagingException {
+        writeHeaders(new MessageHeaders(message), row, dataType, address, referenceId, sentDate, status);
+    }
 
-        message.setHeader(Headers.REFERENCES, String.format(REFERENCE_UID_TEMPLATE, reference, referenceId));
+    /**
+     * Like {@link #setHeaders}, for messages which are not built as a {@link Message}.
+     */
+    void writeHeaders(final HeaderSink message,
+                      final MessageRow row,
+                      final DataType dataType,
+                      final String address,
+                      final String referenceId,
+                      final Date sentDate,
+                      final int status) throws MessagingException {
+
+        message.setHeader(Headers.REFERENCES, createReference(referenceId));
         // "v2" effectively versions how we hash each message.
         // This goes along with a fix for how MMS messages are grouped, and allows users to
         // reset the app state and re-backup their existing messages to fix older threads.
-        message.setHeader(Headers.MESSAGE_ID, createMessageId(sentDate, address + "v2", status));
+        message.setHeader(Headers.MESSAGE_ID, createMessageId(sentDate, address, status));
         message.setHeader(Headers.ADDRESS,  sanitize(address));
         message.setHeader(Headers.DATATYPE, dataType.toString());
-        message.setHeader(Headers.BACKUP_TIME, toGMTString(new Date()));
+        message.setHeader(Headers.BACKUP_TIME, toGMTString(System.currentTimeMillis()));
         message.setHeader(Headers.VERSION, version);
-        message.setSentDate(sentDate, false);
-        message.setInternalDate(sentDate);
+        message.setSentDate(sentDate);
         switch (dataType) {
-            case SMS: setSmsHeaders(message, msgMap); break;
-            case MMS: setMmsHeaders(message, msgMap); break;
-            case CALLLOG: setCallLogHeaders(message, msgMap); break;
+            case SMS: setSmsHeaders(message, row); break;
+            case MMS: setMmsHeaders(message, row); break;
+            case CALLLOG: setCallLogHeaders(message, row); break;
         }
     }
 
-    private void setSmsHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(Telephony.BaseMmsColumns._ID));
-        message.setHeader(Headers.TYPE, msgMap.get(Telephony.TextBasedSmsColumns.TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(Telephony.TextBasedSmsColumns.DATE));
-        message.setHeader(Headers.THREAD_ID, msgMap.get(Telephony.TextBasedSmsColumns.THREAD_ID));
-        message.setHeader(Headers.READ, msgMap.get(Telephony.TextBasedSmsColumns.READ));
-        message.setHeader(Headers.STATUS, msgMap.get(Telephony.TextBasedSmsColumns.STATUS));
-        message.setHeader(Headers.PROTOCOL, msgMap.get(Telephony.TextBasedSmsColumns.PROTOCOL));
-        message.setHeader(Headers.SERVICE_CENTER, msgMap.get(Telephony.TextBasedSmsColumns.SERVICE_CENTER));
+    private void setSmsHeaders(HeaderSink message, MessageRow row) throws MessagingException {
+        message.setHeader(Headers.ID, row.getString(Telephony.BaseMmsColumns._ID));
+        message.setHeader(Headers.TYPE, row.getString(Telephony.TextBasedSmsColumns.TYPE));
+        message.setHeader(Headers.DATE, row.getString(Telephony.TextBasedSmsColumns.DATE));
+        message.setHeader(Headers.THREAD_ID, row.getString(Telephony.TextBasedSmsColumns.THREAD_ID));
+        message.setHeader(Headers.READ, row.getString(Telephony.TextBasedSmsColumns.READ));
+        message.setHeader(Headers.STATUS, row.getString(Telephony.TextBasedSmsColumns.STATUS));
+        message.setHeader(Headers.PROTOCOL, row.getString(Telephony.TextBasedSmsColumns.PROTOCOL));
+        message.setHeader(Headers.SERVICE_CENTER, row.getString(Telephony.TextBasedSmsColumns.SERVICE_CENTER));
+    }
+
+    private void setMmsHeaders(HeaderSink message, MessageRow row) throws MessagingException {
+        message.setHeader(Headers.ID, row.getString(Telephony.BaseMmsColumns._ID));
+        message.setHeader(Headers.TYPE, row.getString(Telephony.BaseMmsColumns.MESSAGE_TYPE));
+        message.setHeader(Headers.DATE, row.getString(Telephony.BaseMmsColumns.DATE));
+        message.setHeader(Headers.THREAD_ID, row.getString(Telephony.BaseMmsColumns.THREAD_ID));
+        message.setHeader(Headers.READ, row.getString(Telephony.BaseMmsColumns.READ));
     }
 
-    private void setMmsHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(Telephony.BaseMmsColumns._ID));
-        message.setHeader(Headers.TYPE, msgMap.get(Telephony.BaseMmsColumns.MESSAGE_TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(Telephony.BaseMmsColumns.DATE));
-        message.setHeader(Headers.THREAD_ID, msgMap.get(Telephony.BaseMmsColumns.THREAD_ID));
-        message.setHeader(Headers.READ, msgMap.get(Telephony.BaseMmsColumns.READ));
+    private void setCallLogHeaders(HeaderSink message, MessageRow row) throws MessagingException {
+        message.setHeader(Headers.ID, row.getString(CallLog.Calls._ID));
+        message.setHeader(Headers.TYPE, row.getString(CallLog.Calls.TYPE));
+        message.setHeader(Headers.DATE, row.getString(CallLog.Calls.DATE));
+        message.setHeader(Headers.DURATION, row.getString(CallLog.Calls.DURATION));
     }
 
-    private void setCallLogHeaders(Message message, Map<String,String> msgMap) throws MessagingException {
-        message.setHeader(Headers.ID, msgMap.get(CallLog.Calls._ID));
-        message.setHeader(Headers.TYPE, msgMap.get(CallLog.Calls.TYPE));
-        message.setHeader(Headers.DATE, msgMap.get(CallLog.Calls.DATE));
-        message.setHeader(Headers.DURATION, msgMap.get(CallLog.Calls.DURATION));
+    /**
+     * @return the date, formatted in GMT with second precision
+     */
+    static String toGMTString(long time) {
+        return SCRATCH.get().formatGMT(time);
     }
 
-    private static String toGMTString(Date date) {
-        SimpleDateFormat sdf = new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US);
-        TimeZone gmtZone = TimeZone.getTimeZone("GMT");
-        sdf.setTimeZone(gmtZone);
-        GregorianCalendar gc = new GregorianCalendar(gmtZone);
-        gc.setTimeInMillis(date.getTime());
-        return sdf.format(date);
+    /**
+     * @return the value of the References header
+     */
+    String createReference(String referenceId) {
+        return referencePrefix + referenceId + REFERENCE_SUFFIX;
     }
 
     /**
@@ -101,29 +122,128 @@ class HeaderGenerator {
      * type.
      *
      * @param sent    email send date
-     * @param address the email address
+     * @param address the email address, "v2" is appended
      * @param type    the type
      * @return the message-id
      */
-    private static String createMessageId(Date sent, String address, int type) {
-        try {
-            final MessageDigest digest = MessageDigest.getInstance("MD5");
+    static String createMessageId(Date sent, String address, int type) {
+        return SCRATCH.get().createMessageId(sent.getTime(), address, type);
+    }
+
+    /**
+     * Receives the headers, in the order they appear in the message.
+     */
+    interface HeaderSink {
+        void setHeader(String name, String value) throws MessagingException;
+
+        void setSentDate(Date sentDate) throws MessagingException;
+    }
+
+    private static class MessageHeaders implements HeaderSink {
+        private final Message message;
+
+        MessageHeaders(Message message) {
+            this.message = message;
+        }
+
+        @Override public void setHeader(String name, String value) throws MessagingException {
+            message.setHeader(name, value);
+        }
+
+        @Override public void setSentDate(Date sentDate) throws MessagingException {
+            message.setSentDate(sentDate, false);
+            message.setInternalDate(sentDate);
+        }
+    }
+
+    /**
+     * Per-thread state, reused for every message.
+     */
+    private static class Scratch {
+        private static final char[] MSG_ID_SUFFIX = "@sms-backup-plus.local>".toCharArray();
+        private static final byte[] VERSION_SUFFIX = { 'v', '2' };
+
+        private final MessageDigest digest;
+        private final SimpleDateFormat gmtFormat;
+        private final Date date = new Date();
+        private final byte[] bytes = new byte[64];
+        private final char[] messageId = new char[1 + 32 + MSG_ID_SUFFIX.length];
+        private long formattedSecond = Long.MIN_VALUE;
+        private String formatted;
+
+        Scratch() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            gmtFormat = new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US);
+            gmtFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            messageId[0] = '<';
+            System.arraycopy(MSG_ID_SUFFIX, 0, messageId, 33, MSG_ID_SUFFIX.length);
+        }
 
-            digest.update(Long.toString(sent.getTime()).getBytes(UTF_8));
-            if (address != null) {
-                digest.update(address.getBytes(UTF_8));
+        String formatGMT(long time) {
+            // backup times of consecutive messages mostly fall into the same second
+            final long second = time >= 0 ? time / 1000 : (time - 999) / 1000;
+            if (formatted == null || second != formattedSecond) {
+                date.setTime(time);
+                formatted = gmtFormat.format(date);
+                formattedSecond = second;
             }
-            digest.update(Integer.toString(type).getBytes(UTF_8));
+            return formatted;
+        }
+
+        String createMessageId(long time, String address, int type) {
+            digest.reset();
+            updateDecimal(time);
+            updateString(String.valueOf(address));
+            digest.update(VERSION_SUFFIX);
+            updateDecimal(type);
 
-            final StringBuilder sb = new StringBuilder();
-            for (byte b : digest.digest()) {
-                sb.append(String.format(Locale.ENGLISH, "%02x", b));
+            Hex.encode(digest.digest(), messageId, 1);
+            return new String(messageId);
+        }
+
+        /**
+         * Digests the same bytes as <code>Long.toString(value).getBytes(UTF_8)</code>.
+         */
+        private void updateDecimal(long value) {
+            if (value == Long.MIN_VALUE) {
+                updateString(Long.toString(value));
+                return;
+            }
+            int position = bytes.length;
+            final boolean negative = value < 0;
+            long remaining = negative ? -value : value;
+            do {
+                bytes[--position] = (byte) ('0' + remaining % 10);
+                remaining /= 10;
+            } while (remaining != 0);
+            if (negative) {
+                bytes[--position] = '-';
+            }
+            digest.update(bytes, position, bytes.length - position);
+        }
+
+        /**
+         * Digests the string as UTF-8, ASCII strings are copied without encoding.
+         */
+        private void updateString(String value) {
+            final int length = value.length();
+            if (length > bytes.length) {
+                digest.update(value.getBytes(UTF_8));
+                return;
+            }
+            for (int i = 0; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c >= 0x80) {
+                    digest.update(value.getBytes(UTF_8));
+                    return;
+                }
+                bytes[i] = (byte) c;
             }
-            return String.format(Locale.ENGLISH, MSG_ID_TEMPLATE, sb.toString());
-        } catch (java.io.UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        } catch (java.security.NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            digest.update(bytes, 0, length);
         }
     }
 }
@@ -5,7 +5,7 @@ import com.fsck.k9.mail.Message;
 
 public final class Headers {
     // private headers
-    static final String ID             = "X-smssync-id";
+    public static final String ID             = "X-smssync-id";
     static final String ADDRESS        = "X-smssync-address";
     /** {@link DataType} SMS, MMS, CALLLOG */
     static final String DATATYPE       = "X-smssync-datatype";
@@ -20,16 +20,19 @@ public final class Headers {
     static final String BACKUP_TIME    = "X-smssync-backup-time";
     public static final String VERSION        = "X-smssync-version";
     public static final String DURATION       = "X-smssync-duration";
+    /** on transcoded MMS parts: size and SHA-256 of the original */
+    static final String ORIGINAL_SIZE  = "X-smssync-original-size";
+    static final String ORIGINAL_HASH  = "X-smssync-original-sha256";
 
     // standard headers
     static final String REFERENCES = "References";
-    static final String MESSAGE_ID = "Message-ID";
+    public static final String MESSAGE_ID = "Message-ID";
 
     private Headers() {}
 
     public static @Nullable String get(Message msg, String header) {
         final String[] headers = msg.getHeader(header);
-        if (headers.length > 0) {
+        if (headers != null && headers.length > 0) {
             return headers[0];
         } else {
             return null;
@@ -0,0 +1,26 @@
+package com.zegoggles.smssync.mail;
+
+/**
+ * Lower case hex encoding, without formatting each byte.
+ */
+final class Hex {
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private Hex() {}
+
+    static String encode(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        encode(bytes, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Writes the two digits of each byte into <code>out</code>, starting at <code>offset</code>.
+     */
+    static void encode(byte[] bytes, char[] out, int offset) {
+        for (int i = 0; i < bytes.length; i++) {
+            out[offset + 2 * i] = DIGITS[(bytes[i] >> 4) & 0xf];
+            out[offset + 2 * i + 1] = DIGITS[bytes[i] & 0xf];
+        }
+    }
+}
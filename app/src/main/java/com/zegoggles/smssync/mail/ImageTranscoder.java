@@ -0,0 +1,297 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Re-encodes large MMS images as smaller JPEGs before they are backed up.
+ * <p>
+ * Images run on a small pool of worker threads, so that several parts are transcoded while
+ * messages are converted and uploaded. When the pool is busy, the caller transcodes the image
+ * itself, which bounds the number of decoded images held in memory.
+ */
+public class ImageTranscoder {
+    /** smaller images are backed up unchanged */
+    static final long MIN_SIZE = 256 * 1024;
+    static final int JPEG_QUALITY = 85;
+    private static final int MAX_QUEUED = 4;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ContentResolver resolver;
+    private final int maxDimension;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger transcoded = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong transcodeMillis = new AtomicLong();
+
+    /**
+     * @param maxDimension the maximum width and height of transcoded images, in pixels
+     * @param threads the number of worker threads
+     */
+    public ImageTranscoder(@NonNull ContentResolver resolver, int maxDimension, int threads) {
+        this.resolver = resolver;
+        this.maxDimension = maxDimension;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override public Thread newThread(@NonNull Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "ImageTranscoder-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return if images of this content type can be transcoded. Animated GIFs are kept as they are.
+     */
+    static boolean canTranscode(@Nullable String contentType) {
+        if (contentType == null) return false;
+        final String type = contentType.toLowerCase(Locale.ENGLISH);
+        return type.startsWith("image/") && !type.equals("image/gif");
+    }
+
+    /**
+     * Schedules an image part for transcoding.
+     */
+    Future<Result> submit(final Uri uri) {
+        return executor.submit(new Callable<Result>() {
+            @Override public Result call() throws IOException {
+                return transcode(uri);
+            }
+        });
+    }
+
+    Result transcode(Uri uri) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long knownSize = getKnownSize(uri);
+        if (knownSize >= 0 && knownSize < MIN_SIZE) {
+            // not worth reading
+            bytesIn.addAndGet(knownSize);
+            return unchanged(knownSize, null);
+        }
+        final MessageDigest digest = newDigest();
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        final long size = readBounds(uri, digest, bounds);
+        final String hash = Hex.encode(digest.digest());
+        bytesIn.addAndGet(size);
+
+        final int longestSide = Math.max(bounds.outWidth, bounds.outHeight);
+        if (size < MIN_SIZE || longestSide <= maxDimension) {
+            return unchanged(size, hash);
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = getSampleSize(longestSide, maxDimension);
+        // scale the rest of the way while decoding
+        options.inScaled = true;
+        options.inDensity = longestSide / options.inSampleSize;
+        options.inTargetDensity = maxDimension;
+
+        final Bitmap bitmap;
+        final InputStream in = open(uri);
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+        if (bitmap == null) {
+            failed.incrementAndGet();
+            bytesOut.addAndGet(size);
+            return new Result(null, size, hash);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(size, MIN_SIZE));
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } finally {
+            bitmap.recycle();
+        }
+        if (out.size() >= size) {
+            return unchanged(size, hash);
+        }
+        transcoded.incrementAndGet();
+        bytesOut.addAndGet(out.size());
+        transcodeMillis.addAndGet(System.currentTimeMillis() - start);
+        if (LOCAL_LOGV) {
+            Log.v(TAG, String.format(Locale.ENGLISH, "transcoded %s, %d -> %d bytes", uri, size, out.size()));
+        }
+        return new Result(out.toByteArray(), size, hash);
+    }
+
+    /**
+     * @return the number of images which have been replaced by a smaller version
+     */
+    public int getTranscodedCount() {
+        return transcoded.get();
+    }
+
+    /**
+     * @return the number of bytes not uploaded because of transcoding
+     */
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+            "ImageTranscoder{transcoded=%d, unchanged=%d, failed=%d, bytesIn=%d, bytesOut=%d, time=%dms}",
+            transcoded.get(), unchanged.get(), failed.get(), bytesIn.get(), bytesOut.get(), transcodeMillis.get());
+    }
+
+    private Result unchanged(long size, @Nullable String hash) {
+        unchanged.incrementAndGet();
+        bytesOut.addAndGet(size);
+        return new Result(null, size, hash);
+    }
+
+    /**
+     * Reads the whole image once, for its size, hash and dimensions.
+     */
+    private long readBounds(Uri uri, MessageDigest digest, BitmapFactory.Options bounds) throws IOException {
+        final CountingInputStream in = new CountingInputStream(new DigestInputStream(open(uri), digest));
+        try {
+            BitmapFactory.decodeStream(in, null, bounds);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) != -1) {
+            }
+            return in.count;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the size of the image if the provider knows it, otherwise -1
+     */
+    private long getKnownSize(Uri uri) {
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = resolver.openAssetFileDescriptor(uri, "r");
+            return descriptor == null ? -1 : descriptor.getLength();
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (RuntimeException e) {
+            // not supported by the provider
+            return -1;
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private InputStream open(Uri uri) throws IOException {
+        final InputStream in = resolver.openInputStream(uri);
+        if (in == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return in;
+    }
+
+    /**
+     * @return the largest power of two which keeps the longest side at or above the target
+     */
+    static int getSampleSize(int longestSide, int maxDimension) {
+        int sampleSize = 1;
+        while (longestSide / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Counts the bytes read. Does not support mark and reset, so every byte is digested once.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            // read instead, for the digest
+            final byte[] buffer = new byte[(int) Math.min(n, BUFFER_SIZE)];
+            final int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        @Override public boolean markSupported() {
+            return false;
+        }
+    }
+
+    static class Result {
+        /** the transcoded image, or null if the original should be used */
+        final @Nullable byte[] data;
+        final long originalSize;
+        final @Nullable String originalHash;
+
+        Result(@Nullable byte[] data, long originalSize, @Nullable String originalHash) {
+            this.data = data;
+            this.originalSize = originalSize;
+            this.originalHash = originalHash;
+        }
+    }
+}
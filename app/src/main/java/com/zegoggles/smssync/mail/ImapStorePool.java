@@ -0,0 +1,202 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.fsck.k9.mail.MessagingException;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Keeps the store of the last backup or restore, with its folders still open and logged in,
+ * so that the next run does not have to connect, authenticate and select the folders again.
+ * <p>
+ * While idle the connections are kept alive with a periodic NOOP. When the idle window is over,
+ * or a NOOP fails, the store logs out and is discarded. Only one store is kept.
+ */
+public class ImapStorePool {
+    static final long KEEP_ALIVE_INTERVAL = TimeUnit.MINUTES.toMillis(2);
+
+    private static final ImapStorePool INSTANCE = new ImapStorePool();
+
+    private final AtomicInteger connects = new AtomicInteger();
+    private @Nullable ScheduledExecutorService scheduler;
+    private @Nullable ScheduledFuture<?> keepAlive;
+
+    private @Nullable BackupImapStore idle;
+    private @Nullable String idleKey;
+    private long idleSince;
+    private long idleWindow;
+    private @Nullable String activeKey;
+
+    private int stores, warmStarts, coldStarts, keepAlives, evictions;
+
+    ImapStorePool() {
+    }
+
+    public static ImapStorePool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param idleWindow how long the store is kept after it has been released, in milliseconds
+     * @return the idle store if it has been created for the same settings, otherwise a new store.
+     * Callers have to release the store with {@link BackupImapStore#closeFolders()}.
+     */
+    public synchronized @NonNull BackupImapStore acquire(Context context,
+                                                         String uri,
+                                                         boolean trustAllCertificates,
+                                                         long idleWindow) throws MessagingException {
+        final String key = key(uri, trustAllCertificates);
+        final BackupImapStore store = idle;
+        cancelKeepAlive();
+        idle = null;
+        this.idleWindow = idleWindow;
+        if (store != null && key.equals(idleKey)) {
+            if (LOCAL_LOGV) Log.v(TAG, "reusing idle store");
+            activeKey = key;
+            return store;
+        } else if (store != null) {
+            evict(store);
+        }
+        final BackupImapStore created = new BackupImapStore(context, uri, trustAllCertificates, connects);
+        created.setPool(this);
+        activeKey = key;
+        stores++;
+        return created;
+    }
+
+    /**
+     * Stops using the pool, the idle store gets disconnected.
+     */
+    public synchronized void clear() {
+        cancelKeepAlive();
+        if (idle != null) {
+            evict(idle);
+            idle = null;
+        }
+    }
+
+    synchronized void release(BackupImapStore store) {
+        if (idle != null && idle != store) {
+            evict(idle);
+        }
+        idle = store;
+        idleKey = activeKey;
+        idleSince = SystemClock.elapsedRealtime();
+        cancelKeepAlive();
+        final long interval = Math.min(KEEP_ALIVE_INTERVAL, idleWindow);
+        keepAlive = getScheduler().scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                keepAlive();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Pings the idle store, or discards it once the idle window is over.
+     */
+    void keepAlive() {
+        final BackupImapStore store;
+        final boolean expired;
+        synchronized (this) {
+            store = idle;
+            if (store == null) {
+                cancelKeepAlive();
+                return;
+            }
+            expired = SystemClock.elapsedRealtime() - idleSince >= idleWindow;
+            // not available while the network is used, acquire() must not block
+            idle = null;
+        }
+        if (expired) {
+            if (LOCAL_LOGV) Log.v(TAG, "idle window over, disconnecting");
+            store.disconnect();
+            discard();
+        } else if (store.pingFolders()) {
+            synchronized (this) {
+                keepAlives++;
+                if (idle == null && keepAlive != null) {
+                    idle = store;
+                } else {
+                    // a new store has been created in the meantime
+                    evict(store);
+                }
+            }
+        } else {
+            if (LOCAL_LOGV) Log.v(TAG, "idle connections gone");
+            discard();
+        }
+    }
+
+    synchronized void countWarmStart() {
+        warmStarts++;
+    }
+
+    synchronized void countColdStart() {
+        coldStarts++;
+    }
+
+    synchronized boolean isIdle(BackupImapStore store) {
+        return idle == store;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH,
+            "ImapStorePool{stores=%d, connects=%d, warmStarts=%d, coldStarts=%d, keepAlives=%d, evictions=%d}",
+            stores, connects.get(), warmStarts, coldStarts, keepAlives, evictions);
+    }
+
+    private synchronized void discard() {
+        evictions++;
+        if (idle == null) {
+            cancelKeepAlive();
+        }
+    }
+
+    private void evict(final BackupImapStore store) {
+        evictions++;
+        // logging out needs the network, so not on the caller's thread
+        getScheduler().execute(new Runnable() {
+            @Override public void run() {
+                store.disconnect();
+            }
+        });
+    }
+
+    private void cancelKeepAlive() {
+        if (keepAlive != null) {
+            keepAlive.cancel(false);
+            keepAlive = null;
+        }
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override public Thread newThread(@NonNull Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ImapStorePool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return scheduler;
+    }
+
+    private static String key(String uri, boolean trustAllCertificates) {
+        return trustAllCertificates + ":" + uri;
+    }
+}
@@ -0,0 +1,383 @@
+package com.zegoggles.smssync.mail;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.BaseColumns;
+import android.provider.ContactsContract;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Locale;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Persistent cache of contact and thread lookups, keyed by address, which survives across backup
+ * and restore runs.
+ * <p>
+ * Cached people are dropped when the contacts change, either while the cache is open (detected
+ * with a {@link ContentObserver}) or in between runs (detected with a version stamp derived from
+ * the latest contact update and deletion). Cached thread ids are dropped when the set of threads
+ * changed in between runs, which is detected with the highest thread id and the number of threads.
+ */
+public class LookupCache {
+    static final String DATABASE = "lookup_cache.db";
+    static final long UNKNOWN_VERSION = -1;
+
+    private static final int DATABASE_VERSION = 1;
+    private static final String PERSON = "person";
+    private static final String THREAD = "thread";
+    private static final String META = "meta";
+
+    private static final String ADDRESS = "address";
+    private static final String CONTACT_ID = "contact_id";
+    private static final String NAME = "name";
+    private static final String EMAIL = "email";
+    private static final String THREAD_ID = "thread_id";
+    private static final String KEY = "key";
+    private static final String VALUE = "value";
+
+    private static final String CONTACTS_VERSION = "contacts_version";
+    private static final String THREADS_VERSION = "threads_version";
+
+    private static final Uri THREADS_URI = Uri.parse("content://mms-sms/conversations?simple=true");
+    private static final Uri MMS_SMS_URI = Uri.parse("content://mms-sms/");
+    private static final String[] THREADS_STAMP_PROJECTION = new String[]{
+        "MAX(" + BaseColumns._ID + ")",
+        "COUNT(*)"
+    };
+
+    private final ContentResolver resolver;
+    private final SQLiteOpenHelper helper;
+    private final ContentObserver contactsObserver;
+    private final ContentObserver threadsObserver;
+    private volatile boolean contactsChanged;
+    private volatile boolean threadsChanged;
+
+    private int personHits, personMisses;
+    private int threadHits, threadMisses;
+    private int invalidations;
+
+    public LookupCache(@NonNull Context context) {
+        this(context, context.getContentResolver(), DATABASE);
+    }
+
+    LookupCache(@NonNull Context context, @NonNull ContentResolver resolver, @Nullable String name) {
+        this.resolver = resolver;
+        this.helper = new OpenHelper(context, name);
+        this.contactsObserver = new ContentObserver(null) {
+            @Override public void onChange(boolean selfChange) {
+                contactsChanged = true;
+            }
+        };
+        this.threadsObserver = new ContentObserver(null) {
+            @Override public void onChange(boolean selfChange) {
+                threadsChanged = true;
+            }
+        };
+    }
+
+    /**
+     * Starts observing the contacts and drops entries which are out of date.
+     * Queries the contacts and threads providers, call from a background thread.
+     */
+    public void open() {
+        try {
+            resolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, contactsObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "cannot observe contacts", e);
+        }
+        try {
+            resolver.registerContentObserver(MMS_SMS_URI, true, threadsObserver);
+        } catch (SecurityException e) {
+            Log.w(TAG, "cannot observe threads", e);
+        }
+        validate(queryContactsVersion(), queryThreadsVersion());
+    }
+
+    public void close() {
+        resolver.unregisterContentObserver(contactsObserver);
+        resolver.unregisterContentObserver(threadsObserver);
+        // threads created by this run are cached already, only restamp if they might have changed
+        final long threadsVersion = threadsChanged ? queryThreadsVersion() : UNKNOWN_VERSION;
+        synchronized (this) {
+            if (threadsVersion != UNKNOWN_VERSION) {
+                putVersion(THREADS_VERSION, threadsVersion);
+            }
+            helper.close();
+        }
+    }
+
+    synchronized void validate(long contactsVersion, long threadsVersion) {
+        contactsChanged = false;
+        threadsChanged = false;
+        if (contactsVersion == UNKNOWN_VERSION || contactsVersion != getVersion(CONTACTS_VERSION)) {
+            invalidate(PERSON);
+            putVersion(CONTACTS_VERSION, contactsVersion);
+        }
+        if (threadsVersion == UNKNOWN_VERSION || threadsVersion != getVersion(THREADS_VERSION)) {
+            invalidate(THREAD);
+            putVersion(THREADS_VERSION, threadsVersion);
+        }
+    }
+
+    synchronized @Nullable PersonRecord getPerson(String address) {
+        checkContacts();
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().query(PERSON,
+                    new String[]{CONTACT_ID, NAME, EMAIL},
+                    ADDRESS + " = ?", new String[]{address}, null, null, null);
+            if (cursor.moveToFirst()) {
+                personHits++;
+                return new PersonRecord(cursor.getLong(0), cursor.getString(1), cursor.getString(2), address);
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading lookup cache", e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        personMisses++;
+        return null;
+    }
+
+    synchronized void putPerson(String address, long contactId, @Nullable String name, @Nullable String email) {
+        final ContentValues values = new ContentValues();
+        values.put(ADDRESS, address);
+        values.put(CONTACT_ID, contactId);
+        values.put(NAME, name);
+        values.put(EMAIL, email);
+        replace(PERSON, values);
+    }
+
+    public synchronized @Nullable Long getThreadId(String address) {
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().query(THREAD,
+                    new String[]{THREAD_ID},
+                    ADDRESS + " = ?", new String[]{address}, null, null, null);
+            if (cursor.moveToFirst()) {
+                threadHits++;
+                return cursor.getLong(0);
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading lookup cache", e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        threadMisses++;
+        return null;
+    }
+
+    public synchronized void putThreadId(String address, long threadId) {
+        final ContentValues values = new ContentValues();
+        values.put(ADDRESS, address);
+        values.put(THREAD_ID, threadId);
+        replace(THREAD, values);
+        // the thread might have been created by the lookup
+        threadsChanged = true;
+    }
+
+    synchronized int getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH,
+                "LookupCache{personHits=%d, personMisses=%d, threadHits=%d, threadMisses=%d, invalidations=%d}",
+                personHits, personMisses, threadHits, threadMisses, invalidations);
+    }
+
+    private void checkContacts() {
+        if (contactsChanged) {
+            if (LOCAL_LOGV) Log.v(TAG, "contacts changed, invalidating cache");
+            contactsChanged = false;
+            invalidate(PERSON);
+            // the stored version is now stale, make sure the next run checks again
+            putVersion(CONTACTS_VERSION, UNKNOWN_VERSION);
+        }
+    }
+
+    private void invalidate(String table) {
+        try {
+            helper.getWritableDatabase().delete(table, null, null);
+            invalidations++;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error clearing lookup cache", e);
+        }
+    }
+
+    private void replace(String table, ContentValues values) {
+        try {
+            helper.getWritableDatabase().replace(table, null, values);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error writing lookup cache", e);
+        }
+    }
+
+    private long getVersion(String key) {
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().query(META, new String[]{VALUE},
+                    KEY + " = ?", new String[]{key}, null, null, null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : UNKNOWN_VERSION;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading lookup cache", e);
+            return UNKNOWN_VERSION;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private void putVersion(String key, long version) {
+        final ContentValues values = new ContentValues();
+        values.put(KEY, key);
+        values.put(VALUE, version);
+        replace(META, values);
+    }
+
+    /**
+     * @return a stamp which changes whenever a contact is updated or deleted
+     */
+    private long queryContactsVersion() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            // no update timestamps, hash the versions of all raw contacts instead
+            return hashIdsAndVersions(ContactsContract.RawContacts.CONTENT_URI, new String[]{
+                ContactsContract.RawContacts._ID,
+                ContactsContract.RawContacts.VERSION
+            });
+        }
+        final long updated = queryLatestTimestamp(ContactsContract.Contacts.CONTENT_URI,
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP);
+        final long deleted = queryLatestTimestamp(ContactsContract.DeletedContacts.CONTENT_URI,
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP);
+        if (updated == UNKNOWN_VERSION || deleted == UNKNOWN_VERSION) {
+            return UNKNOWN_VERSION;
+        }
+        return stamp(updated, deleted);
+    }
+
+    /**
+     * @return a stamp over the highest thread id and the number of threads, which changes whenever
+     * threads are created or deleted
+     */
+    private long queryThreadsVersion() {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(THREADS_URI, THREADS_STAMP_PROJECTION, null, null, null);
+            if (cursor == null || !cursor.moveToFirst()) {
+                return UNKNOWN_VERSION;
+            }
+            return stamp(cursor.getLong(0), cursor.getLong(1));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "cannot aggregate threads", e);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "cannot aggregate threads", e);
+        } catch (SecurityException e) {
+            Log.w(TAG, "cannot query " + THREADS_URI, e);
+            return UNKNOWN_VERSION;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        // provider does not accept aggregates, hash all thread ids instead
+        return hashIdsAndVersions(THREADS_URI, new String[]{ BaseColumns._ID });
+    }
+
+    /**
+     * @return the highest value of the timestamp column, 0 if there are no rows
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private long queryLatestTimestamp(Uri uri, String column) {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri.buildUpon()
+                    .appendQueryParameter(ContactsContract.LIMIT_PARAM_KEY, "1").build(),
+                    new String[]{column}, null, null, column + " DESC");
+            if (cursor == null) {
+                return UNKNOWN_VERSION;
+            }
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } catch (SecurityException e) {
+            Log.w(TAG, "cannot query " + uri, e);
+            return UNKNOWN_VERSION;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "cannot query " + uri, e);
+            return UNKNOWN_VERSION;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private static long stamp(long first, long second) {
+        final long stamp = (17 * 31 + first) * 31 + second;
+        // never collide with the marker value
+        return stamp == UNKNOWN_VERSION ? 0 : stamp;
+    }
+
+    private long hashIdsAndVersions(Uri uri, String[] projection) {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, projection, null, null, BaseColumns._ID);
+            if (cursor == null) {
+                return UNKNOWN_VERSION;
+            }
+            long hash = 17;
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < projection.length; i++) {
+                    hash = hash * 31 + cursor.getLong(i);
+                }
+            }
+            // never collide with the marker value
+            return hash == UNKNOWN_VERSION ? 0 : hash;
+        } catch (SecurityException e) {
+            Log.w(TAG, "cannot query " + uri, e);
+            return UNKNOWN_VERSION;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "cannot query " + uri, e);
+            return UNKNOWN_VERSION;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+        OpenHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + PERSON + " (" +
+                    ADDRESS + " TEXT PRIMARY KEY, " +
+                    CONTACT_ID + " INTEGER, " +
+                    NAME + " TEXT, " +
+                    EMAIL + " TEXT)");
+            db.execSQL("CREATE TABLE " + THREAD + " (" +
+                    ADDRESS + " TEXT PRIMARY KEY, " +
+                    THREAD_ID + " INTEGER)");
+            db.execSQL("CREATE TABLE " + META + " (" +
+                    KEY + " TEXT PRIMARY KEY, " +
+                    VALUE + " INTEGER)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + PERSON);
+            db.execSQL("DROP TABLE IF EXISTS " + THREAD);
+            db.execSQL("DROP TABLE IF EXISTS " + META);
+            onCreate(db);
+        }
+    }
+}
@@ -19,15 +19,16 @@ package com.zegoggles.smssync.mail;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteException;
 import android.provider.CallLog;
 import android.provider.Telephony;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.util.Log;
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.Flag;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeHeader;
 import com.fsck.k9.mail.internet.MimeUtility;
 import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.contacts.ContactAccessor;
@@ -40,22 +41,39 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Random;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 
 public class MessageConverter {
+    /** images are decoded in memory, so only a few at a time */
+    private static final int TRANSCODER_THREADS = 2;
+    /** the header fields read by {@link #messageToContentValues(Message)} */
+    private static final String[] SMS_RESTORE_HEADERS = {
+        Headers.DATATYPE, Headers.ADDRESS, Headers.TYPE, Headers.PROTOCOL, Headers.SERVICE_CENTER,
+        Headers.DATE, Headers.STATUS, Headers.READ,
+        // needed to decode the body
+        MimeHeader.HEADER_CONTENT_TYPE, MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING
+    };
+    private static final String[] CALLLOG_RESTORE_HEADERS = {
+        Headers.DATATYPE, Headers.ADDRESS, Headers.TYPE, Headers.DATE, Headers.DURATION
+    };
+
     private final Context context;
     private final ThreadHelper threadHelper = new ThreadHelper();
 
     private final MarkAsReadTypes markAsReadType;
     private final PersonLookup personLookup;
     private final MessageGenerator messageGenerator;
+    private final MmsPrefetcher mmsPrefetcher;
+    private final @Nullable ImageTranscoder imageTranscoder;
     private final boolean markAsReadOnRestore;
+    private volatile @Nullable ColumnUsage columnUsage;
+    /** per thread, parallel uploads read their cursors on threads of their own */
+    private final ThreadLocal<CursorRow> cursorRow = new ThreadLocal<CursorRow>();
+    private volatile @Nullable MessageIndex messageIndex;
 
     public MessageConverter(Context context,
                             Preferences preferences,
@@ -77,6 +95,10 @@ public class MessageConverter {
         ContactGroupIds allowedIds = contactAccessor.getGroupContactIds(context.getContentResolver(), backupContactGroup);
         if (LOCAL_LOGV) Log.v(TAG, "whitelisted ids for backup: " + allowedIds);
 
+        mmsPrefetcher = new MmsPrefetcher(context.getContentResolver());
+        final int imageMaxSize = preferences.getMmsImageMaxSize();
+        imageTranscoder = imageMaxSize > 0 ?
+            new ImageTranscoder(context.getContentResolver(), imageMaxSize, TRANSCODER_THREADS) : null;
         messageGenerator = new MessageGenerator(context,
                 new Address(userEmail),
                 preferences.getEmailAddressStyle(),
@@ -84,19 +106,20 @@ public class MessageConverter {
                 personLookup,
                 preferences.getMailSubjectPrefix(),
                 allowedIds,
-                new MmsSupport(context.getContentResolver(), personLookup),
+                new MmsSupport(context.getContentResolver(), personLookup, mmsPrefetcher, imageTranscoder),
                 preferences.getCallLogType(),
-                preferences.getDataTypePreferences());
+                preferences.getDataTypePreferences(),
+                true);
     }
 
-    private boolean markAsSeen(DataType dataType, Map<String, String> msgMap) {
+    private boolean markAsSeen(DataType dataType, MessageRow row) {
         switch (markAsReadType) {
             case MESSAGE_STATUS:
                 switch (dataType) {
                     case SMS:
-                        return "1".equals(msgMap.get(Telephony.TextBasedSmsColumns.READ));
+                        return row.getInt(Telephony.TextBasedSmsColumns.READ, 0) == 1;
                     case MMS:
-                        return "1".equals(msgMap.get(Telephony.BaseMmsColumns.READ));
+                        return row.getInt(Telephony.BaseMmsColumns.READ, 0) == 1;
                     default:
                         return true;
                 }
@@ -110,13 +133,92 @@ public class MessageConverter {
 
     public @NonNull ConversionResult convertMessages(final Cursor cursor, DataType dataType)
             throws MessagingException {
+        return convertMessage(getCursorRow(cursor), dataType);
+    }
+
+    /**
+     * Copies the current row of the cursor, so it can be converted later, possibly on a
+     * different thread.
+     */
+    public @NonNull MessageRow readMessage(final Cursor cursor) {
+        return getCursorRow(cursor).detach();
+    }
+
+    /**
+     * Loads all contacts into memory, for the duration of a backup or restore.
+     * @return if the contacts were loaded
+     * @throws SecurityException if the caller does not hold READ_CONTACTS
+     */
+    public boolean loadContactSnapshot() {
+        return personLookup.loadSnapshot();
+    }
+
+    public void releaseContactSnapshot() {
+        personLookup.releaseSnapshot();
+    }
 
-        final Map<String, String> msgMap = getMessageMap(cursor);
-        final Message m = messageGenerator.messageForDataType(msgMap, dataType);
+    /**
+     * @param lookupCache persistent contact and thread cache, or null to stop using it
+     */
+    public void setLookupCache(@Nullable LookupCache lookupCache) {
+        personLookup.setLookupCache(lookupCache);
+        threadHelper.setLookupCache(lookupCache);
+    }
+
+    /**
+     * @param messageIndex if not null, rows contained in the index are skipped without conversion
+     */
+    public void setMessageIndex(@Nullable MessageIndex messageIndex) {
+        this.messageIndex = messageIndex;
+    }
+
+    /**
+     * @param selection the selection of the MMS which get backed up, without the position, or
+     *                  null to prefetch the parts of all MMS
+     */
+    public void setMmsSelection(@Nullable String selection, @Nullable String[] selectionArgs) {
+        mmsPrefetcher.setSelection(selection, selectionArgs);
+    }
+
+    /**
+     * @return a summary of the MMS address and part prefetching, for the debug log
+     */
+    public String getMmsPrefetchStats() {
+        return mmsPrefetcher.toString();
+    }
+
+    /**
+     * @return the image transcoder, or null if images are backed up unchanged
+     */
+    public @Nullable ImageTranscoder getImageTranscoder() {
+        return imageTranscoder;
+    }
+
+    /**
+     * @param columnUsage if not null, records the provider columns read during conversion
+     */
+    public void setColumnUsage(@Nullable ColumnUsage columnUsage) {
+        this.columnUsage = columnUsage;
+    }
+
+    public @NonNull ConversionResult convertMessage(MessageRow row, DataType dataType)
+            throws MessagingException {
+        final MessageIndex index = messageIndex;
+        if (index != null && index.contains(dataType, row)) {
+            final ConversionResult skipped = new ConversionResult(dataType);
+            skipped.skip(row);
+            return skipped;
+        }
+        final ColumnUsage usage = columnUsage;
+        if (usage != null) {
+            usage.recordRow(dataType, row);
+            row = usage.track(dataType, row);
+        }
+        final Message m = messageGenerator.messageForDataType(row, dataType);
         final ConversionResult result = new ConversionResult(dataType);
         if (m != null) {
-            m.setFlag(Flag.SEEN, markAsSeen(dataType, msgMap));
-            result.add(m, msgMap);
+            m.setFlag(Flag.SEEN, markAsSeen(dataType, row));
+            result.add(m, row);
         }
 
         return result;
@@ -170,6 +272,25 @@ public class MessageConverter {
         return values;
     }
 
+    /**
+     * @return the header fields {@link #messageToContentValues(Message)} reads for the data type,
+     * or null if it needs the complete message
+     */
+    static @Nullable String[] getRestoredHeaders(DataType dataType) {
+        switch (dataType) {
+            case SMS: return SMS_RESTORE_HEADERS;
+            case CALLLOG: return CALLLOG_RESTORE_HEADERS;
+            default: return null;
+        }
+    }
+
+    /**
+     * @return if {@link #messageToContentValues(Message)} reads the body for the data type
+     */
+    static boolean isBodyRestored(DataType dataType) {
+        return dataType != DataType.CALLLOG;
+    }
+
     public DataType getDataType(Message message) throws MessagingException {
         final String dataTypeHeader = Headers.get(message, Headers.DATATYPE);
         if (dataTypeHeader == null) {
@@ -182,26 +303,18 @@ public class MessageConverter {
         }
     }
 
-    private Map<String, String> getMessageMap(Cursor cursor) {
-        final String[] columns = cursor.getColumnNames();
-        final Map<String, String> msgMap = new HashMap<String, String>(columns.length);
-        for (String column : columns) {
-            String value;
-            try {
-                final int index = cursor.getColumnIndex(column);
-                if (index != -1) {
-                    value = cursor.getString(index);
-                } else {
-                    continue;
-                }
-            } catch (SQLiteException ignored) {
-                // this can happen in case of BLOBS in the DB
-                // column type checking is API level >= 11
-                value = "[BLOB]";
-            }
-            msgMap.put(column, value);
+    /**
+     * The row view is reused for as long as the same cursor is passed in on the calling thread,
+     * so column indexes are only resolved once per cursor, also when several streams share
+     * this converter.
+     */
+    private CursorRow getCursorRow(Cursor cursor) {
+        CursorRow row = cursorRow.get();
+        if (row == null || !row.isFor(cursor)) {
+            row = new CursorRow(cursor);
+            cursorRow.set(row);
         }
-        return msgMap;
+        return row;
     }
 
     private static String generateReferenceValue() {
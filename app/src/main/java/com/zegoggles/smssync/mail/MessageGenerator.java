@@ -27,7 +27,6 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
 
 import static com.fsck.k9.mail.internet.MimeMessageHelper.setBody;
@@ -48,6 +47,13 @@ class MessageGenerator {
     private final MmsSupport mmsSupport;
     private final CallLogTypes callLogTypes;
     private final DataTypePreferences dataTypePreferences;
+    private final boolean renderPlainText;
+    private volatile @Nullable String encodedUserAddress;
+    private final ThreadLocal<Rfc822Writer> writers = new ThreadLocal<Rfc822Writer>() {
+        @Override protected Rfc822Writer initialValue() {
+            return new Rfc822Writer();
+        }
+    };
 
     MessageGenerator(Context context,
                      Address userAddress,
@@ -59,6 +65,25 @@ class MessageGenerator {
                      MmsSupport mmsSupport,
                      CallLogTypes callLogTypes,
                      DataTypePreferences dataTypePreferences) {
+        this(context, userAddress, addressStyle, headerGenerator, personLookup, mailSubjectPrefix,
+            contactsToBackup, mmsSupport, callLogTypes, dataTypePreferences, false);
+    }
+
+    /**
+     * @param renderPlainText if SMS and call log messages should be serialized straight away,
+     *                        see {@link Rfc822Writer}
+     */
+    MessageGenerator(Context context,
+                     Address userAddress,
+                     AddressStyle addressStyle,
+                     HeaderGenerator headerGenerator,
+                     PersonLookup personLookup,
+                     boolean mailSubjectPrefix,
+                     @Nullable ContactGroupIds contactsToBackup,
+                     MmsSupport mmsSupport,
+                     CallLogTypes callLogTypes,
+                     DataTypePreferences dataTypePreferences,
+                     boolean renderPlainText) {
         this.headerGenerator = headerGenerator;
         this.userAddress = userAddress;
         this.addressStyle = addressStyle;
@@ -70,29 +95,35 @@ class MessageGenerator {
         this.mmsSupport = mmsSupport;
         this.dataTypePreferences = dataTypePreferences;
         this.callLogTypes = callLogTypes;
+        this.renderPlainText = renderPlainText;
     }
 
-    public  @Nullable Message messageForDataType(Map<String, String> msgMap, DataType dataType) throws MessagingException {
+    public  @Nullable Message messageForDataType(MessageRow row, DataType dataType) throws MessagingException {
         switch (dataType) {
-            case SMS: return messageFromMapSms(msgMap);
-            case MMS: return messageFromMapMms(msgMap);
-            case CALLLOG: return messageFromMapCallLog(msgMap);
+            case SMS: return messageFromRowSms(row);
+            case MMS: return messageFromRowMms(row);
+            case CALLLOG: return messageFromRowCallLog(row);
             default: return null;
         }
     }
 
-    private @Nullable Message messageFromMapSms(Map<String, String> msgMap) throws MessagingException {
-        final String address = msgMap.get(Telephony.TextBasedSmsColumns.ADDRESS);
+    private @Nullable Message messageFromRowSms(MessageRow row) throws MessagingException {
+        final String address = row.getString(Telephony.TextBasedSmsColumns.ADDRESS);
         if (TextUtils.isEmpty(address)) return null;
 
         PersonRecord record = personLookup.lookupPerson(address);
         if (!includePersonInBackup(record, DataType.SMS)) return null;
 
+        final int messageType = row.getInt(Telephony.TextBasedSmsColumns.TYPE, -1);
+        if (renderPlainText) {
+            final Message rendered = renderSms(row, address, record, messageType);
+            if (rendered != null) return rendered;
+        }
+
         final Message msg = new MimeMessage();
         msg.setSubject(getSubject(DataType.SMS, record));
-        setBody(msg, new TextBody(msgMap.get(Telephony.TextBasedSmsColumns.BODY)));
+        setBody(msg, new TextBody(row.getString(Telephony.TextBasedSmsColumns.BODY)));
 
-        final int messageType = toInt(msgMap.get(Telephony.TextBasedSmsColumns.TYPE));
         if (Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX == messageType) {
             // Received message
             msg.setFrom(record.getAddress(addressStyle));
@@ -103,28 +134,44 @@ class MessageGenerator {
             msg.setFrom(userAddress);
         }
 
-        Date sentDate;
-        try {
-            // TODO: should probably be TextBasedSmsColumns.DATE_SENT
-            sentDate = new Date(Long.valueOf(msgMap.get(Telephony.TextBasedSmsColumns.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, ERROR_PARSING_DATE, n);
-            sentDate = new Date();
-        }
+        // TODO: should probably be TextBasedSmsColumns.DATE_SENT
+        final Date sentDate = getDate(row, Telephony.TextBasedSmsColumns.DATE, 1);
 
         // see mmsThreadId. Aligning with the MMS thread ID is necessary for a mixed SMS/MMS thread to stay combined in gmail.
-        String smsThreadId = msgMap.get(Telephony.BaseMmsColumns.THREAD_ID);
+        String smsThreadId = row.getString(Telephony.BaseMmsColumns.THREAD_ID);
 
-        headerGenerator.setHeaders(msg, msgMap, DataType.SMS, address, smsThreadId, sentDate, messageType);
+        headerGenerator.setHeaders(msg, row, DataType.SMS, address, smsThreadId, sentDate, messageType);
         return msg;
     }
 
-    private @Nullable Message messageFromMapMms(Map<String, String> msgMap) throws MessagingException {
-        if (LOCAL_LOGV) Log.v(TAG, "messageFromMapMms(" + msgMap + ")");
+    /**
+     * Same as {@link #messageFromRowSms(MessageRow)}, with the headers in the same order.
+     */
+    private @Nullable Message renderSms(MessageRow row, String address, PersonRecord record, int messageType)
+            throws MessagingException {
+        final Rfc822Writer writer = writers.get();
+        writer.reset();
+        writer.setHeader(Rfc822Writer.SUBJECT, getSubject(DataType.SMS, record));
+        writer.setTextBodyHeaders();
+        if (Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX == messageType) {
+            writer.setHeader(Rfc822Writer.FROM, record.getAddress(addressStyle).toEncodedString());
+            writer.setHeader(Rfc822Writer.TO, getUserAddress());
+        } else {
+            writer.setHeader(Rfc822Writer.TO, record.getAddress(addressStyle).toEncodedString());
+            writer.setHeader(Rfc822Writer.FROM, getUserAddress());
+        }
+        final Date sentDate = getDate(row, Telephony.TextBasedSmsColumns.DATE, 1);
+        final String smsThreadId = row.getString(Telephony.BaseMmsColumns.THREAD_ID);
+        headerGenerator.writeHeaders(writer, row, DataType.SMS, address, smsThreadId, sentDate, messageType);
+        return writer.finish(row.getString(Telephony.TextBasedSmsColumns.BODY));
+    }
+
+    private @Nullable Message messageFromRowMms(MessageRow row) throws MessagingException {
+        if (LOCAL_LOGV) Log.v(TAG, "messageFromRowMms(" + row + ")");
 
-        final Uri mmsUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, msgMap.get(Telephony.BaseMmsColumns._ID));
+        final Uri mmsUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, row.getString(Telephony.BaseMmsColumns._ID));
 
-        MmsSupport.MmsDetails details = mmsSupport.getDetails(mmsUri, addressStyle, msgMap);
+        MmsSupport.MmsDetails details = mmsSupport.getDetails(mmsUri, addressStyle, row);
 
         if (details.isEmpty()) {
             Log.w(TAG, "no recipients found");
@@ -147,14 +194,8 @@ class MessageGenerator {
             msg.setFrom(userAddress);
         }
 
-        Date sentDate;
-        try {
-            sentDate = new Date(1000 * Long.valueOf(msgMap.get(Telephony.BaseMmsColumns.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, ERROR_PARSING_DATE, n);
-            sentDate = new Date();
-        }
-        final int msg_box = toInt(msgMap.get("msg_box"));
+        final Date sentDate = getDate(row, Telephony.BaseMmsColumns.DATE, 1000);
+        final int msg_box = row.getInt(Telephony.BaseMmsColumns.MESSAGE_BOX, -1);
 
         // We could thread by contact ID, not by thread ID. Original author thought this value was more stable.
         // It works pretty badly with MMS threads though.
@@ -171,15 +212,15 @@ class MessageGenerator {
 
         // We could thread by the messaging app's thread ID. The original author thought this wasn't very stable,
         // but it's the best option for MMS so far, and it looks good from limited testing.
-        String mmsThreadId = msgMap.get(Telephony.BaseMmsColumns.THREAD_ID);
+        String mmsThreadId = row.getString(Telephony.BaseMmsColumns.THREAD_ID);
 
         // Tip - if you want to try different strategies for computing mmsThreadId against the same messages,
         // make sure to generate a new MESSAGE_ID as well. It seems like gmail caches REFERENCES if you reuse the same MESSAGE_ID.
 
-        headerGenerator.setHeaders(msg, msgMap, DataType.MMS, details.getFirstRawAddress(), mmsThreadId, sentDate, msg_box);
+        headerGenerator.setHeaders(msg, row, DataType.MMS, details.getFirstRawAddress(), mmsThreadId, sentDate, msg_box);
         MimeMultipart body = MimeMultipart.newInstance();
 
-        for (BodyPart p : mmsSupport.getMMSBodyParts(Uri.withAppendedPath(mmsUri, MMS_PART))) {
+        for (BodyPart p : mmsSupport.getMMSBodyParts(Uri.withAppendedPath(mmsUri, MMS_PART), row)) {
             body.addBodyPart(p);
         }
 
@@ -187,17 +228,22 @@ class MessageGenerator {
         return msg;
     }
 
-    private  @Nullable Message messageFromMapCallLog(Map<String, String> msgMap) throws MessagingException {
-        final String address = msgMap.get(CallLog.Calls.NUMBER);
-        final int callType = toInt(msgMap.get(CallLog.Calls.TYPE));
+    private  @Nullable Message messageFromRowCallLog(MessageRow row) throws MessagingException {
+        final String address = row.getString(CallLog.Calls.NUMBER);
+        final int callType = row.getInt(CallLog.Calls.TYPE, -1);
 
         if (!callLogTypes.isTypeEnabled(callType)) {
-            if (LOCAL_LOGV) Log.v(TAG, "ignoring call log entry: " + msgMap);
+            if (LOCAL_LOGV) Log.v(TAG, "ignoring call log entry: " + row);
             return null;
         }
         PersonRecord record = personLookup.lookupPerson(address);
         if (!includePersonInBackup(record, DataType.CALLLOG)) return null;
 
+        if (renderPlainText) {
+            final Message rendered = renderCallLog(row, address, record, callType);
+            if (rendered != null) return rendered;
+        }
+
         final Message msg = new MimeMessage();
         msg.setSubject(getSubject(DataType.CALLLOG, record));
 
@@ -221,21 +267,54 @@ class MessageGenerator {
                 return null;
         }
 
-        final int duration = msgMap.get(CallLog.Calls.DURATION) == null ? 0 :
-                toInt(msgMap.get(CallLog.Calls.DURATION));
+        final int duration = row.getString(CallLog.Calls.DURATION) == null ? 0 :
+                row.getInt(CallLog.Calls.DURATION, -1);
 
         setBody(msg, new TextBody(callFormatter.format(callType, record.getNumber(), duration)));
-        Date sentDate;
-        try {
-            sentDate = new Date(Long.valueOf(msgMap.get(CallLog.Calls.DATE)));
-        } catch (NumberFormatException n) {
-            Log.e(TAG, ERROR_PARSING_DATE, n);
-            sentDate = new Date();
-        }
-        headerGenerator.setHeaders(msg, msgMap, DataType.CALLLOG, address, record.getId(), sentDate, callType);
+        final Date sentDate = getDate(row, CallLog.Calls.DATE, 1);
+        headerGenerator.setHeaders(msg, row, DataType.CALLLOG, address, record.getId(), sentDate, callType);
         return msg;
     }
 
+    /**
+     * Same as {@link #messageFromRowCallLog(MessageRow)}, with the headers in the same order.
+     * @return null for unknown call types and messages which need to be built the usual way
+     */
+    private @Nullable Message renderCallLog(MessageRow row, String address, PersonRecord record, int callType)
+            throws MessagingException {
+        final Rfc822Writer writer = writers.get();
+        writer.reset();
+        writer.setHeader(Rfc822Writer.SUBJECT, getSubject(DataType.CALLLOG, record));
+        switch (callType) {
+            case CallLog.Calls.OUTGOING_TYPE:
+                writer.setHeader(Rfc822Writer.FROM, getUserAddress());
+                writer.setHeader(Rfc822Writer.TO, record.getAddress(addressStyle).toEncodedString());
+                break;
+            case CallLog.Calls.MISSED_TYPE:
+            case CallLog.Calls.INCOMING_TYPE:
+            case CallLog.Calls.REJECTED_TYPE:
+            case CallLog.Calls.VOICEMAIL_TYPE:
+                writer.setHeader(Rfc822Writer.FROM, record.getAddress(addressStyle).toEncodedString());
+                writer.setHeader(Rfc822Writer.TO, getUserAddress());
+                break;
+            default:
+                return null;
+        }
+        final int duration = row.getString(CallLog.Calls.DURATION) == null ? 0 :
+                row.getInt(CallLog.Calls.DURATION, -1);
+        writer.setTextBodyHeaders();
+        final Date sentDate = getDate(row, CallLog.Calls.DATE, 1);
+        headerGenerator.writeHeaders(writer, row, DataType.CALLLOG, address, record.getId(), sentDate, callType);
+        return writer.finish(callFormatter.format(callType, record.getNumber(), duration));
+    }
+
+    private String getUserAddress() {
+        if (encodedUserAddress == null) {
+            encodedUserAddress = userAddress.toEncodedString();
+        }
+        return encodedUserAddress;
+    }
+
     private String getSubject(@NonNull DataType type, @NonNull MmsSupport.MmsDetails details) {
         // If you're in a group text with several people, ensure the email subject will look like
         // "SMS with Alice/Bob/Charles/YourPhoneNumber"
@@ -312,11 +391,12 @@ class MessageGenerator {
         return backup;
     }
 
-    private static int toInt(String s) {
-        try {
-             return Integer.valueOf(s);
-        } catch (NumberFormatException e) {
-            return -1;
+    private static Date getDate(MessageRow row, String column, long multiplier) {
+        final long date = row.getLong(column, -1);
+        if (date == -1) {
+            Log.e(TAG, ERROR_PARSING_DATE + ": " + row.getString(column));
+            return new Date();
         }
+        return new Date(date * multiplier);
     }
 }
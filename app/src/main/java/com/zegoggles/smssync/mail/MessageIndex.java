@@ -0,0 +1,401 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.provider.BaseColumns;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.fsck.k9.mail.Message;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Index of everything which has been backed up, mapping the provider id of an item to the
+ * Message-ID it was uploaded with and, if the server reported it, its UID.
+ * <p>
+ * Items are identified by provider id and date, so a reused id does not match. While open,
+ * lookups are served from memory, so already uploaded items can be skipped before conversion.
+ */
+public class MessageIndex {
+    static final String DATABASE = "message_index.db";
+
+    private static final int DATABASE_VERSION = 1;
+    private static final String MESSAGE = "message";
+    private static final String META = "meta";
+
+    private static final String TYPE = "type";
+    private static final String ITEM_ID = "item_id";
+    private static final String DATE = "date";
+    private static final String MESSAGE_ID = "message_id";
+    private static final String UID = "uid";
+    private static final String KEY = "key";
+    private static final String VALUE = "value";
+
+    private static final String SEEDED = "seeded_";
+    /** the provider column holding the date, the same for SMS, MMS and call log */
+    static final String DATE_COLUMN = "date";
+
+    private final SQLiteOpenHelper helper;
+    private final Map<DataType, IdDateMap> items = new EnumMap<DataType, IdDateMap>(DataType.class);
+    private int hits, misses, recorded, scanned;
+
+    public MessageIndex(@NonNull Context context) {
+        this(context, DATABASE);
+    }
+
+    MessageIndex(@NonNull Context context, @Nullable String name) {
+        this.helper = new OpenHelper(context, name);
+    }
+
+    /**
+     * Loads the index into memory.
+     */
+    public synchronized void open() {
+        items.clear();
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().query(MESSAGE,
+                    new String[]{TYPE, ITEM_ID, DATE}, null, null, null, null, null);
+            while (cursor.moveToNext()) {
+                final DataType type = parseType(cursor.getString(0));
+                if (type != null) {
+                    getItems(type).put(cursor.getLong(1), cursor.getLong(2));
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading message index", e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    public synchronized void close() {
+        items.clear();
+        helper.close();
+    }
+
+    /**
+     * @return if the index has been seeded for this type, either from the server or because the
+     * index was started before anything of this type got backed up
+     */
+    public synchronized boolean isSeeded(DataType type) {
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().query(META, new String[]{VALUE},
+                    KEY + " = ?", new String[]{SEEDED + type.name()}, null, null, null);
+            return cursor.moveToFirst() && cursor.getLong(0) != 0;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading message index", e);
+            return true;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    public synchronized void setSeeded(DataType type) {
+        final ContentValues values = new ContentValues();
+        values.put(KEY, SEEDED + type.name());
+        values.put(VALUE, 1);
+        try {
+            helper.getWritableDatabase().replace(META, null, values);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error writing message index", e);
+        }
+    }
+
+    /**
+     * @return if the item in this row has already been backed up
+     */
+    public synchronized boolean contains(DataType type, MessageRow row) {
+        final IdDateMap map = items.get(type);
+        final long id = row.getLong(BaseColumns._ID, -1);
+        final long date = row.getLong(DATE_COLUMN, IdDateMap.MISSING);
+        if (map != null && id >= 0 && date != IdDateMap.MISSING && map.get(id) == date) {
+            hits++;
+            return true;
+        } else {
+            misses++;
+            return false;
+        }
+    }
+
+    /**
+     * Adds messages which have been acknowledged by the server.
+     *
+     * @param uids the UIDs assigned by the server, in message order, 0 if unknown. Can be null.
+     */
+    public synchronized void record(DataType type, List<Message> messages, @Nullable long[] uids) {
+        final Entry[] entries = new Entry[messages.size()];
+        for (int i = 0; i < entries.length; i++) {
+            final Message message = messages.get(i);
+            entries[i] = Entry.parse(type,
+                    Headers.get(message, Headers.ID),
+                    Headers.get(message, Headers.DATE),
+                    Headers.get(message, Headers.MESSAGE_ID),
+                    uids != null && i < uids.length ? uids[i] : 0);
+        }
+        recorded += putAll(Arrays.asList(entries));
+    }
+
+    /**
+     * Adds a message which was found on the server after an interrupted upload.
+     */
+    public synchronized void record(DataType type, long itemId, long date, String messageId) {
+        recorded += putAll(Collections.singletonList(new Entry(type, itemId, date, messageId, 0)));
+    }
+
+    /**
+     * Adds messages found on the server.
+     */
+    synchronized void addScanned(List<Entry> entries) {
+        scanned += putAll(entries);
+    }
+
+    /**
+     * @return the Message-ID the item has been uploaded with, or null
+     */
+    public synchronized @Nullable String getMessageId(DataType type, long itemId) {
+        return getString(type, itemId, MESSAGE_ID);
+    }
+
+    /**
+     * @return the server UID of the item, or 0 if unknown
+     */
+    public synchronized long getUid(DataType type, long itemId) {
+        final String uid = getString(type, itemId, UID);
+        return uid == null ? 0 : Long.parseLong(uid);
+    }
+
+    @Override
+    public synchronized String toString() {
+        int size = 0;
+        for (IdDateMap map : items.values()) {
+            size += map.size();
+        }
+        return String.format(Locale.ENGLISH,
+                "MessageIndex{size=%d, hits=%d, misses=%d, recorded=%d, scanned=%d}",
+                size, hits, misses, recorded, scanned);
+    }
+
+    private int putAll(List<Entry> entries) {
+        int count = 0;
+        try {
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                final ContentValues values = new ContentValues();
+                for (Entry entry : entries) {
+                    if (entry == null) continue;
+                    values.put(TYPE, entry.type.name());
+                    values.put(ITEM_ID, entry.itemId);
+                    values.put(DATE, entry.date);
+                    values.put(MESSAGE_ID, entry.messageId);
+                    values.put(UID, entry.uid);
+                    db.replace(MESSAGE, null, values);
+                    getItems(entry.type).put(entry.itemId, entry.date);
+                    count++;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error writing message index", e);
+        }
+        return count;
+    }
+
+    private @Nullable String getString(DataType type, long itemId, String column) {
+        Cursor cursor = null;
+        try {
+            cursor = helper.getReadableDatabase().query(MESSAGE, new String[]{column},
+                    TYPE + " = ? AND " + ITEM_ID + " = ?",
+                    new String[]{type.name(), String.valueOf(itemId)}, null, null, null);
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading message index", e);
+            return null;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    private IdDateMap getItems(DataType type) {
+        IdDateMap map = items.get(type);
+        if (map == null) {
+            map = new IdDateMap();
+            items.put(type, map);
+        }
+        return map;
+    }
+
+    private static @Nullable DataType parseType(@Nullable String type) {
+        if (type == null) return null;
+        try {
+            return DataType.valueOf(type.toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A backed up item.
+     */
+    static class Entry {
+        final DataType type;
+        final long itemId;
+        final long date;
+        final String messageId;
+        final long uid;
+
+        Entry(DataType type, long itemId, long date, String messageId, long uid) {
+            this.type = type;
+            this.itemId = itemId;
+            this.date = date;
+            this.messageId = messageId;
+            this.uid = uid;
+        }
+
+        /**
+         * @return the entry, or null if any of the header values is missing or invalid
+         */
+        static @Nullable Entry parse(@Nullable DataType type,
+                                     @Nullable String itemId,
+                                     @Nullable String date,
+                                     @Nullable String messageId,
+                                     long uid) {
+            if (type == null || itemId == null || date == null || messageId == null) {
+                return null;
+            }
+            try {
+                return new Entry(type, Long.parseLong(itemId.trim()), Long.parseLong(date.trim()), messageId.trim(), uid);
+            } catch (NumberFormatException e) {
+                if (LOCAL_LOGV) Log.v(TAG, "invalid index entry", e);
+                return null;
+            }
+        }
+
+        /**
+         * @param headers header values, keyed by lower case name
+         */
+        static @Nullable Entry fromHeaders(Map<String, String> headers, long uid) {
+            return parse(parseType(headers.get(Headers.DATATYPE.toLowerCase(Locale.ENGLISH))),
+                    headers.get(Headers.ID.toLowerCase(Locale.ENGLISH)),
+                    headers.get(Headers.DATE.toLowerCase(Locale.ENGLISH)),
+                    headers.get(Headers.MESSAGE_ID.toLowerCase(Locale.ENGLISH)),
+                    uid);
+        }
+    }
+
+    /**
+     * Maps provider ids to dates, with open addressing on primitive arrays.
+     */
+    static class IdDateMap {
+        static final long MISSING = Long.MIN_VALUE;
+        private static final long FREE = -1;
+
+        private long[] keys = newKeys(16);
+        private long[] values = new long[16];
+        private int size;
+
+        long get(long key) {
+            final int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                } else if (keys[i] == FREE) {
+                    return MISSING;
+                }
+            }
+        }
+
+        /**
+         * @param key a provider id, must not be negative
+         */
+        void put(long key, long value) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            final int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                if (keys[i] == FREE) {
+                    keys[i] = key;
+                    values[i] = value;
+                    size++;
+                    return;
+                } else if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void resize(int capacity) {
+            final long[] oldKeys = keys;
+            final long[] oldValues = values;
+            keys = newKeys(capacity);
+            values = new long[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static long[] newKeys(int capacity) {
+            final long[] keys = new long[capacity];
+            Arrays.fill(keys, FREE);
+            return keys;
+        }
+
+        private static int hash(long key) {
+            final long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private static class OpenHelper extends SQLiteOpenHelper {
+        OpenHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + MESSAGE + " (" +
+                    TYPE + " TEXT NOT NULL, " +
+                    ITEM_ID + " INTEGER NOT NULL, " +
+                    DATE + " INTEGER, " +
+                    MESSAGE_ID + " TEXT, " +
+                    UID + " INTEGER, " +
+                    "PRIMARY KEY (" + TYPE + ", " + ITEM_ID + "))");
+            db.execSQL("CREATE TABLE " + META + " (" +
+                    KEY + " TEXT PRIMARY KEY, " +
+                    VALUE + " INTEGER)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            db.execSQL("DROP TABLE IF EXISTS " + MESSAGE);
+            db.execSQL("DROP TABLE IF EXISTS " + META);
+            onCreate(db);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.zegoggles.smssync.mail;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A read-only view of a row returned by the SMS, MMS or call log provider.
+ */
+public interface MessageRow {
+    @NonNull RowSchema getSchema();
+
+    /**
+     * @return the value of the column, or null if it is missing or null
+     */
+    @Nullable String getString(String column);
+
+    /**
+     * @return the value of the column, or <code>defaultValue</code> if it is missing, null or not a number
+     */
+    long getLong(String column, long defaultValue);
+
+    /**
+     * @return the value of the column, or <code>defaultValue</code> if it is missing, null or not a number
+     */
+    int getInt(String column, int defaultValue);
+
+    /**
+     * @return a copy which does not depend on the position of an underlying cursor, so it can
+     * be kept or handed to another thread
+     */
+    @NonNull MessageRow detach();
+}
@@ -0,0 +1,250 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Keeps encoded message data so that it only has to be produced once, while its exact size
+ * is known before it gets sent.
+ * <p>
+ * Up to <code>memoryLimit</code> bytes are held in buffers from a {@link BufferPool}. Beyond
+ * that the data is either spilled to a temporary file or, without a spill directory, only
+ * counted, see {@link #isComplete()}. Spools have to be closed to give the buffers back.
+ */
+class MessageSpool extends OutputStream {
+    private static final String SPILL_DIRECTORY = "spool";
+    /** spill files are deleted on close, older ones have been left behind by a crash */
+    static final long STALE_AGE = 60 * 60 * 1000L;
+
+    private final BufferPool pool;
+    private final long memoryLimit;
+    private final @Nullable File spillDirectory;
+    private final List<byte[]> buffers = new ArrayList<byte[]>();
+
+    private byte[] current;
+    private int position;
+    private long size;
+    private boolean eightBit;
+    private boolean overflow;
+    private @Nullable File file;
+    private @Nullable OutputStream fileOut;
+
+    /**
+     * @param spillDirectory where data beyond the memory limit is written, or null to discard it
+     */
+    MessageSpool(BufferPool pool, long memoryLimit, @Nullable File spillDirectory) {
+        this.pool = pool;
+        this.memoryLimit = memoryLimit;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * @return the directory for spill files, in the cache directory of the app
+     */
+    static File getSpillDirectory(Context context) {
+        return new File(context.getCacheDir(), SPILL_DIRECTORY);
+    }
+
+    /**
+     * Deletes spill files which have been left behind, e.g. when the app got killed during an upload.
+     * @return the number of files deleted
+     */
+    static int deleteStaleFiles(File spillDirectory, long now) {
+        final File[] files = spillDirectory.listFiles();
+        if (files == null) return 0;
+        int deleted = 0;
+        for (File file : files) {
+            if (now - file.lastModified() > STALE_AGE && file.delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) Log.d(TAG, "deleted " + deleted + " stale spool file(s)");
+        return deleted;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (b == 0 || (b & 0x80) != 0) {
+            eightBit = true;
+        }
+        size++;
+        if (current != null && position < current.length && size <= memoryLimit) {
+            current[position++] = (byte) b;
+        } else {
+            append(new byte[]{(byte) b}, 0, 1);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++) {
+            if (b[i] <= 0) {
+                eightBit = true;
+                break;
+            }
+        }
+        size += len;
+        append(b, off, len);
+    }
+
+    private void append(byte[] b, int off, int len) throws IOException {
+        if (overflow) {
+            return;
+        } else if (fileOut != null) {
+            fileOut.write(b, off, len);
+            return;
+        } else if (size > memoryLimit) {
+            spill();
+            append(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (current == null || position == current.length) {
+                current = pool.acquire();
+                buffers.add(current);
+                position = 0;
+            }
+            final int n = Math.min(len, current.length - position);
+            System.arraycopy(b, off, current, position, n);
+            position += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * @return if the data contains NUL or non-ASCII bytes
+     */
+    boolean isEightBit() {
+        return eightBit;
+    }
+
+    /**
+     * @return if all data written has been kept
+     */
+    boolean isComplete() {
+        return !overflow;
+    }
+
+    boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Copies the data to a stream.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        checkComplete();
+        if (fileOut != null) {
+            fileOut.flush();
+            final byte[] buffer = pool.acquire();
+            final InputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+                pool.release(buffer);
+            }
+        } else {
+            for (byte[] buffer : buffers) {
+                out.write(buffer, 0, buffer == current ? position : buffer.length);
+            }
+        }
+    }
+
+    /**
+     * Appends the data as ASCII, without creating an intermediate copy.
+     */
+    void appendTo(StringBuilder sb) throws IOException {
+        checkComplete();
+        if (fileOut != null) {
+            writeTo(new OutputStream() {
+                @Override public void write(int b) {
+                    sb.append((char) (b & 0x7f));
+                }
+
+                @Override public void write(byte[] b, int off, int len) {
+                    for (int i = off; i < off + len; i++) {
+                        sb.append((char) (b[i] & 0x7f));
+                    }
+                }
+            });
+        } else {
+            sb.ensureCapacity(sb.length() + (int) size);
+            for (byte[] buffer : buffers) {
+                final int length = buffer == current ? position : buffer.length;
+                for (int i = 0; i < length; i++) {
+                    sb.append((char) (buffer[i] & 0x7f));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers.clear();
+        current = null;
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException ignored) {
+            }
+            fileOut = null;
+        }
+        if (file != null && !file.delete()) {
+            Log.w(TAG, "could not delete " + file);
+        }
+    }
+
+    private void spill() throws IOException {
+        if (spillDirectory == null) {
+            overflow = true;
+        } else {
+            if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+                throw new IOException("could not create " + spillDirectory);
+            }
+            file = File.createTempFile("spool", null, spillDirectory);
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+            for (byte[] buffer : buffers) {
+                fileOut.write(buffer, 0, buffer == current ? position : buffer.length);
+            }
+        }
+        for (byte[] buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers.clear();
+        current = null;
+    }
+
+    private void checkComplete() throws IOException {
+        if (overflow) {
+            throw new IOException("spool overflow, " + size + " bytes");
+        }
+    }
+}
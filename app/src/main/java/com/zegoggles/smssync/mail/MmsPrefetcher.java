@@ -0,0 +1,401 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.text.TextUtils;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.zegoggles.smssync.Consts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+import static com.zegoggles.smssync.Consts.MMS_PART;
+
+/**
+ * Loads the address and part rows of a window of MMS messages with a few bulk queries,
+ * instead of querying <code>content://mms/&lt;id&gt;/addr</code> and <code>.../part</code> for
+ * every single message.
+ * <p>
+ * The window consists of the requested message and the ones following it in backup order,
+ * (date, _id). At most <code>windowSize</code> messages and <code>maxWindowChars</code>
+ * characters of part text are held in memory; messages beyond that are loaded with the next window.
+ * <p>
+ * Only messages matching the selection of the backup query, see {@link #setSelection}, are
+ * put into the window.
+ * <p>
+ * If a bulk query fails, the messages of that window are queried one by one. Bulk queries are only
+ * given up if the provider rejects them, or after {@link #MAX_BULK_FAILURES} failures in a row.
+ */
+class MmsPrefetcher {
+    static final int DEFAULT_WINDOW_SIZE = 50;
+    static final int DEFAULT_MAX_WINDOW_CHARS = 512 * 1024;
+    static final int MAX_BULK_FAILURES = 3;
+
+    static final String[] ADDR_PROJECTION = {
+        Telephony.Mms.Addr.MSG_ID,
+        Telephony.Mms.Addr.ADDRESS,
+        Telephony.Mms.Addr.TYPE
+    };
+    static final String[] PART_PROJECTION = {
+        Telephony.Mms.Part._ID,
+        Telephony.Mms.Part.MSG_ID,
+        Telephony.Mms.Part.CONTENT_TYPE,
+        Telephony.Mms.Part.CONTENT_LOCATION,
+        Telephony.Mms.Part.TEXT
+    };
+    // not all providers support querying the addresses of all messages at once
+    private static final Uri ADDR_URI = Uri.withAppendedPath(Consts.MMS_PROVIDER, "addr");
+    private static final Uri PART_URI = Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART);
+
+    private final ContentResolver resolver;
+    private final int windowSize;
+    private final int maxWindowChars;
+
+    /** the window loaded last, replaced as a whole and never modified once published */
+    private volatile @Nullable Window window;
+    private volatile @Nullable Selection selection;
+
+    // guarded by this, only held to update the counters, never across queries
+    private boolean bulkPartsSupported = true;
+    private boolean bulkAddressesSupported = true;
+    private int partFailures;
+    private int addressFailures;
+
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger windows = new AtomicInteger();
+    private final AtomicInteger hits = new AtomicInteger();
+
+    MmsPrefetcher(@NonNull ContentResolver resolver) {
+        this(resolver, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOW_CHARS);
+    }
+
+    MmsPrefetcher(@NonNull ContentResolver resolver, int windowSize, int maxWindowChars) {
+        this.resolver = resolver;
+        this.windowSize = windowSize;
+        this.maxWindowChars = maxWindowChars;
+    }
+
+    /**
+     * Restricts windows to the messages matching the selection of the backup query, so that
+     * nothing is prefetched for messages which are not backed up.
+     *
+     * @param selection the selection, without the position, or null to use all messages
+     */
+    void setSelection(@Nullable String selection, @Nullable String[] selectionArgs) {
+        this.selection = selection == null ? null : new Selection(selection, selectionArgs);
+        this.window = null;
+    }
+
+    /**
+     * @param mms the MMS row, needs <code>_id</code> and <code>date</code>
+     * @return the address rows of the message, or null if they could not be prefetched
+     */
+    @Nullable List<MessageRow> getAddresses(MessageRow mms) {
+        final long id = mms.getLong(Telephony.BaseMmsColumns._ID, -1);
+        final Window window = getWindow(id, mms);
+        if (window == null || window.addresses == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        return rowsFor(window.addresses, id);
+    }
+
+    /**
+     * @param mms the MMS row, needs <code>_id</code> and <code>date</code>
+     * @return the part rows of the message, or null if they could not be prefetched
+     */
+    @Nullable List<MessageRow> getParts(MessageRow mms) {
+        final long id = mms.getLong(Telephony.BaseMmsColumns._ID, -1);
+        final Window window = getWindow(id, mms);
+        if (window == null || window.parts == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        return rowsFor(window.parts, id);
+    }
+
+    int getQueryCount() {
+        return queries.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "MmsPrefetcher{windows=%d, queries=%d, hits=%d}",
+            windows.get(), queries.get(), hits.get());
+    }
+
+    /**
+     * Loads the window without holding a lock, so that converter workers don't wait for each
+     * other's provider queries. Workers missing the window at the same time may both load it.
+     *
+     * @return the window containing the message, or null
+     */
+    private @Nullable Window getWindow(long id, MessageRow mms) {
+        if (id == -1 || !isBulkPartsSupported()) {
+            return null;
+        }
+        Window current = window;
+        if (current == null || !current.ids.contains(id)) {
+            current = loadWindow(id, mms.getLong(Telephony.BaseMmsColumns.DATE, -1));
+            window = current;
+        }
+        return current.ids.contains(id) ? current : null;
+    }
+
+    private Window loadWindow(long id, long date) {
+        final Set<Long> ids = new LinkedHashSet<Long>(queryWindowIds(id, date));
+        ids.add(id);
+        windows.incrementAndGet();
+
+        final Map<Long, List<MessageRow>> parts = loadParts(ids, id);
+        final Map<Long, List<MessageRow>> addresses = isBulkAddressesSupported() && !ids.isEmpty() ?
+            loadAddresses(inSelection(ids)) : null;
+        if (LOCAL_LOGV) Log.v(TAG, "prefetched window of " + ids.size() + " MMS");
+        return new Window(ids, parts, addresses);
+    }
+
+    private List<Long> queryWindowIds(long id, long date) {
+        final List<Long> ids = new ArrayList<Long>();
+        if (date == -1) {
+            return ids;
+        }
+        final Selection filter = selection;
+        String where = String.format(Locale.ENGLISH, "(%s > ? OR (%s = ? AND %s >= ?))",
+            Telephony.BaseMmsColumns.DATE, Telephony.BaseMmsColumns.DATE, Telephony.BaseMmsColumns._ID);
+        String[] args = { String.valueOf(date), String.valueOf(date), String.valueOf(id) };
+        if (filter != null) {
+            where += " AND (" + filter.selection + ")";
+            args = concat(args, filter.args);
+        }
+        Cursor cursor;
+        try {
+            cursor = query(Consts.MMS_PROVIDER, new String[]{ Telephony.BaseMmsColumns._ID }, where, args,
+                Telephony.BaseMmsColumns.DATE + ", " + Telephony.BaseMmsColumns._ID + " LIMIT " + windowSize);
+        } catch (UnsupportedQueryException e) {
+            cursor = null;
+        }
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Messages whose part text doesn't fit into the window are removed from <code>ids</code>.
+     *
+     * @return the part rows by message id, or null if the query failed
+     */
+    private @Nullable Map<Long, List<MessageRow>> loadParts(Set<Long> ids, long requestedId) {
+        Cursor cursor;
+        boolean unsupported = false;
+        try {
+            cursor = query(PART_URI, PART_PROJECTION,
+                Telephony.Mms.Part.MSG_ID + " IN (" + inSelection(ids) + ")",
+                null,
+                Telephony.Mms.Part.MSG_ID + ", " + Telephony.Mms.Part.SEQ);
+        } catch (UnsupportedQueryException e) {
+            cursor = null;
+            unsupported = true;
+        }
+        if (cursor == null) {
+            onPartQueryFailed(unsupported);
+            return null;
+        }
+        onPartQuerySucceeded();
+        try {
+            final Map<Long, List<MessageRow>> parts = new HashMap<Long, List<MessageRow>>();
+            final CursorRow row = new CursorRow(cursor);
+            final Set<Long> excluded = new HashSet<Long>();
+            long chars = 0;
+            while (cursor.moveToNext()) {
+                final long mid = row.getLong(Telephony.Mms.Part.MSG_ID, -1);
+                if (excluded.contains(mid)) {
+                    continue;
+                }
+                final String text = row.getString(Telephony.Mms.Part.TEXT);
+                final int length = text == null ? 0 : text.length();
+                if (chars + length > maxWindowChars && mid != requestedId && !parts.containsKey(mid)) {
+                    // leave this message for the next window
+                    excluded.add(mid);
+                    continue;
+                }
+                chars += length;
+                add(parts, mid, row.detach());
+            }
+            ids.removeAll(excluded);
+            return parts;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the address rows by message id, or null if the query failed
+     */
+    private @Nullable Map<Long, List<MessageRow>> loadAddresses(String inSelection) {
+        Cursor cursor;
+        boolean unsupported = false;
+        try {
+            cursor = query(ADDR_URI, ADDR_PROJECTION,
+                Telephony.Mms.Addr.MSG_ID + " IN (" + inSelection + ")",
+                null,
+                Telephony.Mms.Addr.MSG_ID + ", " + Telephony.Mms.Addr._ID);
+        } catch (UnsupportedQueryException e) {
+            cursor = null;
+            unsupported = true;
+        }
+        if (cursor == null) {
+            onAddressQueryFailed(unsupported);
+            return null;
+        }
+        onAddressQuerySucceeded();
+        try {
+            final Map<Long, List<MessageRow>> addresses = new HashMap<Long, List<MessageRow>>();
+            final CursorRow row = new CursorRow(cursor);
+            while (cursor.moveToNext()) {
+                add(addresses, row.getLong(Telephony.Mms.Addr.MSG_ID, -1), row.detach());
+            }
+            return addresses;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private synchronized boolean isBulkPartsSupported() {
+        return bulkPartsSupported;
+    }
+
+    private synchronized boolean isBulkAddressesSupported() {
+        return bulkAddressesSupported;
+    }
+
+    private synchronized void onPartQuerySucceeded() {
+        partFailures = 0;
+    }
+
+    private synchronized void onPartQueryFailed(boolean unsupported) {
+        partFailures++;
+        if (unsupported || partFailures >= MAX_BULK_FAILURES) {
+            Log.w(TAG, "bulk MMS part query not supported");
+            bulkPartsSupported = false;
+        } else {
+            Log.w(TAG, "bulk MMS part query failed, querying this window per message");
+        }
+    }
+
+    private synchronized void onAddressQuerySucceeded() {
+        addressFailures = 0;
+    }
+
+    private synchronized void onAddressQueryFailed(boolean unsupported) {
+        addressFailures++;
+        if (unsupported || addressFailures >= MAX_BULK_FAILURES) {
+            Log.w(TAG, "bulk MMS address query not supported");
+            bulkAddressesSupported = false;
+        } else {
+            Log.w(TAG, "bulk MMS address query failed, querying this window per message");
+        }
+    }
+
+    /**
+     * @throws UnsupportedQueryException if the provider does not support the query
+     */
+    private @Nullable Cursor query(Uri uri, String[] projection, String selection, String[] args, String sortOrder)
+            throws UnsupportedQueryException {
+        queries.incrementAndGet();
+        try {
+            return resolver.query(uri, projection, selection, args, sortOrder);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying " + uri, e);
+            return null;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "error querying " + uri, e);
+            throw new UnsupportedQueryException(e);
+        } catch (IllegalStateException e) {
+            // thrown by some providers for unknown URIs
+            Log.w(TAG, "error querying " + uri, e);
+            throw new UnsupportedQueryException(e);
+        }
+    }
+
+    private static String[] concat(String[] first, @Nullable String[] second) {
+        if (second == null || second.length == 0) {
+            return first;
+        }
+        final String[] result = new String[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static void add(Map<Long, List<MessageRow>> map, long id, MessageRow row) {
+        List<MessageRow> rows = map.get(id);
+        if (rows == null) {
+            rows = new ArrayList<MessageRow>();
+            map.put(id, rows);
+        }
+        rows.add(row);
+    }
+
+    private static List<MessageRow> rowsFor(Map<Long, List<MessageRow>> map, long id) {
+        final List<MessageRow> rows = map.get(id);
+        return rows == null ? Collections.<MessageRow>emptyList() : rows;
+    }
+
+    private static String inSelection(Set<Long> ids) {
+        return TextUtils.join(",", ids);
+    }
+
+    private static class Window {
+        final Set<Long> ids;
+        /** null if the parts could not be loaded */
+        final @Nullable Map<Long, List<MessageRow>> parts;
+        /** null if the addresses could not be loaded */
+        final @Nullable Map<Long, List<MessageRow>> addresses;
+
+        Window(Set<Long> ids,
+               @Nullable Map<Long, List<MessageRow>> parts,
+               @Nullable Map<Long, List<MessageRow>> addresses) {
+            this.ids = ids;
+            this.parts = parts;
+            this.addresses = addresses;
+        }
+    }
+
+    private static class Selection {
+        final String selection;
+        final @Nullable String[] args;
+
+        Selection(String selection, @Nullable String[] args) {
+            this.selection = selection;
+            this.args = args;
+        }
+    }
+
+    private static class UnsupportedQueryException extends Exception {
+        UnsupportedQueryException(RuntimeException cause) {
+            super(cause);
+        }
+    }
+}
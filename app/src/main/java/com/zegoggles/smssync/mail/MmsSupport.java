@@ -8,6 +8,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.fsck.k9.mail.Address;
 import com.fsck.k9.mail.BodyPart;
@@ -19,9 +20,12 @@ import com.zegoggles.smssync.MmsConsts;
 import com.zegoggles.smssync.preferences.AddressStyle;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -31,10 +35,20 @@ class MmsSupport {
 
     private final PersonLookup personLookup;
     private final ContentResolver resolver;
+    private final @Nullable MmsPrefetcher prefetcher;
+    private final @Nullable ImageTranscoder transcoder;
 
     MmsSupport(@NonNull ContentResolver resolver, @NonNull PersonLookup personLookup) {
+        this(resolver, personLookup, null, null);
+    }
+
+    MmsSupport(@NonNull ContentResolver resolver, @NonNull PersonLookup personLookup,
+               @Nullable MmsPrefetcher prefetcher,
+               @Nullable ImageTranscoder transcoder) {
         this.resolver = resolver;
         this.personLookup = personLookup;
+        this.prefetcher = prefetcher;
+        this.transcoder = transcoder;
     }
 
     static class MmsDetails {
@@ -88,9 +102,11 @@ class MmsSupport {
         }
     }
 
-    public MmsDetails getDetails(Uri mmsUri, AddressStyle style, Map<String, String> msgMap) {
-
-        Cursor cursor = resolver.query(Uri.withAppendedPath(mmsUri, "addr"), null, null, null, null);
+    public MmsDetails getDetails(Uri mmsUri, AddressStyle style, MessageRow row) {
+        List<MessageRow> addresses = prefetcher == null ? null : prefetcher.getAddresses(row);
+        if (addresses == null) {
+            addresses = queryRows(Uri.withAppendedPath(mmsUri, "addr"), MmsPrefetcher.ADDR_PROJECTION);
+        }
 
         boolean inbound = true;
         List<PersonRecord> recipients = new ArrayList<PersonRecord>();
@@ -98,8 +114,8 @@ class MmsSupport {
 
         List<String> rawAddresses = new ArrayList<>();
 
-        while (cursor != null && cursor.moveToNext()) {
-            final String address = cursor.getString(cursor.getColumnIndex("address"));
+        for (MessageRow addressRow : addresses) {
+            final String address = addressRow.getString(Telephony.Mms.Addr.ADDRESS);
 
             rawAddresses.add(address);
 
@@ -108,7 +124,7 @@ class MmsSupport {
             String PduHeadersTO  = "151";
             String PduHeadersCC  = "130"; // https://android.googlesource.com/platform/frameworks/opt/mms/+/4bfcd8501f09763c10255442c2b48fad0c796baa/src/java/com/google/android/mms/pdu/PduHeaders.java
 
-            String type = cursor.getString(cursor.getColumnIndex("type"));
+            String type = addressRow.getString(Telephony.Mms.Addr.TYPE);
             if (type.equals(PduHeadersFROM)) {
                 PersonRecord record = personLookup.lookupPerson(address);
                 sender = record;
@@ -126,12 +142,12 @@ class MmsSupport {
                 }
             }
         }
-        if (cursor != null) cursor.close();
 
         // If neither of these are true, then the legacy logic will give us a fallback value.
-        if (Integer.parseInt(msgMap.get(Telephony.BaseMmsColumns.MESSAGE_BOX)) == Telephony.BaseMmsColumns.MESSAGE_BOX_INBOX) {
+        final int messageBox = row.getInt(Telephony.BaseMmsColumns.MESSAGE_BOX, -1);
+        if (messageBox == Telephony.BaseMmsColumns.MESSAGE_BOX_INBOX) {
             inbound = true;
-        } else if (Integer.parseInt(msgMap.get(Telephony.BaseMmsColumns.MESSAGE_BOX)) == Telephony.BaseMmsColumns.MESSAGE_BOX_SENT) {
+        } else if (messageBox == Telephony.BaseMmsColumns.MESSAGE_BOX_SENT) {
             inbound = false;
         }
 
@@ -152,16 +168,30 @@ class MmsSupport {
         return new MmsDetails(inbound, sender, recipients, rawAddresses);
     }
 
-    public List<BodyPart> getMMSBodyParts(final Uri uriPart) throws MessagingException {
+    public List<BodyPart> getMMSBodyParts(final Uri uriPart, MessageRow row) throws MessagingException {
         final List<BodyPart> parts = new ArrayList<BodyPart>();
-        Cursor curPart = resolver.query(uriPart, null, null, null, null);
+        List<MessageRow> partRows = prefetcher == null ? null : prefetcher.getParts(row);
+        if (partRows == null) {
+            partRows = queryRows(uriPart, MmsPrefetcher.PART_PROJECTION);
+        }
 
-        // _id, mid, seq, ct, name, chset, cd, fn, cid, cl, ctt_s, ctt_t, _data, text
-        while (curPart != null && curPart.moveToNext()) {
-            final String id = curPart.getString(curPart.getColumnIndex("_id"));
-            final String contentType = curPart.getString(curPart.getColumnIndex("ct"));
-            final String fileName = curPart.getString(curPart.getColumnIndex("cl"));
-            final String text = curPart.getString(curPart.getColumnIndex("text"));
+        // start transcoding all images of the message before waiting for any of them. Only the
+        // backup pipeline overlaps this wait with uploads, otherwise the uploading thread waits here
+        final Map<String, Future<ImageTranscoder.Result>> transcoded = new HashMap<String, Future<ImageTranscoder.Result>>();
+        if (transcoder != null) {
+            for (MessageRow part : partRows) {
+                final String id = part.getString(Telephony.Mms.Part._ID);
+                if (ImageTranscoder.canTranscode(part.getString(Telephony.Mms.Part.CONTENT_TYPE))) {
+                    transcoded.put(id, transcoder.submit(getPartUri(id)));
+                }
+            }
+        }
+
+        for (MessageRow part : partRows) {
+            final String id = part.getString(Telephony.Mms.Part._ID);
+            final String contentType = part.getString(Telephony.Mms.Part.CONTENT_TYPE);
+            final String fileName = part.getString(Telephony.Mms.Part.CONTENT_LOCATION);
+            final String text = part.getString(Telephony.Mms.Part.TEXT);
 
             if (LOCAL_LOGV) {
                 Log.v(TAG, String.format(Locale.ENGLISH, "processing part %s, name=%s (%s)", id,
@@ -176,12 +206,64 @@ class MmsSupport {
                     // silently ignore SMIL stuff
                 } else {
                     // attach everything else
-                    final Uri partUri = Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART + "/" + id);
-                    parts.add(Attachment.createPartFromUri(resolver, partUri, fileName, contentType));
+                    final ImageTranscoder.Result result = getResult(transcoded.get(id));
+                    if (result != null && result.data != null) {
+                        parts.add(createTranscodedPart(result, fileName));
+                    } else {
+                        parts.add(Attachment.createPartFromUri(resolver, getPartUri(id), fileName, contentType));
+                    }
                 }
         }
-
-        if (curPart != null) curPart.close();
         return parts;
     }
+
+    private static Uri getPartUri(String id) {
+        return Uri.withAppendedPath(Consts.MMS_PROVIDER, MMS_PART + "/" + id);
+    }
+
+    private static @Nullable ImageTranscoder.Result getResult(@Nullable Future<ImageTranscoder.Result> future)
+            throws MessagingException {
+        if (future == null) return null;
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "error transcoding image, using original", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("interrupted", e);
+        }
+    }
+
+    private static BodyPart createTranscodedPart(ImageTranscoder.Result result, @Nullable String fileName)
+            throws MessagingException {
+        final MimeBodyPart part = Attachment.createPartFromBytes(result.data, toJpegFileName(fileName), "image/jpeg");
+        part.setHeader(Headers.ORIGINAL_SIZE, String.valueOf(result.originalSize));
+        if (result.originalHash != null) {
+            part.setHeader(Headers.ORIGINAL_HASH, result.originalHash);
+        }
+        return part;
+    }
+
+    static @Nullable String toJpegFileName(@Nullable String fileName) {
+        if (TextUtils.isEmpty(fileName)) return fileName;
+        final int dot = fileName.lastIndexOf('.');
+        return (dot > 0 ? fileName.substring(0, dot) : fileName) + ".jpg";
+    }
+
+    private List<MessageRow> queryRows(Uri uri, String[] projection) {
+        final List<MessageRow> rows = new ArrayList<MessageRow>();
+        final Cursor cursor = resolver.query(uri, projection, null, null, null);
+        if (cursor != null) {
+            try {
+                final CursorRow row = new CursorRow(cursor);
+                while (cursor.moveToNext()) {
+                    rows.add(row.detach());
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
 }
@@ -30,19 +30,57 @@ public class PersonLookup {
             };
 
     private final ContentResolver resolver;
+    private @Nullable ContactSnapshot snapshot;
+    private @Nullable LookupCache lookupCache;
 
     public PersonLookup(ContentResolver resolver) {
         this.resolver = resolver;
     }
 
     /**
-     * Look up a person
+     * Loads all contacts into memory, subsequent lookups will not query the contacts provider.
+     * @return if the snapshot was loaded
      * @throws SecurityException if the caller does not hold READ_CONTACTS
      */
-    public @NonNull PersonRecord lookupPerson(final String address) {
+    public boolean loadSnapshot() {
+        final ContactSnapshot loaded = ContactSnapshot.load(resolver);
+        synchronized (this) {
+            snapshot = loaded;
+            personCache.clear();
+        }
+        return loaded != null;
+    }
+
+    public synchronized void releaseSnapshot() {
+        snapshot = null;
+        personCache.clear();
+    }
+
+    /**
+     * @param lookupCache persistent cache to consult before querying the contacts provider, or null
+     */
+    public synchronized void setLookupCache(@Nullable LookupCache lookupCache) {
+        this.lookupCache = lookupCache;
+        personCache.clear();
+    }
+
+    /**
+     * Look up a person. Safe to call from multiple threads.
+     * @throws SecurityException if the caller does not hold READ_CONTACTS
+     */
+    public synchronized @NonNull PersonRecord lookupPerson(final String address) {
         if (TextUtils.isEmpty(address)) {
             return new PersonRecord(0, null, null, "-1");
+        } else if (snapshot != null) {
+            final PersonRecord record = snapshot.lookup(address);
+            if (record == null && LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
+            return record != null ? record : new PersonRecord(0, null, null, address);
         } else if (!personCache.containsKey(address)) {
+            final PersonRecord cached = lookupCache == null ? null : lookupCache.getPerson(address);
+            if (cached != null) {
+                personCache.put(address, cached);
+                return cached;
+            }
             final Uri personUri = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(address));
 
             Cursor c = null;
@@ -59,16 +97,15 @@ public class PersonLookup {
             final PersonRecord record;
             if (c != null && c.moveToFirst()) {
                 final long id = c.getLong(0);
+                final String name = c.getString(1);
+                final String email = getPrimaryEmail(id);
 
-                record = new PersonRecord(
-                    id,
-                    c.getString(1),
-                    getPrimaryEmail(id),
-                    address
-                );
+                record = new PersonRecord(id, name, email, address);
+                if (lookupCache != null) lookupCache.putPerson(address, id, name, email);
             } else {
                 if (LOCAL_LOGV) Log.v(TAG, "Looked up unknown address: " + address);
                 record = new PersonRecord(0, null, null, address);
+                if (lookupCache != null && c != null) lookupCache.putPerson(address, 0, null, null);
             }
             personCache.put(address, record);
 
@@ -109,7 +146,7 @@ public class PersonLookup {
     }
 
     // Returns whether the given e-mail address is a Gmail address or not.
-    private static boolean isGmailAddress(String email) {
+    static boolean isGmailAddress(String email) {
         return email != null &&
                 (email.toLowerCase(Locale.ENGLISH).endsWith("gmail.com") ||
                  email.toLowerCase(Locale.ENGLISH).endsWith("googlemail.com"));
@@ -0,0 +1,62 @@
+package com.zegoggles.smssync.mail;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Time spent in the phases of an IMAP session, for the debug log.
+ */
+class PhaseTimings {
+    enum Phase {
+        /** separate connection to check the login */
+        LOGIN,
+        /** SELECT of a folder, including connecting and logging in if the connection is new */
+        SELECT,
+        CREATE,
+        CAPABILITY,
+        NAMESPACE,
+        APPEND,
+        /** finding the messages to restore */
+        SEARCH,
+        /** fetching messages to restore */
+        FETCH
+    }
+
+    private final long[] millis = new long[Phase.values().length];
+    private final int[] counts = new int[Phase.values().length];
+
+    /**
+     * @param start the start of the phase, in {@link SystemClock#elapsedRealtime()} time
+     */
+    synchronized void record(Phase phase, long start) {
+        millis[phase.ordinal()] += SystemClock.elapsedRealtime() - start;
+        counts[phase.ordinal()]++;
+    }
+
+    synchronized int getCount(Phase phase) {
+        return counts[phase.ordinal()];
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < millis.length; i++) {
+            millis[i] = 0;
+            counts[i] = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("PhaseTimings{");
+        boolean first = true;
+        for (Phase phase : Phase.values()) {
+            if (counts[phase.ordinal()] == 0) continue;
+            if (!first) sb.append(", ");
+            sb.append(phase.name().toLowerCase(Locale.ENGLISH))
+              .append('=').append(millis[phase.ordinal()]).append("ms")
+              .append('/').append(counts[phase.ordinal()]);
+            first = false;
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,65 @@
+package com.zegoggles.smssync.mail;
+
+import androidx.annotation.NonNull;
+import com.fsck.k9.mail.internet.MimeMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+/**
+ * A message which has been serialized by {@link Rfc822Writer}. It is only meant to be uploaded:
+ * the headers can be read, but changes to headers or body are not reflected in the output.
+ */
+class RenderedMessage extends MimeMessage {
+    private static final String[] EMPTY = new String[0];
+
+    private final byte[] data;
+    private final String[] names;
+    private final String[] values;
+    private final Date sentDate;
+
+    RenderedMessage(byte[] data, String[] names, String[] values, Date sentDate) {
+        this.data = data;
+        this.names = names;
+        this.values = values;
+        this.sentDate = sentDate;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data);
+    }
+
+    @Override @NonNull
+    public String[] getHeader(String name) {
+        int count = 0;
+        for (String n : names) {
+            if (n.equalsIgnoreCase(name)) count++;
+        }
+        if (count == 0) return EMPTY;
+
+        final String[] result = new String[count];
+        for (int i = 0, j = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) result[j++] = values[i];
+        }
+        return result;
+    }
+
+    @Override
+    public String getSubject() {
+        return Headers.get(this, "Subject");
+    }
+
+    @Override
+    public Date getSentDate() {
+        return sentDate;
+    }
+
+    /**
+     * @return the size of the serialized message
+     */
+    int getLength() {
+        return data.length;
+    }
+}
@@ -0,0 +1,149 @@
+package com.zegoggles.smssync.mail;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeHeader;
+import com.fsck.k9.mail.internet.TextBody;
+import org.apache.james.mime4j.util.MimeUtil;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes plain text messages (SMS, call log) straight to their RFC 822 form, without building a
+ * {@link com.fsck.k9.mail.internet.MimeMessage} first. The output is the same as the one of the
+ * equivalent <code>MimeMessage</code>, headers have to be set in the same order.
+ * <p>
+ * Header values which would need encoding are not supported, {@link #finish(String)} then
+ * returns null and the message has to be built the usual way. Instances are reused for
+ * consecutive messages, and must not be shared between threads.
+ */
+class Rfc822Writer extends OutputStream implements HeaderGenerator.HeaderSink {
+    static final String SUBJECT = "Subject";
+    static final String FROM = "From";
+    static final String TO = "To";
+    private static final String DATE = "Date";
+    private static final String MIME_VERSION = "MIME-Version";
+    private static final String TEXT_CONTENT_TYPE = "text/plain;\r\n charset=utf-8";
+    private static final int INITIAL_SIZE = 4096;
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> values = new ArrayList<String>();
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int length;
+    private boolean unsupported;
+    private @Nullable Date sentDate;
+
+    /**
+     * Starts a new message.
+     */
+    void reset() {
+        length = 0;
+        unsupported = false;
+        sentDate = null;
+        names.clear();
+        values.clear();
+    }
+
+    @Override
+    public void setHeader(String name, @Nullable String value) {
+        if (value == null) return;
+        if (!isPlain(value)) {
+            unsupported = true;
+        }
+        if (unsupported) return;
+        names.add(name);
+        values.add(value);
+        writeAscii(name);
+        writeAscii(": ");
+        writeAscii(value);
+        writeAscii("\r\n");
+    }
+
+    @Override
+    public void setSentDate(Date date) {
+        // picks up changes of the default time zone, like a new formatter would
+        dateFormat.setTimeZone(TimeZone.getDefault());
+        setHeader(DATE, dateFormat.format(date));
+        sentDate = date;
+    }
+
+    /**
+     * Sets the headers of a quoted-printable text body.
+     */
+    void setTextBodyHeaders() {
+        setHeader(MIME_VERSION, "1.0");
+        setHeader(MimeHeader.HEADER_CONTENT_TYPE, TEXT_CONTENT_TYPE);
+        setHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING, MimeUtil.ENC_QUOTED_PRINTABLE);
+    }
+
+    /**
+     * Ends the headers and writes the body.
+     * @return the message, or null if it cannot be written by this class
+     */
+    @Nullable RenderedMessage finish(@Nullable String text) throws MessagingException {
+        if (unsupported || sentDate == null) return null;
+        writeAscii("\r\n");
+        try {
+            // the encoding is delegated, so that the body is exactly the same
+            final TextBody body = new TextBody(text);
+            body.setEncoding(MimeUtil.ENC_QUOTED_PRINTABLE);
+            body.writeTo(this);
+        } catch (IOException e) {
+            throw new MessagingException("error writing body", e);
+        }
+        return new RenderedMessage(Arrays.copyOf(buffer, length),
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            sentDate);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(length + 1);
+        buffer[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {
+        ensureCapacity(length + len);
+        System.arraycopy(b, off, buffer, length, len);
+        length += len;
+    }
+
+    private void writeAscii(String s) {
+        final int n = s.length();
+        ensureCapacity(length + n);
+        for (int i = 0; i < n; i++) {
+            buffer[length++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+
+    /**
+     * @return if the value is written as it is, printable ASCII, CR, LF and TAB
+     */
+    static boolean isPlain(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c < 0x20 || c > 0x7e) && c != '\n' && c != '\r' && c != '\t') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,52 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.Cursor;
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The columns of a cursor, with their indexes resolved once so rows can be read by name
+ * without calling {@link Cursor#getColumnIndex(String)} for every value.
+ */
+public final class RowSchema {
+    private final String[] columns;
+    private final Map<String, Integer> indexes;
+
+    public RowSchema(@NonNull String[] columns) {
+        this.columns = columns.clone();
+        this.indexes = new HashMap<String, Integer>(columns.length * 2);
+        for (int i = 0; i < columns.length; i++) {
+            if (!indexes.containsKey(columns[i])) {
+                indexes.put(columns[i], i);
+            }
+        }
+    }
+
+    public static @NonNull RowSchema of(@NonNull Cursor cursor) {
+        return new RowSchema(cursor.getColumnNames());
+    }
+
+    /**
+     * @return the index of the column, or -1 if it is not part of this schema
+     */
+    public int indexOf(String column) {
+        final Integer index = indexes.get(column);
+        return index == null ? -1 : index;
+    }
+
+    public int size() {
+        return columns.length;
+    }
+
+    public String getColumn(int index) {
+        return columns[index];
+    }
+
+    @Override
+    public String toString() {
+        return "RowSchema" + Arrays.toString(columns);
+    }
+}
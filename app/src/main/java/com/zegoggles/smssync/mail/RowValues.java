@@ -0,0 +1,81 @@
+package com.zegoggles.smssync.mail;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+
+/**
+ * A row whose values have been copied out of the cursor, one string per column.
+ */
+public class RowValues implements MessageRow {
+    private final RowSchema schema;
+    private final String[] values;
+
+    RowValues(RowSchema schema, String[] values) {
+        if (schema.size() != values.length) throw new IllegalArgumentException("schema does not match values");
+        this.schema = schema;
+        this.values = values;
+    }
+
+    public static @NonNull RowValues of(@NonNull Map<String, String> values) {
+        final String[] columns = values.keySet().toArray(new String[values.size()]);
+        final String[] row = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            row[i] = values.get(columns[i]);
+        }
+        return new RowValues(new RowSchema(columns), row);
+    }
+
+    @Override
+    public @NonNull RowSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public @Nullable String getString(String column) {
+        final int index = schema.indexOf(column);
+        return index == -1 ? null : values[index];
+    }
+
+    @Override
+    public long getLong(String column, long defaultValue) {
+        final String value = getString(column);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public int getInt(String column, int defaultValue) {
+        final String value = getString(column);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public @NonNull MessageRow detach() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(schema.getColumn(i)).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,97 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers what a server reported in earlier runs, so that a new run does not have to ask again.
+ * <p>
+ * Entries are keyed by server and user, without credentials, so they survive token refreshes.
+ * They expire after {@link #MAX_AGE}, and get cleared when a login fails.
+ */
+class ServerInfoCache {
+    static final String NAME = "imap_server_info";
+    static final long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    private static final String CAPABILITIES = ".capabilities";
+    private static final String PREFIX = ".prefix";
+    private static final String CHECKED = ".checked";
+
+    private final SharedPreferences preferences;
+    private final String key;
+
+    ServerInfoCache(Context context, String storeUri) {
+        this.preferences = context.getSharedPreferences(NAME, Context.MODE_PRIVATE);
+        this.key = key(storeUri);
+    }
+
+    /**
+     * @return if the login has been checked recently and the server capabilities are known
+     */
+    boolean isFresh(long now) {
+        final long checked = preferences.getLong(key + CHECKED, 0);
+        return checked > 0 && now - checked < MAX_AGE && preferences.contains(key + CAPABILITIES);
+    }
+
+    @Nullable Set<String> getCapabilities() {
+        final Set<String> capabilities = preferences.getStringSet(key + CAPABILITIES, null);
+        // the returned set must not be modified
+        return capabilities == null ? null : new HashSet<String>(capabilities);
+    }
+
+    @Nullable String getPrefix() {
+        return preferences.getString(key + PREFIX, null);
+    }
+
+    void putCapabilities(@NonNull Set<String> capabilities) {
+        preferences.edit().putStringSet(key + CAPABILITIES, capabilities).apply();
+    }
+
+    void putPrefix(@NonNull String prefix) {
+        preferences.edit().putString(key + PREFIX, prefix).apply();
+    }
+
+    void markChecked(long now) {
+        preferences.edit().putLong(key + CHECKED, now).apply();
+    }
+
+    void clear() {
+        preferences.edit()
+            .remove(key + CAPABILITIES)
+            .remove(key + PREFIX)
+            .remove(key + CHECKED)
+            .apply();
+    }
+
+    /**
+     * @return scheme, auth type, user, host and port of the store uri
+     */
+    static String key(String storeUri) {
+        final Uri uri = Uri.parse(storeUri);
+        final StringBuilder key = new StringBuilder();
+        key.append(uri.getScheme()).append("://");
+        final String userInfo = uri.getUserInfo();
+        if (!TextUtils.isEmpty(userInfo)) {
+            final String[] parts = userInfo.split(":");
+            // auth type and user, the last part is the password or token
+            for (int i = 0; i < Math.max(1, parts.length - 1); i++) {
+                if (i > 0) key.append(':');
+                key.append(parts[i]);
+            }
+            key.append('@');
+        }
+        key.append(uri.getHost());
+        if (uri.getPort() != -1) {
+            key.append(':').append(uri.getPort());
+        }
+        return key.toString();
+    }
+}
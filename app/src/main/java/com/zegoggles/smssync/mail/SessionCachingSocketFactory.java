@@ -0,0 +1,103 @@
+package com.zegoggles.smssync.mail;
+
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.ssl.TrustManagerFactory;
+import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Creates TLS sockets which verify the server with k9's trust managers, like its
+ * DefaultTrustedSocketFactory, but keeps one {@link SSLContext} per server for the life of the
+ * process. The session cache of the context lets reconnects resume the TLS session instead of
+ * doing a full handshake. Sockets which need a client certificate are created by the delegate.
+ */
+class SessionCachingSocketFactory implements TrustedSocketFactory {
+    private static final Map<String, SSLContext> CONTEXTS = new HashMap<String, SSLContext>();
+
+    private final TrustedSocketFactory delegate;
+
+    SessionCachingSocketFactory(TrustedSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, String clientCertificateAlias) throws NoSuchAlgorithmException, KeyManagementException, MessagingException, IOException {
+        if (clientCertificateAlias != null) {
+            return delegate.createSocket(socket, host, port, clientCertificateAlias);
+        }
+        final SSLSocketFactory socketFactory = getContext(host, port).getSocketFactory();
+        final SSLSocket trustedSocket;
+        if (socket == null) {
+            trustedSocket = (SSLSocket) socketFactory.createSocket();
+        } else {
+            trustedSocket = (SSLSocket) socketFactory.createSocket(socket, host, port, true);
+        }
+        enableTlsProtocols(trustedSocket);
+        setSniHost(trustedSocket, host);
+        return trustedSocket;
+    }
+
+    /**
+     * @return the context shared by all connections to the server
+     */
+    static SSLContext getContext(String host, int port) throws NoSuchAlgorithmException, KeyManagementException {
+        final String key = host + ":" + port;
+        synchronized (CONTEXTS) {
+            SSLContext context = CONTEXTS.get(key);
+            if (context == null) {
+                context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager[] { TrustManagerFactory.get(host, port) }, null);
+                CONTEXTS.put(key, context);
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Enables all supported TLS versions, older platforms support TLS 1.1 and 1.2 without
+     * enabling them. SSL is not used.
+     */
+    private static void enableTlsProtocols(SSLSocket socket) {
+        final List<String> protocols = new ArrayList<String>();
+        for (String protocol : socket.getSupportedProtocols()) {
+            if (protocol.startsWith("TLS")) {
+                protocols.add(protocol);
+            }
+        }
+        if (!protocols.isEmpty()) {
+            socket.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
+        }
+    }
+
+    /**
+     * Sets the server name indication, platform sockets created without a host do not send it.
+     */
+    private static void setSniHost(SSLSocket socket, String host) {
+        try {
+            socket.getClass().getMethod("setHostname", String.class).invoke(socket, host);
+        } catch (NoSuchMethodException e) {
+            if (LOCAL_LOGV) Log.v(TAG, "SNI not supported by " + socket.getClass());
+        } catch (IllegalAccessException e) {
+            Log.w(TAG, "could not set SNI host", e);
+        } catch (InvocationTargetException e) {
+            Log.w(TAG, "could not set SNI host", e);
+        }
+    }
+}
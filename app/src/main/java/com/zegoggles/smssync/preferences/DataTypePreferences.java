@@ -8,9 +8,12 @@ import java.util.EnumSet;
 import java.util.List;
 
 import static com.zegoggles.smssync.mail.DataType.Defaults.MAX_SYNCED_DATE;
+import static com.zegoggles.smssync.mail.DataType.Defaults.MAX_SYNCED_ID;
 import static com.zegoggles.smssync.mail.DataType.MMS;
 
 public class DataTypePreferences implements SharedPreferences.OnSharedPreferenceChangeListener {
+    private static final String MAX_SYNCED_ID_SUFFIX = "_id";
+
     public interface DataTypeListener {
         void onChanged(DataType dataType, DataTypePreferences preferences);
     }
@@ -65,8 +68,31 @@ public class DataTypePreferences implements SharedPreferences.OnSharedPreference
         }
     }
 
+    /**
+     * @return the provider id of the last synced item, or -1 if unknown. All items with the
+     * {@link #getMaxSyncedDate(DataType) max synced date} and an id up to this one have been synced.
+     */
+    public long getMaxSyncedId(DataType dataType) {
+        return sharedPreferences.getLong(maxSyncedIdPreference(dataType), MAX_SYNCED_ID);
+    }
+
     public boolean setMaxSyncedDate(DataType dataType, long max) {
-        return sharedPreferences.edit().putLong(dataType.maxSyncedPreference, max).commit();
+        return setMaxSyncedDate(dataType, max, MAX_SYNCED_ID);
+    }
+
+    /**
+     * @param max the date of the last synced item, in the provider's unit
+     * @param maxId the provider id of the last synced item, or -1 if unknown
+     */
+    public boolean setMaxSyncedDate(DataType dataType, long max, long maxId) {
+        final SharedPreferences.Editor editor = sharedPreferences.edit()
+            .putLong(dataType.maxSyncedPreference, max);
+        if (maxId > 0) {
+            editor.putLong(maxSyncedIdPreference(dataType), maxId);
+        } else {
+            editor.remove(maxSyncedIdPreference(dataType));
+        }
+        return editor.commit();
     }
 
     public long getMostRecentSyncedDate() {
@@ -80,6 +106,7 @@ public class DataTypePreferences implements SharedPreferences.OnSharedPreference
         SharedPreferences.Editor editor = sharedPreferences.edit();
         for (DataType type : DataType.values()) {
             editor.remove(type.maxSyncedPreference);
+            editor.remove(maxSyncedIdPreference(type));
         }
         editor.commit();
     }
@@ -102,4 +129,8 @@ public class DataTypePreferences implements SharedPreferences.OnSharedPreference
             }
         }
     }
+
+    private static String maxSyncedIdPreference(DataType dataType) {
+        return dataType.maxSyncedPreference + MAX_SYNCED_ID_SUFFIX;
+    }
 }
@@ -22,6 +22,34 @@ class Defaults {
      */
     public static final int MAX_ITEMS_PER_SYNC = -1;
     public static final int MAX_ITEMS_PER_RESTORE = -1;
+    /**
+     * Default value for {@link Preferences.Keys#BACKUP_BATCH_SIZE}.
+     */
+    public static final int BACKUP_BATCH_SIZE = 25;
+    /**
+     * Default value for {@link Preferences.Keys#BACKUP_CONNECTIONS}.
+     */
+    public static final int BACKUP_CONNECTIONS = 1;
+    /**
+     * Default value for {@link Preferences.Keys#BACKUP_PIPELINED}.
+     */
+    public static final boolean BACKUP_PIPELINED = false;
+    /**
+     * Default value for {@link Preferences.Keys#CONTACT_SNAPSHOT}.
+     */
+    public static final boolean CONTACT_SNAPSHOT = false;
+    /**
+     * Default value for {@link Preferences.Keys#IMAP_KEEP_ALIVE}, in seconds.
+     */
+    public static final int IMAP_KEEP_ALIVE = 0;
+    /**
+     * Default value for {@link Preferences.Keys#MMS_IMAGE_MAX_SIZE}, in pixels.
+     */
+    public static final int MMS_IMAGE_MAX_SIZE = 0;
+    /**
+     * Default value for {@link Preferences.Keys#RESTORE_BATCH_SIZE}.
+     */
+    public static final int RESTORE_BATCH_SIZE = 50;
     public static final boolean MARK_AS_READ_ON_RESTORE = true;
 
     private Defaults() {}
@@ -28,18 +28,24 @@ import com.zegoggles.smssync.contacts.ContactGroup;
 import com.zegoggles.smssync.mail.DataType;
 
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.APP_LOG_DEBUG;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_BATCH_SIZE;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_CONNECTIONS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_CONTACT_GROUP;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.BACKUP_PIPELINED;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_BACKUP_AFTER_CALL;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_SYNC_CALENDAR;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CALLLOG_SYNC_CALENDAR_ENABLED;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.CONFIRM_ACTION;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.CONTACT_SNAPSHOT;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.DARK_THEME;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.ENABLE_AUTO_BACKUP;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.FIRST_USE;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.IMAP_KEEP_ALIVE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.INCOMING_TIMEOUT_SECONDS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.LAST_VERSION_CODE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MAIL_SUBJECT_PREFIX;
@@ -47,9 +53,11 @@ import static com.zegoggles.smssync.preferences.Preferences.Keys.MARK_AS_READ_ON
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MARK_AS_READ_TYPES;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MAX_ITEMS_PER_RESTORE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.MAX_ITEMS_PER_SYNC;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.MMS_IMAGE_MAX_SIZE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.NOTIFICATIONS;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.REFERENCE_UID;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.REGULAR_TIMEOUT_SECONDS;
+import static com.zegoggles.smssync.preferences.Preferences.Keys.RESTORE_BATCH_SIZE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.RESTORE_STARRED_ONLY;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.SMS_DEFAULT_PACKAGE;
 import static com.zegoggles.smssync.preferences.Preferences.Keys.SMS_DEFAULT_PACKAGE_CHANGE_SEEN;
@@ -104,7 +112,14 @@ public class Preferences {
         SMS_DEFAULT_PACKAGE_CHANGE_SEEN("sms_default_package_change_seen"),
         USE_OLD_SCHEDULER("use_old_scheduler"),
         DARK_THEME("dark_theme"),
-        EMAIL_ADDRESS_STYLE("email_address_style");
+        EMAIL_ADDRESS_STYLE("email_address_style"),
+        BACKUP_BATCH_SIZE("backup_batch_size"),
+        BACKUP_PIPELINED("backup_pipelined"),
+        CONTACT_SNAPSHOT("contact_snapshot"),
+        BACKUP_CONNECTIONS("backup_connections"),
+        IMAP_KEEP_ALIVE("imap_keep_alive"),
+        MMS_IMAGE_MAX_SIZE("mms_image_max_size"),
+        RESTORE_BATCH_SIZE("restore_batch_size");
 
         public final String key;
         Keys(String key) {
@@ -167,6 +182,57 @@ public class Preferences {
         return getStringAsInt(MAX_ITEMS_PER_SYNC, Defaults.MAX_ITEMS_PER_SYNC);
     }
 
+    /**
+     * @return the number of messages whose bodies are fetched together during a restore
+     */
+    public int getRestoreBatchSize() {
+        return Math.max(1, getStringAsInt(RESTORE_BATCH_SIZE, Defaults.RESTORE_BATCH_SIZE));
+    }
+
+    /**
+     * @return the number of messages which get uploaded together in one APPEND
+     */
+    public int getBackupBatchSize() {
+        return getStringAsInt(BACKUP_BATCH_SIZE, Defaults.BACKUP_BATCH_SIZE);
+    }
+
+    /**
+     * @return the maximum number of IMAP connections used to upload different folders in parallel
+     */
+    public int getBackupConnections() {
+        return Math.max(1, getStringAsInt(BACKUP_CONNECTIONS, Defaults.BACKUP_CONNECTIONS));
+    }
+
+    /**
+     * @return how long the IMAP connection is kept open after a backup or restore, in milliseconds,
+     * or 0 to close it straight away
+     */
+    public long getImapKeepAliveMillis() {
+        return TimeUnit.SECONDS.toMillis(Math.max(0, getStringAsInt(IMAP_KEEP_ALIVE, Defaults.IMAP_KEEP_ALIVE)));
+    }
+
+    /**
+     * @return the maximum width and height of large MMS images, in pixels, or 0 to back up
+     * images unchanged
+     */
+    public int getMmsImageMaxSize() {
+        return Math.max(0, getStringAsInt(MMS_IMAGE_MAX_SIZE, Defaults.MMS_IMAGE_MAX_SIZE));
+    }
+
+    /**
+     * @return if messages should be read, converted and uploaded concurrently
+     */
+    public boolean isBackupPipelined() {
+        return preferences.getBoolean(BACKUP_PIPELINED.key, Defaults.BACKUP_PIPELINED);
+    }
+
+    /**
+     * @return if all contacts should be loaded into memory before a backup or restore
+     */
+    public boolean isContactSnapshotEnabled() {
+        return preferences.getBoolean(CONTACT_SNAPSHOT.key, Defaults.CONTACT_SNAPSHOT);
+    }
+
     public int getMaxItemsPerRestore() {
         return getStringAsInt(MAX_ITEMS_PER_RESTORE, Defaults.MAX_ITEMS_PER_RESTORE);
     }
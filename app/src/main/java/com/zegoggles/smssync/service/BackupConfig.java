@@ -11,6 +11,7 @@ public class BackupConfig {
     public final BackupImapStore imapStore;
     public final int currentTry;
     public final int maxItemsPerSync;
+    public final int batchSize;
     public final ContactGroup groupToBackup;
     public final BackupType backupType;
     public final boolean debug;
@@ -19,6 +20,7 @@ public class BackupConfig {
     BackupConfig(@NonNull BackupImapStore imapStore,
                  int currentTry,
                  int maxItemsPerSync,
+                 int batchSize,
                  @NonNull ContactGroup groupToBackup,
                  @NonNull BackupType backupType,
                  @NonNull EnumSet<DataType> typesToBackup,
@@ -30,6 +32,7 @@ public class BackupConfig {
         this.imapStore = imapStore;
         this.currentTry = currentTry;
         this.maxItemsPerSync = maxItemsPerSync;
+        this.batchSize = Math.max(batchSize, 1);
         this.groupToBackup = groupToBackup;
         this.backupType = backupType;
         this.debug = debug;
@@ -39,6 +42,7 @@ public class BackupConfig {
     public BackupConfig retryWithStore(BackupImapStore store) {
         return new BackupConfig(store, currentTry + 1,
                 maxItemsPerSync,
+                batchSize,
                 groupToBackup,
                 backupType,
                 typesToBackup, debug);
@@ -50,6 +54,7 @@ public class BackupConfig {
                 "imap=" + imapStore +
                 ", currentTry=" + currentTry +
                 ", maxItemsPerSync=" + maxItemsPerSync +
+                ", batchSize=" + batchSize +
                 ", groupToBackup=" + groupToBackup +
                 ", backupType=" + backupType +
                 ", debug=" + debug +
@@ -10,6 +10,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.service.BackupItemsFetcher.emptyCursor;
@@ -53,6 +54,20 @@ public class BackupCursors implements Iterator<BackupCursors.CursorAndType> {
         cursorMap.put(type, cursor);
     }
 
+    /**
+     * @return the cursors of the given types, in the same order. The returned instance shares
+     * the cursors with this one, which remains responsible for closing them.
+     */
+    BackupCursors select(Set<DataType> types) {
+        final BackupCursors selected = new BackupCursors();
+        for (CursorAndType ct : cursorAndTypes) {
+            if (types.contains(ct.type)) {
+                selected.add(ct.type, ct.cursor);
+            }
+        }
+        return selected;
+    }
+
     public int count() {
         int total = 0;
         for (CursorAndType ct : cursorAndTypes) {
@@ -15,21 +15,57 @@ import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
 
 public class BackupItemsFetcher {
+    static final int PAGE_SIZE = 500;
+
     private final ContentResolver resolver;
     private final BackupQueryBuilder queryBuilder;
+    private final int pageSize;
 
     BackupItemsFetcher(@NonNull ContentResolver resolver,
                        @NonNull BackupQueryBuilder queryBuilder) {
+        this(resolver, queryBuilder, PAGE_SIZE);
+    }
+
+    BackupItemsFetcher(@NonNull ContentResolver resolver,
+                       @NonNull BackupQueryBuilder queryBuilder,
+                       int pageSize) {
         if (resolver == null) throw new IllegalArgumentException("resolver cannot be null");
         if (queryBuilder == null) throw new IllegalArgumentException("queryBuilder cannot be null");
 
         this.queryBuilder = queryBuilder;
         this.resolver = resolver;
+        this.pageSize = pageSize;
     }
 
-    public @NonNull Cursor getItemsForDataType(DataType dataType, ContactGroupIds group, int max) {
+    /**
+     * Gets the items which have not been backed up yet. The total is counted up front, the
+     * rows themselves are loaded in pages of (date, _id) ordered items as the cursor advances.
+     */
+    public @NonNull Cursor getItemsForDataType(final DataType dataType, final ContactGroupIds group, int max) {
         if (LOCAL_LOGV) Log.v(TAG, "getItemsForDataType(type=" + dataType + ", max=" + max + ")");
-        return performQuery(queryBuilder.buildQueryForDataType(dataType, group, max));
+
+        int count = getCount(queryBuilder.buildCountQueryForDataType(dataType, group));
+        if (count < 0) {
+            // counting not supported, fall back to loading everything at once
+            return performQuery(queryBuilder.buildQueryForDataType(dataType, group, max));
+        } else if (max > 0) {
+            count = Math.min(count, max);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "counted " + count + " items for " + dataType);
+
+        return new PagedCursor(new PagedCursor.PageLoader() {
+            @Override
+            public @NonNull Cursor load(@Nullable BackupQueryBuilder.Position after, int limit) {
+                return performQuery(queryBuilder.buildPageQueryForDataType(dataType, group, after, limit));
+            }
+        }, count, pageSize);
+    }
+
+    /**
+     * @return the selection of the MMS which get backed up, without a position
+     */
+    public @Nullable BackupQueryBuilder.Query getMmsSelection(@Nullable ContactGroupIds group) {
+        return queryBuilder.buildMmsSelection(group);
     }
 
     /**
@@ -55,6 +91,33 @@ public class BackupItemsFetcher {
         }
     }
 
+    /**
+     * @return the result of a count query, or -1 if it could not be performed
+     */
+    private int getCount(@Nullable BackupQueryBuilder.Query query) {
+        if (query == null) return -1;
+        final Cursor cursor;
+        try {
+            cursor = resolver.query(query.uri, query.projection, query.selection, query.selectionArgs, query.sortOrder);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error counting items", e);
+            return -1;
+        } catch (IllegalArgumentException e) {
+            // some providers reject projections which are not plain columns
+            Log.w(TAG, "error counting items", e);
+            return -1;
+        } catch (NullPointerException e) {
+            Log.w(TAG, "error counting items", e);
+            return -1;
+        }
+        if (cursor == null) return -1;
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
     @SuppressLint("Recycle")
     private @NonNull Cursor performQuery(@Nullable BackupQueryBuilder.Query query) {
         if (query == null) return emptyCursor();
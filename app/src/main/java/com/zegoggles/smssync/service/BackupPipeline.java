@@ -0,0 +1,196 @@
+package com.zegoggles.smssync.service;
+
+import androidx.annotation.NonNull;
+import android.util.Log;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.MessageRow;
+
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Overlaps reading from the providers, MIME conversion and uploading.
+ * <p>
+ * A reader thread walks the {@link BackupCursors} and copies each row, a pool of converter
+ * threads turns the rows into messages, and the uploader (the caller of {@link #next()})
+ * consumes the results. The stages are connected by bounded queues. Results are handed out
+ * in cursor order, so batches and max synced dates are the same as with a sequential backup.
+ */
+class BackupPipeline implements ConversionSource {
+    private static final FutureTask<ConversionResult> END = new FutureTask<ConversionResult>(
+        new Callable<ConversionResult>() {
+            @Override public ConversionResult call() {
+                throw new IllegalStateException();
+            }
+        });
+
+    private final BackupCursors cursors;
+    private final MessageConverter converter;
+    private final ThreadPoolExecutor converters;
+    private final BlockingQueue<Future<ConversionResult>> results;
+    private final Thread reader;
+
+    private volatile boolean stopped;
+    private volatile int rowsRead;
+    private Future<ConversionResult> head;
+    private int maxUploadQueueDepth;
+
+    /**
+     * @param workers number of converter threads
+     * @param capacity the maximum number of rows which have been read but not yet uploaded
+     */
+    BackupPipeline(BackupCursors cursors, MessageConverter converter, int workers, int capacity) {
+        this.cursors = cursors;
+        this.converter = converter;
+        this.results = new ArrayBlockingQueue<Future<ConversionResult>>(capacity);
+        this.converters = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        this.reader = new Thread(new Runnable() {
+            @Override public void run() {
+                read();
+            }
+        }, "BackupPipeline-reader");
+    }
+
+    BackupPipeline start() {
+        reader.start();
+        return this;
+    }
+
+    @Override public boolean hasNext() {
+        if (head == null) {
+            try {
+                head = results.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                head = END;
+            }
+            maxUploadQueueDepth = Math.max(maxUploadQueueDepth, results.size() + 1);
+        }
+        return head != END;
+    }
+
+    @Override public @NonNull ConversionResult next() throws MessagingException {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        final Future<ConversionResult> future = head;
+        head = null;
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("interrupted");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof MessagingException) {
+                throw (MessagingException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new MessagingException("conversion failed", cause);
+            }
+        }
+    }
+
+    /**
+     * Stops all stages and discards pending results. Blocks until the reader has
+     * stopped accessing the cursors.
+     */
+    @Override public void close() {
+        stopped = true;
+        reader.interrupt();
+
+        boolean interrupted = false;
+        while (reader.isAlive()) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        converters.shutdownNow();
+        for (Future<ConversionResult> result : results) {
+            result.cancel(true);
+        }
+        results.clear();
+
+        if (LOCAL_LOGV) Log.v(TAG, "closed " + this);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of rows waiting for a converter thread
+     */
+    int getConversionQueueDepth() {
+        return converters.getQueue().size();
+    }
+
+    /**
+     * @return the number of conversions (finished or in progress) waiting for the uploader
+     */
+    int getUploadQueueDepth() {
+        return results.size();
+    }
+
+    @Override public String toString() {
+        return String.format(Locale.ENGLISH,
+            "BackupPipeline{workers=%d, read=%d, conversionQueue=%d, uploadQueue=%d, maxUploadQueue=%d}",
+            converters.getCorePoolSize(),
+            rowsRead,
+            getConversionQueueDepth(),
+            getUploadQueueDepth(),
+            maxUploadQueueDepth);
+    }
+
+    private void read() {
+        try {
+            while (!stopped && cursors.hasNext()) {
+                final BackupCursors.CursorAndType cursor = cursors.next();
+                final DataType type = cursor.type;
+                final MessageRow row = converter.readMessage(cursor.cursor);
+
+                results.put(converters.submit(new Callable<ConversionResult>() {
+                    @Override public ConversionResult call() throws MessagingException {
+                        return converter.convertMessage(row, type);
+                    }
+                }));
+                rowsRead++;
+            }
+            results.put(END);
+        } catch (InterruptedException ignored) {
+            // stopped by close()
+        } catch (final RuntimeException e) {
+            if (stopped) return;
+
+            final FutureTask<ConversionResult> failure = new FutureTask<ConversionResult>(
+                new Callable<ConversionResult>() {
+                    @Override public ConversionResult call() {
+                        throw e;
+                    }
+                });
+            failure.run();
+            try {
+                results.put(failure);
+            } catch (InterruptedException ignored) {
+                // stopped by close()
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.zegoggles.smssync.service;
 
 import android.net.Uri;
+import android.provider.BaseColumns;
 import android.provider.CallLog;
 import android.provider.Telephony;
 import androidx.annotation.Nullable;
@@ -12,27 +13,53 @@ import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.preferences.DataTypePreferences;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
-import static com.zegoggles.smssync.mail.DataType.CALLLOG;
 import static com.zegoggles.smssync.mail.DataType.MMS;
 import static com.zegoggles.smssync.mail.DataType.SMS;
 
 class BackupQueryBuilder {
     private static final String DESC_LIMIT_1 = " DESC LIMIT 1";
+    // SMS, MMS and call log all use the same column name
+    private static final String DATE = Telephony.TextBasedSmsColumns.DATE;
+    private static final String[] COUNT_PROJECTION = { "COUNT(*)" };
 
     // only query for needed fields
     // http://stackoverflow.com/questions/12033234/get-calls-provider-internal-structure
-    private static final String[] CALLLOG_PROJECTION = {
+    static final String[] CALLLOG_PROJECTION = {
         CallLog.Calls._ID,
         CallLog.Calls.NUMBER,
         CallLog.Calls.DURATION,
         CallLog.Calls.DATE,
         CallLog.Calls.TYPE
     };
+    // columns read by MessageGenerator and HeaderGenerator, run a backup in debug mode to verify
+    static final String[] SMS_PROJECTION = {
+        Telephony.TextBasedSmsColumns._ID,
+        Telephony.TextBasedSmsColumns.ADDRESS,
+        Telephony.TextBasedSmsColumns.BODY,
+        Telephony.TextBasedSmsColumns.TYPE,
+        Telephony.TextBasedSmsColumns.DATE,
+        Telephony.TextBasedSmsColumns.THREAD_ID,
+        Telephony.TextBasedSmsColumns.READ,
+        Telephony.TextBasedSmsColumns.STATUS,
+        Telephony.TextBasedSmsColumns.PROTOCOL,
+        Telephony.TextBasedSmsColumns.SERVICE_CENTER
+    };
+    static final String[] MMS_PROJECTION = {
+        Telephony.BaseMmsColumns._ID,
+        Telephony.BaseMmsColumns.DATE,
+        Telephony.BaseMmsColumns.MESSAGE_BOX,
+        Telephony.BaseMmsColumns.MESSAGE_TYPE,
+        Telephony.BaseMmsColumns.THREAD_ID,
+        Telephony.BaseMmsColumns.READ
+    };
     private final DataTypePreferences preferences;
 
     BackupQueryBuilder(DataTypePreferences preferences) {
@@ -54,21 +81,85 @@ class BackupQueryBuilder {
             this.sortOrder = sortOrder;
         }
 
-        Query(Uri uri, String[] projection, String selection, String[] selectionArgs, int max) {
-            this(uri, projection, selection, selectionArgs,
-                    max > 0 ? Telephony.TextBasedSmsColumns.DATE + " LIMIT "+max : Telephony.TextBasedSmsColumns.DATE);
+    }
+
+    /**
+     * Identifies a row in (date, _id) order, used as a keyset for paging through items.
+     * The date is in the unit used by the provider (seconds for MMS).
+     */
+    static class Position {
+        final long date;
+        final long id;
+
+        Position(long date, long id) {
+            this.date = date;
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return "Position{date=" + date + ", id=" + id + '}';
         }
     }
 
     public @Nullable Query buildQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds, int max) {
+        return buildQueryForDataType(type, groupIds, getSyncedPosition(type), null, sortOrder(max, false));
+    }
+
+    /**
+     * Builds a query for one page of items following the given position, in (date, _id) order.
+     * @param after the position of the last row of the previous page, or null to start after the last synced item
+     * @param limit the page size
+     */
+    public @Nullable Query buildPageQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds,
+                                                     @Nullable Position after, int limit) {
+        return buildQueryForDataType(type, groupIds,
+                after == null ? getSyncedPosition(type) : after, null, sortOrder(limit, true));
+    }
+
+    /**
+     * Builds a query returning the number of items which have not been backed up yet.
+     */
+    public @Nullable Query buildCountQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds) {
+        return buildQueryForDataType(type, groupIds, getSyncedPosition(type), COUNT_PROJECTION, null);
+    }
+
+    private @Nullable Query buildQueryForDataType(DataType type, @Nullable ContactGroupIds groupIds,
+                                                  Position after, @Nullable String[] projection,
+                                                  @Nullable String sortOrder) {
+        switch (type) {
+            case SMS:     return getQueryForSMS(groupIds, after, projection == null ? SMS_PROJECTION : projection, sortOrder);
+            case MMS:     return getQueryForMMS(groupIds, after, projection == null ? MMS_PROJECTION : projection, sortOrder);
+            case CALLLOG: return getQueryForCallLog(after, projection == null ? CALLLOG_PROJECTION : projection, sortOrder);
+            default:      return null;
+        }
+    }
+
+    /**
+     * @return the columns queried when backing up items of the given type
+     */
+    static @Nullable String[] getProjection(DataType type) {
         switch (type) {
-            case SMS:     return getQueryForSMS(groupIds, max);
-            case MMS:     return getQueryForMMS(groupIds, max);
-            case CALLLOG: return getQueryForCallLog(max);
+            case SMS:     return SMS_PROJECTION;
+            case MMS:     return MMS_PROJECTION;
+            case CALLLOG: return CALLLOG_PROJECTION;
             default:      return null;
         }
     }
 
+    /**
+     * @return the selection of the MMS to back up, without a position, for queries which
+     * have to match the backup query, e.g. to prefetch parts
+     */
+    public Query buildMmsSelection(@Nullable ContactGroupIds group) {
+        return new Query(
+            Consts.MMS_PROVIDER,
+            null,
+            mmsSelection(group),
+            new String[] { MmsConsts.DELIVERY_REPORT },
+            null);
+    }
+
     public @Nullable Query buildMostRecentQueryForDataType(DataType type) {
         switch (type) {
             case MMS:
@@ -97,50 +188,76 @@ class BackupQueryBuilder {
         }
     }
 
-    private Query getQueryForSMS(@Nullable ContactGroupIds groupIds, int max) {
+    private Query getQueryForSMS(@Nullable ContactGroupIds groupIds, Position after,
+                                 String[] projection, @Nullable String sortOrder) {
         return new Query(Consts.SMS_PROVIDER,
-            null,
+            projection,
             String.format(Locale.ENGLISH,
-                "%s > ? AND %s <> ? %s",
-                    Telephony.TextBasedSmsColumns.DATE,
+                "%s AND %s <> ? %s",
+                    positionSelection(after),
                     Telephony.TextBasedSmsColumns.TYPE,
                     groupSelection(SMS, groupIds)).trim(),
-            new String[] {
-                String.valueOf(preferences.getMaxSyncedDate(SMS)),
-                String.valueOf(Telephony.TextBasedSmsColumns.MESSAGE_TYPE_DRAFT)
-            },
-            max);
+            positionArgs(after, String.valueOf(Telephony.TextBasedSmsColumns.MESSAGE_TYPE_DRAFT)),
+            sortOrder);
     }
 
-    private Query getQueryForMMS(@Nullable ContactGroupIds group, int max) {
-        long maxSynced = preferences.getMaxSyncedDate(MMS);
-        if (maxSynced > 0) {
-            // NB: max synced date is stored in seconds since epoch in database
-            maxSynced = (long) (maxSynced / 1000d);
-        }
+    private Query getQueryForMMS(@Nullable ContactGroupIds group, Position after,
+                                 String[] projection, @Nullable String sortOrder) {
         return new Query(
             Consts.MMS_PROVIDER,
-            null,
-            String.format(Locale.ENGLISH, "%s > ? AND %s <> ? %s",
-                    Telephony.BaseMmsColumns.DATE,
-                    Telephony.BaseMmsColumns.MESSAGE_TYPE,
-                    groupSelection(DataType.MMS, group)).trim(),
-            new String[] {
-                String.valueOf(maxSynced),
-                MmsConsts.DELIVERY_REPORT
-            },
-            max);
-    }
-
-    private Query getQueryForCallLog(int max) {
+            projection,
+            positionSelection(after) + " AND " + mmsSelection(group),
+            positionArgs(after, MmsConsts.DELIVERY_REPORT),
+            sortOrder);
+    }
+
+    private String mmsSelection(@Nullable ContactGroupIds group) {
+        return String.format(Locale.ENGLISH, "%s <> ? %s",
+                Telephony.BaseMmsColumns.MESSAGE_TYPE,
+                groupSelection(DataType.MMS, group)).trim();
+    }
+
+    private Query getQueryForCallLog(Position after, String[] projection, @Nullable String sortOrder) {
         return new Query(
             Consts.CALLLOG_PROVIDER,
-            CALLLOG_PROJECTION,
-            String.format(Locale.ENGLISH, "%s > ?", CallLog.Calls.DATE),
-            new String[] {
-                String.valueOf(preferences.getMaxSyncedDate(CALLLOG))
-            },
-            max);
+            projection,
+            positionSelection(after),
+            positionArgs(after),
+            sortOrder);
+    }
+
+    private Position getSyncedPosition(DataType type) {
+        long maxSynced = preferences.getMaxSyncedDate(type);
+        if (type == MMS && maxSynced > 0) {
+            // NB: max synced date is stored in seconds since epoch in database
+            maxSynced = (long) (maxSynced / 1000d);
+        }
+        return new Position(maxSynced, preferences.getMaxSyncedId(type));
+    }
+
+    private static String positionSelection(Position after) {
+        if (after.id > 0) {
+            // items sharing the date of the last synced item might not have been backed up yet
+            return String.format(Locale.ENGLISH, "(%s > ? OR (%s = ? AND %s > ?))", DATE, DATE, BaseColumns._ID);
+        } else {
+            return String.format(Locale.ENGLISH, "%s > ?", DATE);
+        }
+    }
+
+    private static String[] positionArgs(Position after, String... extraArgs) {
+        final List<String> args = new ArrayList<String>();
+        args.add(String.valueOf(after.date));
+        if (after.id > 0) {
+            args.add(String.valueOf(after.date));
+            args.add(String.valueOf(after.id));
+        }
+        Collections.addAll(args, extraArgs);
+        return args.toArray(new String[args.size()]);
+    }
+
+    private static @Nullable String sortOrder(int max, boolean byId) {
+        final String order = byId ? DATE + ", " + BaseColumns._ID : DATE;
+        return max > 0 ? order + " LIMIT " + max : order;
     }
 
     private String groupSelection(DataType type, @Nullable ContactGroupIds group) {
@@ -4,6 +4,7 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.os.AsyncTask;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
 import com.fsck.k9.mail.Message;
@@ -19,18 +20,36 @@ import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.contacts.ContactAccessor;
 import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.BufferPool;
 import com.zegoggles.smssync.mail.CallFormatter;
+import com.zegoggles.smssync.mail.ColumnUsage;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.ImageTranscoder;
+import com.zegoggles.smssync.mail.ImapStorePool;
+import com.zegoggles.smssync.mail.LookupCache;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.MessageIndex;
 import com.zegoggles.smssync.mail.PersonLookup;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.state.BackupState;
 import com.zegoggles.smssync.service.state.SmsSyncState;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.zegoggles.smssync.App.LOCAL_LOGV;
 import static com.zegoggles.smssync.App.TAG;
@@ -48,6 +67,11 @@ import static com.zegoggles.smssync.service.state.SmsSyncState.FINISHED_BACKUP;
 import static com.zegoggles.smssync.service.state.SmsSyncState.LOGIN;
 
 class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
+    /** upper bound for the message data sent in a single APPEND command */
+    private static final long MAX_APPEND_BYTES = 2 * 1024 * 1024;
+    private static final int CHECKPOINT_ITEMS = 250;
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
     @SuppressLint("StaticFieldLeak")
     private final SmsBackupService service;
     private final BackupItemsFetcher fetcher;
@@ -57,10 +81,18 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
     private final Preferences preferences;
     private final ContactAccessor contactAccessor;
     private final TokenRefresher tokenRefresher;
+    private final File checkpointJournal;
+    private final UploadJournal uploadJournal;
+    private final @Nullable LookupCache lookupCache;
+    private final @Nullable MessageIndex messageIndex;
 
     BackupTask(@NonNull SmsBackupService service) {
         final Context context = service.getApplicationContext();
         this.service = service;
+        this.checkpointJournal = new File(context.getFilesDir(), SyncCheckpoint.JOURNAL);
+        this.uploadJournal = new UploadJournal(new File(context.getFilesDir(), UploadJournal.JOURNAL));
+        this.lookupCache = new LookupCache(context);
+        this.messageIndex = new MessageIndex(context);
         this.authPreferences = service.getAuthPreferences();
         this.preferences = service.getPreferences();
 
@@ -94,8 +126,27 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                AuthPreferences authPreferences,
                Preferences preferences,
                ContactAccessor accessor,
-               TokenRefresher refresher) {
+               TokenRefresher refresher,
+               File checkpointJournal) {
+        this(service, fetcher, messageConverter, syncer, authPreferences, preferences, accessor, refresher,
+             checkpointJournal, null);
+    }
+
+    BackupTask(SmsBackupService service,
+               BackupItemsFetcher fetcher,
+               MessageConverter messageConverter,
+               CalendarSyncer syncer,
+               AuthPreferences authPreferences,
+               Preferences preferences,
+               ContactAccessor accessor,
+               TokenRefresher refresher,
+               File checkpointJournal,
+               @Nullable MessageIndex messageIndex) {
         this.service = service;
+        this.checkpointJournal = checkpointJournal;
+        this.uploadJournal = new UploadJournal(new File(checkpointJournal.getParentFile(), UploadJournal.JOURNAL));
+        this.lookupCache = null;
+        this.messageIndex = messageIndex;
         this.fetcher = fetcher;
         this.converter = messageConverter;
         this.calendarSyncer = syncer;
@@ -140,10 +191,23 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
 
     private BackupState fetchAndBackupItems(BackupConfig config) {
         BackupCursors cursors = null;
+        boolean contactSnapshot = false;
+        boolean lookupCacheOpen = false;
+        boolean messageIndexOpen = false;
         try {
+            final SyncCheckpoint checkpoint = new SyncCheckpoint(preferences.getDataTypePreferences(),
+                    checkpointJournal, CHECKPOINT_ITEMS, CHECKPOINT_INTERVAL);
+            if (checkpoint.recover() > 0) {
+                appLogDebug("recovered progress of interrupted backup");
+            }
             final ContactGroupIds groupIds = contactAccessor.getGroupContactIds(service.getContentResolver(), config.groupToBackup);
 
             cursors = new BulkFetcher(fetcher).fetch(config.typesToBackup, groupIds, config.maxItemsPerSync);
+            final BackupQueryBuilder.Query mmsSelection = fetcher.getMmsSelection(groupIds);
+            if (mmsSelection != null) {
+                // only prefetch parts of MMS which get backed up
+                converter.setMmsSelection(mmsSelection.selection, mmsSelection.selectionArgs);
+            }
             final int itemsToSync = cursors.count();
 
             if (itemsToSync > 0) {
@@ -151,8 +215,22 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
                 if (config.debug) {
                     appLog(R.string.app_log_backup_messages_with_config, config);
                 }
+                if (preferences.isContactSnapshotEnabled()) {
+                    contactSnapshot = converter.loadContactSnapshot();
+                    appLogDebug("contact snapshot loaded: %s", contactSnapshot);
+                }
+                if (!contactSnapshot && lookupCache != null) {
+                    lookupCache.open();
+                    converter.setLookupCache(lookupCache);
+                    lookupCacheOpen = true;
+                }
+                if (messageIndex != null) {
+                    messageIndex.open();
+                    converter.setMessageIndex(messageIndex);
+                    messageIndexOpen = true;
+                }
 
-                return backupCursors(cursors, config.imapStore, config.backupType, itemsToSync);
+                return backupCursors(cursors, config, itemsToSync, checkpoint);
             } else {
                 appLog(R.string.app_log_skip_backup_no_items);
 
@@ -177,6 +255,19 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
             if (cursors != null) {
                 cursors.close();
             }
+            if (contactSnapshot) {
+                converter.releaseContactSnapshot();
+            }
+            if (lookupCacheOpen) {
+                converter.setLookupCache(null);
+                lookupCache.close();
+                appLogDebug("lookup cache: %s", lookupCache);
+            }
+            if (messageIndexOpen) {
+                converter.setMessageIndex(null);
+                appLogDebug("message index: %s", messageIndex);
+                messageIndex.close();
+            }
         }
     }
 
@@ -255,50 +346,320 @@ class BackupTask extends AsyncTask<BackupConfig, BackupState, BackupState> {
         App.post(state);
     }
 
-    private BackupState backupCursors(BackupCursors cursors, BackupImapStore store, BackupType backupType, int itemsToSync)
-            throws MessagingException {
+    private BackupState backupCursors(BackupCursors cursors, BackupConfig config, int itemsToSync,
+                                      SyncCheckpoint checkpoint) throws MessagingException {
         Log.i(TAG, String.format(Locale.ENGLISH, "Starting backup (%d messages)", itemsToSync));
+        final BackupImapStore store = config.imapStore;
         publish(LOGIN);
         store.checkSettings();
+        if (messageIndex != null) {
+            seedMessageIndex(store, cursors);
+        }
+        resumeInterruptedUploads(store, checkpoint);
 
+        final ColumnUsage columnUsage = config.debug ? new ColumnUsage() : null;
+        converter.setColumnUsage(columnUsage);
+        final UploadProgress progress = new UploadProgress(itemsToSync);
+        final List<ConversionSource> sources = new ArrayList<ConversionSource>();
         try {
             publish(CALC);
-            int backedUpItems = 0;
-            while (!isCancelled() && cursors.hasNext()) {
-                BackupCursors.CursorAndType cursor = cursors.next();
-                if (LOCAL_LOGV) Log.v(TAG, "backing up: " + cursor);
-
-                ConversionResult result = converter.convertMessages(cursor.cursor, cursor.type);
-                if (!result.isEmpty()) {
-                    List<Message> messages = result.getMessages();
-
-                    if (LOCAL_LOGV) {
-                        Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
-                                messages.size(), cursor.type));
-                    }
+            final List<Set<DataType>> streams = getUploadStreams(cursors);
+            final int connections = Math.min(preferences.getBackupConnections(), streams.size());
+            if (connections > 1) {
+                appLogDebug("uploading %s using %d connections", streams, connections);
+                uploadInParallel(cursors, streams, connections, config, checkpoint, progress, sources);
+            } else {
+                final ConversionSource source = getConversionSource(cursors, config);
+                sources.add(source);
+                upload(source, config, checkpoint, progress);
+            }
+
+            final ImageTranscoder transcoder = converter.getImageTranscoder();
+            if (transcoder != null && transcoder.getTranscodedCount() > 0) {
+                appLog(R.string.app_log_backup_images_transcoded,
+                        transcoder.getTranscodedCount(), transcoder.getBytesSaved() / 1024);
+            }
+            return new BackupState(FINISHED_BACKUP,
+                    progress.getBackedUpItems(),
+                    progress.getItemsToSync(),
+                    config.backupType, null, null);
+        } finally {
+            for (ConversionSource source : sources) {
+                source.close();
+            }
+            converter.setColumnUsage(null);
+            // only acknowledged batches have been recorded, so this is also safe after errors
+            checkpoint.flush();
+            if (config.debug) {
+                for (ConversionSource source : sources) {
+                    appLogDebug("conversion: %s", source);
+                }
+                appLogDebug("checkpoint: %s", checkpoint);
+                appLogDebug("upload journal: %s", uploadJournal);
+                appLogDebug("mms: %s", converter.getMmsPrefetchStats());
+                appLogDebug("imap phases: %s", store.getPhaseTimings());
+                appLogDebug("imap compression: %s", store.getCompressionStats());
+                appLogDebug("buffers: %s", BufferPool.getInstance());
+                if (converter.getImageTranscoder() != null) {
+                    appLogDebug("images: %s", converter.getImageTranscoder());
+                }
+                for (DataType type : config.typesToBackup) {
+                    appLogDebug("columns: %s", columnUsage.report(type, BackupQueryBuilder.getProjection(type)));
+                }
+            }
+            store.closeFolders();
+            if (config.debug) {
+                appLogDebug("imap: %s", ImapStorePool.getInstance());
+            }
+        }
+    }
 
-                    store.getFolder(cursor.type, preferences.getDataTypePreferences()).appendMessages(messages);
+    /**
+     * Uploads all messages of the source, in batches.
+     */
+    private void upload(ConversionSource source, BackupConfig config, SyncCheckpoint checkpoint,
+                        UploadProgress progress) throws MessagingException {
+        final BackupImapStore store = config.imapStore;
+        ConversionResult batch = null;
+        while (!isCancelled() && !progress.isAborted() && source.hasNext()) {
+            ConversionResult result = source.next();
+            if (!result.isEmpty() || result.getSkipped() > 0) {
+                if (result.isEmpty()) {
+                    // backed up before, only moves the sync watermark
+                    progress.skipItem();
+                }
+                if (batch != null && batch.type != result.type) {
+                    progress.addBackedUpItems(appendBatch(store, batch, checkpoint));
+                    batch = null;
+                }
+                if (batch == null) {
+                    batch = new ConversionResult(result.type);
+                }
+                batch.addAll(result);
+                if (batch.size() >= config.batchSize) {
+                    progress.addBackedUpItems(appendBatch(store, batch, checkpoint));
+                    batch = null;
+                }
+            } else {
+                Log.w(TAG, "no messages converted");
+                progress.skipItem();
+            }
 
-                    if (cursor.type == CALLLOG && calendarSyncer != null) {
-                        calendarSyncer.syncCalendar(result);
+            publishProgress(new BackupState(BACKUP, progress.getBackedUpItems(), progress.getItemsToSync(),
+                    config.backupType, result.type, null));
+        }
+
+        if (batch != null && !isCancelled() && !progress.isAborted()) {
+            progress.addBackedUpItems(appendBatch(store, batch, checkpoint));
+        }
+    }
+
+    /**
+     * Uploads each stream on its own thread. Every destination folder is opened separately by the
+     * store and therefore uses its own connection.
+     */
+    private void uploadInParallel(BackupCursors cursors,
+                                  List<Set<DataType>> streams,
+                                  int connections,
+                                  final BackupConfig config,
+                                  final SyncCheckpoint checkpoint,
+                                  final UploadProgress progress,
+                                  List<ConversionSource> sources) throws MessagingException {
+        final ExecutorService uploaders = Executors.newFixedThreadPool(connections);
+        boolean joined = false;
+        try {
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (Set<DataType> types : streams) {
+                final ConversionSource source = getConversionSource(cursors.select(types), config);
+                sources.add(source);
+                futures.add(uploaders.submit(new Callable<Void>() {
+                    @Override public Void call() throws MessagingException {
+                        boolean uploaded = false;
+                        try {
+                            upload(source, config, checkpoint, progress);
+                            uploaded = true;
+                            return null;
+                        } finally {
+                            // stop the other streams right away, not when this future is joined
+                            if (!uploaded) progress.abort();
+                        }
                     }
-                    preferences.getDataTypePreferences().setMaxSyncedDate(cursor.type, result.getMaxDate());
-                    backedUpItems += messages.size();
-                } else {
-                    Log.w(TAG, "no messages converted");
-                    itemsToSync -= 1;
+                }));
+            }
+            Throwable failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("interrupted", e);
                 }
+            }
+            joined = true;
+            if (failure instanceof MessagingException) {
+                throw (MessagingException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new MessagingException("upload failed", failure);
+            }
+        } finally {
+            if (!joined) progress.abort();
+            awaitUploaders(uploaders);
+        }
+    }
+
+    /**
+     * Waits for the uploaders to finish their current batch, they must not use the folders
+     * once they get closed.
+     */
+    private static void awaitUploaders(ExecutorService uploaders) {
+        uploaders.shutdown();
+        boolean interrupted = Thread.interrupted();
+        while (!uploaders.isTerminated()) {
+            try {
+                uploaders.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                publishProgress(new BackupState(BACKUP, backedUpItems, itemsToSync, backupType, cursor.type, null));
+    /**
+     * Fills the message index from the server for types which have never been indexed and
+     * have not been backed up yet, i.e. after the app data has been cleared. Otherwise the index
+     * only starts tracking, so a deliberate reset still uploads messages from older versions.
+     */
+    private void seedMessageIndex(BackupImapStore store, BackupCursors cursors) throws MessagingException {
+        for (Set<DataType> types : getUploadStreams(cursors)) {
+            boolean scan = false;
+            for (DataType type : types) {
+                if (!messageIndex.isSeeded(type) &&
+                    preferences.getDataTypePreferences().getMaxSyncedDate(type) == MAX_SYNCED_DATE) {
+                    scan = true;
+                }
             }
+            if (scan) {
+                final DataType type = types.iterator().next();
+                final int found = store.getFolder(type, preferences.getDataTypePreferences()).scanMessageIndex(messageIndex);
+                appLogDebug("message index: found %d messages in %s", found,
+                        preferences.getDataTypePreferences().getFolder(type));
+            }
+            for (DataType type : types) {
+                messageIndex.setSeeded(type);
+            }
+        }
+    }
 
-            return new BackupState(FINISHED_BACKUP,
-                    backedUpItems,
-                    itemsToSync,
-                    backupType, null, null);
-        } finally {
-            store.closeFolders();
+    /**
+     * Looks up the batches of an interrupted backup on the server. The watermark is moved past
+     * the leading messages of a batch which made it, so their rows are not queried again. Other
+     * messages which made it are only added to the message index: their rows are still read
+     * from the provider, but skipped before conversion and upload.
+     */
+    private void resumeInterruptedUploads(BackupImapStore store, SyncCheckpoint checkpoint) throws MessagingException {
+        for (UploadJournal.Batch batch : uploadJournal.readPending()) {
+            final List<String> messageIds = new ArrayList<String>(batch.items.size());
+            for (UploadJournal.Item item : batch.items) {
+                messageIds.add(item.messageId);
+            }
+            final Set<String> landed = store.getFolder(batch.type, preferences.getDataTypePreferences())
+                    .findMessageIds(messageIds);
+
+            UploadJournal.Item last = null;
+            int contiguous = 0;
+            for (UploadJournal.Item item : batch.items) {
+                if (!landed.contains(item.messageId)) break;
+                last = item;
+                contiguous++;
+            }
+            for (UploadJournal.Item item : batch.items) {
+                if (messageIndex != null && landed.contains(item.messageId)) {
+                    messageIndex.record(batch.type, item.id, item.date, item.messageId);
+                }
+            }
+            // the watermark can only move past items which all reached the server
+            if (last != null && last.date > getMaxSyncedDate(batch.type)) {
+                checkpoint.record(batch.type, last.date, last.id, contiguous);
+            }
+            appLogDebug("resumed %s: %d of %d message(s) on server", batch, landed.size(), batch.items.size());
+        }
+        uploadJournal.clear();
+    }
+
+    /**
+     * @return the max synced date in the provider's unit, like the dates in the upload journal
+     */
+    private long getMaxSyncedDate(DataType type) {
+        final long maxSynced = preferences.getDataTypePreferences().getMaxSyncedDate(type);
+        // the preference returns milliseconds, MMS dates are in seconds
+        return type == MMS && maxSynced > 0 ? maxSynced / 1000L : maxSynced;
+    }
+
+    /**
+     * @return the data types to back up, grouped by destination folder
+     */
+    private List<Set<DataType>> getUploadStreams(BackupCursors cursors) {
+        final Map<String, Set<DataType>> folders = new LinkedHashMap<String, Set<DataType>>();
+        for (DataType type : DataType.values()) {
+            if (cursors.count(type) > 0) {
+                final String folder = preferences.getDataTypePreferences().getFolder(type);
+                Set<DataType> types = folders.get(folder);
+                if (types == null) {
+                    types = EnumSet.noneOf(DataType.class);
+                    folders.put(folder, types);
+                }
+                types.add(type);
+            }
+        }
+        return new ArrayList<Set<DataType>>(folders.values());
+    }
+
+    private ConversionSource getConversionSource(BackupCursors cursors, BackupConfig config) {
+        if (preferences.isBackupPipelined()) {
+            final int workers = Runtime.getRuntime().availableProcessors();
+            return new BackupPipeline(cursors, converter, workers,
+                    Math.max(config.batchSize * 2, workers * 4)).start();
+        } else {
+            return new ConversionSource.Sequential(cursors, converter);
+        }
+    }
+
+    private int appendBatch(BackupImapStore store, ConversionResult batch, SyncCheckpoint checkpoint)
+            throws MessagingException {
+        final List<Message> messages = batch.getMessages();
+        if (LOCAL_LOGV) {
+            Log.v(TAG, String.format(Locale.ENGLISH, "sending %d %s message(s) to server.",
+                    messages.size(), batch.type));
+        }
+
+        int sequence = -1;
+        if (!messages.isEmpty()) {
+            sequence = uploadJournal.plan(batch.type, messages);
+            final long[] uids = store.getFolder(batch.type, preferences.getDataTypePreferences())
+                    .appendBatch(messages, MAX_APPEND_BYTES);
+            if (messageIndex != null) {
+                messageIndex.record(batch.type, messages, uids);
+            }
+            if (batch.type == CALLLOG && calendarSyncer != null) {
+                calendarSyncer.syncCalendar(batch);
+            }
+        }
+        // the whole batch has been acknowledged by the server at this point
+        checkpoint.record(batch.type, batch.getMaxDate(), batch.getMaxId(), messages.size());
+        if (sequence != -1) {
+            uploadJournal.done(sequence);
         }
+        return messages.size();
     }
 
     private void publish(SmsSyncState state) {
@@ -6,11 +6,11 @@ import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.mail.CallFormatter;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.MessageRow;
 import com.zegoggles.smssync.mail.PersonLookup;
 import com.zegoggles.smssync.mail.PersonRecord;
 
 import java.util.Date;
-import java.util.Map;
 
 import static com.zegoggles.smssync.App.TAG;
 
@@ -35,24 +35,24 @@ class CalendarSyncer {
         enableSync();
 
         if (result.type != DataType.CALLLOG) return;
-        for (Map<String, String> m : result.getMapList()) {
-            try {
-                final int duration = Integer.parseInt(m.get(CallLog.Calls.DURATION));
-                final int callType = Integer.parseInt(m.get(CallLog.Calls.TYPE));
-                final String number = m.get(CallLog.Calls.NUMBER);
-                final Date then = new Date(Long.valueOf(m.get(CallLog.Calls.DATE)));
-                final PersonRecord record = personLookup.lookupPerson(number);
-
-                // insert into calendar
-                calendarAccessor.addEntry(
-                        calendarId,
-                        then,
-                        duration,
-                        callFormatter.callTypeString(callType, record.getName()),
-                        callFormatter.formatForCalendar(callType, record.getNumber(), duration));
-            } catch (NumberFormatException e) {
-                Log.w(TAG, "error", e);
+        for (MessageRow row : result.getRows()) {
+            final int duration = row.getInt(CallLog.Calls.DURATION, -1);
+            final int callType = row.getInt(CallLog.Calls.TYPE, -1);
+            final long date = row.getLong(CallLog.Calls.DATE, -1);
+            if (duration == -1 || callType == -1 || date == -1) {
+                Log.w(TAG, "invalid call log entry: " + row);
+                continue;
             }
+            final String number = row.getString(CallLog.Calls.NUMBER);
+            final PersonRecord record = personLookup.lookupPerson(number);
+
+            // insert into calendar
+            calendarAccessor.addEntry(
+                    calendarId,
+                    new Date(date),
+                    duration,
+                    callFormatter.callTypeString(callType, record.getName()),
+                    callFormatter.formatForCalendar(callType, record.getNumber(), duration));
         }
     }
 
@@ -0,0 +1,49 @@
+package com.zegoggles.smssync.service;
+
+import androidx.annotation.NonNull;
+import com.fsck.k9.mail.MessagingException;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.MessageConverter;
+
+/**
+ * Supplies converted messages to the backup, in cursor order.
+ */
+interface ConversionSource {
+    boolean hasNext() throws MessagingException;
+
+    @NonNull ConversionResult next() throws MessagingException;
+
+    /**
+     * Stops the source, after this returns the cursors are no longer accessed.
+     */
+    void close();
+
+    /**
+     * Converts messages on the calling thread, one at a time.
+     */
+    class Sequential implements ConversionSource {
+        private final BackupCursors cursors;
+        private final MessageConverter converter;
+
+        Sequential(BackupCursors cursors, MessageConverter converter) {
+            this.cursors = cursors;
+            this.converter = converter;
+        }
+
+        @Override public boolean hasNext() {
+            return cursors.hasNext();
+        }
+
+        @Override public @NonNull ConversionResult next() throws MessagingException {
+            final BackupCursors.CursorAndType cursor = cursors.next();
+            return converter.convertMessages(cursor.cursor, cursor.type);
+        }
+
+        @Override public void close() {
+        }
+
+        @Override public String toString() {
+            return "Sequential{}";
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.CallLog;
+import android.provider.Telephony;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.fsck.k9.mail.Message;
+import com.zegoggles.smssync.Consts;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Answers whether an SMS or call about to be restored is already on the device, without querying
+ * the providers for every item.
+ * <p>
+ * On first use the keys of the existing items (date, address and type for SMS, date, number,
+ * duration and type for calls) are read once, limited to the dates being restored, and kept as
+ * 64 bit fingerprints. Items whose fingerprint is not known are new. A known fingerprint is
+ * checked with an exact query, so a fingerprint collision never causes an item to be skipped.
+ * Items inserted during the restore have to be added with {@link #add(Type, ContentValues)}.
+ */
+class ExistenceIndex {
+    enum Type {
+        SMS(Consts.SMS_PROVIDER, "date = ? AND address = ? AND type = ?",
+            Telephony.TextBasedSmsColumns.DATE,
+            Telephony.TextBasedSmsColumns.ADDRESS,
+            Telephony.TextBasedSmsColumns.TYPE),
+
+        CALLLOG(Consts.CALLLOG_PROVIDER, "date = ? AND number = ? AND duration = ? AND type = ?",
+            CallLog.Calls.DATE,
+            CallLog.Calls.NUMBER,
+            CallLog.Calls.DURATION,
+            CallLog.Calls.TYPE);
+
+        final Uri uri;
+        final String selection;
+        /** the key columns, the date comes first */
+        final String[] columns;
+
+        Type(Uri uri, String selection, String... columns) {
+            this.uri = uri;
+            this.selection = selection;
+            this.columns = columns;
+        }
+    }
+
+    /** messages are dated with second precision, and older versions might have used a different zone */
+    private static final long DATE_SLACK = 24 * 60 * 60 * 1000L;
+
+    private final ContentResolver resolver;
+    private final long from, to;
+    private final FingerprintSet[] fingerprints = new FingerprintSet[Type.values().length];
+    private final boolean[] loaded = new boolean[Type.values().length];
+    private int hits, misses, collisions, queries;
+    private long loadMillis;
+
+    /**
+     * @param from the earliest date of the items to check, inclusive
+     * @param to the latest date of the items to check, inclusive
+     */
+    ExistenceIndex(ContentResolver resolver, long from, long to) {
+        this.resolver = resolver;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return an index for the dates of the messages to restore. Dates are only known if they
+     * have been fetched, otherwise all items are indexed.
+     */
+    static ExistenceIndex forMessages(ContentResolver resolver, List<? extends Message> messages) {
+        long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
+        for (Message message : messages) {
+            final Date date = message.getSentDate();
+            if (date == null) {
+                return new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+            from = Math.min(from, date.getTime());
+            to = Math.max(to, date.getTime());
+        }
+        if (messages.isEmpty()) {
+            return new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+        return new ExistenceIndex(resolver, from - DATE_SLACK, to + DATE_SLACK);
+    }
+
+    /**
+     * @return false if the item is certainly new, true if {@link #exists(Type, ContentValues)}
+     * has to ask the provider
+     */
+    boolean mightExist(Type type, ContentValues values) {
+        final FingerprintSet set = getFingerprints(type);
+        final String[] key = key(type, values);
+        if (set == null || isIncomplete(key) || set.contains(fingerprint(key))) {
+            return true;
+        }
+        misses++;
+        return false;
+    }
+
+    boolean exists(Type type, ContentValues values) {
+        if (!mightExist(type, values)) {
+            return false;
+        }
+        final String[] key = key(type, values);
+        if (getFingerprints(type) == null || isIncomplete(key)) {
+            // not loaded, or a key the provider query rejects
+            return existsInProvider(type, key);
+        }
+        if (existsInProvider(type, key)) {
+            hits++;
+            return true;
+        } else {
+            collisions++;
+            return false;
+        }
+    }
+
+    /**
+     * Records an item which has been inserted.
+     */
+    void add(Type type, ContentValues values) {
+        final FingerprintSet set = fingerprints[type.ordinal()];
+        if (set != null) {
+            set.add(fingerprint(key(type, values)));
+        }
+    }
+
+    @Override public String toString() {
+        return String.format(Locale.ENGLISH,
+            "ExistenceIndex{sms=%d, calllog=%d, load=%dms, hits=%d, misses=%d, collisions=%d, queries=%d}",
+            size(Type.SMS), size(Type.CALLLOG), loadMillis, hits, misses, collisions, queries);
+    }
+
+    int size(Type type) {
+        final FingerprintSet set = fingerprints[type.ordinal()];
+        return set == null ? 0 : set.size();
+    }
+
+    private @Nullable FingerprintSet getFingerprints(Type type) {
+        if (!loaded[type.ordinal()]) {
+            loaded[type.ordinal()] = true;
+            fingerprints[type.ordinal()] = load(type);
+        }
+        return fingerprints[type.ordinal()];
+    }
+
+    private @Nullable FingerprintSet load(Type type) {
+        final long start = SystemClock.elapsedRealtime();
+        final boolean bounded = from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+        final String dateColumn = type.columns[0];
+        final Cursor cursor;
+        try {
+            cursor = resolver.query(type.uri, type.columns,
+                bounded ? dateColumn + " >= ? AND " + dateColumn + " <= ?" : null,
+                bounded ? new String[] { String.valueOf(from), String.valueOf(to) } : null,
+                null);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "error loading existing items", e);
+            return null;
+        }
+        if (cursor == null) return null;
+
+        final FingerprintSet set = new FingerprintSet(cursor.getCount());
+        try {
+            final String[] key = new String[type.columns.length];
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = cursor.getString(i);
+                }
+                set.add(fingerprint(key));
+            }
+        } finally {
+            cursor.close();
+        }
+        loadMillis += SystemClock.elapsedRealtime() - start;
+        if (LOCAL_LOGV) Log.v(TAG, "loaded " + set.size() + " existing item(s) of " + type);
+        return set;
+    }
+
+    private boolean existsInProvider(Type type, String[] key) {
+        queries++;
+        final Cursor c = resolver.query(type.uri, new String[] { "_id" }, type.selection, key, null);
+        boolean exists = false;
+        if (c != null) {
+            exists = c.getCount() > 0;
+            c.close();
+        }
+        return exists;
+    }
+
+    private static boolean isIncomplete(String[] key) {
+        return Arrays.asList(key).contains(null);
+    }
+
+    private static String[] key(Type type, ContentValues values) {
+        final String[] key = new String[type.columns.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = values.getAsString(type.columns[i]);
+        }
+        return key;
+    }
+
+    /**
+     * @return a 64 bit FNV-1a hash of the key columns
+     */
+    static long fingerprint(String[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (String value : key) {
+            if (value == null) {
+                h = (h ^ 0xff) * 0x100000001b3L;
+            } else {
+                for (int i = 0; i < value.length(); i++) {
+                    final char c = value.charAt(i);
+                    h = (h ^ (c & 0xff)) * 0x100000001b3L;
+                    h = (h ^ (c >>> 8)) * 0x100000001b3L;
+                }
+            }
+            // separator, so that ("ab", "c") and ("a", "bc") differ
+            h = (h ^ 0xfe) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Open addressing hash set of fingerprints, 8 bytes per slot, at most half full.
+     */
+    static class FingerprintSet {
+        private static final long FREE = 0;
+        /** stands in for the fingerprint 0, which marks free slots */
+        private static final long ZERO = 0x9E3779B97F4A7C15L;
+
+        private long[] slots;
+        private int size;
+
+        FingerprintSet(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2) capacity <<= 1;
+            slots = new long[capacity];
+        }
+
+        boolean contains(long fingerprint) {
+            final long f = fingerprint == FREE ? ZERO : fingerprint;
+            final int mask = slots.length - 1;
+            for (int i = index(f) & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == f) {
+                    return true;
+                } else if (slots[i] == FREE) {
+                    return false;
+                }
+            }
+        }
+
+        void add(long fingerprint) {
+            if ((size + 1) * 2 > slots.length) {
+                resize(slots.length * 2);
+            }
+            insert(fingerprint == FREE ? ZERO : fingerprint);
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void insert(long f) {
+            final int mask = slots.length - 1;
+            for (int i = index(f) & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == FREE) {
+                    slots[i] = f;
+                    size++;
+                    return;
+                } else if (slots[i] == f) {
+                    return;
+                }
+            }
+        }
+
+        private void resize(int capacity) {
+            final long[] old = slots;
+            slots = new long[capacity];
+            size = 0;
+            for (long f : old) {
+                if (f != FREE) insert(f);
+            }
+        }
+
+        private static int index(long f) {
+            // the fingerprints are hashes already
+            return (int) (f ^ (f >>> 32));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Inserts restored rows into a provider in batches, with one {@link ContentResolver#applyBatch}
+ * call per batch instead of one call per row. Every insert is a yield point, so a provider which
+ * applies the batch in a transaction can let others access its database in between.
+ * <p>
+ * Rows are checked against the {@link ExistenceIndex} before they are queued. If a row might
+ * exist already, the queued rows are written first, so the exact check sees them.
+ */
+class InsertBatch {
+    interface Listener {
+        /**
+         * @param uri the uri of the inserted row, or null if the provider did not insert it
+         */
+        void onInserted(ContentValues values, @Nullable Uri uri);
+
+        /**
+         * Called after each batch has been written.
+         */
+        void onBatchInserted();
+    }
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final ExistenceIndex existing;
+    private final ExistenceIndex.Type type;
+    private final int size;
+    private final Listener listener;
+    private final ArrayList<ContentValues> pending;
+
+    private int rows, batches, fallbacks;
+    private long millis;
+
+    InsertBatch(ContentResolver resolver, ExistenceIndex existing, ExistenceIndex.Type type, int size, Listener listener) {
+        this.resolver = resolver;
+        this.uri = type.uri;
+        this.existing = existing;
+        this.type = type;
+        this.size = Math.max(1, size);
+        this.listener = listener;
+        this.pending = new ArrayList<ContentValues>(this.size);
+    }
+
+    /**
+     * Queues a row to be inserted, unless it exists already.
+     * @return false if the row exists
+     */
+    boolean insertIfMissing(ContentValues values) {
+        if (existing.mightExist(type, values)) {
+            flush();
+            if (existing.exists(type, values)) {
+                return false;
+            }
+        }
+        existing.add(type, values);
+        pending.add(values);
+        if (pending.size() >= size) {
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Writes all queued rows.
+     */
+    void flush() {
+        if (pending.isEmpty()) return;
+
+        final long start = SystemClock.elapsedRealtime();
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(pending.size());
+        for (ContentValues values : pending) {
+            operations.add(ContentProviderOperation.newInsert(uri)
+                .withValues(values)
+                .withYieldAllowed(true)
+                .build());
+        }
+        ContentProviderResult[] results = null;
+        try {
+            results = resolver.applyBatch(uri.getAuthority(), operations);
+        } catch (RemoteException e) {
+            Log.w(TAG, "error inserting batch", e);
+        } catch (OperationApplicationException e) {
+            Log.w(TAG, "error inserting batch", e);
+        } catch (IllegalArgumentException e) {
+            // http://code.google.com/p/android/issues/detail?id=2916
+            Log.w(TAG, "error inserting batch", e);
+        }
+
+        if (results != null && results.length == pending.size()) {
+            for (int i = 0; i < results.length; i++) {
+                listener.onInserted(pending.get(i), results[i].uri);
+            }
+        } else {
+            insertOneByOne();
+        }
+        rows += pending.size();
+        batches++;
+        millis += SystemClock.elapsedRealtime() - start;
+        pending.clear();
+        listener.onBatchInserted();
+    }
+
+    @Override public String toString() {
+        return String.format(Locale.ENGLISH,
+            "InsertBatch{uri=%s, rows=%d, batches=%d, fallbacks=%d, time=%dms, rowsPerSecond=%d}",
+            uri, rows, batches, fallbacks, millis, millis == 0 ? 0 : rows * 1000L / millis);
+    }
+
+    /**
+     * Inserts the queued rows on their own, skipping the ones the failed batch might have written.
+     */
+    private void insertOneByOne() {
+        fallbacks++;
+        for (ContentValues values : pending) {
+            try {
+                if (existing.exists(type, values)) {
+                    continue;
+                }
+                final Uri inserted = resolver.insert(uri, values);
+                if (LOCAL_LOGV) Log.v(TAG, "inserted " + inserted);
+                listener.onInserted(values, inserted);
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "error inserting row", e);
+            }
+        }
+    }
+}
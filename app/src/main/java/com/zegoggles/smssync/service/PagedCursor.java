@@ -0,0 +1,179 @@
+package com.zegoggles.smssync.service;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+import android.provider.Telephony;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.zegoggles.smssync.service.BackupQueryBuilder.Position;
+
+/**
+ * A forward-oriented cursor which loads its rows one page at a time, using the (date, _id)
+ * of the last row of a page as the starting point of the next one. Only one or two pages are
+ * held in memory, and the provider never has to skip over rows with OFFSET.
+ */
+class PagedCursor extends AbstractCursor {
+    interface PageLoader {
+        /**
+         * @param after the last row of the previous page, or null for the first page
+         * @param limit the maximum number of rows to return
+         */
+        @NonNull Cursor load(@Nullable Position after, int limit);
+    }
+
+    private static final String DATE = Telephony.TextBasedSmsColumns.DATE;
+
+    private final PageLoader loader;
+    private final int pageSize;
+    private int count;
+    private String[] columnNames;
+
+    private Cursor page;
+    private @Nullable Cursor nextPage;
+    private int pageStart;
+    private int pages;
+
+    /**
+     * @param loader the loader for pages
+     * @param count the total number of rows, as counted beforehand
+     * @param pageSize the number of rows per page
+     */
+    PagedCursor(PageLoader loader, int count, int pageSize) {
+        if (pageSize <= 0) throw new IllegalArgumentException("invalid page size: " + pageSize);
+        this.loader = loader;
+        this.count = count;
+        this.pageSize = pageSize;
+        this.page = loadPage(null, 0);
+        this.columnNames = page.getColumnNames();
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the number of pages loaded so far
+     */
+    int getPageCount() {
+        return pages;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (newPosition < pageStart) {
+            closePages();
+            pageStart = 0;
+            page = loadPage(null, 0);
+        }
+        while (newPosition >= pageStart + page.getCount()) {
+            final Cursor following = nextPage != null ? nextPage : loadNextPage();
+            nextPage = null;
+            if (following == null) {
+                return false;
+            }
+            pageStart += page.getCount();
+            page.close();
+            page = following;
+        }
+        if (!page.moveToPosition(newPosition - pageStart)) {
+            return false;
+        }
+        if (page.isLast() && nextPage == null) {
+            // look ahead so that getCount() and isLast() stay accurate if rows went missing
+            nextPage = loadNextPage();
+            page.moveToPosition(newPosition - pageStart);
+        }
+        return true;
+    }
+
+    @Override
+    public String getString(int column) {
+        return page.getString(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return page.getShort(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return page.getInt(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return page.getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return page.getFloat(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return page.getDouble(column);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        return page.getBlob(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return page.getType(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return page.isNull(column);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        closePages();
+    }
+
+    private @Nullable Cursor loadNextPage() {
+        final int offset = pageStart + page.getCount();
+        if (offset >= count || !page.moveToLast()) {
+            return null;
+        }
+        final Position last = new Position(
+            page.getLong(page.getColumnIndexOrThrow(DATE)),
+            page.getLong(page.getColumnIndexOrThrow(BaseColumns._ID)));
+        return loadPage(last, offset);
+    }
+
+    private Cursor loadPage(@Nullable Position after, int offset) {
+        final int limit = Math.min(pageSize, count - offset);
+        if (limit <= 0) {
+            return BackupItemsFetcher.emptyCursor();
+        }
+        final Cursor cursor = loader.load(after, limit);
+        pages++;
+        if (cursor.getCount() < limit) {
+            // items were removed since counting
+            count = offset + cursor.getCount();
+        }
+        return cursor;
+    }
+
+    private void closePages() {
+        page.close();
+        if (nextPage != null) {
+            nextPage.close();
+            nextPage = null;
+        }
+    }
+}
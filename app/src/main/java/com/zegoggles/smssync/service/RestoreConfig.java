@@ -1,6 +1,7 @@
 package com.zegoggles.smssync.service;
 
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.preferences.Defaults;
 
 public class RestoreConfig {
     final int tries;
@@ -9,6 +10,7 @@ public class RestoreConfig {
     final boolean restoreOnlyStarred;
     final int maxRestore;
     final int currentRestoredItem;
+    final int fetchBatchSize;
     final BackupImapStore imapStore;
 
     public RestoreConfig(BackupImapStore imapStore,
@@ -18,6 +20,18 @@ public class RestoreConfig {
                          boolean restoreOnlyStarred,
                          int maxRestore,
                          int currentRestoredItem) {
+        this(imapStore, tries, restoreSms, restoreCallLog, restoreOnlyStarred, maxRestore, currentRestoredItem,
+             Defaults.RESTORE_BATCH_SIZE);
+    }
+
+    public RestoreConfig(BackupImapStore imapStore,
+                         int tries,
+                         boolean restoreSms,
+                         boolean restoreCallLog,
+                         boolean restoreOnlyStarred,
+                         int maxRestore,
+                         int currentRestoredItem,
+                         int fetchBatchSize) {
 
         this.tries = tries;
         this.imapStore = imapStore;
@@ -26,6 +40,7 @@ public class RestoreConfig {
         this.restoreOnlyStarred = restoreOnlyStarred;
         this.maxRestore = maxRestore;
         this.currentRestoredItem = currentRestoredItem;
+        this.fetchBatchSize = fetchBatchSize;
     }
 
     public RestoreConfig retryWithStore(int currentItem, BackupImapStore backupImapStore) {
@@ -36,7 +51,8 @@ public class RestoreConfig {
                 restoreCallLog,
                 restoreOnlyStarred,
                 maxRestore,
-                currentItem
+                currentItem,
+                fetchBatchSize
         );
     }
 
@@ -48,6 +64,7 @@ public class RestoreConfig {
                 ", restoreOnlyStarred=" + restoreOnlyStarred +
                 ", maxRestore=" + maxRestore +
                 ", currentRestoredItem=" + currentRestoredItem +
+                ", fetchBatchSize=" + fetchBatchSize +
                 ", imapStore=" + imapStore +
                 '}';
     }
@@ -0,0 +1,254 @@
+package com.zegoggles.smssync.service;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import android.util.Log;
+import com.fsck.k9.mail.AuthenticationFailedException;
+import com.fsck.k9.mail.Folder;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.store.imap.XOAuth2AuthenticationFailedException;
+import com.zegoggles.smssync.mail.BackupImapStore.BackupFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Downloads the messages to restore in batches, ahead of the caller.
+ * <p>
+ * A fetcher thread issues one FETCH per batch of consecutive messages in the same folder, while
+ * the caller of {@link #next()} inserts the previous batch. Only the parts needed for the restore
+ * are fetched, see {@link BackupFolder#fetchForRestore(List)}. At most one batch is kept ready,
+ * and messages are dropped as soon as they have been handed out, so memory use does not grow
+ * with the number of messages restored. The folders are only accessed by the fetcher thread
+ * until {@link #close()} returns.
+ * <p>
+ * Authentication failures stop the fetcher and are raised by {@link #next()}, so that the caller
+ * can refresh its credentials and continue with a new store.
+ */
+class RestoreFetcher {
+    private static final FetchedMessage[] END = new FetchedMessage[0];
+
+    private final int batchSize;
+    private final Message[] messages;
+    private final BlockingQueue<FetchedMessage[]> batches = new ArrayBlockingQueue<FetchedMessage[]>(1);
+    private final Thread fetcher;
+
+    private volatile boolean stopped;
+    private volatile int batchesFetched;
+    private volatile int failed;
+    private volatile long bytes;
+    /** a {@link RuntimeException} or an authentication failure, raised by {@link #next()} */
+    private volatile @Nullable Exception failure;
+    private FetchedMessage[] current;
+    private int position;
+    private int waits;
+
+    /**
+     * @param messages the messages to fetch, in restore order
+     * @param batchSize the maximum number of messages fetched with one command
+     */
+    RestoreFetcher(List<? extends Message> messages, int batchSize) {
+        this.messages = messages.toArray(new Message[messages.size()]);
+        this.batchSize = Math.max(1, batchSize);
+        this.fetcher = new Thread(new Runnable() {
+            @Override public void run() {
+                fetchAll();
+            }
+        }, "RestoreFetcher");
+    }
+
+    RestoreFetcher start() {
+        fetcher.start();
+        return this;
+    }
+
+    /**
+     * @return the next message, with its body fetched unless {@link FetchedMessage#error} is set
+     * @throws NoSuchElementException if all messages have been returned
+     * @throws MessagingException if the fetcher stopped because authentication failed
+     */
+    @NonNull FetchedMessage next() throws MessagingException {
+        if (current == null || position == current.length) {
+            current = takeBatch();
+            position = 0;
+        }
+        if (current == END) {
+            final Exception failure = this.failure;
+            if (failure instanceof MessagingException) {
+                throw (MessagingException) failure;
+            } else if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            throw new NoSuchElementException();
+        }
+        final FetchedMessage message = current[position];
+        current[position++] = null; // help gc
+        return message;
+    }
+
+    /**
+     * Stops fetching and discards pending batches. Blocks until the fetcher thread has
+     * stopped accessing the folders.
+     */
+    void close() {
+        stopped = true;
+        fetcher.interrupt();
+
+        boolean interrupted = false;
+        while (fetcher.isAlive()) {
+            try {
+                fetcher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        batches.clear();
+        current = END;
+
+        if (LOCAL_LOGV) Log.v(TAG, "closed " + this);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override public String toString() {
+        return String.format(Locale.ENGLISH,
+            "RestoreFetcher{messages=%d, batchSize=%d, batches=%d, failed=%d, waits=%d, bytes=%d, bytesPerMessage=%d}",
+            messages.length,
+            batchSize,
+            batchesFetched,
+            failed,
+            waits,
+            bytes,
+            messages.length == 0 ? 0 : bytes / messages.length);
+    }
+
+    private FetchedMessage[] takeBatch() {
+        FetchedMessage[] batch = batches.poll();
+        if (batch == null) {
+            // the fetcher did not keep up
+            waits++;
+            try {
+                batch = batches.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                batch = END;
+            }
+        }
+        return batch;
+    }
+
+    private void fetchAll() {
+        try {
+            int start = 0;
+            while (!stopped && start < messages.length) {
+                final List<Message> batch = nextBatch(start);
+                start += batch.size();
+
+                batches.put(fetch(batch));
+                batchesFetched++;
+            }
+            batches.put(END);
+        } catch (InterruptedException ignored) {
+            // stopped by close()
+        } catch (MessagingException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Exception e) {
+        if (stopped) return;
+        failure = e;
+        try {
+            batches.put(END);
+        } catch (InterruptedException ignored) {
+            // stopped by close()
+        }
+    }
+
+    /**
+     * @return up to {@link #batchSize} messages of the same folder, starting at <code>start</code>
+     */
+    private List<Message> nextBatch(int start) {
+        final Folder folder = messages[start].getFolder();
+        final int end = Math.min(messages.length, start + batchSize);
+        final List<Message> batch = new ArrayList<Message>(end - start);
+        for (int i = start; i < end && messages[i].getFolder() == folder; i++) {
+            batch.add(messages[i]);
+            messages[i] = null; // help gc
+        }
+        return batch;
+    }
+
+    /**
+     * @throws MessagingException if authentication failed, other errors are recorded per message
+     */
+    private FetchedMessage[] fetch(List<Message> batch) throws MessagingException {
+        final BackupFolder folder = (BackupFolder) batch.get(0).getFolder();
+        final FetchedMessage[] fetched = new FetchedMessage[batch.size()];
+        final long fetchedBefore = folder.getFetchedBytes();
+        try {
+            if (LOCAL_LOGV) Log.v(TAG, "fetching " + batch.size() + " messages");
+            final Map<String, Message> contents = folder.fetchForRestore(batch);
+            for (int i = 0; i < fetched.length; i++) {
+                fetched[i] = toFetchedMessage(batch.get(i), contents);
+            }
+        } catch (MessagingException e) {
+            if (isAuthenticationFailure(e)) throw e;
+            Log.w(TAG, "error fetching batch, retrying messages one by one", e);
+            for (int i = 0; i < fetched.length && !stopped; i++) {
+                final Message message = batch.get(i);
+                try {
+                    fetched[i] = toFetchedMessage(message, folder.fetchForRestore(Collections.singletonList(message)));
+                } catch (MessagingException singleError) {
+                    if (isAuthenticationFailure(singleError)) throw singleError;
+                    fetched[i] = new FetchedMessage(message.getUid(), message, singleError);
+                    failed++;
+                }
+            }
+        }
+        bytes += folder.getFetchedBytes() - fetchedBefore;
+        return fetched;
+    }
+
+    private static boolean isAuthenticationFailure(MessagingException e) {
+        return e instanceof AuthenticationFailedException || e instanceof XOAuth2AuthenticationFailedException;
+    }
+
+    private FetchedMessage toFetchedMessage(Message message, Map<String, Message> contents) {
+        final Message content = contents.get(message.getUid());
+        if (content != null) {
+            return new FetchedMessage(message.getUid(), content, null);
+        } else {
+            failed++;
+            return new FetchedMessage(message.getUid(), message,
+                new MessagingException("message " + message.getUid() + " not returned by server"));
+        }
+    }
+
+    static class FetchedMessage {
+        final String uid;
+        /** the fetched parts of the message, or the message as found if {@link #error} is set */
+        final Message message;
+        /** set if the message could not be fetched */
+        final @Nullable MessagingException error;
+
+        FetchedMessage(String uid, Message message, @Nullable MessagingException error) {
+            this.uid = uid;
+            this.message = message;
+            this.error = error;
+        }
+    }
+}
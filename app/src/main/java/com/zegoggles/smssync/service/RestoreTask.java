@@ -3,15 +3,14 @@ package com.zegoggles.smssync.service;
 import android.annotation.SuppressLint;
 import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.provider.CallLog;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.util.Log;
 import com.fsck.k9.mail.AuthenticationFailedException;
-import com.fsck.k9.mail.FetchProfile;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.imap.XOAuth2AuthenticationFailedException;
@@ -22,6 +21,7 @@ import com.zegoggles.smssync.auth.TokenRefreshException;
 import com.zegoggles.smssync.auth.TokenRefresher;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.LookupCache;
 import com.zegoggles.smssync.mail.MessageConverter;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.state.RestoreState;
@@ -29,7 +29,6 @@ import com.zegoggles.smssync.service.state.SmsSyncState;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -47,7 +46,12 @@ import static com.zegoggles.smssync.service.state.SmsSyncState.UPDATING_THREADS;
 
 class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     private static final String ERROR = "error";
+    private static final int INSERT_BATCH_SIZE = 50;
+    /** above this number of threads the provider rebuilds all threads at once */
+    private static final int MAX_THREADS_TO_UPDATE = 50;
     private Set<String> smsIds = new HashSet<String>();
+    private Set<Long> touchedThreads = new HashSet<Long>();
+    private boolean unknownThreadTouched;
     private Set<String> callLogIds = new HashSet<String>();
     private Set<String> uids = new HashSet<String>();
 
@@ -57,12 +61,24 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     private final MessageConverter converter;
     private final TokenRefresher tokenRefresher;
     private final Preferences preferences;
+    private final @Nullable LookupCache lookupCache;
+    private @Nullable InsertBatch smsInserts, callLogInserts;
+    private long maxInsertedSmsDate;
 
     RestoreTask(SmsRestoreService service,
                 MessageConverter converter,
                 ContentResolver resolver,
                 TokenRefresher tokenRefresher) {
+        this(service, converter, resolver, tokenRefresher, null);
+    }
+
+    RestoreTask(SmsRestoreService service,
+                MessageConverter converter,
+                ContentResolver resolver,
+                TokenRefresher tokenRefresher,
+                @Nullable LookupCache lookupCache) {
         this.service = service;
+        this.lookupCache = lookupCache;
         this.converter = converter;
         this.resolver = resolver;
         this.tokenRefresher = tokenRefresher;
@@ -98,6 +114,9 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         final BackupImapStore imapStore = config.imapStore;
 
         int currentRestoredItem = config.currentRestoredItem;
+        boolean lookupCacheOpen = false;
+        RestoreFetcher fetcher = null;
+        ExistenceIndex existing = null;
         try {
             publishProgress(LOGIN);
             imapStore.checkSettings();
@@ -116,16 +135,31 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
             final int itemsToRestoreCount = config.maxRestore <= 0 ? msgs.size() : Math.min(msgs.size(), config.maxRestore);
 
             if (itemsToRestoreCount > 0) {
+                if (config.restoreCallLog && preferences.isContactSnapshotEnabled()) {
+                    loadContactSnapshot();
+                }
+                if (lookupCache != null) {
+                    lookupCache.open();
+                    converter.setLookupCache(lookupCache);
+                    lookupCacheOpen = true;
+                }
+                existing = ExistenceIndex.forMessages(resolver, msgs.subList(currentRestoredItem, itemsToRestoreCount));
+                smsInserts = new InsertBatch(resolver, existing, ExistenceIndex.Type.SMS, INSERT_BATCH_SIZE, new SmsInsertListener());
+                callLogInserts = new InsertBatch(resolver, existing, ExistenceIndex.Type.CALLLOG, INSERT_BATCH_SIZE, new CallLogInsertListener());
+                fetcher = new RestoreFetcher(msgs.subList(currentRestoredItem, itemsToRestoreCount),
+                        config.fetchBatchSize).start();
+                msgs.clear(); // the fetcher releases messages once they are handed out
+
                 for (; currentRestoredItem < itemsToRestoreCount && !isCancelled(); currentRestoredItem++) {
-                    DataType dataType = importMessage(msgs.get(currentRestoredItem));
+                    DataType dataType = importMessage(fetcher.next());
 
-                    msgs.set(currentRestoredItem, null); // help gc
                     publishProgress(new RestoreState(RESTORE, currentRestoredItem, itemsToRestoreCount, 0, 0, dataType, null));
                     if (currentRestoredItem % 50 == 0) {
                         //clear cache periodically otherwise SD card fills up
                         service.clearCache();
                     }
                 }
+                flushInserts();
                 updateAllThreadsIfAnySmsRestored();
             } else {
                 Log.d(TAG, "nothing to restore");
@@ -139,21 +173,48 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
                     Math.max(0, uids.size() - restoredCount),
                     null, null);
         } catch (XOAuth2AuthenticationFailedException e) {
+            flushInserts();
             return handleAuthError(config, currentRestoredItem, e);
         } catch (AuthenticationFailedException e) {
             return transition(SmsSyncState.ERROR, e);
         } catch (MessagingException e) {
             Log.e(TAG, ERROR, e);
+            flushInserts();
             updateAllThreadsIfAnySmsRestored();
             return transition(SmsSyncState.ERROR, e);
         } catch (IllegalStateException e) {
             // usually memory problems (Couldn't init cursor window)
             return transition(SmsSyncState.ERROR, e);
         } finally {
+            if (fetcher != null) {
+                fetcher.close();
+                service.appLogDebug("restore fetch: %s", fetcher);
+            }
+            if (existing != null) {
+                flushInserts();
+                service.appLogDebug("existing items: %s", existing);
+                service.appLogDebug("inserts: %s, %s", smsInserts, callLogInserts);
+            }
+            converter.releaseContactSnapshot();
+            if (lookupCacheOpen) {
+                converter.setLookupCache(null);
+                lookupCache.close();
+                service.appLogDebug("lookup cache: %s", lookupCache);
+            }
+            service.appLogDebug("imap phases: %s", imapStore.getPhaseTimings());
+            service.appLogDebug("imap compression: %s", imapStore.getCompressionStats());
             imapStore.closeFolders();
         }
     }
 
+    private void loadContactSnapshot() {
+        try {
+            converter.loadContactSnapshot();
+        } catch (SecurityException e) {
+            Log.w(TAG, "could not load contacts", e);
+        }
+    }
+
     private RestoreState handleAuthError(RestoreConfig config, int currentRestoredItem, XOAuth2AuthenticationFailedException e) {
         if (e.getStatus() == 400) {
             Log.d(TAG, "need to perform xoauth2 token refresh");
@@ -213,16 +274,16 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         App.post(changed);
     }
 
-    @SuppressWarnings("unchecked")
-    private DataType importMessage(Message message) {
-        uids.add(message.getUid());
+    private DataType importMessage(RestoreFetcher.FetchedMessage fetched) {
+        final Message message = fetched.message;
+        uids.add(fetched.uid);
 
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.BODY);
+        if (fetched.error != null) {
+            Log.e(TAG, ERROR, fetched.error);
+            return null;
+        }
         DataType dataType = null;
         try {
-            if (LOCAL_LOGV) Log.v(TAG, "fetching message uid " + message.getUid());
-            message.getFolder().fetch(Collections.singletonList(message), fp, null);
             dataType = converter.getDataType(message);
             //only restore sms+call log for now
             switch (dataType) {
@@ -256,19 +317,9 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
         if (type != null &&
               (type == Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX ||
                type == Telephony.TextBasedSmsColumns.MESSAGE_TYPE_SENT) &&
-            !smsExists(values)) {
-
-            final Uri uri = resolver.insert(Consts.SMS_PROVIDER, values);
-            if (uri != null) {
-                smsIds.add(uri.getLastPathSegment());
-                Long timestamp = values.getAsLong(Telephony.TextBasedSmsColumns.DATE);
-
-                if (timestamp != null && preferences.getDataTypePreferences().getMaxSyncedDate(SMS) < timestamp) {
-                    preferences.getDataTypePreferences().setMaxSyncedDate(SMS, timestamp);
-                }
+            smsInserts.insertIfMissing(values)) {
 
-                if (LOCAL_LOGV) Log.v(TAG, "inserted " + uri);
-            }
+            if (LOCAL_LOGV) Log.v(TAG, "queued sms");
         } else {
             if (LOCAL_LOGV) Log.d(TAG, "ignoring sms");
         }
@@ -277,71 +328,90 @@ class RestoreTask extends AsyncTask<RestoreConfig, RestoreState, RestoreState> {
     private void importCallLog(final Message message) throws MessagingException, IOException {
         if (LOCAL_LOGV) Log.v(TAG, "importCallLog(" + message + ")");
         final ContentValues values = converter.messageToContentValues(message);
-        if (!callLogExists(values)) {
-            final Uri uri = resolver.insert(Consts.CALLLOG_PROVIDER, values);
-            if (uri != null) callLogIds.add(uri.getLastPathSegment());
-        } else {
+        if (!callLogInserts.insertIfMissing(values)) {
             if (LOCAL_LOGV) Log.d(TAG, "ignoring call log");
         }
     }
 
-    private boolean callLogExists(ContentValues values) {
-        Cursor c = resolver.query(Consts.CALLLOG_PROVIDER,
-            new String[] { "_id" },
-            "date = ? AND number = ? AND duration = ? AND type = ?",
-            new String[]{
-                values.getAsString(CallLog.Calls.DATE),
-                values.getAsString(CallLog.Calls.NUMBER),
-                values.getAsString(CallLog.Calls.DURATION),
-                values.getAsString(CallLog.Calls.TYPE)
-            },
-            null
-        );
-        boolean exists = false;
-        if (c != null) {
-            exists = c.getCount() > 0;
-            c.close();
-        }
-        return exists;
+    /**
+     * Writes the queued rows, must happen before the threads are updated.
+     */
+    private void flushInserts() {
+        if (smsInserts != null) smsInserts.flush();
+        if (callLogInserts != null) callLogInserts.flush();
     }
 
-    private boolean smsExists(ContentValues values) {
-        // just assume equality on date+address+type
-        Cursor c = resolver.query(Consts.SMS_PROVIDER,
-            new String[] {"_id" },
-            "date = ? AND address = ? AND type = ?",
-            new String[] {
-                values.getAsString(Telephony.TextBasedSmsColumns.DATE),
-                values.getAsString(Telephony.TextBasedSmsColumns.ADDRESS),
-                values.getAsString(Telephony.TextBasedSmsColumns.TYPE)
-            },
-            null
-        );
-
-        boolean exists = false;
-        if (c != null) {
-            exists = c.getCount() > 0;
-            c.close();
+    private void updateAllThreadsIfAnySmsRestored() {
+        if (smsIds.size() > 0) {
+            updateThreads();
         }
-        return exists;
     }
 
-    private void updateAllThreadsIfAnySmsRestored() {
-        if (smsIds.size() > 0) {
+    private void updateThreads() {
+        // thread dates + states might be wrong, we need to force an update
+        publishProgress(UPDATING_THREADS);
+        final long start = SystemClock.elapsedRealtime();
+        if (unknownThreadTouched || touchedThreads.size() > MAX_THREADS_TO_UPDATE) {
             updateAllThreads();
+            service.appLogDebug("updated all threads in %dms (%d touched, unknown: %s)",
+                    SystemClock.elapsedRealtime() - start, touchedThreads.size(), unknownThreadTouched);
+        } else {
+            for (Long threadId : touchedThreads) {
+                updateThread(threadId);
+            }
+            service.appLogDebug("updated %d thread(s) in %dms",
+                    touchedThreads.size(), SystemClock.elapsedRealtime() - start);
         }
     }
 
     private void updateAllThreads() {
-        // thread dates + states might be wrong, we need to force a full update
         // unfortunately there's no direct way to do that in the SDK, but passing a
         // negative conversation id to delete should to the trick
-        publishProgress(UPDATING_THREADS);
-        Log.d(TAG, "updating threads");
+        Log.d(TAG, "updating all threads");
         resolver.delete(Uri.parse("content://sms/conversations/-1"), null, null);
         Log.d(TAG, "finished");
     }
 
+    private void updateThread(long threadId) {
+        // deleting from a conversation updates the thread afterwards, the selection matches no message
+        if (LOCAL_LOGV) Log.v(TAG, "updating thread " + threadId);
+        resolver.delete(Uri.parse("content://sms/conversations/" + threadId), "_id < 0", null);
+    }
+
+    private class SmsInsertListener implements InsertBatch.Listener {
+        @Override public void onInserted(ContentValues values, @Nullable Uri uri) {
+            if (uri == null) return;
+            smsIds.add(uri.getLastPathSegment());
+            final Long threadId = values.getAsLong(Telephony.TextBasedSmsColumns.THREAD_ID);
+            if (threadId != null && threadId > 0) {
+                touchedThreads.add(threadId);
+            } else {
+                // the provider assigns the thread
+                unknownThreadTouched = true;
+            }
+            final Long timestamp = values.getAsLong(Telephony.TextBasedSmsColumns.DATE);
+            if (timestamp != null && timestamp > maxInsertedSmsDate) {
+                maxInsertedSmsDate = timestamp;
+            }
+            if (LOCAL_LOGV) Log.v(TAG, "inserted " + uri);
+        }
+
+        @Override public void onBatchInserted() {
+            if (preferences.getDataTypePreferences().getMaxSyncedDate(SMS) < maxInsertedSmsDate) {
+                preferences.getDataTypePreferences().setMaxSyncedDate(SMS, maxInsertedSmsDate);
+            }
+        }
+    }
+
+    private class CallLogInsertListener implements InsertBatch.Listener {
+        @Override public void onInserted(ContentValues values, @Nullable Uri uri) {
+            if (uri != null) callLogIds.add(uri.getLastPathSegment());
+        }
+
+        @Override public void onBatchInserted() {
+        }
+    }
+
     protected Set<String> getSmsIds() {
         return smsIds;
     }
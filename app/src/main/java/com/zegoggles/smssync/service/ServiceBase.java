@@ -38,6 +38,7 @@ import com.zegoggles.smssync.App;
 import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.activity.MainActivity;
 import com.zegoggles.smssync.mail.BackupImapStore;
+import com.zegoggles.smssync.mail.ImapStorePool;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.Preferences;
 import com.zegoggles.smssync.service.state.State;
@@ -101,7 +102,14 @@ public abstract class ServiceBase extends Service {
         if (!BackupImapStore.isValidUri(uri)) {
             throw new MessagingException("No valid IMAP URI: "+uri);
         }
-        return new BackupImapStore(getApplicationContext(), uri, getAuthPreferences().isTrustAllCertificates());
+        final boolean trustAll = getAuthPreferences().isTrustAllCertificates();
+        final long keepAlive = getPreferences().getImapKeepAliveMillis();
+        if (keepAlive > 0) {
+            return ImapStorePool.getInstance().acquire(getApplicationContext(), uri, trustAll, keepAlive);
+        } else {
+            ImapStorePool.getInstance().clear();
+            return new BackupImapStore(getApplicationContext(), uri, trustAll);
+        }
     }
 
     protected AuthPreferences getAuthPreferences() {
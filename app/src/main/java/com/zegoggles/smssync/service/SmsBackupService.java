@@ -153,6 +153,7 @@ public class SmsBackupService extends ServiceBase {
             imapStore,
             0,
             getPreferences().getMaxItemsPerSync(),
+            getPreferences().getBackupBatchSize(),
             getPreferences().getBackupContactGroup(),
             backupType,
             enabledTypes,
@@ -15,6 +15,7 @@ import com.zegoggles.smssync.R;
 import com.zegoggles.smssync.auth.OAuth2Client;
 import com.zegoggles.smssync.auth.TokenRefresher;
 import com.zegoggles.smssync.contacts.ContactAccessor;
+import com.zegoggles.smssync.mail.LookupCache;
 import com.zegoggles.smssync.mail.MessageConverter;
 import com.zegoggles.smssync.mail.PersonLookup;
 import com.zegoggles.smssync.preferences.AuthPreferences;
@@ -95,12 +96,14 @@ public class SmsRestoreService extends ServiceBase {
                 restoreCallLog,
                 getPreferences().isRestoreStarredOnly(),
                 getPreferences().getMaxItemsPerRestore(),
-                0
+                0,
+                getPreferences().getRestoreBatchSize()
             );
 
             final AuthPreferences authPreferences = new AuthPreferences(this);
             new RestoreTask(this, converter, getContentResolver(),
-                    new TokenRefresher(service, new OAuth2Client(authPreferences.getOAuth2ClientId()), authPreferences)).execute(config);
+                    new TokenRefresher(service, new OAuth2Client(authPreferences.getOAuth2ClientId()), authPreferences),
+                    new LookupCache(this)).execute(config);
 
         } catch (MessagingException e) {
             postError(e);
@@ -0,0 +1,215 @@
+package com.zegoggles.smssync.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.preferences.DataTypePreferences;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Keeps track of the most recent synced item per data type during a backup.
+ * <p>
+ * Committing the shared preferences rewrites the whole file, so the watermark is only written
+ * back every few items or seconds, and on {@link #flush()}. In between, progress is appended to
+ * a small journal which {@link #recover()} replays if the process got killed before flushing.
+ * <p>
+ * Journal lines are either <code>base TYPE date id</code>, the watermark stored in the
+ * preferences when the journal was started, or <code>sync TYPE date id</code>. Entries are only
+ * replayed if the stored watermark still matches the base, so a reset or skip in between is not
+ * undone.
+ */
+class SyncCheckpoint {
+    static final String JOURNAL = "sync_checkpoint.journal";
+
+    private static final String BASE = "base";
+    private static final String SYNC = "sync";
+    private static final String UTF_8 = "UTF-8";
+
+    private final DataTypePreferences preferences;
+    private final File journal;
+    private final int flushItems;
+    private final long flushIntervalMillis;
+
+    private final Map<DataType, long[]> pending = new EnumMap<DataType, long[]>(DataType.class);
+    private OutputStream journalStream;
+    private int pendingItems;
+    private long lastFlush;
+
+    private int flushes;
+    private int journalWrites;
+    private long flushMillis;
+    private long maxFlushMillis;
+    private long journalMillis;
+
+    /**
+     * @param flushItems write the watermark back after this many items
+     * @param flushIntervalMillis or after this many milliseconds
+     */
+    SyncCheckpoint(DataTypePreferences preferences, File journal, int flushItems, long flushIntervalMillis) {
+        this.preferences = preferences;
+        this.journal = journal;
+        this.flushItems = flushItems;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.lastFlush = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Applies the progress recorded in a journal left behind by a backup which did not finish.
+     * @return the number of data types whose watermark was updated
+     */
+    int recover() {
+        if (!journal.exists()) {
+            return 0;
+        }
+        final Map<DataType, long[]> bases = new EnumMap<DataType, long[]>(DataType.class);
+        final Map<DataType, long[]> synced = new EnumMap<DataType, long[]>(DataType.class);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                if (fields.length != 4) {
+                    // incomplete last line
+                    continue;
+                }
+                try {
+                    final DataType type = DataType.valueOf(fields[1]);
+                    final long[] entry = {Long.parseLong(fields[2]), Long.parseLong(fields[3])};
+                    if (BASE.equals(fields[0])) {
+                        bases.put(type, entry);
+                        synced.remove(type);
+                    } else if (SYNC.equals(fields[0])) {
+                        synced.put(type, entry);
+                    }
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "ignoring journal entry " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error reading journal", e);
+        } finally {
+            closeQuietly(reader);
+        }
+
+        int recovered = 0;
+        for (Map.Entry<DataType, long[]> entry : synced.entrySet()) {
+            final DataType type = entry.getKey();
+            final long[] base = bases.get(type);
+            if (base != null &&
+                base[0] == preferences.getMaxSyncedDate(type) &&
+                base[1] == preferences.getMaxSyncedId(type)) {
+                preferences.setMaxSyncedDate(type, entry.getValue()[0], entry.getValue()[1]);
+                recovered++;
+            }
+        }
+        if (!journal.delete()) {
+            Log.w(TAG, "could not delete " + journal);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "recovered " + recovered + " watermark(s) from journal");
+        return recovered;
+    }
+
+    /**
+     * Records that items up to and including the given one have been backed up.
+     * @param date the date of the item, in the unit used by the provider
+     * @param id the id of the item
+     * @param items the number of items backed up since the last call
+     */
+    synchronized void record(DataType type, long date, long id, int items) {
+        appendToJournal(type, date, id);
+        pending.put(type, new long[]{date, id});
+        pendingItems += items;
+
+        if (pendingItems >= flushItems ||
+            SystemClock.elapsedRealtime() - lastFlush >= flushIntervalMillis) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the pending watermarks back to the preferences and discards the journal.
+     */
+    synchronized void flush() {
+        final long start = SystemClock.elapsedRealtime();
+        for (Map.Entry<DataType, long[]> entry : pending.entrySet()) {
+            preferences.setMaxSyncedDate(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        final boolean hadPending = !pending.isEmpty();
+        pending.clear();
+        pendingItems = 0;
+
+        closeQuietly(journalStream);
+        journalStream = null;
+        if (journal.exists() && !journal.delete()) {
+            Log.w(TAG, "could not delete " + journal);
+        }
+        lastFlush = SystemClock.elapsedRealtime();
+        if (hadPending) {
+            final long duration = lastFlush - start;
+            flushes++;
+            flushMillis += duration;
+            maxFlushMillis = Math.max(maxFlushMillis, duration);
+        }
+    }
+
+    synchronized int getFlushCount() {
+        return flushes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH,
+            "SyncCheckpoint{flushes=%d, flushTime=%dms, maxFlushTime=%dms, journalWrites=%d, journalTime=%dms}",
+            flushes, flushMillis, maxFlushMillis, journalWrites, journalMillis);
+    }
+
+    private void appendToJournal(DataType type, long date, long id) {
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            final StringBuilder lines = new StringBuilder();
+            if (journalStream == null) {
+                journalStream = new FileOutputStream(journal, true);
+            }
+            if (!pending.containsKey(type)) {
+                lines.append(line(BASE, type, preferences.getMaxSyncedDate(type), preferences.getMaxSyncedId(type)));
+            }
+            lines.append(line(SYNC, type, date, id));
+            // no fsync: data written to the kernel survives the process getting killed
+            journalStream.write(lines.toString().getBytes(UTF_8));
+            journalStream.flush();
+            journalWrites++;
+        } catch (IOException e) {
+            Log.w(TAG, "error writing journal", e);
+        } finally {
+            journalMillis += SystemClock.elapsedRealtime() - start;
+        }
+    }
+
+    private static String line(String kind, DataType type, long date, long id) {
+        return kind + " " + type.name() + " " + date + " " + id + "\n";
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
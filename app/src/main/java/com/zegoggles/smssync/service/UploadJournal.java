@@ -0,0 +1,214 @@
+package com.zegoggles.smssync.service;
+
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.fsck.k9.mail.Message;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.zegoggles.smssync.App.LOCAL_LOGV;
+import static com.zegoggles.smssync.App.TAG;
+
+/**
+ * Write-ahead journal of the batches sent to the server.
+ * <p>
+ * A batch is written to the journal before it is appended and marked as done once the server
+ * has acknowledged it and the sync watermark has been recorded. A batch which is not marked as
+ * done when the backup gets interrupted may or may not have reached the server;
+ * {@link #readPending()} returns it, so that the next backup can look it up on the server
+ * instead of uploading it again.
+ * <p>
+ * Journal lines are <code>plan SEQ TYPE</code>, followed by <code>item SEQ id date Message-ID</code>
+ * for every message of the batch, and <code>done SEQ</code>. The file is deleted whenever no
+ * batch is in flight.
+ */
+class UploadJournal {
+    static final String JOURNAL = "upload.journal";
+
+    private static final String PLAN = "plan";
+    private static final String ITEM = "item";
+    private static final String DONE = "done";
+    private static final String UTF_8 = "UTF-8";
+
+    private final File journal;
+    private OutputStream journalStream;
+    private int sequence;
+    private int inFlight;
+    private int planned, completed, pendingRead;
+
+    UploadJournal(File journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Writes a batch to the journal, before it is sent.
+     * @return the sequence number to pass to {@link #done(int)}
+     */
+    synchronized int plan(DataType type, List<Message> messages) {
+        final int seq = ++sequence;
+        final StringBuilder lines = new StringBuilder();
+        lines.append(PLAN).append(' ').append(seq).append(' ').append(type.name()).append('\n');
+        for (Message message : messages) {
+            lines.append(ITEM).append(' ').append(seq)
+                 .append(' ').append(field(Headers.get(message, Headers.ID)))
+                 .append(' ').append(field(Headers.get(message, Headers.DATE)))
+                 .append(' ').append(field(Headers.get(message, Headers.MESSAGE_ID)))
+                 .append('\n');
+        }
+        write(lines);
+        inFlight++;
+        planned++;
+        return seq;
+    }
+
+    /**
+     * Marks a batch as done, after the server acknowledged it and the watermark has been recorded.
+     */
+    synchronized void done(int seq) {
+        inFlight--;
+        completed++;
+        if (inFlight > 0) {
+            write(new StringBuilder(DONE).append(' ').append(seq).append('\n'));
+        } else {
+            clear();
+        }
+    }
+
+    /**
+     * @return the batches a previous backup planned but did not finish, in the order they were planned
+     */
+    synchronized List<Batch> readPending() {
+        final Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+        if (!journal.exists()) {
+            return new ArrayList<Batch>();
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                try {
+                    if (PLAN.equals(fields[0]) && fields.length == 3) {
+                        batches.put(fields[1], new Batch(DataType.valueOf(fields[2])));
+                    } else if (ITEM.equals(fields[0]) && fields.length == 5 && batches.containsKey(fields[1])) {
+                        final Item item = Item.parse(fields[2], fields[3], fields[4]);
+                        if (item != null) {
+                            batches.get(fields[1]).items.add(item);
+                        }
+                    } else if (DONE.equals(fields[0]) && fields.length == 2) {
+                        batches.remove(fields[1]);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // includes an incomplete last line
+                    Log.w(TAG, "ignoring journal entry " + line);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "error reading journal", e);
+        } finally {
+            closeQuietly(reader);
+        }
+        final List<Batch> pending = new ArrayList<Batch>();
+        for (Batch batch : batches.values()) {
+            if (!batch.items.isEmpty()) {
+                pending.add(batch);
+            }
+        }
+        pendingRead += pending.size();
+        if (LOCAL_LOGV) Log.v(TAG, pending.size() + " pending batch(es) in upload journal");
+        return pending;
+    }
+
+    /**
+     * Discards the journal.
+     */
+    synchronized void clear() {
+        closeQuietly(journalStream);
+        journalStream = null;
+        inFlight = 0;
+        if (journal.exists() && !journal.delete()) {
+            Log.w(TAG, "could not delete " + journal);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "UploadJournal{planned=%d, completed=%d, resumed=%d}",
+                planned, completed, pendingRead);
+    }
+
+    private void write(CharSequence lines) {
+        try {
+            if (journalStream == null) {
+                journalStream = new FileOutputStream(journal, true);
+            }
+            // no fsync: data written to the kernel survives the process getting killed
+            journalStream.write(lines.toString().getBytes(UTF_8));
+            journalStream.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "error writing journal", e);
+        }
+    }
+
+    private static String field(@Nullable String value) {
+        return value == null || value.isEmpty() ? "-" : value.trim().replace(' ', '_');
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static class Batch {
+        final DataType type;
+        final List<Item> items = new ArrayList<Item>();
+
+        Batch(DataType type) {
+            this.type = type;
+        }
+
+        @Override public String toString() {
+            return "Batch{type=" + type + ", items=" + items.size() + '}';
+        }
+    }
+
+    static class Item {
+        final long id;
+        final long date;
+        final String messageId;
+
+        Item(long id, long date, String messageId) {
+            this.id = id;
+            this.date = date;
+            this.messageId = messageId;
+        }
+
+        static @Nullable Item parse(String id, String date, String messageId) {
+            if ("-".equals(messageId)) return null;
+            try {
+                return new Item(Long.parseLong(id), Long.parseLong(date), messageId);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
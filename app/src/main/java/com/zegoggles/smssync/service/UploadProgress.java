@@ -0,0 +1,53 @@
+package com.zegoggles.smssync.service;
+
+/**
+ * Progress of a backup, shared by all upload streams.
+ */
+class UploadProgress {
+    private int backedUpItems;
+    private int itemsToSync;
+    private volatile boolean aborted;
+
+    UploadProgress(int itemsToSync) {
+        this.itemsToSync = itemsToSync;
+    }
+
+    synchronized void addBackedUpItems(int items) {
+        backedUpItems += items;
+    }
+
+    /**
+     * An item could not be converted and will not be backed up.
+     */
+    synchronized void skipItem() {
+        itemsToSync -= 1;
+    }
+
+    synchronized int getBackedUpItems() {
+        return backedUpItems;
+    }
+
+    synchronized int getItemsToSync() {
+        return itemsToSync;
+    }
+
+    /**
+     * Stops all streams after their current batch.
+     */
+    void abort() {
+        aborted = true;
+    }
+
+    boolean isAborted() {
+        return aborted;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UploadProgress{" +
+                "backedUpItems=" + backedUpItems +
+                ", itemsToSync=" + itemsToSync +
+                ", aborted=" + aborted +
+                '}';
+    }
+}
@@ -2,6 +2,8 @@ package com.zegoggles.smssync.utils;
 
 import android.content.Context;
 import android.util.Log;
+import androidx.annotation.Nullable;
+import com.zegoggles.smssync.mail.LookupCache;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -28,11 +30,26 @@ public class ThreadHelper {
                 }
             };
 
+    private @Nullable LookupCache lookupCache;
+
+    /**
+     * @param lookupCache persistent cache to consult before asking the provider, or null
+     */
+    public void setLookupCache(@Nullable LookupCache lookupCache) {
+        this.lookupCache = lookupCache;
+        threadIdCache.clear();
+    }
+
     public Long getThreadId(final Context context, final String recipient) {
         if (recipient == null || !threadsAvailable) return null;
 
         if (threadIdCache.containsKey(recipient)) {
             return threadIdCache.get(recipient);
+        }
+        final Long cached = lookupCache == null ? null : lookupCache.getThreadId(recipient);
+        if (cached != null) {
+            threadIdCache.put(recipient, cached);
+            return cached;
         } else if (getOrCreateThreadId == null) {
             try {
                 telephonyThreads = Class.forName("android.provider.Telephony$Threads");
@@ -49,7 +66,10 @@ public class ThreadHelper {
             final Long id = (Long) getOrCreateThreadId.invoke(telephonyThreads,
                     context, recipient);
             if (LOCAL_LOGV) Log.v(TAG, "threadId for " + recipient + ": " + id);
-            if (id != null) threadIdCache.put(recipient, id);
+            if (id != null) {
+                threadIdCache.put(recipient, id);
+                if (lookupCache != null) lookupCache.putThreadId(recipient, id);
+            }
 
             return id;
         } catch (InvocationTargetException e) {
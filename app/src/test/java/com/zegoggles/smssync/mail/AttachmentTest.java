@@ -1,11 +1,20 @@
 package com.zegoggles.smssync.mail;
 
+import android.content.ContentResolver;
+import android.net.Uri;
+import com.fsck.k9.mail.Body;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.zegoggles.smssync.mail.Attachment.encodeRFC2231;
+import static org.robolectric.Shadows.shadowOf;
 
 @RunWith(RobolectricTestRunner.class)
 public class AttachmentTest {
@@ -15,4 +24,35 @@ public class AttachmentTest {
         assertThat(encodeRFC2231("key", "value")).isEqualTo("; key=value");
         assertThat(encodeRFC2231("key", "\"*über*")).isEqualTo("; key*=UTF-8''%22%2A%C3%BCber%2A");
     }
+
+    @Test
+    public void shouldReadAttachmentOnceWhenReplaying() throws Exception {
+        final int size = 3 * 1024 * 1024;
+        Body body = createBody(size);
+        long bytesRead = Attachment.getBytesRead();
+
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        Attachment.startReplay();
+        try {
+            // size calculation and actual write
+            body.writeTo(first);
+            body.writeTo(second);
+        } finally {
+            Attachment.endReplay();
+        }
+
+        assertThat(Attachment.getBytesRead() - bytesRead).isEqualTo(size);
+        assertThat(first.size()).isGreaterThan(size * 4 / 3);
+        assertThat(second.toByteArray()).isEqualTo(first.toByteArray());
+    }
+
+    private static Body createBody(int size) throws Exception {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        Uri uri = Uri.parse("content://mms/part/" + size);
+        shadowOf(resolver).registerInputStream(uri, new ByteArrayInputStream(data));
+        return Attachment.createPartFromUri(resolver, uri, "video.mp4", "video/mp4").getBody();
+    }
 }
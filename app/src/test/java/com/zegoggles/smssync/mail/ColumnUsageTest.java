@@ -0,0 +1,53 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.internet.MimeMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ColumnUsageTest {
+    private ColumnUsage usage;
+
+    @Before public void before() {
+        usage = new ColumnUsage();
+    }
+
+    @Test public void shouldRecordColumnsReadByHeaderGenerator() throws Exception {
+        Map<String, String> row = new HashMap<String, String>();
+        row.put("_id", "1");
+        row.put("date", "1000");
+        row.put("msg_box", "1");
+
+        new HeaderGenerator("ref", 1).setHeaders(new MimeMessage(), usage.track(DataType.MMS, RowValues.of(row)),
+                DataType.MMS, "1234", "1", new Date(), 0);
+
+        assertThat(usage.getUsedColumns(DataType.MMS)).containsExactly("_id", "m_type", "date", "thread_id", "read");
+        assertThat(usage.getUsedColumns(DataType.SMS)).isEmpty();
+    }
+
+    @Test public void shouldReportMissingAndUnusedColumns() throws Exception {
+        Map<String, String> row = new HashMap<String, String>();
+        row.put("_id", "1");
+        row.put("body", "hello");
+        usage.recordRow(DataType.SMS, RowValues.of(row));
+
+        MessageRow tracked = usage.track(DataType.SMS, RowValues.of(row));
+        tracked.getString("_id");
+        tracked.getLong("address", 0);
+
+        assertThat(usage.report(DataType.SMS, new String[]{"_id", "body"}))
+                .isEqualTo("SMS: 1 rows, 2 columns, 6 chars/row, used=[_id, address], missing=[address], unused=[body]");
+    }
+
+    @Test public void shouldReportNoRows() throws Exception {
+        assertThat(usage.report(DataType.CALLLOG, null)).isEqualTo("CALLLOG: no rows");
+    }
+}
@@ -26,7 +26,7 @@ public class ConversionResultTest {
         Message message = mock(Message.class);
         when(message.getHeader(anyString())).thenReturn(new String[] {});
         Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        result.add(message, RowValues.of(map));
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(-1);
     }
@@ -36,7 +36,7 @@ public class ConversionResultTest {
         Message message = mock(Message.class);
         when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "12345" });
         Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        result.add(message, RowValues.of(map));
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(12345);
     }
@@ -46,7 +46,7 @@ public class ConversionResultTest {
         Message message = mock(Message.class);
         when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "foo" });
         Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        result.add(message, RowValues.of(map));
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(-1);
     }
@@ -57,13 +57,47 @@ public class ConversionResultTest {
         when(message.getHeader(Headers.DATE)).thenReturn(new String[] { "12345" });
 
         Map<String, String> map = new HashMap<String, String>();
-        result.add(message, map);
+        result.add(message, RowValues.of(map));
         assertThat(result.isEmpty()).isFalse();
         assertThat(result.getMaxDate()).isEqualTo(12345);
 
         Message newerMessage = mock(Message.class);
         when(newerMessage.getHeader(Headers.DATE)).thenReturn(new String[]{"123456789"});
-        result.add(newerMessage, map);
+        result.add(newerMessage, RowValues.of(map));
         assertThat(result.getMaxDate()).isEqualTo(123456789);
     }
+
+    @Test public void shouldRememberIdOfMostRecentMessage() throws Exception {
+        ConversionResult result = new ConversionResult(DataType.SMS);
+        Map<String, String> map = new HashMap<String, String>();
+        result.add(message("100", "3"), RowValues.of(map));
+        result.add(message("100", "2"), RowValues.of(map));
+        assertThat(result.getMaxDate()).isEqualTo(100);
+        assertThat(result.getMaxId()).isEqualTo(3);
+
+        result.add(message("200", "1"), RowValues.of(map));
+        assertThat(result.getMaxDate()).isEqualTo(200);
+        assertThat(result.getMaxId()).isEqualTo(1);
+    }
+
+    @Test public void shouldMergeMaxDateAndId() throws Exception {
+        Map<String, String> map = new HashMap<String, String>();
+        ConversionResult result = new ConversionResult(DataType.SMS);
+        result.add(message("100", "5"), RowValues.of(map));
+        ConversionResult other = new ConversionResult(DataType.SMS);
+        other.add(message("100", "6"), RowValues.of(map));
+
+        result.addAll(other);
+
+        assertThat(result.size()).isEqualTo(2);
+        assertThat(result.getMaxDate()).isEqualTo(100);
+        assertThat(result.getMaxId()).isEqualTo(6);
+    }
+
+    private static Message message(String date, String id) {
+        Message message = mock(Message.class);
+        when(message.getHeader(Headers.DATE)).thenReturn(new String[] { date });
+        when(message.getHeader(Headers.ID)).thenReturn(new String[] { id });
+        return message;
+    }
 }
@@ -0,0 +1,64 @@
+package com.zegoggles.smssync.mail;
+
+import android.database.MatrixCursor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class CursorRowTest {
+    private MatrixCursor cursor;
+    private CursorRow row;
+
+    @Before public void before() {
+        cursor = new MatrixCursor(new String[] {"_id", "date", "body", "type"});
+        cursor.addRow(new Object[] {1L, 1400000000000L, "hello", null});
+        cursor.addRow(new Object[] {2L, 1400000001000L, "world", "foo"});
+        row = new CursorRow(cursor);
+    }
+
+    @Test public void shouldReadTypedValues() throws Exception {
+        cursor.moveToFirst();
+        assertThat(row.getLong("_id", -1)).isEqualTo(1L);
+        assertThat(row.getLong("date", -1)).isEqualTo(1400000000000L);
+        assertThat(row.getString("body")).isEqualTo("hello");
+        assertThat(row.getInt("type", -1)).isEqualTo(-1);
+        assertThat(row.getString("type")).isNull();
+    }
+
+    @Test public void shouldReturnDefaultForMissingColumns() throws Exception {
+        cursor.moveToFirst();
+        assertThat(row.getString("address")).isNull();
+        assertThat(row.getLong("address", 42)).isEqualTo(42);
+    }
+
+    @Test public void shouldFollowCursor() throws Exception {
+        cursor.moveToFirst();
+        assertThat(row.getString("body")).isEqualTo("hello");
+        cursor.moveToNext();
+        assertThat(row.getString("body")).isEqualTo("world");
+        assertThat(row.isFor(cursor)).isTrue();
+    }
+
+    @Test public void shouldDetachRow() throws Exception {
+        cursor.moveToFirst();
+        MessageRow detached = row.detach();
+        cursor.moveToNext();
+
+        assertThat(detached.getString("body")).isEqualTo("hello");
+        assertThat(detached.getLong("date", -1)).isEqualTo(1400000000000L);
+        assertThat(detached.getInt("type", -1)).isEqualTo(-1);
+        assertThat(detached.detach()).isSameAs(detached);
+        assertThat(detached.getSchema()).isSameAs(row.getSchema());
+    }
+
+    @Test public void shouldResolveColumnIndexes() throws Exception {
+        RowSchema schema = row.getSchema();
+        assertThat(schema.size()).isEqualTo(4);
+        assertThat(schema.indexOf("body")).isEqualTo(2);
+        assertThat(schema.indexOf("address")).isEqualTo(-1);
+    }
+}
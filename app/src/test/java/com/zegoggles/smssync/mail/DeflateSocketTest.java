@@ -0,0 +1,206 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class DeflateSocketTest {
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+    private ImapServer imapServer;
+    private Future<List<String>> server;
+
+    @Before public void before() throws Exception {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        executor = Executors.newSingleThreadExecutor();
+        imapServer = new ImapServer(serverSocket);
+        server = executor.submit(imapServer);
+    }
+
+    @After public void after() throws Exception {
+        executor.shutdownNow();
+        serverSocket.close();
+    }
+
+    @Test public void shouldCompressAfterServerAcceptedCommand() throws Exception {
+        DeflateSocket.Stats stats = new DeflateSocket.Stats();
+        DeflateSocket socket = new DeflateSocket(new Socket(), stats);
+        socket.connect(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+        socket.setSoTimeout(5000);
+        // streams are obtained once, like the IMAP connection does
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+
+        assertThat(readLine(in)).contains("COMPRESS=DEFLATE");
+
+        send(out, "1 COMPRESS DEFLATE\r\n");
+        assertThat(socket.isCompressed()).isFalse();
+        assertThat(readLine(in)).isEqualTo("1 OK DEFLATE active");
+        assertThat(socket.isCompressed()).isTrue();
+        assertThat(stats.toString()).contains("connections=1,");
+
+        String message = createMessage();
+        send(out, "2 APPEND \"SMS\" {" + message.length() + "+}\r\n" + message + "\r\n");
+        assertThat(readLine(in)).isEqualTo("2 OK APPEND completed");
+        send(out, "3 LOGOUT\r\n");
+        assertThat(readLine(in)).isEqualTo("* BYE");
+        assertThat(readLine(in)).isEqualTo("3 OK LOGOUT completed");
+        socket.close();
+
+        List<String> received = server.get(5, TimeUnit.SECONDS);
+        assertThat(received).containsExactly(
+            "1 COMPRESS DEFLATE",
+            "2 APPEND \"SMS\" {" + message.length() + "+}",
+            message,
+            "3 LOGOUT").inOrder();
+
+        assertThat(stats.getDataOut()).isGreaterThan((long) message.length());
+        assertThat(stats.getWireOut()).isLessThan(stats.getDataOut() / 4);
+        assertThat(stats.getWireIn()).isGreaterThan(0L);
+        assertThat(stats.getDataIn()).isGreaterThan(0L);
+    }
+
+    @Test public void shouldNotCompressIfServerRefuses() throws Exception {
+        imapServer.refuseCompression = true;
+        DeflateSocket socket = new DeflateSocket(new Socket(), new DeflateSocket.Stats());
+        socket.connect(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+        socket.setSoTimeout(5000);
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        readLine(in);
+
+        send(out, "1 COMPRESS DEFLATE\r\n");
+        assertThat(readLine(in)).isEqualTo("1 NO not now");
+        send(out, "2 LOGOUT\r\n");
+        assertThat(readLine(in)).isEqualTo("* BYE");
+        assertThat(readLine(in)).isEqualTo("2 OK LOGOUT completed");
+        assertThat(socket.isCompressed()).isFalse();
+        socket.close();
+    }
+
+    @Test public void shouldOnlyCompressAfterResponseToCompressCommand() throws Exception {
+        DeflateSocket socket = new DeflateSocket(new Socket(), new DeflateSocket.Stats());
+        socket.connect(new InetSocketAddress(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+        socket.setSoTimeout(5000);
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        readLine(in);
+
+        // an OK with another tag, and a command which only looks similar
+        send(out, "1 NOOP\r\n");
+        assertThat(readLine(in)).isEqualTo("1 BAD unknown command");
+        send(out, "2 X-COMPRESS DEFLATE\r\n");
+        assertThat(readLine(in)).isEqualTo("2 BAD unknown command");
+        assertThat(socket.isCompressed()).isFalse();
+
+        send(out, "3 LOGOUT\r\n");
+        assertThat(readLine(in)).isEqualTo("* BYE");
+        assertThat(readLine(in)).isEqualTo("3 OK LOGOUT completed");
+        socket.close();
+    }
+
+    private static String createMessage() {
+        StringBuilder sb = new StringBuilder()
+            .append("Subject: SMS with 555-1234\r\n")
+            .append("X-smssync-datatype: SMS\r\n")
+            .append("\r\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append("Hello, this is message ").append(i).append(", see you later\r\n");
+        }
+        return sb.toString();
+    }
+
+    private static void send(OutputStream out, String command) throws IOException {
+        out.write(command.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        return line.toString("US-ASCII");
+    }
+
+    /**
+     * A stand-in for an IMAP server which supports COMPRESS=DEFLATE, for a single connection.
+     * @return the command lines and literals received
+     */
+    private static class ImapServer implements Callable<List<String>> {
+        private final ServerSocket serverSocket;
+        volatile boolean refuseCompression;
+
+        ImapServer(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+        }
+
+        @Override public List<String> call() throws Exception {
+            final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+            final Socket client = serverSocket.accept();
+            try {
+                // unbuffered, so that nothing compressed is read before switching
+                InputStream in = client.getInputStream();
+                OutputStream out = client.getOutputStream();
+                send(out, "* OK [CAPABILITY IMAP4rev1 LITERAL+ COMPRESS=DEFLATE] ready\r\n");
+
+                String line;
+                while (!(line = readLine(in)).isEmpty()) {
+                    received.add(line);
+                    final String tag = line.substring(0, line.indexOf(' '));
+                    if (line.endsWith(" COMPRESS DEFLATE") && refuseCompression) {
+                        send(out, tag + " NO not now\r\n");
+                    } else if (line.endsWith(" COMPRESS DEFLATE")) {
+                        send(out, tag + " OK DEFLATE active\r\n");
+                        in = new InflaterInputStream(in, new Inflater(true));
+                        out = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true), true);
+                    } else if (line.contains(" APPEND ")) {
+                        final int size = Integer.parseInt(line.substring(line.lastIndexOf('{') + 1, line.length() - 2));
+                        final byte[] literal = new byte[size];
+                        for (int n = 0; n < size; ) {
+                            n += in.read(literal, n, size - n);
+                        }
+                        received.add(new String(literal, "US-ASCII"));
+                        readLine(in);
+                        send(out, tag + " OK APPEND completed\r\n");
+                    } else if (line.endsWith("LOGOUT")) {
+                        send(out, "* BYE\r\n" + tag + " OK LOGOUT completed\r\n");
+                        break;
+                    } else {
+                        send(out, tag + " BAD unknown command\r\n");
+                    }
+                }
+            } finally {
+                client.close();
+            }
+            return received;
+        }
+    }
+}
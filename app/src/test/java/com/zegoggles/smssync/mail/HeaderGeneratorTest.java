@@ -2,6 +2,7 @@ package com.zegoggles.smssync.mail;
 
 import android.provider.CallLog;
 import android.provider.Telephony;
+import android.util.Log;
 import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.internet.MimeMessage;
 import org.junit.Before;
@@ -9,12 +10,20 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.zegoggles.smssync.App.TAG;
 import static com.zegoggles.smssync.mail.Headers.get;
+import static org.junit.Assume.assumeTrue;
 
 @RunWith(RobolectricTestRunner.class)
 public class HeaderGeneratorTest {
@@ -33,7 +42,7 @@ public class HeaderGeneratorTest {
 
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        generator.setHeaders(message, map, DataType.SMS, "1234", person, sent, 0);
+        generator.setHeaders(message, RowValues.of(map), DataType.SMS, "1234", person.getId(), sent, 0);
 
         assertThat(get(message, Headers.ADDRESS)).isEqualTo("1234");
         assertThat(get(message, Headers.DATATYPE)).isEqualTo("SMS");
@@ -63,7 +72,7 @@ public class HeaderGeneratorTest {
         map.put(Telephony.TextBasedSmsColumns.PROTOCOL, "protocol");
         map.put(Telephony.TextBasedSmsColumns.SERVICE_CENTER, "svc");
 
-        generator.setHeaders(message, map, DataType.SMS, "1234", person, sent, 0);
+        generator.setHeaders(message, RowValues.of(map), DataType.SMS, "1234", person.getId(), sent, 0);
 
         assertThat(get(message, Headers.ID)).isEqualTo("someId");
         assertThat(get(message, Headers.TYPE)).isEqualTo("type");
@@ -87,7 +96,7 @@ public class HeaderGeneratorTest {
         map.put(CallLog.Calls.DURATION, "duration");
         map.put(CallLog.Calls.DATE, "date");
 
-        generator.setHeaders(message, map, DataType.CALLLOG, "1234", person, sent, 0);
+        generator.setHeaders(message, RowValues.of(map), DataType.CALLLOG, "1234", person.getId(), sent, 0);
 
         assertThat(get(message, Headers.ID)).isEqualTo("id");
         assertThat(get(message, Headers.TYPE)).isEqualTo("type");
@@ -108,7 +117,7 @@ public class HeaderGeneratorTest {
         map.put(Telephony.BaseMmsColumns.DATE, "date");
         map.put(Telephony.BaseMmsColumns.READ, "read");
 
-        generator.setHeaders(message, map, DataType.MMS, "1234", person, sent, 0);
+        generator.setHeaders(message, RowValues.of(map), DataType.MMS, "1234", person.getId(), sent, 0);
 
         assertThat(get(message, Headers.ID)).isEqualTo("id");
         assertThat(get(message, Headers.TYPE)).isEqualTo("type");
@@ -123,6 +132,114 @@ public class HeaderGeneratorTest {
         Date sent = new Date();
         PersonRecord person = new PersonRecord(0, null, null, null);
 
-        generator.setHeaders(message, map, DataType.SMS, null, person, sent, 0);
+        generator.setHeaders(message, RowValues.of(map), DataType.SMS, null, person.getId(), sent, 0);
+    }
+
+    @Test public void shouldCreateSameMessageIdsAsBefore() throws Exception {
+        Random random = new Random(42);
+        String[] addresses = { "1234", "+44 20 7946 0958", "", "null", "ünïcödé", "a@b.com" };
+        for (int i = 0; i < 1000; i++) {
+            Date sent = new Date(random.nextLong() >> random.nextInt(64));
+            String address = addresses[i % addresses.length];
+            int type = random.nextInt(7) - 1;
+            assertThat(HeaderGenerator.createMessageId(sent, address, type))
+                .isEqualTo(Reference.createMessageId(sent, address + "v2", type));
+        }
+        assertThat(HeaderGenerator.createMessageId(new Date(Long.MIN_VALUE), null, Integer.MIN_VALUE))
+            .isEqualTo(Reference.createMessageId(new Date(Long.MIN_VALUE), null + "v2", Integer.MIN_VALUE));
+    }
+
+    @Test public void shouldFormatSameDatesAsBefore() throws Exception {
+        Random random = new Random(42);
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            // mostly within the same second
+            time += random.nextInt(300) - 100;
+            assertThat(HeaderGenerator.toGMTString(time)).isEqualTo(Reference.toGMTString(new Date(time)));
+        }
+        for (long t : new long[] { 0, -1, -999, -1000, -1001, 999, 1000 }) {
+            assertThat(HeaderGenerator.toGMTString(t)).isEqualTo(Reference.toGMTString(new Date(t)));
+        }
+    }
+
+    @Test public void shouldCreateSameReferencesAsBefore() throws Exception {
+        for (String id : new String[] { "1", "123456789", null, "%s" }) {
+            assertThat(generator.createReference(id))
+                .isEqualTo(String.format(Reference.REFERENCE_UID_TEMPLATE, "ref", id));
+        }
+    }
+
+    /**
+     * Compares time and bytes allocated per message with the previous implementation.
+     */
+    @Test public void shouldBeCheaperThanBefore() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        final long thread = Thread.currentThread().getId();
+        final int iterations = 10000;
+        final Date sent = new Date(1500000000000L);
+
+        // warm up both
+        for (int i = 0; i < iterations; i++) {
+            Reference.createMessageId(sent, "+44 20 7946 0958v2", i);
+            Reference.toGMTString(new Date());
+            HeaderGenerator.createMessageId(sent, "+44 20 7946 0958", i);
+            HeaderGenerator.toGMTString(System.currentTimeMillis());
+        }
+
+        long start = System.nanoTime();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            Reference.createMessageId(sent, "+44 20 7946 0958" + "v2", i);
+            Reference.toGMTString(new Date());
+            String.format(Reference.REFERENCE_UID_TEMPLATE, "ref", "123");
+        }
+        final long referenceBytes = (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+        final long referenceNanos = (System.nanoTime() - start) / iterations;
+
+        start = System.nanoTime();
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            HeaderGenerator.createMessageId(sent, "+44 20 7946 0958", i);
+            HeaderGenerator.toGMTString(System.currentTimeMillis());
+            generator.createReference("123");
+        }
+        final long bytes = (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+        final long nanos = (System.nanoTime() - start) / iterations;
+
+        assertThat(bytes).isLessThan(referenceBytes / 4);
+        // timings vary too much between machines to assert on
+        Log.d(TAG, String.format(Locale.ENGLISH, "header generation: %dns (was %dns), %d bytes (was %d bytes)",
+            nanos, referenceNanos, bytes, referenceBytes));
+    }
+
+    /**
+     * The previous implementation, to compare against.
+     */
+    private static class Reference {
+        static final String REFERENCE_UID_TEMPLATE = "<%s.%s@sms-backup-plus.local>";
+        static final String MSG_ID_TEMPLATE = "<%s@sms-backup-plus.local>";
+
+        static String toGMTString(Date date) {
+            SimpleDateFormat sdf = new SimpleDateFormat("d MMM y HH:mm:ss 'GMT'", Locale.US);
+            sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return sdf.format(date);
+        }
+
+        static String createMessageId(Date sent, String address, int type) throws Exception {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(Long.toString(sent.getTime()).getBytes("UTF-8"));
+            if (address != null) {
+                digest.update(address.getBytes("UTF-8"));
+            }
+            digest.update(Integer.toString(type).getBytes("UTF-8"));
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format(Locale.ENGLISH, "%02x", b));
+            }
+            return String.format(Locale.ENGLISH, MSG_ID_TEMPLATE, sb.toString());
+        }
     }
 }
@@ -0,0 +1,71 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class ImageTranscoderTest {
+    ContentResolver resolver;
+    ImageTranscoder transcoder;
+
+    @Before public void before() {
+        resolver = RuntimeEnvironment.application.getContentResolver();
+        transcoder = new ImageTranscoder(resolver, 1600, 2);
+    }
+
+    @Test public void shouldOnlyTranscodeStillImages() throws Exception {
+        assertThat(ImageTranscoder.canTranscode("image/jpeg")).isTrue();
+        assertThat(ImageTranscoder.canTranscode("IMAGE/PNG")).isTrue();
+        assertThat(ImageTranscoder.canTranscode("image/gif")).isFalse();
+        assertThat(ImageTranscoder.canTranscode("video/mp4")).isFalse();
+        assertThat(ImageTranscoder.canTranscode(null)).isFalse();
+    }
+
+    @Test public void shouldCalculateSampleSize() throws Exception {
+        assertThat(ImageTranscoder.getSampleSize(1600, 1600)).isEqualTo(1);
+        assertThat(ImageTranscoder.getSampleSize(3199, 1600)).isEqualTo(1);
+        assertThat(ImageTranscoder.getSampleSize(3200, 1600)).isEqualTo(2);
+        assertThat(ImageTranscoder.getSampleSize(4032, 1024)).isEqualTo(2);
+        assertThat(ImageTranscoder.getSampleSize(8000, 1024)).isEqualTo(4);
+    }
+
+    @Test public void shouldKeepSmallImagesAndRecordHash() throws Exception {
+        byte[] data = new byte[10 * 1024];
+        new Random(1).nextBytes(data);
+        Uri uri = Uri.parse("content://mms/part/1");
+        shadowOf(resolver).registerInputStream(uri, new ByteArrayInputStream(data));
+
+        ImageTranscoder.Result result = transcoder.submit(uri).get();
+
+        assertThat(result.data).isNull();
+        assertThat(result.originalSize).isEqualTo(data.length);
+        assertThat(result.originalHash).isEqualTo(sha256(data));
+        assertThat(transcoder.getTranscodedCount()).isEqualTo(0);
+        assertThat(transcoder.getBytesSaved()).isEqualTo(0);
+    }
+
+    @Test public void shouldRenameTranscodedParts() throws Exception {
+        assertThat(MmsSupport.toJpegFileName("IMG_0001.png")).isEqualTo("IMG_0001.jpg");
+        assertThat(MmsSupport.toJpegFileName("photo")).isEqualTo("photo.jpg");
+        assertThat(MmsSupport.toJpegFileName(null)).isNull();
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        String hex = new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(data)).toString(16);
+        while (hex.length() < 64) hex = "0" + hex;
+        return hex;
+    }
+}
@@ -0,0 +1,204 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import androidx.annotation.NonNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class LookupCacheTest {
+    private static final String NAME = "test_lookup_cache.db";
+
+    private Context context;
+    private LookupCache cache;
+
+    @Before public void before() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(NAME);
+        cache = newCache();
+    }
+
+    @After public void after() {
+        cache.close();
+    }
+
+    @Test public void shouldReturnNullForUnknownAddress() {
+        cache.validate(1, 1);
+        assertThat(cache.getPerson("1234")).isNull();
+        assertThat(cache.getThreadId("1234")).isNull();
+    }
+
+    @Test public void shouldPersistPersonAcrossInstances() {
+        cache.validate(1, 1);
+        cache.putPerson("1234", 23, "Testor Test", "foo@test.com");
+        cache.close();
+
+        cache = newCache();
+        cache.validate(1, 1);
+        PersonRecord record = cache.getPerson("1234");
+        assertThat(record).isNotNull();
+        assertThat(record.getContactId()).isEqualTo(23L);
+        assertThat(record.getName()).isEqualTo("Testor Test");
+        assertThat(record.getEmail()).isEqualTo("foo@test.com");
+        assertThat(record.getNumber()).isEqualTo("1234");
+    }
+
+    @Test public void shouldCacheUnknownPerson() {
+        cache.validate(1, 1);
+        cache.putPerson("1234", 0, null, null);
+
+        PersonRecord record = cache.getPerson("1234");
+        assertThat(record).isNotNull();
+        assertThat(record.isUnknown()).isTrue();
+        assertThat(record.getEmail()).isEqualTo("1234@unknown.email");
+    }
+
+    @Test public void shouldInvalidatePersonsWhenContactsVersionChanges() {
+        cache.validate(1, 1);
+        cache.putPerson("1234", 23, "Testor Test", null);
+        cache.putThreadId("1234", 42);
+
+        cache.validate(2, 1);
+        assertThat(cache.getPerson("1234")).isNull();
+        assertThat(cache.getThreadId("1234")).isEqualTo(42L);
+    }
+
+    @Test public void shouldInvalidateThreadsWhenThreadsVersionChanges() {
+        cache.validate(1, 1);
+        cache.putPerson("1234", 23, "Testor Test", null);
+        cache.putThreadId("1234", 42);
+
+        cache.validate(1, 2);
+        assertThat(cache.getPerson("1234")).isNotNull();
+        assertThat(cache.getThreadId("1234")).isNull();
+    }
+
+    @Test public void shouldInvalidateEverythingIfVersionIsUnknown() {
+        cache.validate(1, 1);
+        cache.putPerson("1234", 23, "Testor Test", null);
+        cache.putThreadId("1234", 42);
+
+        cache.validate(LookupCache.UNKNOWN_VERSION, LookupCache.UNKNOWN_VERSION);
+        assertThat(cache.getPerson("1234")).isNull();
+        assertThat(cache.getThreadId("1234")).isNull();
+    }
+
+    @Test public void shouldInvalidatePersonsWhenContactsChange() {
+        cache.open();
+        cache.validate(1, 1);
+        cache.putPerson("1234", 23, "Testor Test", null);
+        final int invalidations = cache.getInvalidations();
+
+        context.getContentResolver().notifyChange(ContactsContract.Contacts.CONTENT_URI, null);
+
+        assertThat(cache.getPerson("1234")).isNull();
+        assertThat(cache.getInvalidations()).isEqualTo(invalidations + 1);
+    }
+
+    @Test public void shouldCountHitsAndMisses() {
+        cache.validate(1, 1);
+        cache.putPerson("1234", 23, "Testor Test", null);
+        cache.getPerson("1234");
+        cache.getPerson("5678");
+        cache.getThreadId("1234");
+
+        assertThat(cache.toString()).isEqualTo(
+            "LookupCache{personHits=1, personMisses=1, threadHits=0, threadMisses=1, invalidations=2}");
+    }
+
+    @Test public void shouldKeepThreadsIfUnchanged() {
+        ThreadsProvider threads = Robolectric.buildContentProvider(ThreadsProvider.class).create("mms-sms").get();
+        threads.maxId = 10;
+        threads.count = 3;
+
+        cache.open();
+        cache.putThreadId("1234", 42);
+        cache.close();
+        assertThat(threads.queries).isEqualTo(2);
+
+        cache = newCache();
+        cache.open();
+        assertThat(cache.getThreadId("1234")).isEqualTo(42L);
+        cache.close();
+        assertThat(threads.queries).isEqualTo(3);
+
+        threads.count = 2;
+        cache = newCache();
+        cache.open();
+        assertThat(cache.getThreadId("1234")).isNull();
+    }
+
+    @Test public void shouldRestampThreadsIfChanged() {
+        ThreadsProvider threads = Robolectric.buildContentProvider(ThreadsProvider.class).create("mms-sms").get();
+        threads.maxId = 10;
+        threads.count = 3;
+
+        cache.open();
+        cache.putThreadId("1234", 42);
+        cache.close();
+
+        cache = newCache();
+        cache.open();
+        threads.maxId = 11;
+        threads.count = 4;
+        context.getContentResolver().notifyChange(Uri.parse("content://mms-sms/conversations"), null);
+        cache.close();
+        assertThat(threads.queries).isEqualTo(4);
+
+        cache = newCache();
+        cache.open();
+        assertThat(cache.getThreadId("1234")).isEqualTo(42L);
+    }
+
+    private LookupCache newCache() {
+        return new LookupCache(context, context.getContentResolver(), NAME);
+    }
+
+    /**
+     * Answers the aggregate threads query like the telephony provider.
+     */
+    public static class ThreadsProvider extends ContentProvider {
+        long maxId, count;
+        int queries;
+
+        @Override public boolean onCreate() {
+            return true;
+        }
+
+        @Override public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            queries++;
+            MatrixCursor cursor = new MatrixCursor(projection);
+            cursor.addRow(new Object[]{maxId, count});
+            return cursor;
+        }
+
+        @Override public String getType(@NonNull Uri uri) {
+            return null;
+        }
+
+        @Override public Uri insert(@NonNull Uri uri, ContentValues values) {
+            return null;
+        }
+
+        @Override public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return 0;
+        }
+    }
+}
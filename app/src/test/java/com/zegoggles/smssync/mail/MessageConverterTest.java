@@ -2,6 +2,7 @@ package com.zegoggles.smssync.mail;
 
 import android.content.ContentValues;
 import android.database.MatrixCursor;
+import android.provider.BaseColumns;
 import android.provider.CallLog;
 import android.provider.Telephony;
 import com.fsck.k9.mail.Address;
@@ -22,10 +23,12 @@ import org.robolectric.RuntimeEnvironment;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Collections;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -125,6 +128,24 @@ public class MessageConverterTest {
         assertThat(res.getMessages().get(0).isSet(Flag.SEEN)).isTrue();
     }
 
+    @Test public void testConvertMessagesSkipsIndexedRows() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[] {BaseColumns._ID, Telephony.TextBasedSmsColumns.DATE, Telephony.TextBasedSmsColumns.ADDRESS} );
+        cursor.addRow(new Object[]{ "1", "1420759456762", "foo" });
+        cursor.moveToFirst();
+
+        MessageIndex index = new MessageIndex(RuntimeEnvironment.application, null);
+        index.addScanned(Collections.singletonList(
+            new MessageIndex.Entry(DataType.SMS, 1, 1420759456762L, "<a@sms-backup-plus.local>", 0)));
+        messageConverter.setMessageIndex(index);
+
+        ConversionResult res = messageConverter.convertMessages(cursor, DataType.SMS);
+        assertThat(res.isEmpty()).isTrue();
+        assertThat(res.getSkipped()).isEqualTo(1);
+        assertThat(res.getMaxDate()).isEqualTo(1420759456762L);
+        assertThat(res.getMaxId()).isEqualTo(1L);
+        verifyZeroInteractions(personLookup);
+    }
+
     @Test public void testConvertMessagesSeenFlagUnreadWithSMS() throws Exception {
         MatrixCursor cursor = new MatrixCursor(new String[] {Telephony.TextBasedSmsColumns.ADDRESS, Telephony.TextBasedSmsColumns.READ} );
         cursor.addRow(new Object[]{ "foo", "0" });
@@ -64,20 +64,20 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldReturnNullIfMessageHasNoAddress() throws Exception {
         Map<String, String> map = new HashMap<String, String>();
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(map), DataType.SMS);
         assertThat(msg).isNull();
     }
 
     @Test public void testShouldGenerateSubjectWithNameForSMS() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", null, null);
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(mockMessage("1234", record)), DataType.SMS);
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("SMS with Test Testor");
     }
 
     @Test public void testShouldGenerateSMSMessageWithCorrectEncoding() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", null, null);
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(mockMessage("1234", record)), DataType.SMS);
         assertThat(msg.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)).isEqualTo(new String[] {
                 MimeUtil.ENC_QUOTED_PRINTABLE
         });
@@ -91,7 +91,7 @@ public class MessageGeneratorTest {
                 new Address("foo@bar.com"));
 
         when(mmsSupport.getDetails(any(Uri.class), any(AddressStyle.class))).thenReturn(details);
-        Message msg = generator.messageForDataType(mockMessage("1234", personRecord), DataType.MMS);
+        Message msg = generator.messageForDataType(RowValues.of(mockMessage("1234", personRecord)), DataType.MMS);
 
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("SMS with Foo Bar");
@@ -104,7 +104,7 @@ public class MessageGeneratorTest {
                 new Address("foo@bar.com"));
 
         when(mmsSupport.getDetails(any(Uri.class), any(AddressStyle.class))).thenReturn(details);
-        Message msg = generator.messageForDataType(mockMessage("1234", personRecord), DataType.MMS);
+        Message msg = generator.messageForDataType(RowValues.of(mockMessage("1234", personRecord)), DataType.MMS);
         assertThat(msg.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)).isEqualTo(new String[] {
                 MimeUtil.ENC_7BIT
         });
@@ -112,7 +112,7 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateMessageForCallLogOutgoing() throws Exception {
         PersonRecord record = new PersonRecord(-1, "Test Testor", null, null);
-        Message msg = generator.messageForDataType(mockCalllogMessage("1234", OUTGOING_TYPE, record), CALLLOG);
+        Message msg = generator.messageForDataType(RowValues.of(mockCalllogMessage("1234", OUTGOING_TYPE, record)), CALLLOG);
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("Call with Test Testor");
         assertThat(msg.getFrom()[0]).isEqualTo(me);
@@ -121,13 +121,13 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateMessageForCallLogIncoming() throws Exception {
         PersonRecord record = new PersonRecord(-1, "Test Testor", null, null);
-        Message message = generator.messageForDataType(mockCalllogMessage("1234", INCOMING_TYPE, record), CALLLOG);
+        Message message = generator.messageForDataType(RowValues.of(mockCalllogMessage("1234", INCOMING_TYPE, record)), CALLLOG);
         assertMessage(message);
     }
 
     @Test public void testShouldGenerateMessageForCallLogMissed() throws Exception {
         PersonRecord record = new PersonRecord(-1, "Test Testor", null, null);
-        Message message = generator.messageForDataType(mockCalllogMessage("1234", MISSED_TYPE, record), CALLLOG);
+        Message message = generator.messageForDataType(RowValues.of(mockCalllogMessage("1234", MISSED_TYPE, record)), CALLLOG);
         assertMessage(message);
     }
 
@@ -140,7 +140,7 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateMessageForCallLogIncomingUnknown() throws Exception {
         PersonRecord record = new PersonRecord(0, null, null, "-1");
-        Message msg = generator.messageForDataType(mockCalllogMessage("", INCOMING_TYPE, record), CALLLOG);
+        Message msg = generator.messageForDataType(RowValues.of(mockCalllogMessage("", INCOMING_TYPE, record)), CALLLOG);
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("Call with Unknown");
         assertThat(msg.getFrom()[0].toString()).isEqualTo("Unknown <unknown.number@unknown.email>");
@@ -149,7 +149,7 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateCallLogMessageWithCorrectEncoding() throws Exception {
         PersonRecord record = new PersonRecord(-1, "Test Testor", null, null);
-        Message msg = generator.messageForDataType(mockCalllogMessage("1234", OUTGOING_TYPE, record), CALLLOG);
+        Message msg = generator.messageForDataType(RowValues.of(mockCalllogMessage("1234", OUTGOING_TYPE, record)), CALLLOG);
         assertThat(msg.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING)).isEqualTo(new String[] {
                 MimeUtil.ENC_QUOTED_PRINTABLE
         });
@@ -157,21 +157,21 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldGenerateSubjectWithNameAndNumberForSMS() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(mockMessage("1234", record)), DataType.SMS);
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("SMS with Test Testor");
     }
 
     @Test public void shouldGenerateCorrectFromHeaderWithUsersEmailAddress() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(mockMessage("1234", record)), DataType.SMS);
         assertThat(msg).isNotNull();
         assertThat(msg.getFrom()[0]).isEqualTo(me);
     }
 
     @Test public void shouldGenerateCorrectToHeader() throws Exception {
         PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(mockMessage("1234", record)), DataType.SMS);
         assertThat(msg).isNotNull();
 
         assertThat(msg.getRecipients(Message.RecipientType.TO)[0].toString())
@@ -186,11 +186,11 @@ public class MessageGeneratorTest {
         map.put(Telephony.TextBasedSmsColumns.DATE, String.valueOf(date.getTime()));
         map.put(Telephony.TextBasedSmsColumns.TYPE, "0");
 
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(map), DataType.SMS);
         assertThat(msg).isNotNull();
 
         verify(headerGenerator).setHeaders(any(Message.class),
-                any(Map.class),
+                any(MessageRow.class),
                 eq(DataType.SMS),
                 anyString(),
                 eq(record),
@@ -203,7 +203,7 @@ public class MessageGeneratorTest {
         Map<String, String> map = mockMessage("1234", record);
         map.put(Telephony.TextBasedSmsColumns.TYPE, "1");
 
-        Message msg = generator.messageForDataType(map, DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(map), DataType.SMS);
         assertThat(msg).isNotNull();
 
         assertThat(msg.getFrom()[0].toString())
@@ -214,7 +214,7 @@ public class MessageGeneratorTest {
 
     @Test public void testShouldUseNumberIfNameIsUnknown() throws Exception {
         PersonRecord record = new PersonRecord(-1, null, null, "1234");
-        Message msg = generator.messageForDataType(mockMessage("1234", record), DataType.SMS);
+        Message msg = generator.messageForDataType(RowValues.of(mockMessage("1234", record)), DataType.SMS);
         assertThat(msg).isNotNull();
         assertThat(msg.getSubject()).isEqualTo("SMS with 1234");
     }
@@ -236,9 +236,9 @@ public class MessageGeneratorTest {
         map.put(Telephony.TextBasedSmsColumns.TYPE, "1");
 
         when(groupIds.contains(record)).thenReturn(false);
-        assertThat(generator.messageForDataType(map, DataType.SMS)).isNull();
+        assertThat(generator.messageForDataType(RowValues.of(map), DataType.SMS)).isNull();
         when(groupIds.contains(record)).thenReturn(true);
-        assertThat(generator.messageForDataType(map, DataType.SMS)).isNotNull();
+        assertThat(generator.messageForDataType(RowValues.of(map), DataType.SMS)).isNotNull();
     }
 
     private Map<String, String> mockMessage(String address, PersonRecord record) {
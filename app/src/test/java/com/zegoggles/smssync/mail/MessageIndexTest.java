@@ -0,0 +1,135 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.Context;
+import android.provider.BaseColumns;
+import android.provider.Telephony;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.zegoggles.smssync.mail.DataType.CALLLOG;
+import static com.zegoggles.smssync.mail.DataType.SMS;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageIndexTest {
+    private static final String NAME = "test_message_index.db";
+
+    private Context context;
+    private MessageIndex index;
+
+    @Before public void before() {
+        context = RuntimeEnvironment.application;
+        context.deleteDatabase(NAME);
+        index = new MessageIndex(context, NAME);
+        index.open();
+    }
+
+    @After public void after() {
+        index.close();
+    }
+
+    @Test public void shouldRecordUploadedMessages() throws Exception {
+        index.record(SMS, Arrays.asList(message("1", "1000", "<a@x>"), message("2", "2000", "<b@x>")), new long[] { 17, 0 });
+
+        assertThat(index.contains(SMS, row(1, 1000))).isTrue();
+        assertThat(index.contains(SMS, row(2, 2000))).isTrue();
+        assertThat(index.contains(SMS, row(3, 3000))).isFalse();
+        assertThat(index.contains(CALLLOG, row(1, 1000))).isFalse();
+        assertThat(index.getMessageId(SMS, 1)).isEqualTo("<a@x>");
+        assertThat(index.getUid(SMS, 1)).isEqualTo(17L);
+        assertThat(index.getUid(SMS, 2)).isEqualTo(0L);
+    }
+
+    @Test public void shouldRecordMessagesWithoutUids() throws Exception {
+        index.record(SMS, Collections.singletonList(message("1", "1000", "<a@x>")), null);
+        assertThat(index.contains(SMS, row(1, 1000))).isTrue();
+    }
+
+    @Test public void shouldNotMatchReusedIds() throws Exception {
+        index.record(SMS, Collections.singletonList(message("1", "1000", "<a@x>")), null);
+        assertThat(index.contains(SMS, row(1, 1001))).isFalse();
+    }
+
+    @Test public void shouldIgnoreMessagesWithoutIds() throws Exception {
+        index.record(SMS, Collections.singletonList(message(null, "1000", "<a@x>")), null);
+        assertThat(index.toString()).contains("size=0");
+    }
+
+    @Test public void shouldPersistAcrossInstances() throws Exception {
+        index.record(SMS, Collections.singletonList(message("1", "1000", "<a@x>")), null);
+        index.close();
+
+        index = new MessageIndex(context, NAME);
+        assertThat(index.contains(SMS, row(1, 1000))).isFalse();
+        index.open();
+        assertThat(index.contains(SMS, row(1, 1000))).isTrue();
+    }
+
+    @Test public void shouldAddScannedEntries() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("message-id", "<a@x>");
+        headers.put("x-smssync-id", "5");
+        headers.put("x-smssync-date", "1000");
+        headers.put("x-smssync-datatype", "sms");
+        index.addScanned(Collections.singletonList(MessageIndex.Entry.fromHeaders(headers, 23)));
+
+        assertThat(index.contains(SMS, row(5, 1000))).isTrue();
+        assertThat(index.getUid(SMS, 5)).isEqualTo(23L);
+        assertThat(index.toString()).contains("scanned=1");
+    }
+
+    @Test public void shouldRejectIncompleteHeaders() throws Exception {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("message-id", "<a@x>");
+        headers.put("x-smssync-id", "5");
+        headers.put("x-smssync-datatype", "sms");
+        assertThat(MessageIndex.Entry.fromHeaders(headers, 23)).isNull();
+
+        headers.put("x-smssync-date", "1000");
+        headers.put("x-smssync-datatype", "fax");
+        assertThat(MessageIndex.Entry.fromHeaders(headers, 23)).isNull();
+    }
+
+    @Test public void shouldTrackSeededTypes() throws Exception {
+        assertThat(index.isSeeded(SMS)).isFalse();
+        index.setSeeded(SMS);
+        assertThat(index.isSeeded(SMS)).isTrue();
+        assertThat(index.isSeeded(CALLLOG)).isFalse();
+    }
+
+    @Test public void shouldGrowIdDateMap() throws Exception {
+        MessageIndex.IdDateMap map = new MessageIndex.IdDateMap();
+        for (long id = 0; id < 10000; id++) {
+            map.put(id * 7, id);
+        }
+        map.put(7, 42);
+        assertThat(map.size()).isEqualTo(10000);
+        assertThat(map.get(7)).isEqualTo(42L);
+        assertThat(map.get(7 * 9999)).isEqualTo(9999L);
+        assertThat(map.get(8)).isEqualTo(MessageIndex.IdDateMap.MISSING);
+    }
+
+    private static Message message(String id, String date, String messageId) throws Exception {
+        MimeMessage message = new MimeMessage();
+        if (id != null) message.setHeader(Headers.ID, id);
+        message.setHeader(Headers.DATE, date);
+        message.setHeader(Headers.MESSAGE_ID, messageId);
+        return message;
+    }
+
+    private static MessageRow row(long id, long date) {
+        return new RowValues(new RowSchema(new String[] { BaseColumns._ID, Telephony.TextBasedSmsColumns.DATE }),
+            new String[] { String.valueOf(id), String.valueOf(date) });
+    }
+}
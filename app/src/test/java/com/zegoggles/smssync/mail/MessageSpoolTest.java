@@ -0,0 +1,119 @@
+package com.zegoggles.smssync.mail;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class MessageSpoolTest {
+    static final int BUFFER_SIZE = 1024;
+
+    @Test public void shouldKeepSmallMessageInMemory() throws Exception {
+        BufferPool pool = new BufferPool(BUFFER_SIZE, 4);
+        MessageSpool spool = new MessageSpool(pool, 4 * BUFFER_SIZE, null);
+        byte[] data = ascii(2500);
+        spool.write(data);
+        spool.write('!');
+
+        assertThat(spool.size()).isEqualTo(2501);
+        assertThat(spool.isComplete()).isTrue();
+        assertThat(spool.isEightBit()).isFalse();
+        assertThat(spool.isSpilled()).isFalse();
+
+        StringBuilder sb = new StringBuilder("{2501+}");
+        spool.appendTo(sb);
+        assertThat(sb.toString()).isEqualTo("{2501+}" + new String(data, "US-ASCII") + "!");
+        spool.close();
+    }
+
+    @Test public void shouldDetectEightBitData() throws Exception {
+        MessageSpool spool = new MessageSpool(new BufferPool(BUFFER_SIZE, 4), BUFFER_SIZE, null);
+        spool.write(ascii(10));
+        spool.write(0xe4);
+        assertThat(spool.isEightBit()).isTrue();
+        spool.close();
+    }
+
+    @Test public void shouldOnlyCountDataBeyondLimitWithoutSpillDirectory() throws Exception {
+        BufferPool pool = new BufferPool(BUFFER_SIZE, 4);
+        MessageSpool spool = new MessageSpool(pool, 2 * BUFFER_SIZE, null);
+        spool.write(ascii(10 * BUFFER_SIZE));
+
+        assertThat(spool.size()).isEqualTo(10 * BUFFER_SIZE);
+        assertThat(spool.isComplete()).isFalse();
+        assertThat(pool.getPeakBytes()).isAtMost(2 * BUFFER_SIZE);
+        spool.close();
+    }
+
+    /**
+     * Peak heap used for spooling a large attachment stays at the memory limit, instead of
+     * growing with the attachment as with an in-memory copy.
+     */
+    @Test public void shouldBoundMemoryWhenSpilling() throws Exception {
+        BufferPool pool = new BufferPool(BUFFER_SIZE, 4);
+        MessageSpool spool = new MessageSpool(pool, 4 * BUFFER_SIZE, RuntimeEnvironment.application.getCacheDir());
+        byte[] data = ascii(BUFFER_SIZE);
+        for (int i = 0; i < 1000; i++) {
+            spool.write(data);
+        }
+        assertThat(spool.isSpilled()).isTrue();
+        assertThat(spool.size()).isEqualTo(1000 * BUFFER_SIZE);
+        assertThat(pool.getPeakBytes()).isAtMost(4 * BUFFER_SIZE);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spool.writeTo(out);
+        assertThat(out.size()).isEqualTo(1000 * BUFFER_SIZE);
+        assertThat(Arrays.copyOfRange(out.toByteArray(), 0, BUFFER_SIZE)).isEqualTo(data);
+        spool.close();
+        assertThat(RuntimeEnvironment.application.getCacheDir().list()).isEmpty();
+    }
+
+    @Test public void shouldReturnBuffersToPool() throws Exception {
+        BufferPool pool = new BufferPool(BUFFER_SIZE, 4);
+        for (int i = 0; i < 3; i++) {
+            MessageSpool spool = new MessageSpool(pool, 4 * BUFFER_SIZE, null);
+            spool.write(ascii(3 * BUFFER_SIZE));
+            spool.close();
+        }
+        assertThat(pool.toString()).contains("allocated=3, reused=6");
+    }
+
+    @Test public void shouldDeleteStaleSpillFiles() throws Exception {
+        File directory = MessageSpool.getSpillDirectory(RuntimeEnvironment.application);
+        directory.mkdirs();
+        File stale = File.createTempFile("spool", null, directory);
+        File current = File.createTempFile("spool", null, directory);
+        final long now = System.currentTimeMillis();
+        assertThat(stale.setLastModified(now - MessageSpool.STALE_AGE - 1000)).isTrue();
+        assertThat(current.setLastModified(now)).isTrue();
+
+        assertThat(MessageSpool.deleteStaleFiles(directory, now)).isEqualTo(1);
+        assertThat(stale.exists()).isFalse();
+        assertThat(current.exists()).isTrue();
+    }
+
+    @Test public void shouldCreateSpillDirectory() throws Exception {
+        File directory = MessageSpool.getSpillDirectory(RuntimeEnvironment.application);
+        MessageSpool spool = new MessageSpool(new BufferPool(BUFFER_SIZE, 4), BUFFER_SIZE, directory);
+        spool.write(ascii(2 * BUFFER_SIZE));
+        assertThat(spool.isSpilled()).isTrue();
+        assertThat(directory.list()).hasLength(1);
+        spool.close();
+        assertThat(directory.list()).isEmpty();
+    }
+
+    private static byte[] ascii(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+}
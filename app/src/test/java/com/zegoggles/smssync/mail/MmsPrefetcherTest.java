@@ -0,0 +1,207 @@
+package com.zegoggles.smssync.mail;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class MmsPrefetcherTest {
+    private static final int MESSAGES = 120;
+
+    @Mock ContentResolver resolver;
+    boolean supportsBulkAddresses = true;
+    int failingPartQueries;
+    String windowSelection;
+    String[] windowArgs;
+    CountDownLatch concurrentPartQueries;
+
+    @Before public void before() {
+        initMocks(this);
+        when(resolver.query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString()))
+            .then(new Answer<Cursor>() {
+                @Override public Cursor answer(InvocationOnMock invocation) {
+                    final Uri uri = (Uri) invocation.getArguments()[0];
+                    final String selection = (String) invocation.getArguments()[2];
+                    final String[] args = (String[]) invocation.getArguments()[3];
+                    final String sortOrder = (String) invocation.getArguments()[4];
+                    return query(uri.toString(), selection, args, sortOrder);
+                }
+            });
+    }
+
+    @Test public void shouldPrefetchPartsAndAddressesForWindow() throws Exception {
+        MmsPrefetcher prefetcher = new MmsPrefetcher(resolver, 50, Integer.MAX_VALUE);
+
+        List<MessageRow> parts = prefetcher.getParts(mms(1));
+        assertThat(parts).hasSize(2);
+        assertThat(parts.get(0).getString("text")).isEqualTo("text 1");
+        assertThat(prefetcher.getAddresses(mms(1))).hasSize(1);
+        assertThat(prefetcher.getAddresses(mms(1)).get(0).getString("address")).isEqualTo("+1");
+        assertThat(prefetcher.getParts(mms(50))).hasSize(2);
+        assertThat(prefetcher.getQueryCount()).isEqualTo(3);
+
+        prefetcher.getParts(mms(51));
+        assertThat(prefetcher.getQueryCount()).isEqualTo(6);
+    }
+
+    @Test public void shouldUseFewerQueriesThanPerMessageLookups() throws Exception {
+        MmsPrefetcher prefetcher = new MmsPrefetcher(resolver);
+        for (int id = 1; id <= MESSAGES; id++) {
+            assertThat(prefetcher.getAddresses(mms(id))).isNotNull();
+            assertThat(prefetcher.getParts(mms(id))).hasSize(2);
+        }
+        final int perMessageQueries = MESSAGES * 2;
+        assertThat(prefetcher.getQueryCount()).isEqualTo(9);
+        assertThat(prefetcher.getQueryCount()).isLessThan(perMessageQueries / 20);
+    }
+
+    @Test public void shouldFallBackIfAddressesCannotBeQueriedInBulk() throws Exception {
+        supportsBulkAddresses = false;
+        MmsPrefetcher prefetcher = new MmsPrefetcher(resolver, 50, Integer.MAX_VALUE);
+        assertThat(prefetcher.getAddresses(mms(1))).isNull();
+        assertThat(prefetcher.getParts(mms(1))).hasSize(2);
+        assertThat(prefetcher.getAddresses(mms(51))).isNull();
+        // no further address queries once known to be unsupported
+        assertThat(prefetcher.getQueryCount()).isEqualTo(5);
+    }
+
+    @Test public void shouldFallBackForOneWindowIfPartQueryFails() throws Exception {
+        failingPartQueries = 1;
+        MmsPrefetcher prefetcher = new MmsPrefetcher(resolver, 50, Integer.MAX_VALUE);
+        assertThat(prefetcher.getParts(mms(1))).isNull();
+        assertThat(prefetcher.getParts(mms(2))).isNull();
+        // the failed window is not queried again
+        assertThat(prefetcher.getQueryCount()).isEqualTo(3);
+
+        assertThat(prefetcher.getParts(mms(51))).hasSize(2);
+        assertThat(prefetcher.getParts(mms(52))).hasSize(2);
+    }
+
+    @Test public void shouldStopBulkQueriesAfterRepeatedFailures() throws Exception {
+        failingPartQueries = MmsPrefetcher.MAX_BULK_FAILURES;
+        MmsPrefetcher prefetcher = new MmsPrefetcher(resolver, 50, Integer.MAX_VALUE);
+        for (int i = 0; i < MmsPrefetcher.MAX_BULK_FAILURES; i++) {
+            assertThat(prefetcher.getParts(mms(1 + i * 50))).isNull();
+        }
+        final int queries = prefetcher.getQueryCount();
+        assertThat(prefetcher.getParts(mms(101 + 50))).isNull();
+        assertThat(prefetcher.getQueryCount()).isEqualTo(queries);
+    }
+
+    @Test public void shouldBoundWindowByTextSize() throws Exception {
+        MmsPrefetcher prefetcher = new MmsPrefetcher(resolver, 50, 30);
+        assertThat(prefetcher.getParts(mms(1))).hasSize(2);
+        assertThat(prefetcher.getParts(mms(5))).hasSize(2);
+        assertThat(prefetcher.getQueryCount()).isEqualTo(3);
+        // 6 characters of text per message, message 6 goes into the next window
+        assertThat(prefetcher.getParts(mms(6))).hasSize(2);
+        assertThat(prefetcher.getQueryCount()).isEqualTo(6);
+    }
+
+    @Test public void shouldOnlyPrefetchMessagesMatchingBackupSelection() throws Exception {
+        MmsPrefetcher prefetcher = new MmsPrefetcher(resolver, 50, Integer.MAX_VALUE);
+        prefetcher.setSelection("m_type <> ?", new String[]{"134"});
+
+        assertThat(prefetcher.getParts(mms(1))).hasSize(2);
+        assertThat(windowSelection).endsWith(" AND (m_type <> ?)");
+        assertThat(Arrays.asList(windowArgs)).containsExactly("1001", "1001", "1", "134").inOrder();
+        // only odd messages match, the window of 50 reaches up to message 99
+        assertThat(prefetcher.getParts(mms(99))).hasSize(2);
+        assertThat(prefetcher.getQueryCount()).isEqualTo(3);
+    }
+
+    @Test public void shouldNotHoldLockWhileQuerying() throws Exception {
+        concurrentPartQueries = new CountDownLatch(2);
+        final MmsPrefetcher prefetcher = new MmsPrefetcher(resolver, 50, Integer.MAX_VALUE);
+        final AtomicReference<List<MessageRow>> otherParts = new AtomicReference<List<MessageRow>>();
+        Thread other = new Thread() {
+            @Override public void run() {
+                otherParts.set(prefetcher.getParts(mms(51)));
+            }
+        };
+        other.start();
+        List<MessageRow> parts = prefetcher.getParts(mms(1));
+        other.join();
+
+        // both part queries ran at the same time
+        assertThat(parts).hasSize(2);
+        assertThat(otherParts.get()).hasSize(2);
+    }
+
+    private static MessageRow mms(long id) {
+        Map<String, String> row = new HashMap<String, String>();
+        row.put("_id", String.valueOf(id));
+        row.put("date", String.valueOf(1000 + id));
+        return RowValues.of(row);
+    }
+
+    private Cursor query(String uri, String selection, String[] args, String sortOrder) {
+        if (uri.equals("content://mms")) {
+            windowSelection = selection;
+            windowArgs = args;
+            final long from = Long.parseLong(args[2]);
+            final int limit = Integer.parseInt(sortOrder.substring(sortOrder.indexOf("LIMIT ") + 6));
+            // with a backup selection, only odd messages match
+            final boolean filtered = args.length > 3;
+            MatrixCursor cursor = new MatrixCursor(new String[]{"_id"});
+            for (long id = from; cursor.getCount() < limit && id <= MESSAGES; id++) {
+                if (!filtered || id % 2 == 1) {
+                    cursor.addRow(new Object[]{id});
+                }
+            }
+            return cursor;
+        }
+        final String[] ids = selection.substring(selection.indexOf('(') + 1, selection.indexOf(')')).split(",");
+        if (uri.equals("content://mms/part") && concurrentPartQueries != null) {
+            concurrentPartQueries.countDown();
+            try {
+                if (!concurrentPartQueries.await(5, TimeUnit.SECONDS)) {
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                return null;
+            }
+        }
+        if (uri.equals("content://mms/part") && failingPartQueries > 0) {
+            failingPartQueries--;
+            return null;
+        } else if (uri.equals("content://mms/part")) {
+            MatrixCursor cursor = new MatrixCursor(new String[]{"_id", "mid", "ct", "cl", "text"});
+            for (String id : ids) {
+                cursor.addRow(new Object[]{id + "1", id, "text/plain", null, "text " + id});
+                cursor.addRow(new Object[]{id + "2", id, "image/jpeg", "image.jpg", null});
+            }
+            return cursor;
+        } else if (uri.equals("content://mms/addr") && supportsBulkAddresses) {
+            MatrixCursor cursor = new MatrixCursor(new String[]{"msg_id", "address", "type"});
+            for (String id : ids) {
+                cursor.addRow(new Object[]{id, "+" + id, "137"});
+            }
+            return cursor;
+        } else {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+    }
+}
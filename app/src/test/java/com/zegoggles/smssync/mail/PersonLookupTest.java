@@ -13,6 +13,8 @@ import org.robolectric.RobolectricTestRunner;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -107,6 +109,83 @@ public class PersonLookupTest {
         assertThat(record.isUnknown()).isTrue();
     }
 
+    @Test
+    public void shouldLookupPersonInSnapshot() throws Exception {
+        mockSnapshot();
+        assertThat(lookup.loadSnapshot()).isTrue();
+
+        PersonRecord record = lookup.lookupPerson("+4930 1234567");
+        assertThat(record.isUnknown()).isFalse();
+        assertThat(record.getContactId()).isEqualTo(1L);
+        assertThat(record.getName()).isEqualTo("Testor Test");
+        assertThat(record.getEmail()).isEqualTo("foo@gmail.com");
+
+        record = lookup.lookupPerson("+44201234567");
+        assertThat(record.getContactId()).isEqualTo(3L);
+        assertThat(record.getName()).isEqualTo("Other Test");
+        assertThat(record.getEmail()).isEqualTo("other@test.com");
+
+        record = lookup.lookupPerson("1234");
+        assertThat(record.getContactId()).isEqualTo(2L);
+        assertThat(record.getEmail()).isEqualTo("1234@unknown.email");
+    }
+
+    @Test
+    public void shouldNotQueryProviderForUnknownPersonWithSnapshot() throws Exception {
+        mockSnapshot();
+        lookup.loadSnapshot();
+
+        PersonRecord record = lookup.lookupPerson("5555");
+        assertThat(record.isUnknown()).isTrue();
+        assertThat(record.getName()).isEqualTo("5555");
+        verify(resolver, times(2)).query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString());
+    }
+
+    @Test
+    public void shouldQueryProviderAfterReleasingSnapshot() throws Exception {
+        mockSnapshot();
+        lookup.loadSnapshot();
+        lookup.releaseSnapshot();
+
+        when(resolver.query( eq(Uri.parse("content://com.android.contacts/phone_lookup/1234")), any(String[].class),
+                (String) isNull(),
+                (String[]) isNull(),
+                (String) isNull()
+        )).thenReturn(name("Testor Test"));
+
+        assertThat(lookup.lookupPerson("1234").getName()).isEqualTo("Testor Test");
+    }
+
+    @Test
+    public void shouldNotUseSnapshotIfContactsCannotBeRead() throws Exception {
+        assertThat(lookup.loadSnapshot()).isFalse();
+        assertThat(lookup.lookupPerson("1234").isUnknown()).isTrue();
+    }
+
+    private void mockSnapshot() {
+        MatrixCursor phones = new MatrixCursor(new String[] {
+            ContactsContract.CommonDataKinds.Phone.CONTACT_ID,
+            ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME,
+            ContactsContract.CommonDataKinds.Phone.NUMBER
+        });
+        phones.addRow(new Object[] { 1, "Testor Test", "+4930 1234567" });
+        phones.addRow(new Object[] { 2, "Short Test", "1234" });
+        phones.addRow(new Object[] { 3, "Other Test", "+4420 1234567" });
+
+        MatrixCursor emails = new MatrixCursor(new String[] {
+            ContactsContract.CommonDataKinds.Email.CONTACT_ID,
+            ContactsContract.CommonDataKinds.Email.DATA
+        });
+        emails.addRow(new Object[] { 1, "foo@test.com" });
+        emails.addRow(new Object[] { 1, "foo@gmail.com" });
+        emails.addRow(new Object[] { 3, "other@test.com" });
+
+        when(resolver.query(eq(ContactsContract.CommonDataKinds.Phone.CONTENT_URI), any(String[].class),
+                (String) isNull(), (String[]) isNull(), anyString())).thenReturn(phones);
+        when(resolver.query(eq(ContactsContract.CommonDataKinds.Email.CONTENT_URI), any(String[].class),
+                (String) isNull(), (String[]) isNull(), anyString())).thenReturn(emails);
+    }
+
     private Cursor name(String... names) {
         MatrixCursor cursor = new MatrixCursor(new String[] {
             ContactsContract.Contacts._ID,
@@ -0,0 +1,184 @@
+package com.zegoggles.smssync.mail;
+
+import android.provider.BaseColumns;
+import android.provider.CallLog;
+import android.provider.Telephony;
+import com.fsck.k9.mail.Address;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.preferences.AddressStyle;
+import com.zegoggles.smssync.preferences.CallLogTypes;
+import com.zegoggles.smssync.preferences.DataTypePreferences;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+/**
+ * Compares the output of the fast path with the one of the regular <code>MimeMessage</code>
+ * path, which is the reference output.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class Rfc822WriterTest {
+    private static final String LONG_TEXT =
+        "A longer message, which has to be wrapped by the quoted-printable encoding. " +
+        "It also ends lines with spaces   \nand contains = signs, tabs\tand dots\n.\nFrom here on, done.";
+
+    @Mock private PersonLookup personLookup;
+    @Mock private MmsSupport mmsSupport;
+    @Mock private DataTypePreferences dataTypePreferences;
+    private MessageGenerator reference;
+    private MessageGenerator fastPath;
+
+    @Before public void before() {
+        initMocks(this);
+        reference = createGenerator(false, AddressStyle.NAME);
+        fastPath = createGenerator(true, AddressStyle.NAME);
+    }
+
+    @Test public void shouldRenderSmsLikeMimeMessage() throws Exception {
+        PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
+        for (String type : new String[] { "1", "2", "3" }) {
+            for (String body : new String[] { "Hello", "", null, LONG_TEXT, "Ünïcödé ☺ 😀", "a\r\nb\rc\n" }) {
+                Map<String, String> map = sms("1234", record, type, body);
+                assertSameOutput(map, DataType.SMS, true);
+            }
+        }
+    }
+
+    @Test public void shouldRenderSmsWithMissingColumnsLikeMimeMessage() throws Exception {
+        PersonRecord record = new PersonRecord(-1, null, null, "+44 20 7946 0958");
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(Telephony.TextBasedSmsColumns.ADDRESS, "+44 20 7946 0958");
+        map.put(Telephony.TextBasedSmsColumns.DATE, "1500000000000");
+        when(personLookup.lookupPerson(eq("+44 20 7946 0958"))).thenReturn(record);
+
+        assertSameOutput(map, DataType.SMS, true);
+    }
+
+    @Test public void shouldRenderAddressStylesLikeMimeMessage() throws Exception {
+        PersonRecord record = new PersonRecord(1, "Test \"Quoted\" Testor", null, "1234");
+        for (AddressStyle style : AddressStyle.values()) {
+            reference = createGenerator(false, style);
+            fastPath = createGenerator(true, style);
+            assertSameOutput(sms("1234", record, "1", "Hi"), DataType.SMS, true);
+        }
+    }
+
+    @Test public void shouldFallBackForSubjectsWhichNeedEncoding() throws Exception {
+        // the subject contains the name, it has to be encoded
+        PersonRecord record = new PersonRecord(1, "Jürgen", null, "1234");
+        Map<String, String> map = sms("1234", record, "1", "Hallo");
+
+        Message message = fastPath.messageForDataType(RowValues.of(map), DataType.SMS);
+        assertThat(message).isNotInstanceOf(RenderedMessage.class);
+        assertSameOutput(map, DataType.SMS, false);
+    }
+
+    @Test public void shouldRenderCallLogLikeMimeMessage() throws Exception {
+        PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
+        int[] types = {
+            CallLog.Calls.OUTGOING_TYPE,
+            CallLog.Calls.INCOMING_TYPE,
+            CallLog.Calls.MISSED_TYPE,
+            CallLog.Calls.REJECTED_TYPE,
+            CallLog.Calls.VOICEMAIL_TYPE
+        };
+        for (int type : types) {
+            for (String duration : new String[] { "0", "65", "7322", null }) {
+                Map<String, String> map = new HashMap<String, String>();
+                map.put(CallLog.Calls._ID, "42");
+                map.put(CallLog.Calls.NUMBER, "1234");
+                map.put(CallLog.Calls.TYPE, String.valueOf(type));
+                map.put(CallLog.Calls.DATE, "1500000000000");
+                map.put(CallLog.Calls.DURATION, duration);
+                when(personLookup.lookupPerson(eq("1234"))).thenReturn(record);
+
+                assertSameOutput(map, DataType.CALLLOG, true);
+            }
+        }
+    }
+
+    @Test public void shouldSkipUnknownCallTypes() throws Exception {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(CallLog.Calls.NUMBER, "1234");
+        map.put(CallLog.Calls.TYPE, "100");
+        when(personLookup.lookupPerson(eq("1234"))).thenReturn(new PersonRecord(1, "Test", null, "1234"));
+
+        assertThat(fastPath.messageForDataType(RowValues.of(map), DataType.CALLLOG)).isNull();
+    }
+
+    @Test public void shouldExposeHeadersOfRenderedMessage() throws Exception {
+        PersonRecord record = new PersonRecord(1, "Test Testor", "test@test.com", "1234");
+        Map<String, String> map = sms("1234", record, "1", "Hello");
+        Message expected = reference.messageForDataType(RowValues.of(map), DataType.SMS);
+        Message actual = fastPath.messageForDataType(RowValues.of(map), DataType.SMS);
+
+        for (String header : new String[] {
+            Headers.ID, Headers.DATE, Headers.TYPE, Headers.DATATYPE, Headers.MESSAGE_ID, Headers.ADDRESS, "Subject"
+        }) {
+            assertThat(actual.getHeader(header)).isEqualTo(expected.getHeader(header));
+        }
+        assertThat(actual.getHeader("x-smssync-id")).isEqualTo(new String[] { "17" });
+        assertThat(actual.getHeader("X-Unknown")).isEmpty();
+        assertThat(actual.getSubject()).isEqualTo(expected.getSubject());
+        assertThat(actual.getSentDate()).isEqualTo(expected.getSentDate());
+    }
+
+    private void assertSameOutput(Map<String, String> map, DataType type, boolean rendered) throws Exception {
+        Message expected = reference.messageForDataType(RowValues.of(map), type);
+        Message actual = fastPath.messageForDataType(RowValues.of(map), type);
+        assertThat(expected).isInstanceOf(MimeMessage.class);
+        assertThat(actual instanceof RenderedMessage).isEqualTo(rendered);
+        assertThat(serialize(actual)).isEqualTo(serialize(expected));
+    }
+
+    private MessageGenerator createGenerator(boolean renderPlainText, AddressStyle style) {
+        return new MessageGenerator(RuntimeEnvironment.application,
+            new Address("mine@mine.com", "me"),
+            style,
+            new HeaderGenerator("ref", 1),
+            personLookup,
+            false,
+            null,
+            mmsSupport,
+            CallLogTypes.EVERYTHING,
+            dataTypePreferences,
+            renderPlainText);
+    }
+
+    private Map<String, String> sms(String address, PersonRecord record, String type, String body) {
+        Map<String, String> map = new HashMap<String, String>();
+        map.put(BaseColumns._ID, "17");
+        map.put(Telephony.TextBasedSmsColumns.ADDRESS, address);
+        map.put(Telephony.TextBasedSmsColumns.BODY, body);
+        map.put(Telephony.TextBasedSmsColumns.TYPE, type);
+        map.put(Telephony.TextBasedSmsColumns.DATE, "1500000000000");
+        map.put(Telephony.TextBasedSmsColumns.THREAD_ID, "3");
+        map.put(Telephony.TextBasedSmsColumns.READ, "1");
+        map.put(Telephony.TextBasedSmsColumns.STATUS, "-1");
+        map.put(Telephony.TextBasedSmsColumns.PROTOCOL, "0");
+        when(personLookup.lookupPerson(eq(address))).thenReturn(record);
+        return map;
+    }
+
+    /**
+     * @return the message as it would be uploaded, with the backup time removed
+     */
+    private static String serialize(Message message) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+        return out.toString("ISO-8859-1").replaceFirst(Headers.BACKUP_TIME + ": [^\r]*\r\n", "");
+    }
+}
@@ -0,0 +1,46 @@
+package com.zegoggles.smssync.mail;
+
+import com.fsck.k9.mail.ssl.TrustedSocketFactory;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import javax.net.ssl.SSLSocket;
+import java.net.Socket;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class SessionCachingSocketFactoryTest {
+    @Test public void shouldShareContextBetweenConnectionsToSameServer() throws Exception {
+        assertThat(SessionCachingSocketFactory.getContext("imap.gmail.com", 993))
+            .isSameAs(SessionCachingSocketFactory.getContext("imap.gmail.com", 993));
+        assertThat(SessionCachingSocketFactory.getContext("imap.gmail.com", 993))
+            .isNotSameAs(SessionCachingSocketFactory.getContext("imap.example.com", 993));
+    }
+
+    @Test public void shouldCreateTlsSocket() throws Exception {
+        TrustedSocketFactory delegate = mock(TrustedSocketFactory.class);
+        Socket socket = new SessionCachingSocketFactory(delegate).createSocket(null, "imap.gmail.com", 993, null);
+
+        assertThat(socket).isInstanceOf(SSLSocket.class);
+        for (String protocol : ((SSLSocket) socket).getEnabledProtocols()) {
+            assertThat(protocol).startsWith("TLS");
+        }
+        verify(delegate, never()).createSocket(null, "imap.gmail.com", 993, null);
+        socket.close();
+    }
+
+    @Test public void shouldLetDelegateHandleClientCertificates() throws Exception {
+        TrustedSocketFactory delegate = mock(TrustedSocketFactory.class);
+        Socket socket = mock(Socket.class);
+        when(delegate.createSocket(null, "imap.gmail.com", 993, "alias")).thenReturn(socket);
+
+        assertThat(new SessionCachingSocketFactory(delegate).createSocket(null, "imap.gmail.com", 993, "alias"))
+            .isSameAs(socket);
+    }
+}
@@ -0,0 +1,265 @@
+package com.zegoggles.smssync.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A stand-in for an IMAP server on the loopback interface. It answers the commands sent by k9
+ * and the backup folder, and records every command it receives: the exact bytes, including
+ * literals, without the tag.
+ */
+class TestImapServer implements Closeable {
+    /** closes the connection instead of answering */
+    static final String DROP = "DROP";
+
+    private final ServerSocket serverSocket;
+    private final String capabilities;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Socket> clients = Collections.synchronizedList(new ArrayList<Socket>());
+    private final Map<String, Queue<String>> responses = new HashMap<String, Queue<String>>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger appended = new AtomicInteger();
+
+    TestImapServer(String capabilities) throws IOException {
+        this.serverSocket = new ServerSocket(0, 5, InetAddress.getLoopbackAddress());
+        this.capabilities = capabilities;
+        executor.submit(new Runnable() {
+            @Override public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * @return a store uri for a login with a password, over a connection the store can compress
+     */
+    String getUri() {
+        return "imap+ssl+://user:password@" + serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
+    }
+
+    /**
+     * Answers the next command with the given name (e.g. <code>APPEND</code>) with the given
+     * response, or drops the connection if the response is {@link #DROP}. The last line of the
+     * response gets tagged, the lines before are sent as they are.
+     */
+    void respond(String command, String response) {
+        synchronized (responses) {
+            Queue<String> queue = responses.get(command);
+            if (queue == null) {
+                queue = new LinkedList<String>();
+                responses.put(command, queue);
+            }
+            queue.add(response);
+        }
+    }
+
+    /**
+     * @return the commands received, without tags
+     */
+    List<String> getCommands() {
+        synchronized (commands) {
+            return new ArrayList<String>(commands);
+        }
+    }
+
+    /**
+     * @return the commands received with the given name, without tags
+     */
+    List<String> getCommands(String name) {
+        final List<String> result = new ArrayList<String>();
+        for (String command : getCommands()) {
+            if (name.equals(getName(command))) {
+                result.add(command);
+            }
+        }
+        return result;
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    @Override public void close() throws IOException {
+        executor.shutdownNow();
+        serverSocket.close();
+        synchronized (clients) {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            while (!serverSocket.isClosed()) {
+                final Socket client = serverSocket.accept();
+                clients.add(client);
+                connections.incrementAndGet();
+                executor.submit(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            serve(client);
+                        } catch (IOException ignored) {
+                            // closed by the client or by the test
+                        } finally {
+                            try {
+                                client.close();
+                            } catch (IOException ignored) {
+                            }
+                        }
+                    }
+                });
+            }
+        } catch (IOException ignored) {
+            // server socket closed
+        }
+    }
+
+    private void serve(Socket client) throws IOException {
+        // unbuffered, so that nothing compressed is read before switching
+        InputStream in = client.getInputStream();
+        OutputStream out = client.getOutputStream();
+        boolean compressed = false;
+        send(out, "* OK [CAPABILITY " + capabilities + "] ready\r\n");
+
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            final int space = line.indexOf(' ');
+            final String tag = line.substring(0, space);
+            final Command received = readCommand(line.substring(space + 1), in, out);
+            final String command = received.text;
+            commands.add(command);
+
+            final String name = getName(command);
+            final String response = nextResponse(name);
+            if (DROP.equals(response)) {
+                return;
+            } else if (response != null) {
+                final int end = response.lastIndexOf("\r\n");
+                send(out, response.substring(0, end + 2) + tag + " " + response.substring(end + 2) + "\r\n");
+            } else if ("CAPABILITY".equals(name)) {
+                send(out, "* CAPABILITY " + capabilities + "\r\n" + tag + " OK CAPABILITY completed\r\n");
+            } else if ("LOGIN".equals(name)) {
+                send(out, tag + " OK [CAPABILITY " + capabilities + "] LOGIN completed\r\n");
+            } else if ("LIST".equals(name)) {
+                send(out, "* LIST (\\Noselect) \"/\" \"\"\r\n" + tag + " OK LIST completed\r\n");
+            } else if ("SELECT".equals(name)) {
+                send(out, "* 0 EXISTS\r\n* OK [UIDVALIDITY 1] UIDs valid\r\n" + tag + " OK [READ-WRITE] SELECT completed\r\n");
+            } else if ("COMPRESS".equals(name)) {
+                if (compressed) {
+                    send(out, tag + " NO [COMPRESSIONACTIVE] DEFLATE active already\r\n");
+                } else {
+                    send(out, tag + " OK DEFLATE active\r\n");
+                    compressed = true;
+                    in = new InflaterInputStream(in, new Inflater(true));
+                    out = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true), true);
+                }
+            } else if ("APPEND".equals(name)) {
+                final int count = received.literals;
+                final int first = appended.getAndAdd(count) + 1;
+                final String uids = count == 1 ? String.valueOf(first) : first + ":" + (first + count - 1);
+                send(out, tag + " OK [APPENDUID 1 " + uids + "] APPEND completed\r\n");
+            } else if ("SEARCH".equals(name)) {
+                send(out, "* SEARCH\r\n" + tag + " OK SEARCH completed\r\n");
+            } else if ("NOOP".equals(name)) {
+                send(out, tag + " OK NOOP completed\r\n");
+            } else if ("LOGOUT".equals(name)) {
+                send(out, "* BYE\r\n" + tag + " OK LOGOUT completed\r\n");
+                return;
+            } else {
+                send(out, tag + " BAD unknown command\r\n");
+            }
+        }
+    }
+
+    /**
+     * Reads the literals of a command, asking for synchronizing literals with a continuation
+     * request, and the command lines in between.
+     */
+    private static Command readCommand(String line, InputStream in, OutputStream out) throws IOException {
+        final StringBuilder command = new StringBuilder(line);
+        int literals = 0;
+        while (line.endsWith("}")) {
+            literals++;
+            final boolean synchronizing = !line.endsWith("+}");
+            final int size = Integer.parseInt(line.substring(line.lastIndexOf('{') + 1,
+                    line.length() - (synchronizing ? 1 : 2)));
+            if (synchronizing) {
+                send(out, "+ go ahead\r\n");
+            }
+            final byte[] literal = new byte[size];
+            for (int n = 0; n < size; ) {
+                final int read = in.read(literal, n, size - n);
+                if (read == -1) throw new IOException("end of stream");
+                n += read;
+            }
+            line = readLine(in);
+            command.append("\r\n").append(new String(literal, "US-ASCII")).append(line);
+        }
+        return new Command(command.toString(), literals);
+    }
+
+    private String nextResponse(String name) {
+        synchronized (responses) {
+            final Queue<String> queue = responses.get(name);
+            return queue == null ? null : queue.poll();
+        }
+    }
+
+    private static String getName(String command) {
+        final int space = command.indexOf(' ');
+        String name = space == -1 ? command : command.substring(0, space);
+        if ("UID".equalsIgnoreCase(name) && space != -1) {
+            final int next = command.indexOf(' ', space + 1);
+            name = next == -1 ? command.substring(space + 1) : command.substring(space + 1, next);
+        }
+        return name.toUpperCase(Locale.ENGLISH);
+    }
+
+    private static void send(OutputStream out, String response) throws IOException {
+        out.write(response.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private static class Command {
+        /** the command as sent, without the tag */
+        final String text;
+        final int literals;
+
+        Command(String text, int literals) {
+            this.text = text;
+            this.literals = literals;
+        }
+    }
+}
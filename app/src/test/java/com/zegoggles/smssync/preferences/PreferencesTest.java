@@ -41,4 +41,16 @@ public class PreferencesTest {
         preferences.getDataTypePreferences().setMaxSyncedDate(CALLLOG, 1234);
         assertThat(preferences.isFirstBackup()).isFalse();
     }
+
+    @Test public void shouldStoreMaxSyncedId() throws Exception {
+        DataTypePreferences dataTypePreferences = preferences.getDataTypePreferences();
+        assertThat(dataTypePreferences.getMaxSyncedId(SMS)).isEqualTo(-1);
+
+        dataTypePreferences.setMaxSyncedDate(SMS, 1234, 12);
+        assertThat(dataTypePreferences.getMaxSyncedDate(SMS)).isEqualTo(1234);
+        assertThat(dataTypePreferences.getMaxSyncedId(SMS)).isEqualTo(12);
+
+        dataTypePreferences.setMaxSyncedDate(SMS, 2345);
+        assertThat(dataTypePreferences.getMaxSyncedId(SMS)).isEqualTo(-1);
+    }
 }
@@ -19,6 +19,7 @@ public class BackupConfigTest {
         new BackupConfig(mock(BackupImapStore.class),
                 0,
                 -1,
+                1,
                 ContactGroup.EVERYBODY,
                 BackupType.MANUAL,
                 EnumSet.noneOf(DataType.class),
@@ -32,6 +33,7 @@ public class BackupConfigTest {
         new BackupConfig(mock(BackupImapStore.class),
                 0,
                 -1,
+                1,
                 ContactGroup.EVERYBODY,
                 BackupType.MANUAL,
                 null,
@@ -44,6 +46,7 @@ public class BackupConfigTest {
         new BackupConfig(mock(BackupImapStore.class),
                 -1,
                 -1,
+                1,
                 ContactGroup.EVERYBODY,
                 BackupType.MANUAL,
                 EnumSet.of(DataType.MMS),
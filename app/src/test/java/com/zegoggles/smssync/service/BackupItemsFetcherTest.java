@@ -2,9 +2,11 @@ package com.zegoggles.smssync.service;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.DataType;
 import com.zegoggles.smssync.preferences.Preferences;
 import org.junit.Before;
@@ -19,6 +21,7 @@ import static com.zegoggles.smssync.mail.DataType.CALLLOG;
 import static com.zegoggles.smssync.mail.DataType.MMS;
 import static com.zegoggles.smssync.mail.DataType.SMS;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -68,6 +71,31 @@ public class BackupItemsFetcherTest {
         assertThat(fetcher.getItemsForDataType(SMS, null, -1).getCount()).isEqualTo(0);
     }
 
+    @Test public void shouldPageThroughCountedItems() throws Exception {
+        fetcher = new BackupItemsFetcher(resolver, queryBuilder, 2);
+        BackupQueryBuilder.Query countQuery = mock(BackupQueryBuilder.Query.class);
+        BackupQueryBuilder.Query pageQuery = mock(BackupQueryBuilder.Query.class);
+        when(queryBuilder.buildCountQueryForDataType(SMS, null)).thenReturn(countQuery);
+        when(queryBuilder.buildPageQueryForDataType(any(DataType.class), any(ContactGroupIds.class),
+                any(BackupQueryBuilder.Position.class), anyInt())).thenReturn(pageQuery);
+
+        MatrixCursor count = new MatrixCursor(new String[]{"COUNT(*)"});
+        count.addRow(new Object[]{ 10 });
+        MatrixCursor page = new MatrixCursor(new String[]{"_id", "date"});
+        page.addRow(new Object[]{ 1, 100 });
+        page.addRow(new Object[]{ 2, 100 });
+        when(resolver.query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString()))
+                .thenReturn(count, page);
+
+        Cursor cursor = fetcher.getItemsForDataType(SMS, null, 2);
+
+        assertThat(cursor.getCount()).isEqualTo(2);
+        assertThat(cursor.moveToNext()).isTrue();
+        assertThat(cursor.getLong(0)).isEqualTo(1L);
+        assertThat(cursor.moveToNext()).isTrue();
+        assertThat(cursor.isLast()).isTrue();
+    }
+
     @Test public void shouldReturnDefaultIfDataTypeCannotBeRead() throws Exception {
         for (DataType type : DataType.values()) {
             assertThat(fetcher.getMostRecentTimestamp(type)).isEqualTo(-1);
@@ -0,0 +1,128 @@
+package com.zegoggles.smssync.service;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.mail.ConversionResult;
+import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.MessageRow;
+import com.zegoggles.smssync.mail.RowValues;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.zegoggles.smssync.mail.DataType.CALLLOG;
+import static com.zegoggles.smssync.mail.DataType.SMS;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackupPipelineTest {
+    private static final String ID_HEADER = "X-Test-Id";
+
+    @Mock MessageConverter converter;
+    BackupCursors cursors;
+
+    @Before public void before() throws Exception {
+        initMocks(this);
+        cursors = new BackupCursors();
+        cursors.add(SMS, cursor(0, 50));
+        cursors.add(CALLLOG, cursor(50, 20));
+
+        when(converter.readMessage(any(Cursor.class))).then(new Answer<MessageRow>() {
+            @Override public MessageRow answer(InvocationOnMock invocation) {
+                Cursor cursor = (Cursor) invocation.getArguments()[0];
+                return RowValues.of(Collections.singletonMap("_id", cursor.getString(0)));
+            }
+        });
+        when(converter.convertMessage(any(MessageRow.class), any(DataType.class))).then(new Answer<ConversionResult>() {
+            @Override public ConversionResult answer(InvocationOnMock invocation) throws Throwable {
+                MessageRow row = (MessageRow) invocation.getArguments()[0];
+                // make conversions finish out of order
+                Thread.sleep(row.getInt("_id", 0) % 3);
+                MimeMessage message = new MimeMessage();
+                message.setHeader(ID_HEADER, row.getString("_id"));
+                ConversionResult result = new ConversionResult((DataType) invocation.getArguments()[1]);
+                result.add(message, row);
+                return result;
+            }
+        });
+    }
+
+    @Test public void shouldReturnResultsInCursorOrder() throws Exception {
+        BackupPipeline pipeline = new BackupPipeline(cursors, converter, 4, 8).start();
+        List<String> ids = new ArrayList<String>();
+        try {
+            while (pipeline.hasNext()) {
+                ConversionResult result = pipeline.next();
+                assertThat(result.type).isEqualTo(ids.size() < 50 ? SMS : CALLLOG);
+                ids.add(result.getMessages().get(0).getHeader(ID_HEADER)[0]);
+            }
+        } finally {
+            pipeline.close();
+        }
+        assertThat(ids).hasSize(70);
+        for (int i = 0; i < ids.size(); i++) {
+            assertThat(ids.get(i)).isEqualTo(String.valueOf(i));
+        }
+    }
+
+    @Test public void shouldBoundQueues() throws Exception {
+        BackupPipeline pipeline = new BackupPipeline(cursors, converter, 2, 5).start();
+        try {
+            assertThat(pipeline.hasNext()).isTrue();
+            // wait for the reader to fill the queue, it blocks once it is full
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (pipeline.getUploadQueueDepth() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertThat(pipeline.getUploadQueueDepth()).isEqualTo(5);
+            assertThat(pipeline.getConversionQueueDepth()).isAtMost(5);
+            assertThat(cursors.hasNext()).isTrue();
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test public void shouldStopReadingWhenClosed() throws Exception {
+        BackupPipeline pipeline = new BackupPipeline(cursors, converter, 2, 5).start();
+        pipeline.next();
+        pipeline.close();
+
+        assertThat(pipeline.getUploadQueueDepth()).isEqualTo(0);
+        assertThat(cursors.hasNext()).isTrue();
+    }
+
+    @Test(expected = MessagingException.class)
+    public void shouldPropagateConversionErrors() throws Exception {
+        when(converter.convertMessage(any(MessageRow.class), any(DataType.class)))
+            .thenThrow(new MessagingException("failed"));
+
+        BackupPipeline pipeline = new BackupPipeline(cursors, converter, 2, 5).start();
+        try {
+            pipeline.next();
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    private Cursor cursor(int firstId, int rows) {
+        MatrixCursor c = new MatrixCursor(new String[] {"_id"});
+        for (int i = 0; i < rows; i++) {
+            c.addRow(new Object[] { String.valueOf(firstId + i) });
+        }
+        return c;
+    }
+}
@@ -34,7 +34,7 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(SMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).asList().containsExactly("_id", "address", "body", "type", "date", "thread_id", "read", "status", "protocol", "service_center");
         assertThat(query.selection).isEqualTo("date > ? AND type <> ?");
         assertThat(query.selectionArgs).asList().containsExactly("-1", "3");
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -47,7 +47,7 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(SMS, ids, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).asList().containsExactly("_id", "address", "body", "type", "date", "thread_id", "read", "status", "protocol", "service_center");
         assertThat(query.selection).isEqualTo("date > ? AND type <> ?  AND (type = 2 OR person IN (20))");
         assertThat(query.selectionArgs).asList().containsExactly("-1", "3");
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -57,12 +57,19 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(MMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://mms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).asList().containsExactly("_id", "date", "msg_box", "m_type", "thread_id", "read");
         assertThat(query.selection).isEqualTo("date > ? AND m_type <> ?");
         assertThat(query.selectionArgs).asList().containsExactly("-1", "134");
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
     }
 
+    @Test public void shouldBuildSelectionForMMSWithoutPosition() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildMmsSelection(null);
+
+        assertThat(query.selection).isEqualTo("m_type <> ?");
+        assertThat(query.selectionArgs).asList().containsExactly("134");
+    }
+
     @Test public void shouldBuildQueryForMMSWithSyncedDate() throws Exception {
         long nowInSecs = System.currentTimeMillis();
 
@@ -70,7 +77,7 @@ public class BackupQueryBuilderTest {
         BackupQueryBuilder.Query query = builder.buildQueryForDataType(MMS, null, 200);
 
         assertThat(query.uri).isEqualTo(Uri.parse("content://mms"));
-        assertThat(query.projection).isNull();
+        assertThat(query.projection).asList().containsExactly("_id", "date", "msg_box", "m_type", "thread_id", "read");
         assertThat(query.selection).isEqualTo("date > ? AND m_type <> ?");
         assertThat(query.selectionArgs).asList().containsExactly(String.valueOf(nowInSecs / 1000L), "134");
         assertThat(query.sortOrder).isEqualTo("date LIMIT 200");
@@ -112,4 +119,37 @@ public class BackupQueryBuilderTest {
         assertThat(query.selectionArgs).isNull();
         assertThat(query.sortOrder).isEqualTo("date DESC LIMIT 1");
     }
+
+    @Test public void shouldBuildPageQueryForSMSAfterPosition() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildPageQueryForDataType(SMS, null,
+            new BackupQueryBuilder.Position(1000L, 42L), 500);
+
+        assertThat(query.uri).isEqualTo(Uri.parse("content://sms"));
+        assertThat(query.projection).asList().containsExactly("_id", "address", "body", "type", "date", "thread_id", "read", "status", "protocol", "service_center");
+        assertThat(query.selection).isEqualTo("(date > ? OR (date = ? AND _id > ?)) AND type <> ?");
+        assertThat(query.selectionArgs).asList().containsExactly("1000", "1000", "42", "3").inOrder();
+        assertThat(query.sortOrder).isEqualTo("date, _id LIMIT 500");
+    }
+
+    @Test public void shouldBuildPageQueryForCallLogStartingAtSyncedPosition() throws Exception {
+        when(dataTypePreferences.getMaxSyncedDate(CALLLOG)).thenReturn(1000L);
+        when(dataTypePreferences.getMaxSyncedId(CALLLOG)).thenReturn(7L);
+
+        BackupQueryBuilder.Query query = builder.buildPageQueryForDataType(CALLLOG, null, null, 500);
+
+        assertThat(query.projection).asList().containsExactly("_id", "number", "duration", "date", "type");
+        assertThat(query.selection).isEqualTo("(date > ? OR (date = ? AND _id > ?))");
+        assertThat(query.selectionArgs).asList().containsExactly("1000", "1000", "7").inOrder();
+        assertThat(query.sortOrder).isEqualTo("date, _id LIMIT 500");
+    }
+
+    @Test public void shouldBuildCountQueryForMMS() throws Exception {
+        BackupQueryBuilder.Query query = builder.buildCountQueryForDataType(MMS, null);
+
+        assertThat(query.uri).isEqualTo(Uri.parse("content://mms"));
+        assertThat(query.projection).asList().containsExactly("COUNT(*)");
+        assertThat(query.selection).isEqualTo("date > ? AND m_type <> ?");
+        assertThat(query.selectionArgs).asList().containsExactly("-1", "134");
+        assertThat(query.sortOrder).isNull();
+    }
 }
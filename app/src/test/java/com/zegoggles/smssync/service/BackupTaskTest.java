@@ -5,6 +5,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.internet.MimeMessage;
 import com.fsck.k9.mail.store.imap.XOAuth2AuthenticationFailedException;
 import com.zegoggles.smssync.auth.TokenRefreshException;
@@ -15,7 +16,11 @@ import com.zegoggles.smssync.contacts.ContactGroupIds;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.Headers;
 import com.zegoggles.smssync.mail.MessageConverter;
+import com.zegoggles.smssync.mail.MessageIndex;
+import com.zegoggles.smssync.mail.MessageRow;
+import com.zegoggles.smssync.mail.RowValues;
 import com.zegoggles.smssync.preferences.AuthPreferences;
 import com.zegoggles.smssync.preferences.DataTypePreferences;
 import com.zegoggles.smssync.preferences.Preferences;
@@ -30,8 +35,16 @@ import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.zegoggles.smssync.mail.DataType.CALLLOG;
@@ -40,10 +53,14 @@ import static com.zegoggles.smssync.mail.DataType.SMS;
 import static com.zegoggles.smssync.service.BackupItemsFetcher.emptyCursor;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.notNull;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.anyCollectionOf;
 import static org.mockito.Mockito.anyListOf;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -60,6 +77,7 @@ public class BackupTaskTest {
     Context context;
     @Mock BackupImapStore store;
     @Mock BackupImapStore.BackupFolder folder;
+    @Mock BackupImapStore.BackupFolder callLogFolder;
     @Mock SmsBackupService service;
     @Mock BackupState state;
     @Mock BackupItemsFetcher fetcher;
@@ -78,12 +96,17 @@ public class BackupTaskTest {
         when(service.getState()).thenReturn(state);
         when(preferences.getDataTypePreferences()).thenReturn(dataTypePreferences);
 
-        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher);
+        task = new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher,
+                new File(RuntimeEnvironment.application.getFilesDir(), SyncCheckpoint.JOURNAL));
         context = RuntimeEnvironment.application;
     }
 
     private BackupConfig getBackupConfig(EnumSet<DataType> types) {
-        return new BackupConfig(store, 0, 100, new ContactGroup(-1), BackupType.MANUAL, types,
+        return getBackupConfig(types, 1);
+    }
+
+    private BackupConfig getBackupConfig(EnumSet<DataType> types, int batchSize) {
+        return new BackupConfig(store, 0, 100, batchSize, new ContactGroup(-1), BackupType.MANUAL, types,
                 false
         );
     }
@@ -114,7 +137,7 @@ public class BackupTaskTest {
 
         BackupState finalState = task.doInBackground(config);
 
-        verify(folder).appendMessages(anyListOf(Message.class));
+        verify(folder).appendBatch(anyListOf(Message.class), anyLong());
 
         verify(service).transition(SmsSyncState.LOGIN, null);
         verify(service).transition(SmsSyncState.CALC, null);
@@ -137,7 +160,160 @@ public class BackupTaskTest {
 
         assertThat(finalState.currentSyncedItems).isEqualTo(3);
 
-        verify(folder, times(3)).appendMessages(anyListOf(Message.class));
+        verify(folder, times(3)).appendBatch(anyListOf(Message.class), anyLong());
+    }
+
+    @Test public void shouldBackupItemsInBatches() throws Exception {
+        mockFetch(SMS, 5);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+
+        BackupState finalState = task.doInBackground(getBackupConfig(EnumSet.of(SMS), 2));
+
+        assertThat(finalState.currentSyncedItems).isEqualTo(5);
+        verify(folder, times(3)).appendBatch(anyListOf(Message.class), anyLong());
+        // checkpointed once at the end
+        verify(dataTypePreferences).setMaxSyncedDate(eq(SMS), anyLong(), anyLong());
+    }
+
+    @Test public void shouldBackupItemsPipelined() throws Exception {
+        mockFetch(SMS, 5);
+        when(preferences.isBackupPipelined()).thenReturn(true);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(converter.readMessage(any(Cursor.class))).thenReturn(RowValues.of(new HashMap<String, String>()));
+        when(converter.convertMessage(any(MessageRow.class), eq(SMS))).thenReturn(result(SMS, 1));
+
+        BackupState finalState = task.doInBackground(getBackupConfig(EnumSet.of(SMS), 2));
+
+        assertThat(finalState.currentSyncedItems).isEqualTo(5);
+        verify(folder, times(3)).appendBatch(anyListOf(Message.class), anyLong());
+        // checkpointed once at the end
+        verify(dataTypePreferences).setMaxSyncedDate(eq(SMS), anyLong(), anyLong());
+    }
+
+    @Test public void shouldBackupFoldersInParallel() throws Exception {
+        mockFetch(SMS, 3);
+        mockFetch(CALLLOG, 4);
+        when(preferences.getBackupConnections()).thenReturn(2);
+        when(dataTypePreferences.getFolder(SMS)).thenReturn("SMS");
+        when(dataTypePreferences.getFolder(CALLLOG)).thenReturn("Call log");
+        when(store.getFolder(SMS, dataTypePreferences)).thenReturn(folder);
+        when(store.getFolder(CALLLOG, dataTypePreferences)).thenReturn(callLogFolder);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(Cursor.class), eq(CALLLOG))).thenReturn(result(CALLLOG, 1));
+
+        // both uploads have to be in progress at the same time to get past the latch
+        final CountDownLatch bothUploading = new CountDownLatch(2);
+        final AtomicBoolean concurrent = new AtomicBoolean(true);
+        final Answer<Void> awaitOther = new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+                bothUploading.countDown();
+                if (!bothUploading.await(5, TimeUnit.SECONDS)) {
+                    concurrent.set(false);
+                }
+                return null;
+            }
+        };
+        doAnswer(awaitOther).when(folder).appendBatch(anyListOf(Message.class), anyLong());
+        doAnswer(awaitOther).when(callLogFolder).appendBatch(anyListOf(Message.class), anyLong());
+
+        BackupState finalState = task.doInBackground(getBackupConfig(EnumSet.of(SMS, CALLLOG), 10));
+
+        assertThat(concurrent.get()).isTrue();
+        assertThat(finalState.isFinished()).isTrue();
+        assertThat(finalState.currentSyncedItems).isEqualTo(7);
+        assertThat(finalState.itemsToSync).isEqualTo(7);
+        verify(folder).appendBatch(anyListOf(Message.class), anyLong());
+        verify(callLogFolder).appendBatch(anyListOf(Message.class), anyLong());
+        verify(dataTypePreferences).setMaxSyncedDate(eq(SMS), anyLong(), anyLong());
+        verify(dataTypePreferences).setMaxSyncedDate(eq(CALLLOG), anyLong(), anyLong());
+    }
+
+    @Test public void shouldFailParallelBackupIfOneFolderFails() throws Exception {
+        mockFetch(SMS, 3);
+        mockFetch(CALLLOG, 4);
+        when(preferences.getBackupConnections()).thenReturn(2);
+        when(dataTypePreferences.getFolder(SMS)).thenReturn("SMS");
+        when(dataTypePreferences.getFolder(CALLLOG)).thenReturn("Call log");
+        when(store.getFolder(SMS, dataTypePreferences)).thenReturn(folder);
+        when(store.getFolder(CALLLOG, dataTypePreferences)).thenReturn(callLogFolder);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(Cursor.class), eq(CALLLOG))).thenReturn(result(CALLLOG, 1));
+        MessagingException exception = new MessagingException("append failed");
+        doThrow(exception).when(callLogFolder).appendBatch(anyListOf(Message.class), anyLong());
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS, CALLLOG), 1));
+
+        verify(service).transition(SmsSyncState.ERROR, exception);
+        verify(callLogFolder).appendBatch(anyListOf(Message.class), anyLong());
+        verify(store).closeFolders();
+    }
+
+    @Test public void shouldStopOtherFoldersAsSoonAsOneFails() throws Exception {
+        mockFetch(SMS, 3);
+        mockFetch(CALLLOG, 4);
+        when(preferences.getBackupConnections()).thenReturn(2);
+        when(dataTypePreferences.getFolder(SMS)).thenReturn("SMS");
+        when(dataTypePreferences.getFolder(CALLLOG)).thenReturn("Call log");
+        when(store.getFolder(SMS, dataTypePreferences)).thenReturn(folder);
+        when(store.getFolder(CALLLOG, dataTypePreferences)).thenReturn(callLogFolder);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(Cursor.class), eq(CALLLOG))).thenReturn(result(CALLLOG, 1));
+
+        final AtomicReference<Thread> callLogUploader = new AtomicReference<Thread>();
+        final CountDownLatch callLogFailing = new CountDownLatch(1);
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+                callLogUploader.set(Thread.currentThread());
+                callLogFailing.countDown();
+                throw new MessagingException("append failed");
+            }
+        }).when(callLogFolder).appendBatch(anyListOf(Message.class), anyLong());
+        // the first stream is still uploading when the second one fails
+        doAnswer(new Answer<Void>() {
+            @Override public Void answer(InvocationOnMock invocation) throws Throwable {
+                assertThat(callLogFailing.await(5, TimeUnit.SECONDS)).isTrue();
+                // the failed uploader is idle once its task has finished
+                final long deadline = System.currentTimeMillis() + 5000;
+                while (callLogUploader.get().getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+                return null;
+            }
+        }).when(folder).appendBatch(anyListOf(Message.class), anyLong());
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS, CALLLOG), 1));
+
+        verify(folder, times(1)).appendBatch(anyListOf(Message.class), anyLong());
+        verify(store).closeFolders();
+    }
+
+    @Test public void shouldUploadFoldersSequentiallyWithOneConnection() throws Exception {
+        mockFetch(SMS, 1);
+        mockFetch(CALLLOG, 1);
+        when(preferences.getBackupConnections()).thenReturn(1);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(Cursor.class), eq(CALLLOG))).thenReturn(result(CALLLOG, 1));
+
+        BackupState finalState = task.doInBackground(getBackupConfig(EnumSet.of(SMS, CALLLOG), 10));
+
+        assertThat(finalState.currentSyncedItems).isEqualTo(2);
+        verify(folder, times(2)).appendBatch(anyListOf(Message.class), anyLong());
+    }
+
+    @Test public void shouldNotMixDataTypesInBatch() throws Exception {
+        mockFetch(SMS, 1);
+        mockFetch(CALLLOG, 1);
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(converter.convertMessages(any(Cursor.class), eq(CALLLOG))).thenReturn(result(CALLLOG, 1));
+
+        task.doInBackground(getBackupConfig(EnumSet.of(SMS, CALLLOG), 10));
+
+        verify(store).getFolder(SMS, dataTypePreferences);
+        verify(store).getFolder(CALLLOG, dataTypePreferences);
+        verify(folder, times(2)).appendBatch(anyListOf(Message.class), anyLong());
     }
 
     @Test public void shouldCreateFoldersLazilyOnlyForNeededTypes() throws Exception {
@@ -173,7 +349,7 @@ public class BackupTaskTest {
         when(fetcher.getMostRecentTimestamp(any(DataType.class))).thenReturn(-23L);
 
         BackupState finalState = task.doInBackground(new BackupConfig(
-            store, 0, 100, new ContactGroup(-1), BackupType.SKIP, EnumSet.of(SMS), false
+            store, 0, 100, 1, new ContactGroup(-1), BackupType.SKIP, EnumSet.of(SMS), false
             )
         );
         verify(dataTypePreferences).setMaxSyncedDate(DataType.SMS, -23);
@@ -228,10 +404,85 @@ public class BackupTaskTest {
     }
 
 
+    @Test public void shouldResumeInterruptedUpload() throws Exception {
+        File journal = planInterruptedUpload();
+        MessageIndex messageIndex = mock(MessageIndex.class);
+        task = newTask(messageIndex);
+
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(folder.findMessageIds(anyCollectionOf(String.class))).thenReturn(Collections.singleton("<12@sms-backup-plus.local>"));
+
+        task.doInBackground(config);
+
+        verify(folder).findMessageIds(Arrays.asList("<12@sms-backup-plus.local>", "<13@sms-backup-plus.local>"));
+        // only the message on the server gets skipped by the converter
+        verify(messageIndex).record(SMS, 12L, 1000L, "<12@sms-backup-plus.local>");
+        verify(messageIndex, never()).record(eq(SMS), eq(13L), anyLong(), anyString());
+        assertThat(journal.exists()).isFalse();
+    }
+
+    @Test public void shouldMoveWatermarkPastResumedMessages() throws Exception {
+        planInterruptedUpload();
+
+        mockFetch(SMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(SMS))).thenReturn(result(SMS, 1));
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(folder.findMessageIds(anyCollectionOf(String.class))).thenReturn(Collections.singleton("<12@sms-backup-plus.local>"));
+        doThrow(new MessagingException("failed")).when(folder).appendBatch(anyListOf(Message.class), anyLong());
+
+        task.doInBackground(config);
+
+        verify(dataTypePreferences).setMaxSyncedDate(SMS, 1000L, 12L);
+        verify(dataTypePreferences, never()).setMaxSyncedDate(SMS, 2000L, 13L);
+    }
+
+    @Test public void shouldMoveMmsWatermarkPastResumedMessages() throws Exception {
+        // MMS dates are in seconds, the preference returns milliseconds
+        when(dataTypePreferences.getMaxSyncedDate(MMS)).thenReturn(1500 * 1000L);
+        new UploadJournal(new File(RuntimeEnvironment.application.getFilesDir(), UploadJournal.JOURNAL))
+            .plan(MMS, Arrays.<Message>asList(message(5, 1600), message(6, 1700), message(7, 1800)));
+
+        mockFetch(MMS, 1);
+        when(converter.convertMessages(any(Cursor.class), eq(MMS))).thenReturn(result(MMS, 1));
+        when(store.getFolder(notNull(DataType.class), same(dataTypePreferences))).thenReturn(folder);
+        when(folder.findMessageIds(anyCollectionOf(String.class))).thenReturn(new HashSet<String>(
+            Arrays.asList("<5@sms-backup-plus.local>", "<6@sms-backup-plus.local>")));
+        doThrow(new MessagingException("failed")).when(folder).appendBatch(anyListOf(Message.class), anyLong());
+
+        task.doInBackground(getBackupConfig(EnumSet.of(MMS)));
+
+        verify(dataTypePreferences).setMaxSyncedDate(MMS, 1700L, 6L);
+        verify(dataTypePreferences, never()).setMaxSyncedDate(MMS, 1800L, 7L);
+    }
+
+    /**
+     * @return the journal of a backup killed while uploading two messages, of which the first made it
+     */
+    private File planInterruptedUpload() throws MessagingException {
+        File journal = new File(RuntimeEnvironment.application.getFilesDir(), UploadJournal.JOURNAL);
+        new UploadJournal(journal).plan(SMS, Arrays.<Message>asList(message(12, 1000), message(13, 2000)));
+        return journal;
+    }
+
+    private static Message message(long id, long date) throws MessagingException {
+        MimeMessage message = new MimeMessage();
+        message.setHeader(Headers.ID, String.valueOf(id));
+        message.setHeader(Headers.DATE, String.valueOf(date));
+        message.setHeader(Headers.MESSAGE_ID, "<" + id + "@sms-backup-plus.local>");
+        return message;
+    }
+
+    private BackupTask newTask(MessageIndex messageIndex) {
+        return new BackupTask(service, fetcher, converter, syncer, authPreferences, preferences, accessor, tokenRefresher,
+                new File(RuntimeEnvironment.application.getFilesDir(), SyncCheckpoint.JOURNAL), messageIndex);
+    }
+
     private ConversionResult result(DataType type, int n) {
         ConversionResult result = new ConversionResult(type);
         for (int i = 0; i<n; i++) {
-            result.add(new MimeMessage(), new HashMap<String, String>());
+            result.add(new MimeMessage(), RowValues.of(new HashMap<String, String>()));
         }
         return result;
     }
@@ -6,8 +6,10 @@ import com.zegoggles.smssync.calendar.CalendarAccessor;
 import com.zegoggles.smssync.mail.CallFormatter;
 import com.zegoggles.smssync.mail.ConversionResult;
 import com.zegoggles.smssync.mail.DataType;
+import com.zegoggles.smssync.mail.MessageRow;
 import com.zegoggles.smssync.mail.PersonLookup;
 import com.zegoggles.smssync.mail.PersonRecord;
+import com.zegoggles.smssync.mail.RowValues;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -77,12 +79,12 @@ public class CalendarSyncerTest {
         verify(accessor, never()).enableSync(CALENDAR_ID);
     }
 
-    private Map<String,String> message(int DURATION, int TYPE, String NUMBER, Date callTime) {
+    private MessageRow message(int DURATION, int TYPE, String NUMBER, Date callTime) {
         Map<String, String> map = new HashMap<String, String>();
         map.put(CallLog.Calls.DURATION, String.valueOf(DURATION));
         map.put(CallLog.Calls.TYPE, String.valueOf(TYPE));
         map.put(CallLog.Calls.NUMBER,   NUMBER);
         map.put(CallLog.Calls.DATE, String.valueOf(callTime.getTime()));
-        return map;
+        return RowValues.of(map);
     }
 }
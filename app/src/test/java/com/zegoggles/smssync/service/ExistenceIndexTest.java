@@ -0,0 +1,274 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.CallLog;
+import android.provider.Telephony;
+import android.util.Log;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.Consts;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.zegoggles.smssync.App.TAG;
+import static com.zegoggles.smssync.service.ExistenceIndex.Type.CALLLOG;
+import static com.zegoggles.smssync.service.ExistenceIndex.Type.SMS;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class ExistenceIndexTest {
+    private SQLiteDatabase db;
+    private ContentResolver resolver;
+    private int queries;
+
+    @Before public void before() {
+        db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, date INTEGER, address TEXT, type INTEGER, body TEXT)");
+        db.execSQL("CREATE TABLE calls (_id INTEGER PRIMARY KEY, date INTEGER, number TEXT, duration INTEGER, type INTEGER)");
+
+        // the providers, without the indexes
+        resolver = mock(ContentResolver.class);
+        when(resolver.query(any(Uri.class), any(String[].class), anyString(), any(String[].class), anyString()))
+            .thenAnswer(new Answer<Cursor>() {
+                @Override public Cursor answer(InvocationOnMock invocation) {
+                    queries++;
+                    final Object[] args = invocation.getArguments();
+                    final String table = Consts.SMS_PROVIDER.equals(args[0]) ? "sms" : "calls";
+                    return db.query(table, (String[]) args[1], (String) args[2], (String[]) args[3], null, null, null);
+                }
+            });
+    }
+
+    @After public void after() {
+        db.close();
+    }
+
+    @Test public void shouldFindExistingSms() throws Exception {
+        insertSms(1000, "1234", 1);
+        ExistenceIndex index = new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        assertThat(index.exists(SMS, sms(1000, "1234", 1))).isTrue();
+        assertThat(index.exists(SMS, sms(1000, "1234", 2))).isFalse();
+        assertThat(index.exists(SMS, sms(1001, "1234", 1))).isFalse();
+        assertThat(index.exists(SMS, sms(1000, "12345", 1))).isFalse();
+    }
+
+    @Test public void shouldFindExistingCalls() throws Exception {
+        insertCall(1000, "1234", 65, CallLog.Calls.INCOMING_TYPE);
+        ExistenceIndex index = new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        assertThat(index.exists(CALLLOG, call(1000, "1234", 65, CallLog.Calls.INCOMING_TYPE))).isTrue();
+        assertThat(index.exists(CALLLOG, call(1000, "1234", 66, CallLog.Calls.INCOMING_TYPE))).isFalse();
+        assertThat(index.exists(SMS, sms(1000, "1234", CallLog.Calls.INCOMING_TYPE))).isFalse();
+    }
+
+    @Test public void shouldOnlyQueryForKnownFingerprints() throws Exception {
+        insertSms(1000, "1234", 1);
+        ExistenceIndex index = new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(index.exists(SMS, sms(2000 + i, "1234", 1))).isFalse();
+        }
+        assertThat(queries).isEqualTo(1);
+
+        assertThat(index.exists(SMS, sms(1000, "1234", 1))).isTrue();
+        assertThat(queries).isEqualTo(2);
+    }
+
+    @Test public void shouldCheckForCollisions() throws Exception {
+        insertSms(1000, "1234", 1);
+        ExistenceIndex index = new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+        index.exists(SMS, sms(1, "1", 1));
+
+        // the same fingerprint, but the row is gone
+        db.delete("sms", null, null);
+        assertThat(index.exists(SMS, sms(1000, "1234", 1))).isFalse();
+        assertThat(index.toString()).contains("collisions=1");
+    }
+
+    @Test public void shouldAddInsertedItems() throws Exception {
+        ExistenceIndex index = new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertThat(index.exists(SMS, sms(1000, "1234", 1))).isFalse();
+
+        insertSms(1000, "1234", 1);
+        index.add(SMS, sms(1000, "1234", 1));
+        assertThat(index.exists(SMS, sms(1000, "1234", 1))).isTrue();
+    }
+
+    @Test public void shouldQueryProviderForIncompleteKeys() throws Exception {
+        db.execSQL("INSERT INTO sms (date, address, type) VALUES (1000, NULL, 1)");
+        ExistenceIndex index = new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        try {
+            index.exists(SMS, sms(1000, null, 1));
+        } catch (IllegalArgumentException ignored) {
+            // null arguments are rejected, the caller skips the item like before
+        }
+        assertThat(queries).isEqualTo(2);
+    }
+
+    @Test public void shouldLimitToDateRange() throws Exception {
+        final long day = 24 * 60 * 60 * 1000L;
+        insertSms(10 * day, "1234", 1);
+        insertSms(20 * day, "1234", 1);
+        insertSms(30 * day, "1234", 1);
+
+        ExistenceIndex index = ExistenceIndex.forMessages(resolver, Arrays.asList(
+            message(new Date(18 * day)), message(new Date(22 * day))));
+        assertThat(index.exists(SMS, sms(20 * day, "1234", 1))).isTrue();
+        assertThat(index.size(SMS)).isEqualTo(1);
+    }
+
+    @Test public void shouldIndexEverythingWithoutDates() throws Exception {
+        insertSms(1000, "1234", 1);
+        insertSms(2000, "1234", 1);
+
+        ExistenceIndex index = ExistenceIndex.forMessages(resolver, Arrays.asList(
+            message(new Date(1000)), message(null)));
+        index.exists(SMS, sms(1, "1", 1));
+        assertThat(index.size(SMS)).isEqualTo(2);
+    }
+
+    @Test public void shouldFallBackToQueriesIfNotLoaded() throws Exception {
+        ContentResolver failing = mock(ContentResolver.class);
+        ExistenceIndex index = new ExistenceIndex(failing, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertThat(index.exists(SMS, sms(1000, "1234", 1))).isFalse();
+        assertThat(index.toString()).contains("queries=1");
+    }
+
+    @Test public void shouldDistinguishKeys() throws Exception {
+        assertThat(ExistenceIndex.fingerprint(new String[] { "ab", "c" }))
+            .isNotEqualTo(ExistenceIndex.fingerprint(new String[] { "a", "bc" }));
+        assertThat(ExistenceIndex.fingerprint(new String[] { null, "1" }))
+            .isNotEqualTo(ExistenceIndex.fingerprint(new String[] { "", "1" }));
+        assertThat(ExistenceIndex.fingerprint(new String[] { "ı" }))
+            .isNotEqualTo(ExistenceIndex.fingerprint(new String[] { "1" }));
+    }
+
+    @Test public void shouldHandleFingerprintZero() throws Exception {
+        ExistenceIndex.FingerprintSet set = new ExistenceIndex.FingerprintSet(0);
+        assertThat(set.contains(0)).isFalse();
+        set.add(0);
+        assertThat(set.contains(0)).isTrue();
+        assertThat(set.size()).isEqualTo(1);
+        for (long f = 1; f < 1000; f++) {
+            set.add(f * 0x100000001b3L);
+        }
+        assertThat(set.contains(0)).isTrue();
+        assertThat(set.contains(999 * 0x100000001b3L)).isTrue();
+        assertThat(set.contains(1000 * 0x100000001b3L)).isFalse();
+    }
+
+    /**
+     * A device with 100k messages, restoring a backup with some of them.
+     */
+    @Test public void shouldQueryLessThanQueryingEachMessage() throws Exception {
+        final int existing = 100000;
+        db.beginTransaction();
+        for (int i = 0; i < existing; i++) {
+            insertSms(1500000000000L + i * 60000L, "+4420794" + (i % 1000), 1 + i % 2);
+        }
+        db.setTransactionSuccessful();
+        db.endTransaction();
+
+        final List<ContentValues> candidates = new ArrayList<ContentValues>();
+        for (int i = 0; i < 500; i++) {
+            // every 10th message is on the device already
+            final int n = i % 10 == 0 ? i * 199 : existing + i;
+            candidates.add(sms(1500000000000L + n * 60000L, "+4420794" + (n % 1000), 1 + n % 2));
+        }
+        Collections.shuffle(candidates);
+
+        queries = 0;
+        long start = System.nanoTime();
+        int foundByQuery = 0;
+        for (ContentValues values : candidates) {
+            Cursor c = resolver.query(Consts.SMS_PROVIDER, new String[] { "_id" }, SMS.selection,
+                new String[] {
+                    values.getAsString(Telephony.TextBasedSmsColumns.DATE),
+                    values.getAsString(Telephony.TextBasedSmsColumns.ADDRESS),
+                    values.getAsString(Telephony.TextBasedSmsColumns.TYPE)
+                }, null);
+            if (c.getCount() > 0) foundByQuery++;
+            c.close();
+        }
+        final long perMessageQueries = System.nanoTime() - start;
+        final int queriesBefore = queries;
+
+        queries = 0;
+        start = System.nanoTime();
+        int foundByIndex = 0;
+        ExistenceIndex index = new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE);
+        for (ContentValues values : candidates) {
+            if (index.exists(SMS, values)) foundByIndex++;
+        }
+        final long withIndex = System.nanoTime() - start;
+
+        assertThat(foundByIndex).isEqualTo(foundByQuery);
+        assertThat(foundByIndex).isEqualTo(50);
+        assertThat(queriesBefore).isEqualTo(500);
+        // one query to load the index, and one per message found
+        assertThat(queries).isEqualTo(51);
+        assertThat(index.size(SMS)).isEqualTo(existing);
+        // timings vary too much between machines to assert on
+        Log.d(TAG, String.format(Locale.ENGLISH, "existence check: %dms with index, %dms querying each message",
+            withIndex / 1000000L, perMessageQueries / 1000000L));
+    }
+
+    private void insertSms(long date, String address, int type) {
+        ContentValues values = new ContentValues();
+        values.put("date", date);
+        values.put("address", address);
+        values.put("type", type);
+        values.put("body", "Hello");
+        db.insert("sms", null, values);
+    }
+
+    private void insertCall(long date, String number, long duration, int type) {
+        db.insert("calls", null, call(date, number, duration, type));
+    }
+
+    private static ContentValues sms(long date, String address, int type) {
+        // as created by the MessageConverter
+        ContentValues values = new ContentValues();
+        values.put(Telephony.TextBasedSmsColumns.DATE, String.valueOf(date));
+        values.put(Telephony.TextBasedSmsColumns.ADDRESS, address);
+        values.put(Telephony.TextBasedSmsColumns.TYPE, String.valueOf(type));
+        return values;
+    }
+
+    private static ContentValues call(long date, String number, long duration, int type) {
+        ContentValues values = new ContentValues();
+        values.put(CallLog.Calls.DATE, String.valueOf(date));
+        values.put(CallLog.Calls.NUMBER, number);
+        values.put(CallLog.Calls.DURATION, duration);
+        values.put(CallLog.Calls.TYPE, type);
+        return values;
+    }
+
+    private static Message message(Date sentDate) {
+        Message message = mock(MimeMessage.class);
+        when(message.getSentDate()).thenReturn(sentDate);
+        return message;
+    }
+}
@@ -0,0 +1,228 @@
+package com.zegoggles.smssync.service;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.provider.Telephony;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.zegoggles.smssync.Consts;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.zegoggles.smssync.App.TAG;
+import static com.zegoggles.smssync.service.ExistenceIndex.Type.SMS;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@SuppressWarnings("unchecked")
+public class InsertBatchTest {
+    private ContentResolver resolver;
+    private SmsProvider provider;
+    private final List<Uri> inserted = new ArrayList<Uri>();
+    private int batches;
+
+    @Before public void before() {
+        provider = Robolectric.buildContentProvider(SmsProvider.class).create(Consts.SMS_PROVIDER.getAuthority()).get();
+        resolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test public void shouldInsertRowsInBatches() throws Exception {
+        InsertBatch batch = newBatch(resolver, 2);
+        assertThat(batch.insertIfMissing(sms(1000, "1234"))).isTrue();
+        assertThat(provider.count()).isEqualTo(0);
+
+        assertThat(batch.insertIfMissing(sms(2000, "1234"))).isTrue();
+        assertThat(provider.count()).isEqualTo(2);
+        assertThat(batches).isEqualTo(1);
+
+        assertThat(batch.insertIfMissing(sms(3000, "1234"))).isTrue();
+        batch.flush();
+        assertThat(provider.count()).isEqualTo(3);
+        assertThat(batches).isEqualTo(2);
+        assertThat(provider.applied).isEqualTo(2);
+        assertThat(inserted).containsExactly(
+            Uri.parse("content://sms/1"),
+            Uri.parse("content://sms/2"),
+            Uri.parse("content://sms/3")).inOrder();
+    }
+
+    @Test public void shouldSkipExistingRows() throws Exception {
+        InsertBatch batch = newBatch(resolver, 10);
+        batch.insertIfMissing(sms(1000, "1234"));
+        batch.flush();
+
+        assertThat(batch.insertIfMissing(sms(1000, "1234"))).isFalse();
+        batch.flush();
+        assertThat(provider.count()).isEqualTo(1);
+    }
+
+    @Test public void shouldSkipDuplicatesWithinBatch() throws Exception {
+        InsertBatch batch = newBatch(resolver, 10);
+        assertThat(batch.insertIfMissing(sms(1000, "1234"))).isTrue();
+        assertThat(batch.insertIfMissing(sms(1000, "1234"))).isFalse();
+        batch.flush();
+
+        assertThat(provider.count()).isEqualTo(1);
+        assertThat(inserted).hasSize(1);
+    }
+
+    @Test public void shouldFallBackToSingleInsertsIfBatchFails() throws Exception {
+        ContentResolver failing = mock(ContentResolver.class);
+        when(failing.applyBatch(anyString(), any(ArrayList.class))).thenThrow(new OperationApplicationException("failed"));
+        when(failing.insert(any(Uri.class), any(ContentValues.class))).thenReturn(Uri.parse("content://sms/42"));
+
+        InsertBatch batch = newBatch(failing, 2);
+        batch.insertIfMissing(sms(1000, "1234"));
+        batch.insertIfMissing(sms(2000, "1234"));
+
+        verify(failing).insert(Consts.SMS_PROVIDER, sms(1000, "1234"));
+        verify(failing).insert(Consts.SMS_PROVIDER, sms(2000, "1234"));
+        assertThat(inserted).hasSize(2);
+        assertThat(batch.toString()).contains("fallbacks=1");
+    }
+
+    @Test public void shouldNotWriteWithoutRows() throws Exception {
+        ContentResolver mockResolver = mock(ContentResolver.class);
+        newBatch(mockResolver, 2).flush();
+        verify(mockResolver, never()).applyBatch(anyString(), any(ArrayList.class));
+        assertThat(batches).isEqualTo(0);
+    }
+
+    /**
+     * Rows per second of one insert per row, as before, compared to batches.
+     */
+    @Test public void shouldInsertManyRowsInFewBatches() throws Exception {
+        final int rows = 1000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            assertThat(resolver.insert(Consts.SMS_PROVIDER, sms(i, "1234"))).isNotNull();
+        }
+        final long rowByRow = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        InsertBatch batch = newBatch(resolver, 50);
+        for (int i = rows; i < 2 * rows; i++) {
+            assertThat(batch.insertIfMissing(sms(i, "1234"))).isTrue();
+        }
+        batch.flush();
+        final long batched = System.nanoTime() - start;
+
+        assertThat(provider.count()).isEqualTo(2 * rows);
+        assertThat(inserted).hasSize(rows);
+        assertThat(batches).isEqualTo(rows / 50);
+        assertThat(provider.applied).isEqualTo(rows / 50);
+        // timings vary too much between machines, and depend on this provider, to assert on
+        Log.d(TAG, String.format(Locale.ENGLISH, "insert: %d rows/s batched, %d rows/s row by row",
+            rows * 1000000000L / Math.max(1, batched), rows * 1000000000L / Math.max(1, rowByRow)));
+    }
+
+    private InsertBatch newBatch(ContentResolver resolver, int size) {
+        return new InsertBatch(resolver, new ExistenceIndex(resolver, Long.MIN_VALUE, Long.MAX_VALUE), SMS, size,
+            new InsertBatch.Listener() {
+                @Override public void onInserted(ContentValues values, @Nullable Uri uri) {
+                    if (uri != null) inserted.add(uri);
+                }
+
+                @Override public void onBatchInserted() {
+                    batches++;
+                }
+            });
+    }
+
+    private static ContentValues sms(long date, String address) {
+        ContentValues values = new ContentValues();
+        values.put(Telephony.TextBasedSmsColumns.DATE, String.valueOf(date));
+        values.put(Telephony.TextBasedSmsColumns.ADDRESS, address);
+        values.put(Telephony.TextBasedSmsColumns.TYPE, String.valueOf(Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX));
+        values.put(Telephony.TextBasedSmsColumns.BODY, "Hello");
+        return values;
+    }
+
+    /**
+     * Stores rows in a database file, and applies batches in a transaction like the telephony provider.
+     */
+    public static class SmsProvider extends ContentProvider {
+        private SQLiteDatabase db;
+        int applied;
+
+        @Override public boolean onCreate() {
+            getContext().deleteDatabase("sms.db");
+            db = getContext().openOrCreateDatabase("sms.db", 0, null);
+            db.execSQL("CREATE TABLE sms (_id INTEGER PRIMARY KEY, date INTEGER, address TEXT, type INTEGER, body TEXT)");
+            return true;
+        }
+
+        @Override public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            return db.query("sms", projection, selection, selectionArgs, null, null, sortOrder);
+        }
+
+        @Override public Uri insert(@NonNull Uri uri, ContentValues values) {
+            return ContentUris.withAppendedId(uri, db.insert("sms", null, values));
+        }
+
+        @NonNull @Override
+        public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations) throws OperationApplicationException {
+            applied++;
+            db.beginTransaction();
+            try {
+                final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+                for (int i = 0; i < results.length; i++) {
+                    if (operations.get(i).isYieldAllowed()) {
+                        db.yieldIfContendedSafely();
+                    }
+                    results[i] = operations.get(i).apply(this, results, i);
+                }
+                db.setTransactionSuccessful();
+                return results;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        @Override public String getType(@NonNull Uri uri) {
+            return null;
+        }
+
+        @Override public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return 0;
+        }
+
+        int count() {
+            final Cursor c = db.rawQuery("SELECT COUNT(*) FROM sms", null);
+            try {
+                c.moveToFirst();
+                return c.getInt(0);
+            } finally {
+                c.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.zegoggles.smssync.service;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.zegoggles.smssync.service.BackupQueryBuilder.Position;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class PagedCursorTest {
+
+    @Test public void shouldIterateOverAllPages() throws Exception {
+        Rows rows = new Rows(7);
+        PagedCursor cursor = new PagedCursor(rows, 7, 3);
+
+        List<Long> ids = new ArrayList<Long>();
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(cursor.getColumnIndex("_id")));
+        }
+        assertThat(ids).containsExactly(1L, 2L, 3L, 4L, 5L, 6L, 7L).inOrder();
+        assertThat(cursor.getPageCount()).isEqualTo(3);
+        assertThat(rows.positions).containsExactly(null, "date=1,id=3", "date=2,id=6").inOrder();
+        cursor.close();
+    }
+
+    @Test public void shouldNotLoadMoreThanCounted() throws Exception {
+        Rows rows = new Rows(10);
+        PagedCursor cursor = new PagedCursor(rows, 4, 3);
+
+        int seen = 0;
+        while (cursor.moveToNext()) seen++;
+
+        assertThat(seen).isEqualTo(4);
+        assertThat(rows.limits).containsExactly(3, 1).inOrder();
+    }
+
+    @Test public void shouldAdjustCountIfRowsWentMissing() throws Exception {
+        Rows rows = new Rows(4);
+        PagedCursor cursor = new PagedCursor(rows, 6, 3);
+
+        assertThat(cursor.moveToPosition(2)).isTrue();
+        assertThat(cursor.getCount()).isEqualTo(4);
+        assertThat(cursor.moveToNext()).isTrue();
+        assertThat(cursor.isLast()).isTrue();
+        assertThat(cursor.moveToNext()).isFalse();
+    }
+
+    @Test public void shouldRewind() throws Exception {
+        PagedCursor cursor = new PagedCursor(new Rows(5), 5, 2);
+        assertThat(cursor.moveToLast()).isTrue();
+        assertThat(cursor.moveToFirst()).isTrue();
+        assertThat(cursor.getLong(cursor.getColumnIndex("_id"))).isEqualTo(1L);
+    }
+
+    @Test public void shouldHandleEmptyResult() throws Exception {
+        Rows rows = new Rows(0);
+        PagedCursor cursor = new PagedCursor(rows, 0, 3);
+        assertThat(cursor.getCount()).isEqualTo(0);
+        assertThat(cursor.moveToNext()).isFalse();
+        assertThat(rows.limits).isEmpty();
+    }
+
+    /** Rows with ids 1..n, three per date, paged by (date, _id) like the provider would. */
+    private static class Rows implements PagedCursor.PageLoader {
+        final int n;
+        final List<String> positions = new ArrayList<String>();
+        final List<Integer> limits = new ArrayList<Integer>();
+
+        Rows(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public @NonNull Cursor load(@Nullable Position after, int limit) {
+            positions.add(after == null ? null : "date=" + after.date + ",id=" + after.id);
+            limits.add(limit);
+            MatrixCursor cursor = new MatrixCursor(new String[] {"_id", "date"});
+            for (long id = 1; id <= n && cursor.getCount() < limit; id++) {
+                long date = (id + 2) / 3;
+                if (after == null || date > after.date || (date == after.date && id > after.id)) {
+                    cursor.addRow(new Object[] { id, date });
+                }
+            }
+            return cursor;
+        }
+    }
+}
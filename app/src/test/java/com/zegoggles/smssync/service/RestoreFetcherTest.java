@@ -0,0 +1,209 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.AuthenticationFailedException;
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.MessagingException;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.fsck.k9.mail.store.imap.ImapMessage;
+import com.zegoggles.smssync.mail.BackupImapStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@SuppressWarnings("unchecked")
+public class RestoreFetcherTest {
+    @Mock BackupImapStore.BackupFolder smsFolder;
+    @Mock BackupImapStore.BackupFolder callLogFolder;
+    private final Map<String, Message> contents = new HashMap<String, Message>();
+    private RestoreFetcher fetcher;
+
+    @Before public void before() throws Exception {
+        initMocks(this);
+        doAnswer(new FetchAnswer()).when(smsFolder).fetchForRestore(any(List.class));
+        doAnswer(new FetchAnswer()).when(callLogFolder).fetchForRestore(any(List.class));
+    }
+
+    @After public void after() {
+        if (fetcher != null) fetcher.close();
+    }
+
+    @Test public void shouldFetchBatchesOfMessagesInTheSameFolder() throws Exception {
+        List<ImapMessage> messages = new ArrayList<ImapMessage>();
+        messages.addAll(messages(smsFolder, 0, 5));
+        messages.addAll(messages(callLogFolder, 5, 2));
+
+        fetcher = new RestoreFetcher(messages, 2).start();
+        for (ImapMessage message : messages) {
+            RestoreFetcher.FetchedMessage fetched = fetcher.next();
+            assertThat(fetched.uid).isEqualTo(message.getUid());
+            assertThat(fetched.message).isSameAs(contents.get(message.getUid()));
+            assertThat(fetched.error).isNull();
+        }
+
+        ArgumentCaptor<List> smsBatches = ArgumentCaptor.forClass(List.class);
+        verify(smsFolder, times(3)).fetchForRestore(smsBatches.capture());
+        assertThat(smsBatches.getAllValues()).containsExactly(
+            messages.subList(0, 2),
+            messages.subList(2, 4),
+            messages.subList(4, 5)).inOrder();
+
+        ArgumentCaptor<List> callLogBatches = ArgumentCaptor.forClass(List.class);
+        verify(callLogFolder).fetchForRestore(callLogBatches.capture());
+        assertThat(callLogBatches.getValue()).isEqualTo(messages.subList(5, 7));
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void shouldSignalEnd() throws Exception {
+        fetcher = new RestoreFetcher(messages(smsFolder, 0, 1), 10).start();
+        fetcher.next();
+        fetcher.next();
+    }
+
+    @Test public void shouldRetryFailedBatchMessageByMessage() throws Exception {
+        final List<ImapMessage> messages = messages(smsFolder, 0, 3);
+        doAnswer(new FetchAnswer() {
+            @Override public Map<String, Message> answer(InvocationOnMock invocation) throws Throwable {
+                List<?> batch = (List<?>) invocation.getArguments()[0];
+                if (batch.size() > 1 || batch.contains(messages.get(1))) {
+                    throw new MessagingException("fetch failed");
+                }
+                return super.answer(invocation);
+            }
+        }).when(smsFolder).fetchForRestore(any(List.class));
+
+        fetcher = new RestoreFetcher(messages, 3).start();
+        assertThat(fetcher.next().error).isNull();
+        RestoreFetcher.FetchedMessage failed = fetcher.next();
+        assertThat(failed.error).isNotNull();
+        assertThat(failed.uid).isEqualTo("1");
+        assertThat(fetcher.next().error).isNull();
+        verify(smsFolder).fetchForRestore(eq(Arrays.asList(messages.get(0))));
+    }
+
+    @Test public void shouldReportMessagesMissingFromResponse() throws Exception {
+        final List<ImapMessage> messages = messages(smsFolder, 0, 2);
+        doAnswer(new FetchAnswer() {
+            @Override public Map<String, Message> answer(InvocationOnMock invocation) throws Throwable {
+                Map<String, Message> fetched = super.answer(invocation);
+                fetched.remove("0");
+                return fetched;
+            }
+        }).when(smsFolder).fetchForRestore(any(List.class));
+
+        fetcher = new RestoreFetcher(messages, 2).start();
+        assertThat(fetcher.next().error).isNotNull();
+        assertThat(fetcher.next().error).isNull();
+    }
+
+    @Test public void shouldOnlyPrefetchOneBatch() throws Exception {
+        fetcher = new RestoreFetcher(messages(smsFolder, 0, 10), 2).start();
+
+        // one batch is queued, the next one waits to be queued
+        verify(smsFolder, timeout(1000).times(2)).fetchForRestore(any(List.class));
+        Thread.sleep(100);
+        verify(smsFolder, times(2)).fetchForRestore(any(List.class));
+
+        fetcher.next();
+        verify(smsFolder, timeout(1000).times(3)).fetchForRestore(any(List.class));
+    }
+
+    @Test public void shouldPassFetchErrorsToCaller() throws Exception {
+        doThrow(new IllegalStateException("broken")).when(smsFolder).fetchForRestore(any(List.class));
+
+        fetcher = new RestoreFetcher(messages(smsFolder, 0, 2), 2).start();
+        try {
+            fetcher.next();
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("broken");
+        }
+    }
+
+    @Test public void shouldPassAuthenticationFailuresToCaller() throws Exception {
+        final List<ImapMessage> messages = messages(smsFolder, 0, 4);
+        doAnswer(new FetchAnswer() {
+            @Override public Map<String, Message> answer(InvocationOnMock invocation) throws Throwable {
+                if (((List<?>) invocation.getArguments()[0]).contains(messages.get(2))) {
+                    throw new AuthenticationFailedException("token expired");
+                }
+                return super.answer(invocation);
+            }
+        }).when(smsFolder).fetchForRestore(any(List.class));
+
+        fetcher = new RestoreFetcher(messages, 2).start();
+        assertThat(fetcher.next().error).isNull();
+        assertThat(fetcher.next().error).isNull();
+        try {
+            fetcher.next();
+            fail("expected exception");
+        } catch (AuthenticationFailedException e) {
+            assertThat(e.getMessage()).isEqualTo("token expired");
+        }
+        // not retried message by message
+        verify(smsFolder, times(2)).fetchForRestore(any(List.class));
+    }
+
+    @Test public void shouldCountFetchedBytes() throws Exception {
+        when(smsFolder.getFetchedBytes()).thenReturn(0L, 300L);
+
+        fetcher = new RestoreFetcher(messages(smsFolder, 0, 3), 3).start();
+        fetcher.next();
+        assertThat(fetcher.toString()).contains("bytes=300, bytesPerMessage=100");
+    }
+
+    private static List<ImapMessage> messages(BackupImapStore.BackupFolder folder, int firstUid, int count) {
+        List<ImapMessage> messages = new ArrayList<ImapMessage>();
+        for (int i = 0; i < count; i++) {
+            ImapMessage message = mock(ImapMessage.class);
+            when(message.getFolder()).thenReturn(folder);
+            when(message.getUid()).thenReturn(String.valueOf(firstUid + i));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Returns a new message for each one requested, like the server would.
+     */
+    private class FetchAnswer implements Answer<Map<String, Message>> {
+        @Override public Map<String, Message> answer(InvocationOnMock invocation) throws Throwable {
+            Map<String, Message> fetched = new HashMap<String, Message>();
+            for (Object message : (List<?>) invocation.getArguments()[0]) {
+                final String uid = ((Message) message).getUid();
+                final MimeMessage content = new MimeMessage();
+                synchronized (contents) {
+                    contents.put(uid, content);
+                }
+                fetched.put(uid, content);
+            }
+            return fetched;
+        }
+    }
+}
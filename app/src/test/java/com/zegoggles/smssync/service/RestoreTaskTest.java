@@ -1,13 +1,14 @@
 package com.zegoggles.smssync.service;
 
 
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.net.Uri;
 import android.provider.Telephony;
+import com.fsck.k9.mail.Message;
 import com.fsck.k9.mail.MessagingException;
 import com.fsck.k9.mail.store.imap.ImapMessage;
-import com.zegoggles.smssync.Consts;
 import com.zegoggles.smssync.auth.TokenRefresher;
 import com.zegoggles.smssync.mail.BackupImapStore;
 import com.zegoggles.smssync.mail.DataType;
@@ -18,24 +19,33 @@ import com.zegoggles.smssync.service.state.RestoreState;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 @RunWith(RobolectricTestRunner.class)
+@SuppressWarnings("unchecked")
 public class RestoreTaskTest {
     RestoreTask task;
     RestoreConfig config;
@@ -86,16 +96,24 @@ public class RestoreTaskTest {
 
         ImapMessage mockMessage = mock(ImapMessage.class);
         when(mockMessage.getFolder()).thenReturn(folder);
-        when(converter.getDataType(mockMessage)).thenReturn(DataType.SMS);
-        when(converter.messageToContentValues(mockMessage)).thenReturn(values);
+        when(mockMessage.getUid()).thenReturn("1");
+        Message fetchedMessage = mock(Message.class);
+        when(converter.getDataType(fetchedMessage)).thenReturn(DataType.SMS);
+        when(converter.messageToContentValues(fetchedMessage)).thenReturn(values);
 
         messages.add(mockMessage);
+        when(folder.fetchForRestore(messages)).thenReturn(Collections.singletonMap("1", fetchedMessage));
 
         when(folder.getMessages(anyInt(), anyBoolean(), any(Date.class))).thenReturn(messages);
-        when(resolver.insert(Consts.SMS_PROVIDER, values)).thenReturn(Uri.parse("content://sms/123"));
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenReturn(new ContentProviderResult[] {
+            new ContentProviderResult(Uri.parse("content://sms/123"))
+        });
         task.doInBackground(config);
 
-        verify(resolver).insert(Consts.SMS_PROVIDER, values);
+        ArgumentCaptor<ArrayList> operations = ArgumentCaptor.forClass(ArrayList.class);
+        verify(resolver).applyBatch(eq("sms"), operations.capture());
+        assertThat(operations.getValue()).hasSize(1);
+        verify(resolver, never()).insert(any(Uri.class), any(ContentValues.class));
         verify(resolver).delete(Uri.parse("content://sms/conversations/-1"), null, null);
 
         assertThat(service.getPreferences().getDataTypePreferences().getMaxSyncedDate(DataType.SMS)).isEqualTo(now.getTime());
@@ -103,4 +121,66 @@ public class RestoreTaskTest {
 
         verify(store).closeFolders();
     }
+
+    @Test public void shouldOnlyUpdateThreadsOfRestoredItems() throws Exception {
+        restoreSms(7L, 7L, 8L);
+
+        verify(resolver).delete(Uri.parse("content://sms/conversations/7"), "_id < 0", null);
+        verify(resolver).delete(Uri.parse("content://sms/conversations/8"), "_id < 0", null);
+        verify(resolver, never()).delete(Uri.parse("content://sms/conversations/-1"), null, null);
+    }
+
+    @Test public void shouldUpdateAllThreadsIfManyThreadsTouched() throws Exception {
+        Long[] threadIds = new Long[51];
+        for (int i = 0; i < threadIds.length; i++) {
+            threadIds[i] = i + 1L;
+        }
+        restoreSms(threadIds);
+
+        verify(resolver).delete(Uri.parse("content://sms/conversations/-1"), null, null);
+        verify(resolver, never()).delete(Uri.parse("content://sms/conversations/1"), "_id < 0", null);
+    }
+
+    @Test public void shouldUpdateAllThreadsIfThreadUnknown() throws Exception {
+        restoreSms(7L, null);
+
+        verify(resolver).delete(Uri.parse("content://sms/conversations/-1"), null, null);
+        verify(resolver, never()).delete(Uri.parse("content://sms/conversations/7"), "_id < 0", null);
+    }
+
+    private void restoreSms(Long... threadIds) throws Exception {
+        List<ImapMessage> messages = new ArrayList<ImapMessage>();
+        Map<String, Message> fetched = new HashMap<String, Message>();
+        for (int i = 0; i < threadIds.length; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Telephony.TextBasedSmsColumns.TYPE, Telephony.TextBasedSmsColumns.MESSAGE_TYPE_INBOX);
+            values.put(Telephony.TextBasedSmsColumns.DATE, 1000L + i);
+            values.put(Telephony.TextBasedSmsColumns.ADDRESS, "1234");
+            values.put(Telephony.TextBasedSmsColumns.THREAD_ID, threadIds[i]);
+
+            ImapMessage message = mock(ImapMessage.class);
+            when(message.getFolder()).thenReturn(folder);
+            when(message.getUid()).thenReturn(String.valueOf(i));
+            Message fetchedMessage = mock(Message.class);
+            when(converter.getDataType(fetchedMessage)).thenReturn(DataType.SMS);
+            when(converter.messageToContentValues(fetchedMessage)).thenReturn(values);
+            messages.add(message);
+            fetched.put(String.valueOf(i), fetchedMessage);
+        }
+        when(folder.fetchForRestore(any(List.class))).thenReturn(fetched);
+        when(folder.getMessages(anyInt(), anyBoolean(), any(Date.class))).thenReturn(messages);
+        when(resolver.applyBatch(eq("sms"), any(ArrayList.class))).thenAnswer(new Answer<ContentProviderResult[]>() {
+            private int id;
+
+            @Override public ContentProviderResult[] answer(InvocationOnMock invocation) {
+                final ContentProviderResult[] results = new ContentProviderResult[((List<?>) invocation.getArguments()[1]).size()];
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = new ContentProviderResult(Uri.parse("content://sms/" + (++id)));
+                }
+                return results;
+            }
+        });
+        task.doInBackground(config);
+        assertThat(task.getSmsIds()).hasSize(threadIds.length);
+    }
 }
@@ -0,0 +1,90 @@
+package com.zegoggles.smssync.service;
+
+import com.zegoggles.smssync.preferences.DataTypePreferences;
+import com.zegoggles.smssync.preferences.Preferences;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.zegoggles.smssync.mail.DataType.CALLLOG;
+import static com.zegoggles.smssync.mail.DataType.MMS;
+import static com.zegoggles.smssync.mail.DataType.SMS;
+
+@RunWith(RobolectricTestRunner.class)
+public class SyncCheckpointTest {
+    DataTypePreferences preferences;
+    File journal;
+
+    @Before public void before() {
+        preferences = new Preferences(RuntimeEnvironment.application).getDataTypePreferences();
+        journal = new File(RuntimeEnvironment.application.getFilesDir(), SyncCheckpoint.JOURNAL);
+        journal.delete();
+    }
+
+    @Test public void shouldOnlyFlushEveryNItems() throws Exception {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(preferences, journal, 10, Long.MAX_VALUE);
+        checkpoint.record(SMS, 100, 1, 5);
+        assertThat(preferences.getMaxSyncedDate(SMS)).isEqualTo(-1);
+        assertThat(journal.exists()).isTrue();
+
+        checkpoint.record(SMS, 200, 2, 5);
+        assertThat(preferences.getMaxSyncedDate(SMS)).isEqualTo(200);
+        assertThat(preferences.getMaxSyncedId(SMS)).isEqualTo(2);
+        assertThat(checkpoint.getFlushCount()).isEqualTo(1);
+        assertThat(journal.exists()).isFalse();
+    }
+
+    @Test public void shouldFlushAfterInterval() throws Exception {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(preferences, journal, Integer.MAX_VALUE, 0);
+        checkpoint.record(CALLLOG, 100, 1, 1);
+        assertThat(preferences.getMaxSyncedDate(CALLLOG)).isEqualTo(100);
+    }
+
+    @Test public void shouldFlushAllTypes() throws Exception {
+        SyncCheckpoint checkpoint = new SyncCheckpoint(preferences, journal, 100, Long.MAX_VALUE);
+        checkpoint.record(SMS, 100, 1, 1);
+        checkpoint.record(MMS, 2, 3, 1);
+        checkpoint.flush();
+
+        assertThat(preferences.getMaxSyncedDate(SMS)).isEqualTo(100);
+        assertThat(preferences.getMaxSyncedDate(MMS)).isEqualTo(2000);
+        assertThat(preferences.getMaxSyncedId(MMS)).isEqualTo(3);
+        assertThat(journal.exists()).isFalse();
+    }
+
+    @Test public void shouldRecoverFromJournal() throws Exception {
+        SyncCheckpoint killed = new SyncCheckpoint(preferences, journal, 100, Long.MAX_VALUE);
+        killed.record(SMS, 100, 1, 1);
+        killed.record(SMS, 200, 2, 1);
+        killed.record(MMS, 3, 4, 1);
+        // process killed, no flush
+
+        SyncCheckpoint checkpoint = new SyncCheckpoint(preferences, journal, 100, Long.MAX_VALUE);
+        assertThat(checkpoint.recover()).isEqualTo(2);
+        assertThat(preferences.getMaxSyncedDate(SMS)).isEqualTo(200);
+        assertThat(preferences.getMaxSyncedId(SMS)).isEqualTo(2);
+        assertThat(preferences.getMaxSyncedDate(MMS)).isEqualTo(3000);
+        assertThat(journal.exists()).isFalse();
+    }
+
+    @Test public void shouldNotRecoverIfWatermarkChangedInBetween() throws Exception {
+        SyncCheckpoint killed = new SyncCheckpoint(preferences, journal, 100, Long.MAX_VALUE);
+        killed.record(SMS, 200, 2, 1);
+
+        preferences.setMaxSyncedDate(SMS, 50);
+
+        SyncCheckpoint checkpoint = new SyncCheckpoint(preferences, journal, 100, Long.MAX_VALUE);
+        assertThat(checkpoint.recover()).isEqualTo(0);
+        assertThat(preferences.getMaxSyncedDate(SMS)).isEqualTo(50);
+        assertThat(journal.exists()).isFalse();
+    }
+
+    @Test public void shouldRecoverNothingWithoutJournal() throws Exception {
+        assertThat(new SyncCheckpoint(preferences, journal, 100, Long.MAX_VALUE).recover()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,136 @@
+package com.zegoggles.smssync.service;
+
+import com.fsck.k9.mail.Message;
+import com.fsck.k9.mail.internet.MimeMessage;
+import com.zegoggles.smssync.mail.Headers;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.zegoggles.smssync.mail.DataType.CALLLOG;
+import static com.zegoggles.smssync.mail.DataType.SMS;
+
+@RunWith(RobolectricTestRunner.class)
+public class UploadJournalTest {
+    File file;
+
+    @Before public void before() {
+        file = new File(RuntimeEnvironment.application.getFilesDir(), UploadJournal.JOURNAL);
+        file.delete();
+    }
+
+    @Test public void shouldDeleteJournalWhenAllBatchesAreDone() throws Exception {
+        UploadJournal journal = new UploadJournal(file);
+        int first = journal.plan(SMS, messages(1, 3));
+        int second = journal.plan(CALLLOG, messages(10, 2));
+        assertThat(file.exists()).isTrue();
+
+        journal.done(first);
+        assertThat(journal.readPending()).hasSize(1);
+        journal.done(second);
+
+        assertThat(file.exists()).isFalse();
+        assertThat(new UploadJournal(file).readPending()).isEmpty();
+    }
+
+    @Test public void shouldReadBatchesWhichWereNotDone() throws Exception {
+        UploadJournal killed = new UploadJournal(file);
+        killed.done(killed.plan(SMS, messages(1, 2)));
+        killed.plan(SMS, messages(3, 2));
+        // process killed during APPEND
+
+        List<UploadJournal.Batch> pending = new UploadJournal(file).readPending();
+        assertThat(pending).hasSize(1);
+        UploadJournal.Batch batch = pending.get(0);
+        assertThat(batch.type).isEqualTo(SMS);
+        assertThat(batch.items).hasSize(2);
+        assertThat(batch.items.get(0).id).isEqualTo(3);
+        assertThat(batch.items.get(0).date).isEqualTo(3000);
+        assertThat(batch.items.get(0).messageId).isEqualTo("<3@sms-backup-plus.local>");
+        assertThat(batch.items.get(1).id).isEqualTo(4);
+    }
+
+    @Test public void shouldIgnoreIncompleteLastLine() throws Exception {
+        new UploadJournal(file).plan(SMS, messages(1, 1));
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write("item 1 2 20".getBytes("UTF-8"));
+        out.close();
+
+        List<UploadJournal.Batch> pending = new UploadJournal(file).readPending();
+        assertThat(pending).hasSize(1);
+        assertThat(pending.get(0).items).hasSize(1);
+    }
+
+    @Test public void shouldSkipItemsWithoutMessageId() throws Exception {
+        MimeMessage message = new MimeMessage();
+        message.setHeader(Headers.ID, "1");
+        message.setHeader(Headers.DATE, "1000");
+        new UploadJournal(file).plan(SMS, Collections.<Message>singletonList(message));
+
+        assertThat(new UploadJournal(file).readPending()).isEmpty();
+    }
+
+    @Test public void shouldClear() throws Exception {
+        UploadJournal journal = new UploadJournal(file);
+        journal.plan(SMS, messages(1, 1));
+        journal.clear();
+        assertThat(file.exists()).isFalse();
+    }
+
+    /**
+     * A backup killed after uploading most of its batches only has to look up the batch which
+     * was in flight, by Message-ID, instead of converting everything since the last flushed
+     * watermark again. Counts items rather than timing them, the conversion itself is mocked.
+     */
+    @Test public void shouldOnlyResumeInFlightBatch() throws Exception {
+        final int batches = 100, batchSize = 25;
+        UploadJournal killed = new UploadJournal(file);
+        for (int i = 0; i < batches; i++) {
+            int seq = killed.plan(SMS, messages(i * batchSize, batchSize));
+            if (i < batches - 1) {
+                killed.done(seq);
+            }
+        }
+
+        List<UploadJournal.Batch> pending = new UploadJournal(file).readPending();
+
+        assertThat(pending).hasSize(1);
+        List<Long> ids = new ArrayList<Long>();
+        List<String> messageIds = new ArrayList<String>();
+        for (UploadJournal.Item item : pending.get(0).items) {
+            ids.add(item.id);
+            messageIds.add(item.messageId);
+            assertThat(item.date).isEqualTo(item.id * 1000L);
+        }
+        List<Long> inFlight = new ArrayList<Long>();
+        List<String> inFlightMessageIds = new ArrayList<String>();
+        for (long id = (batches - 1) * batchSize; id < batches * batchSize; id++) {
+            inFlight.add(id);
+            inFlightMessageIds.add("<" + id + "@sms-backup-plus.local>");
+        }
+        // everything before the in-flight batch is neither looked up nor converted again
+        assertThat(ids).containsExactlyElementsIn(inFlight).inOrder();
+        assertThat(messageIds).containsExactlyElementsIn(inFlightMessageIds).inOrder();
+    }
+
+    private static List<Message> messages(int firstId, int count) {
+        List<Message> messages = new ArrayList<Message>();
+        for (int id = firstId; id < firstId + count; id++) {
+            MimeMessage message = new MimeMessage();
+            message.setHeader(Headers.ID, String.valueOf(id));
+            message.setHeader(Headers.DATE, String.valueOf(id * 1000L));
+            message.setHeader(Headers.MESSAGE_ID, "<" + id + "@sms-backup-plus.local>");
+            messages.add(message);
+        }
+        return messages;
+    }
+}